@@ -19,6 +19,8 @@
 # 只有SketchGifDrawableImpl类与sketch-gif有联系，因此当缺失sketch-gif时SketchGifDrawableImpl类在混淆时会发出警告
 -dontwarn me.xiaopan.sketch.drawable.SketchGifDrawableImpl
 -dontwarn me.xiaopan.sketch.drawable.SketchGifDrawableImpl$1
+-dontwarn me.xiaopan.sketch.http.OkHttpStack
+-dontwarn me.xiaopan.sketch.http.OkHttpStack$*
 
 # 实现了Initializer接口的类需要在AndroidManifest中配置，然后再运行时实例化，因此不能混淆
 -keep public class * implements me.xiaopan.sketch.Initializer
\ No newline at end of file
@@ -21,12 +21,13 @@ import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.os.Build;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import me.xiaopan.sketch.cache.BitmapPool;
+import me.xiaopan.sketch.cache.ConcurrentLruMemoryCache;
 import me.xiaopan.sketch.cache.DiskCache;
 import me.xiaopan.sketch.cache.LruBitmapPool;
 import me.xiaopan.sketch.cache.LruDiskCache;
-import me.xiaopan.sketch.cache.LruMemoryCache;
 import me.xiaopan.sketch.cache.MemoryCache;
 import me.xiaopan.sketch.cache.MemorySizeCalculator;
 import me.xiaopan.sketch.decode.ImageDecoder;
@@ -36,7 +37,9 @@ import me.xiaopan.sketch.decode.ProcessedImageCache;
 import me.xiaopan.sketch.decode.ResizeCalculator;
 import me.xiaopan.sketch.display.DefaultImageDisplayer;
 import me.xiaopan.sketch.display.ImageDisplayer;
+import me.xiaopan.sketch.http.DownloadMetricsListener;
 import me.xiaopan.sketch.http.HttpStack;
+import me.xiaopan.sketch.http.ImageVariantSelector;
 import me.xiaopan.sketch.http.HurlStack;
 import me.xiaopan.sketch.http.ImageDownloader;
 import me.xiaopan.sketch.process.ImageProcessor;
@@ -64,6 +67,8 @@ public final class Configuration {
     private ProcessedImageCache processedImageCache;
 
     private HttpStack httpStack;
+    private ImageVariantSelector imageVariantSelector;
+    private DownloadMetricsListener downloadMetricsListener;
     private ImageDecoder decoder;
     private ImageDownloader downloader;
     private ImageOrientationCorrector orientationCorrector;
@@ -84,6 +89,7 @@ public final class Configuration {
     private boolean globalPauseDownload;   // 全局暂停下载新图片，开启后将不再从网络下载新图片，只影响display请求
     private boolean globalLowQualityImage; // 全局使用低质量的图片
     private boolean globalInPreferQualityOverSpeed;   // false:全局解码时优先考虑速度；true:全局解码时优先考虑质量
+    private boolean diskCacheWriteBehind;   // 下载的数据直接从内存解码，在后台写磁盘缓存
     private GlobalMobileNetworkPauseDownloadController globalMobileNetworkPauseDownloadController;
 
     Configuration(@NonNull Context context) {
@@ -96,7 +102,7 @@ public final class Configuration {
         this.diskCache = new LruDiskCache(context, this, 2, DiskCache.DISK_CACHE_MAX_SIZE);
         MemorySizeCalculator memorySizeCalculator = new MemorySizeCalculator(context);
         this.bitmapPool = new LruBitmapPool(context, memorySizeCalculator.getBitmapPoolSize());
-        this.memoryCache = new LruMemoryCache(context, memorySizeCalculator.getMemoryCacheSize());
+        this.memoryCache = new ConcurrentLruMemoryCache(context, memorySizeCalculator.getMemoryCacheSize());
 
         this.decoder = new ImageDecoder();
         this.executor = new RequestExecutor();
@@ -286,6 +292,54 @@ public final class Configuration {
         return this;
     }
 
+    /**
+     * 获取图片变体选择器
+     *
+     * @return null：总是下载原图
+     */
+    @Nullable
+    @SuppressWarnings("unused")
+    public ImageVariantSelector getImageVariantSelector() {
+        return imageVariantSelector;
+    }
+
+    /**
+     * 设置图片变体选择器，设置后下载网络图片时会根据目标尺寸和网络状况下载合适的尺寸变体，而不是总下载原图
+     *
+     * @param imageVariantSelector null：总是下载原图
+     * @return Configuration. Convenient chain calls
+     */
+    @NonNull
+    @SuppressWarnings("unused")
+    public Configuration setImageVariantSelector(@Nullable ImageVariantSelector imageVariantSelector) {
+        this.imageVariantSelector = imageVariantSelector;
+        SLog.w(NAME, "imageVariantSelector=%s", imageVariantSelector != null ? imageVariantSelector.getKey() : null);
+        return this;
+    }
+
+    /**
+     * 获取网络下载指标监听器
+     */
+    @Nullable
+    @SuppressWarnings("unused")
+    public DownloadMetricsListener getDownloadMetricsListener() {
+        return downloadMetricsListener;
+    }
+
+    /**
+     * 设置网络下载指标监听器，每次网络下载结束后都会收到排队、连接、TTFB、速度、磁盘缓存提交耗时、重试次数和结果，
+     * 可以直接使用 {@link me.xiaopan.sketch.http.DownloadMetricsRecorder} 按 host 统计
+     *
+     * @return Configuration. Convenient chain calls
+     */
+    @NonNull
+    @SuppressWarnings("unused")
+    public Configuration setDownloadMetricsListener(@Nullable DownloadMetricsListener downloadMetricsListener) {
+        this.downloadMetricsListener = downloadMetricsListener;
+        SLog.w(NAME, "downloadMetricsListener=%s", downloadMetricsListener);
+        return this;
+    }
+
     /**
      * 获取图片解码器
      *
@@ -727,6 +781,28 @@ public final class Configuration {
         return this;
     }
 
+    /**
+     * 是否在后台写磁盘缓存
+     */
+    public boolean isDiskCacheWriteBehind() {
+        return diskCacheWriteBehind;
+    }
+
+    /**
+     * 设置是否在后台写磁盘缓存，开启后下载的数据直接从内存交给解码，磁盘缓存在后台低优先级的线程中写入，
+     * 还没写完的数据超出 {@link me.xiaopan.sketch.http.DiskCacheWriteBehind#setMaxInFlightBytes(long)} 或者内存紧张时还是同步写
+     *
+     * @return Configuration. Convenient chain calls
+     */
+    @NonNull
+    public Configuration setDiskCacheWriteBehind(boolean diskCacheWriteBehind) {
+        if (this.diskCacheWriteBehind != diskCacheWriteBehind) {
+            this.diskCacheWriteBehind = diskCacheWriteBehind;
+            SLog.w(NAME, "diskCacheWriteBehind=%s", diskCacheWriteBehind);
+        }
+        return this;
+    }
+
     @NonNull
     public String getInfo() {
         return NAME + ": " +
@@ -736,6 +812,7 @@ public final class Configuration {
                 "\n" + "processedImageCache：" + processedImageCache.getKey() +
 
                 "\n" + "httpStack：" + httpStack.getKey() +
+                "\n" + "imageVariantSelector：" + (imageVariantSelector != null ? imageVariantSelector.getKey() : null) +
                 "\n" + "decoder：" + decoder.getKey() +
                 "\n" + "downloader：" + downloader.getKey() +
                 "\n" + "orientationCorrector：" + orientationCorrector.getKey() +
@@ -755,6 +832,7 @@ public final class Configuration {
                 "\n" + "globalPauseDownload：" + globalPauseDownload +
                 "\n" + "globalLowQualityImage：" + globalLowQualityImage +
                 "\n" + "globalInPreferQualityOverSpeed：" + globalInPreferQualityOverSpeed +
+                "\n" + "diskCacheWriteBehind：" + diskCacheWriteBehind +
                 "\n" + "globalMobileNetworkPauseDownload：" + isGlobalMobileNetworkGlobalPauseDownload();
     }
 
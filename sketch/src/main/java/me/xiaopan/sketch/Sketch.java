@@ -24,6 +24,7 @@ import android.support.annotation.DrawableRes;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import me.xiaopan.sketch.process.StackBlur;
 import me.xiaopan.sketch.request.CancelCause;
 import me.xiaopan.sketch.request.DisplayHelper;
 import me.xiaopan.sketch.request.DisplayRequest;
@@ -241,6 +242,11 @@ public class Sketch {
 
         configuration.getMemoryCache().trimMemory(level);
         configuration.getBitmapPool().trimMemory(level);
+        // 模糊用的缓冲区只在处理图片时有用，内存一紧张就释放掉
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            StackBlur.clearBufferPool();
+        }
+        configuration.getDownloader().getDiskCacheWriteBehind().trimMemory(level);
     }
 
     /**
@@ -259,5 +265,7 @@ public class Sketch {
 
         configuration.getMemoryCache().clear();
         configuration.getBitmapPool().clear();
+        StackBlur.clearBufferPool();
+        configuration.getDownloader().getDiskCacheWriteBehind().trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
     }
 }
\ No newline at end of file
@@ -0,0 +1,539 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.text.format.Formatter;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import me.xiaopan.sketch.SLog;
+import me.xiaopan.sketch.drawable.SketchRefBitmap;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 读不加锁的 LRU 内存缓存器
+ * <p>
+ * 数据放在 {@link ConcurrentHashMap} 里，{@link #get(String)} 只查 map 并把访问记录放进读缓冲区，不会等待任何锁，
+ * 主线程命中缓存的耗时不受解码线程 put 的影响。LRU 链表只在维护时加锁更新：put 所在的线程（解码线程）会顺便维护一次，
+ * 读缓冲区积攒满了则交给后台线程维护，淘汰同样在维护时进行，因此不会发生在主线程
+ * <p>
+ * 读缓冲区是有损的，堆积太多时新的访问记录会被丢弃，只会让 LRU 顺序略微不准确
+ * <p>
+ * 开启 frequencyAdmission 后使用 W-TinyLFU 策略：新图片先进入占总容量 {@link #WINDOW_PERCENT}% 的窗口区（LRU），
+ * 被挤出窗口后要和主区中最久未使用的图片比较 {@link FrequencySketch} 记录的访问频率，频率更高的才能留下。
+ * 主区分为试用区和保护区（占主区 {@link #PROTECTED_PERCENT}%），试用区的图片再次被访问才会升入保护区。
+ * 这样快速滑过一长串只看一次的图片时，不会把头像这类反复出现的图片挤出缓存
+ */
+public class ConcurrentLruMemoryCache implements MemoryCache {
+    private static final String NAME = "ConcurrentLruMemoryCache";
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+    private static final int READ_BUFFER_MAX_SIZE = 128;
+    static final int WINDOW_PERCENT = 10;
+    static final int PROTECTED_PERCENT = 80;
+    // 按平均每张图片 100KB 估算 FrequencySketch 的容量
+    private static final int AVERAGE_ENTRY_SIZE = 100 * 1024;
+
+    private final ConcurrentHashMap<String, Node> data = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Node> readBuffer = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger readBufferSize = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Node> writeBuffer = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AtomicLong size = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final ThreadPoolExecutor maintenanceExecutor;
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drainScheduled.set(false);
+            evictionLock.lock();
+            try {
+                maintenance(maxSize);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    };
+
+    // 以下队列和 sketch 只在持有 evictionLock 时访问，不开启 frequencyAdmission 时只用 window 作为整个 LRU 链表
+    private final NodeQueue window = new NodeQueue();
+    private final NodeQueue probation = new NodeQueue();
+    private final NodeQueue protect = new NodeQueue();
+    private final FrequencySketch sketch;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    private Context context;
+    private long maxSize;
+    private volatile boolean closed;
+    private boolean disabled;
+
+    public ConcurrentLruMemoryCache(Context context, int maxSize) {
+        this(context, maxSize, false);
+    }
+
+    /**
+     * @param frequencyAdmission 使用 W-TinyLFU 准入和淘汰策略
+     */
+    public ConcurrentLruMemoryCache(Context context, int maxSize, boolean frequencyAdmission) {
+        context = context.getApplicationContext();
+        this.context = context;
+        this.maxSize = maxSize;
+        this.sketch = frequencyAdmission ? new FrequencySketch(Math.max(maxSize / AVERAGE_ENTRY_SIZE, 64)) : null;
+        this.maintenanceExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, "MemoryCacheMaintenance");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        this.maintenanceExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void put(@NonNull String key, @NonNull SketchRefBitmap refBitmap) {
+        if (closed) {
+            return;
+        }
+
+        if (disabled) {
+            if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_CACHE)) {
+                SLog.d(NAME, "Disabled. Unable put, key=%s", key);
+            }
+            return;
+        }
+
+        if (data.containsKey(key)) {
+            SLog.w(NAME, String.format("Exist. key=%s", key));
+            return;
+        }
+
+        long oldCacheSize = size.get();
+        Node node = new Node(key, refBitmap, sizeOf(refBitmap));
+        refBitmap.setIsCached(NAME + ":put", true);
+        size.addAndGet(node.weight);
+        Node oldNode = data.put(key, node);
+        if (oldNode != null) {
+            // 并发 put 了同一个 key，和 LruCache 一样替换掉旧的
+            onRemoved(oldNode, "replace");
+            writeBuffer.offer(oldNode);
+        }
+        writeBuffer.offer(node);
+
+        // put 都在解码线程，直接在这里维护和淘汰
+        evictionLock.lock();
+        try {
+            maintenance(maxSize);
+        } finally {
+            evictionLock.unlock();
+        }
+
+        if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_CACHE)) {
+            SLog.d(NAME, "put. beforeCacheSize=%s. %s. afterCacheSize=%s",
+                    Formatter.formatFileSize(context, oldCacheSize), refBitmap.getInfo(),
+                    Formatter.formatFileSize(context, size.get()));
+        }
+    }
+
+    @Override
+    public SketchRefBitmap get(@NonNull String key) {
+        if (closed) {
+            return null;
+        }
+
+        if (disabled) {
+            if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_CACHE)) {
+                SLog.d(NAME, "Disabled. Unable get, key=%s", key);
+            }
+            return null;
+        }
+
+        Node node = data.get(key);
+        if (node == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+        recordRead(node);
+        return node.refBitmap;
+    }
+
+    private void recordRead(Node node) {
+        int bufferSize = readBufferSize.get();
+        if (bufferSize < READ_BUFFER_MAX_SIZE) {
+            readBufferSize.incrementAndGet();
+            readBuffer.offer(node);
+        }
+        if (bufferSize >= READ_BUFFER_DRAIN_THRESHOLD && drainScheduled.compareAndSet(false, true)) {
+            maintenanceExecutor.execute(drainTask);
+        }
+    }
+
+    @Override
+    public SketchRefBitmap remove(@NonNull String key) {
+        if (closed) {
+            return null;
+        }
+
+        if (disabled) {
+            if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_CACHE)) {
+                SLog.d(NAME, "Disabled. Unable remove, key=%s", key);
+            }
+            return null;
+        }
+
+        Node node = data.remove(key);
+        if (node == null) {
+            return null;
+        }
+
+        // 从链表中移除交给下次维护
+        onRemoved(node, "remove");
+        writeBuffer.offer(node);
+        if (drainScheduled.compareAndSet(false, true)) {
+            maintenanceExecutor.execute(drainTask);
+        }
+
+        if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_CACHE)) {
+            SLog.d(NAME, "remove. memoryCacheSize: %s", Formatter.formatFileSize(context, size.get()));
+        }
+        return node.refBitmap;
+    }
+
+    /**
+     * 节点已经从 map 中移除了，只有成功从 map 中移除节点的线程才能调用
+     */
+    private void onRemoved(Node node, String callingStation) {
+        node.removed = true;
+        size.addAndGet(-node.weight);
+        node.refBitmap.setIsCached(NAME + ":" + callingStation, false);
+    }
+
+    /**
+     * 应用缓冲区中的写入和访问记录，然后淘汰到指定大小，必须持有 evictionLock
+     */
+    private void maintenance(long targetSize) {
+        Node node;
+        while ((node = writeBuffer.poll()) != null) {
+            if (node.removed) {
+                if (node.queue != null) {
+                    node.queue.unlink(node);
+                }
+            } else if (node.queue == null) {
+                window.linkLast(node);
+                if (sketch != null) {
+                    sketch.increment(node.key.hashCode());
+                }
+            }
+        }
+
+        int drainCount = readBufferSize.get();
+        while (drainCount-- > 0 && (node = readBuffer.poll()) != null) {
+            readBufferSize.decrementAndGet();
+            if (node.queue != null && !node.removed) {
+                onAccess(node);
+            }
+        }
+
+        if (sketch != null) {
+            evictByFrequency(targetSize);
+        } else {
+            while (size.get() > targetSize && window.head != null) {
+                evict(window.head);
+            }
+        }
+    }
+
+    private void onAccess(Node node) {
+        if (sketch == null) {
+            window.moveToLast(node);
+            return;
+        }
+
+        sketch.increment(node.key.hashCode());
+        if (node.queue == probation) {
+            // 试用区的图片再次被访问，升入保护区，保护区超出容量了就把最久未使用的降回试用区
+            probation.unlink(node);
+            protect.linkLast(node);
+            long protectedMaxSize = (maxSize - maxSize * WINDOW_PERCENT / 100) * PROTECTED_PERCENT / 100;
+            while (protect.weight > protectedMaxSize && protect.head != null) {
+                Node demoted = protect.head;
+                protect.unlink(demoted);
+                probation.linkLast(demoted);
+            }
+        } else {
+            node.queue.moveToLast(node);
+        }
+    }
+
+    /**
+     * 窗口区超出容量的图片移到试用区末尾成为候选者，然后让候选者和试用区头部最久未使用的图片比较访问频率，淘汰频率低的
+     */
+    private void evictByFrequency(long targetSize) {
+        long windowMaxSize = targetSize * WINDOW_PERCENT / 100;
+        Node candidate = null;
+        while (window.weight > windowMaxSize && window.head != null) {
+            Node node = window.head;
+            window.unlink(node);
+            probation.linkLast(node);
+            if (candidate == null) {
+                candidate = node;
+            }
+        }
+
+        while (size.get() > targetSize) {
+            Node victim = probation.head;
+            if (victim == null) {
+                victim = protect.head != null ? protect.head : window.head;
+                if (victim == null) {
+                    break;
+                }
+                evict(victim);
+                continue;
+            }
+
+            if (candidate == null || candidate == victim) {
+                if (candidate == victim) {
+                    candidate = victim.next;
+                }
+                evict(victim);
+            } else if (sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+                evict(victim);
+            } else {
+                Node next = candidate.next;
+                evict(candidate);
+                candidate = next;
+            }
+        }
+    }
+
+    private void evict(Node node) {
+        node.queue.unlink(node);
+        if (data.remove(node.key, node)) {
+            onRemoved(node, "evict");
+        }
+    }
+
+    private void trimToSize(long targetSize) {
+        evictionLock.lock();
+        try {
+            maintenance(targetSize);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private static int sizeOf(SketchRefBitmap refBitmap) {
+        int bitmapSize = refBitmap.getByteCount();
+        return bitmapSize == 0 ? 1 : bitmapSize;
+    }
+
+    @Override
+    public long getSize() {
+        if (closed) {
+            return 0;
+        }
+
+        return size.get();
+    }
+
+    @Override
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 是否使用了 W-TinyLFU 策略
+     */
+    public boolean isFrequencyAdmission() {
+        return sketch != null;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * 获取命中率，0 到 1
+     */
+    public float getHitRate() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total > 0 ? (float) hits / total : 0;
+    }
+
+    @NonNull
+    public String getStatsInfo() {
+        return String.format(Locale.US, "%s(policy=%s,hits=%d,misses=%d,hitRate=%.2f%%,size=%s)",
+                NAME, sketch != null ? "W-TinyLFU" : "LRU", hitCount.get(), missCount.get(), getHitRate() * 100,
+                Formatter.formatFileSize(context, size.get()));
+    }
+
+    @Override
+    public void trimMemory(int level) {
+        if (closed) {
+            return;
+        }
+
+        long memoryCacheSize = getSize();
+
+        if (level >= android.content.ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            trimToSize(0);
+        } else if (level >= android.content.ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            trimToSize(maxSize / 2);
+        }
+
+        long releasedSize = memoryCacheSize - getSize();
+        SLog.w(NAME, "trimMemory. level=%s, released: %s",
+                SketchUtils.getTrimLevelName(level), Formatter.formatFileSize(context, releasedSize));
+    }
+
+    @Override
+    public boolean isDisabled() {
+        return disabled;
+    }
+
+    @Override
+    public void setDisabled(boolean disabled) {
+        if (this.disabled != disabled) {
+            this.disabled = disabled;
+            if (disabled) {
+                SLog.w(NAME, "setDisabled. %s", true);
+            } else {
+                SLog.w(NAME, "setDisabled. %s", false);
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        if (closed) {
+            return;
+        }
+
+        SLog.w(NAME, "clear. before size: %s", Formatter.formatFileSize(context, size.get()));
+        trimToSize(0);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        trimToSize(0);
+        maintenanceExecutor.shutdown();
+    }
+
+    @NonNull
+    @Override
+    public String getKey() {
+        return String.format("%s(maxSize=%s)", NAME, Formatter.formatFileSize(context, getMaxSize()));
+    }
+
+    private static class Node {
+        private final String key;
+        private final SketchRefBitmap refBitmap;
+        private final int weight;
+        private volatile boolean removed;
+
+        // 以下字段只在持有 evictionLock 时访问
+        private NodeQueue queue;
+        private Node prev;
+        private Node next;
+
+        Node(String key, SketchRefBitmap refBitmap, int weight) {
+            this.key = key;
+            this.refBitmap = refBitmap;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * 按访问顺序排列的双向链表，head 是最久未使用的
+     */
+    private static class NodeQueue {
+        private Node head;
+        private Node tail;
+        private long weight;
+
+        void linkLast(Node node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            node.queue = this;
+            weight += node.weight;
+        }
+
+        void unlink(Node node) {
+            if (node.queue != this) {
+                return;
+            }
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            node.queue = null;
+            weight -= node.weight;
+        }
+
+        void moveToLast(Node node) {
+            if (node != tail) {
+                unlink(node);
+                linkLast(node);
+            }
+        }
+    }
+}
@@ -106,7 +106,7 @@ public interface DiskCache extends Identifier {
     void close();
 
     /**
-     * 获取编辑锁
+     * 获取编辑锁，同一个 uri 在锁被持有或等待期间始终返回同一把锁。每次获取后必须 lock 一次并在结束时 unlock
      *
      * @param uri 下载uri
      * @return ReentrantLock
@@ -178,4 +178,44 @@ public interface DiskCache extends Identifier {
          */
         void abort();
     }
+
+    /**
+     * 可以直接访问正在写的文件的编辑器，是可选的，下载中断时用来把已写入的数据直接移动成续传数据，不用再复制一遍
+     */
+    interface FileEditor extends Editor {
+        /**
+         * 获取正在写的文件，提交时会被移动为正式的缓存文件，所以提交前可以把别的文件移动到这个位置
+         *
+         * @return File
+         */
+        @NonNull
+        File getFile();
+    }
+
+    /**
+     * 可以附带元数据的实体，是可选的，元数据和数据存在同一个缓存条目里，一起被淘汰和删除
+     */
+    interface MetadataEntry extends Entry {
+        /**
+         * 创建元数据的输入流
+         *
+         * @return null：没有元数据
+         * @throws IOException
+         */
+        @Nullable
+        InputStream newMetadataInputStream() throws IOException;
+    }
+
+    /**
+     * 可以写元数据的编辑器，是可选的。只写元数据的话数据保持不变，写了数据没写元数据的话旧的元数据会被清空
+     */
+    interface MetadataEditor extends Editor {
+        /**
+         * 创建一个输出流，用于写出元数据
+         *
+         * @return OutputStream
+         * @throws IOException
+         */
+        OutputStream newMetadataOutputStream() throws IOException;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 磁盘缓存编辑锁池，同一个 key 在有人使用期间始终拿到同一把锁
+ * <p>
+ * 按 key 的 hash 分成多个段，每个段单独同步，不同 key 之间互不阻塞。锁带有引用计数，{@link #get(String)} 时加一，
+ * 每次 {@link ReentrantLock#unlock()} 时减一，减到零才从池中移除，因此不会像 WeakHashMap 那样在锁还被持有时被回收。
+ * 同一个线程嵌套获取同一个 key 的锁时每一层都各自加一减一，最外层释放后计数正好回到零
+ * <p>
+ * 每次 {@link #get(String)} 之后必须 lock 一次并 unlock 一次
+ */
+public class EditLockPool {
+    private static final int SEGMENT_COUNT = 16;
+
+    @SuppressWarnings("unchecked")
+    private final Map<String, EditLock>[] segments = new Map[SEGMENT_COUNT];
+
+    public EditLockPool() {
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new HashMap<>();
+        }
+    }
+
+    @NonNull
+    public ReentrantLock get(@NonNull String key) {
+        Map<String, EditLock> segment = segmentFor(key);
+        synchronized (segment) {
+            EditLock lock = segment.get(key);
+            if (lock == null) {
+                lock = new EditLock(key, segment);
+                segment.put(key, lock);
+            }
+            lock.refCount++;
+            return lock;
+        }
+    }
+
+    /**
+     * 获取当前池中锁的数量
+     */
+    public int size() {
+        int size = 0;
+        for (Map<String, EditLock> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private Map<String, EditLock> segmentFor(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[hash & (SEGMENT_COUNT - 1)];
+    }
+
+    private static class EditLock extends ReentrantLock {
+        private final String key;
+        private final Map<String, EditLock> segment;
+        private int refCount;
+
+        EditLock(String key, Map<String, EditLock> segment) {
+            this.key = key;
+            this.segment = segment;
+        }
+
+        @Override
+        public void unlock() {
+            super.unlock();
+            synchronized (segment) {
+                if (--refCount <= 0 && segment.get(key) == this) {
+                    segment.remove(key);
+                }
+            }
+        }
+    }
+}
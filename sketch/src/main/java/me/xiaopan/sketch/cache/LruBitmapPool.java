@@ -12,6 +12,7 @@ import android.text.format.Formatter;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.Set;
 
 import me.xiaopan.sketch.SLog;
@@ -25,6 +26,10 @@ import me.xiaopan.sketch.util.SketchUtils;
  * {@link me.xiaopan.sketch.cache.recycle.LruPoolStrategy} to bucket {@link Bitmap}s and then uses an LRU
  * eviction policy to evict {@link android.graphics.Bitmap}s from the least recently used bucket in order to keep
  * the pool below a given maximum size limit.
+ * <p>
+ * With frequency admission enabled, a {@link FrequencySketch} counts how often each size and config is requested,
+ * and once the pool is full a bitmap is only admitted if its size was requested recently. Bitmaps of sizes that are
+ * rarely asked for can then no longer push the frequently reused ones out of the pool.
  */
 public class LruBitmapPool implements BitmapPool {
     private static final Bitmap.Config DEFAULT_CONFIG = Bitmap.Config.ARGB_8888;
@@ -41,6 +46,8 @@ public class LruBitmapPool implements BitmapPool {
     private int misses;
     private int puts;
     private int evictions;
+    private int rejections;
+    private FrequencySketch sketch;
 
     private Context context;
     private boolean closed;
@@ -78,6 +85,25 @@ public class LruBitmapPool implements BitmapPool {
         this(context, maxSize, getDefaultStrategy(), allowedConfigs);
     }
 
+    /**
+     * Constructor for LruBitmapPool.
+     *
+     * @param maxSize            The initial maximum size of the pool in bytes.
+     * @param frequencyAdmission Only admit bitmaps of recently requested sizes once the pool is full.
+     */
+    @SuppressWarnings("unused")
+    public LruBitmapPool(Context context, int maxSize, boolean frequencyAdmission) {
+        this(context, maxSize, getDefaultStrategy(), getDefaultAllowedConfigs());
+        if (frequencyAdmission) {
+            // Assume 100KB per pooled bitmap on average
+            this.sketch = new FrequencySketch(Math.max(maxSize / (100 * 1024), 64));
+        }
+    }
+
+    private static int sizeKey(int width, int height, Bitmap.Config config) {
+        return (width * 31 + height) * 31 + (config != null ? config.ordinal() : -1);
+    }
+
     private static LruPoolStrategy getDefaultStrategy() {
         final LruPoolStrategy strategy;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
@@ -122,6 +148,15 @@ public class LruBitmapPool implements BitmapPool {
         }
 
         final int size = strategy.getSize(bitmap);
+        if (sketch != null && currentSize + size > maxSize
+                && sketch.frequency(sizeKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig())) == 0) {
+            rejections++;
+            if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_CACHE)) {
+                SLog.d(NAME, "Reject rarely requested bitmap=%s,%s", strategy.logBitmap(bitmap), SketchUtils.toHexString(bitmap));
+            }
+            return false;
+        }
+
         strategy.put(bitmap);
         tracker.add(bitmap);
 
@@ -151,6 +186,10 @@ public class LruBitmapPool implements BitmapPool {
             return null;
         }
 
+        if (sketch != null) {
+            sketch.increment(sizeKey(width, height, config));
+        }
+
         // Config will be null for non public config types, which can lead to transformations naively passing in
         // null as the requested config here. See issue #194.
         //noinspection ConstantConditions
@@ -226,6 +265,28 @@ public class LruBitmapPool implements BitmapPool {
         return currentSize;
     }
 
+    public synchronized int getHitCount() {
+        return hits;
+    }
+
+    public synchronized int getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Returns the hit rate between 0 and 1.
+     */
+    public synchronized float getHitRate() {
+        int total = hits + misses;
+        return total > 0 ? (float) hits / total : 0;
+    }
+
+    @NonNull
+    public synchronized String getStatsInfo() {
+        return String.format(Locale.US, "%s(policy=%s,hits=%d,misses=%d,hitRate=%.2f%%,puts=%d,rejections=%d,evictions=%d)",
+                NAME, sketch != null ? "TinyLFU" : "LRU", hits, misses, getHitRate() * 100, puts, rejections, evictions);
+    }
+
     @Override
     public synchronized void setSizeMultiplier(float sizeMultiplier) {
         if (closed) {
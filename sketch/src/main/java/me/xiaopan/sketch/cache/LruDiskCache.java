@@ -18,14 +18,14 @@ package me.xiaopan.sketch.cache;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.format.Formatter;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Map;
-import java.util.WeakHashMap;
 import java.util.concurrent.locks.ReentrantLock;
 
 import me.xiaopan.sketch.Configuration;
@@ -37,18 +37,29 @@ import me.xiaopan.sketch.util.SketchUtils;
 import me.xiaopan.sketch.util.UnableCreateDirException;
 import me.xiaopan.sketch.util.UnableCreateFileException;
 
+/**
+ * 基于 {@link DiskLruCache} 的磁盘缓存器
+ * <p>
+ * exist、get 和 getSize 不加锁，直接读 {@link DiskLruCache} 的并发索引，不会被正在提交的下载阻塞；
+ * 只有安装、清空和关闭缓存时才需要加锁。编辑锁由 {@link EditLockPool} 提供
+ * <p>
+ * 每个条目有两个槽位，0 存数据，1 存元数据，元数据和数据一起被淘汰
+ */
 public class LruDiskCache implements DiskCache {
     private static final String NAME = "LruDiskCache";
+    private static final int DATA_INDEX = 0;
+    private static final int METADATA_INDEX = 1;
+    private static final int VALUE_COUNT = 2;
 
     private int maxSize;
     private int appVersionCode;
-    private File cacheDir;
+    private volatile File cacheDir;
     private Context context;
-    private DiskLruCache cache;
+    private volatile DiskLruCache cache;
     private Configuration configuration;
-    private boolean closed;
+    private volatile boolean closed;
     private boolean disabled;
-    private Map<String, ReentrantLock> editLockMap;
+    private final EditLockPool editLockPool = new EditLockPool();
 
     public LruDiskCache(Context context, Configuration configuration, int appVersionCode, int maxSize) {
         context = context.getApplicationContext();
@@ -73,6 +84,26 @@ public class LruDiskCache implements DiskCache {
         return cacheDir != null && cacheDir.exists();
     }
 
+    /**
+     * 确保磁盘缓存可用，不可用时才加锁重装，避免多个线程同时发现不可用时重复安装
+     *
+     * @param checkCacheDir 是否同时检查缓存目录
+     * @return 可用的磁盘缓存，安装失败时返回 null
+     */
+    private DiskLruCache ensureDiskCache(boolean checkCacheDir) {
+        DiskLruCache cache = this.cache;
+        if (cache != null && !cache.isClosed() && (!checkCacheDir || checkCacheDir())) {
+            return cache;
+        }
+
+        synchronized (this) {
+            if (!checkDiskCache() || (checkCacheDir && !checkCacheDir())) {
+                installDiskCache();
+            }
+            return checkDiskCache() ? this.cache : null;
+        }
+    }
+
     /**
      * 安装磁盘缓存
      */
@@ -105,7 +136,7 @@ public class LruDiskCache implements DiskCache {
         }
 
         try {
-            cache = DiskLruCache.open(cacheDir, appVersionCode, 1, maxSize);
+            cache = DiskLruCache.open(cacheDir, appVersionCode, VALUE_COUNT, maxSize);
         } catch (IOException e) {
             e.printStackTrace();
             configuration.getErrorTracker().onInstallDiskCacheError(e, cacheDir);
@@ -127,11 +158,9 @@ public class LruDiskCache implements DiskCache {
         }
 
         // 这个方法性能优先，因此不检查缓存目录
-        if (!checkDiskCache()) {
-            installDiskCache();
-            if (!checkDiskCache()) {
-                return false;
-            }
+        DiskLruCache cache = ensureDiskCache(false);
+        if (cache == null) {
+            return false;
         }
 
         try {
@@ -146,7 +175,7 @@ public class LruDiskCache implements DiskCache {
     }
 
     @Override
-    public synchronized Entry get(@NonNull String uri) {
+    public Entry get(@NonNull String uri) {
         if (closed) {
             return null;
         }
@@ -158,11 +187,9 @@ public class LruDiskCache implements DiskCache {
             return null;
         }
 
-        if (!checkDiskCache() || !checkCacheDir()) {
-            installDiskCache();
-            if (!checkDiskCache()) {
-                return null;
-            }
+        DiskLruCache cache = ensureDiskCache(true);
+        if (cache == null) {
+            return null;
         }
 
         DiskLruCache.SimpleSnapshot snapshot = null;
@@ -175,7 +202,7 @@ public class LruDiskCache implements DiskCache {
     }
 
     @Override
-    public synchronized Editor edit(@NonNull String uri) {
+    public Editor edit(@NonNull String uri) {
         if (closed) {
             return null;
         }
@@ -187,11 +214,9 @@ public class LruDiskCache implements DiskCache {
             return null;
         }
 
-        if (!checkDiskCache() || !checkCacheDir()) {
-            installDiskCache();
-            if (!checkDiskCache()) {
-                return null;
-            }
+        DiskLruCache cache = ensureDiskCache(true);
+        if (cache == null) {
+            return null;
         }
 
         DiskLruCache.Editor diskEditor = null;
@@ -201,8 +226,14 @@ public class LruDiskCache implements DiskCache {
             e.printStackTrace();
 
             // 发生异常的时候（比如SD卡被拔出，导致不能使用），尝试重装DiskLruCache，能显著提高遇错恢复能力
-            installDiskCache();
-            if (!checkDiskCache()) {
+            synchronized (this) {
+                // 别的线程已经重装过了就不用再装了
+                if (this.cache == cache) {
+                    installDiskCache();
+                }
+                cache = this.cache;
+            }
+            if (cache == null || cache.isClosed()) {
                 return null;
             }
 
@@ -215,8 +246,8 @@ public class LruDiskCache implements DiskCache {
             e.printStackTrace();
 
             // 旧的关闭了，必须要重装DiskLruCache
-            installDiskCache();
-            if (!checkDiskCache()) {
+            cache = ensureDiskCache(true);
+            if (cache == null) {
                 return null;
             }
 
@@ -231,7 +262,7 @@ public class LruDiskCache implements DiskCache {
 
     @NonNull
     @Override
-    public synchronized File getCacheDir() {
+    public File getCacheDir() {
         return cacheDir;
     }
 
@@ -251,12 +282,13 @@ public class LruDiskCache implements DiskCache {
     }
 
     @Override
-    public synchronized long getSize() {
+    public long getSize() {
         if (closed) {
             return 0;
         }
 
-        if (!checkDiskCache()) {
+        DiskLruCache cache = this.cache;
+        if (cache == null || cache.isClosed()) {
             return 0;
         }
 
@@ -299,7 +331,7 @@ public class LruDiskCache implements DiskCache {
     }
 
     @Override
-    public synchronized boolean isClosed() {
+    public boolean isClosed() {
         return closed;
     }
 
@@ -323,21 +355,8 @@ public class LruDiskCache implements DiskCache {
 
     @NonNull
     @Override
-    public synchronized ReentrantLock getEditLock(@NonNull String uri) {
-        if (editLockMap == null) {
-            synchronized (this) {
-                if (editLockMap == null) {
-                    editLockMap = new WeakHashMap<>();
-                }
-            }
-        }
-
-        ReentrantLock lock = editLockMap.get(uri);
-        if (lock == null) {
-            lock = new ReentrantLock();
-            editLockMap.put(uri, lock);
-        }
-        return lock;
+    public ReentrantLock getEditLock(@NonNull String uri) {
+        return editLockPool.get(uri);
     }
 
     @NonNull
@@ -347,7 +366,7 @@ public class LruDiskCache implements DiskCache {
                 NAME, Formatter.formatFileSize(context, maxSize), appVersionCode, cacheDir.getPath());
     }
 
-    public static class LruDiskCacheEntry implements Entry {
+    public static class LruDiskCacheEntry implements MetadataEntry {
         private String uri;
         private DiskLruCache.SimpleSnapshot snapshot;
 
@@ -359,13 +378,20 @@ public class LruDiskCache implements DiskCache {
         @NonNull
         @Override
         public InputStream newInputStream() throws IOException {
-            return snapshot.newInputStream(0);
+            return snapshot.newInputStream(DATA_INDEX);
+        }
+
+        @Nullable
+        @Override
+        public InputStream newMetadataInputStream() throws IOException {
+            File metadataFile = snapshot.getFile(METADATA_INDEX);
+            return metadataFile.length() > 0 ? new FileInputStream(metadataFile) : null;
         }
 
         @NonNull
         @Override
         public File getFile() {
-            return snapshot.getFile(0);
+            return snapshot.getFile(DATA_INDEX);
         }
 
         @NonNull
@@ -389,7 +415,7 @@ public class LruDiskCache implements DiskCache {
         }
     }
 
-    public static class LruDiskCacheEditor implements Editor {
+    public static class LruDiskCacheEditor implements FileEditor, MetadataEditor {
         private DiskLruCache.Editor diskEditor;
 
         public LruDiskCacheEditor(DiskLruCache.Editor diskEditor) {
@@ -398,11 +424,28 @@ public class LruDiskCache implements DiskCache {
 
         @Override
         public OutputStream newOutputStream() throws IOException {
-            return diskEditor.newOutputStream(0);
+            return diskEditor.newOutputStream(DATA_INDEX);
+        }
+
+        @Override
+        public OutputStream newMetadataOutputStream() throws IOException {
+            return diskEditor.newOutputStream(METADATA_INDEX);
+        }
+
+        @NonNull
+        @Override
+        public File getFile() {
+            return diskEditor.getFile(DATA_INDEX);
         }
 
         @Override
         public void commit() throws IOException, DiskLruCache.EditorChangedException, DiskLruCache.ClosedException, DiskLruCache.FileNotExistException {
+            // 新写了数据的话旧的元数据已经对不上了，没写元数据就用空的覆盖掉，新建条目时也要求每个槽位都有文件
+            File metadataFile = diskEditor.getFile(METADATA_INDEX);
+            if (diskEditor.getFile(DATA_INDEX).exists() && !metadataFile.exists() && !metadataFile.createNewFile()) {
+                abort();
+                throw new IOException("failed to create " + metadataFile.getPath());
+            }
             diskEditor.commit();
         }
 
@@ -20,6 +20,8 @@ import android.content.Context;
 import android.support.annotation.NonNull;
 import android.text.format.Formatter;
 
+import java.util.Locale;
+
 import me.xiaopan.sketch.SLog;
 import me.xiaopan.sketch.drawable.SketchRefBitmap;
 import me.xiaopan.sketch.util.LruCache;
@@ -32,6 +34,8 @@ public class LruMemoryCache implements MemoryCache {
     private Context context;
     private boolean closed;
     private boolean disabled;
+    private long hitCount;
+    private long missCount;
 
     public LruMemoryCache(Context context, int maxSize) {
         context = context.getApplicationContext();
@@ -84,7 +88,13 @@ public class LruMemoryCache implements MemoryCache {
             return null;
         }
 
-        return cache.get(key);
+        SketchRefBitmap refBitmap = cache.get(key);
+        if (refBitmap != null) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        return refBitmap;
     }
 
     @Override
@@ -122,6 +132,28 @@ public class LruMemoryCache implements MemoryCache {
         return cache.maxSize();
     }
 
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * 获取命中率，0 到 1
+     */
+    public synchronized float getHitRate() {
+        long total = hitCount + missCount;
+        return total > 0 ? (float) hitCount / total : 0;
+    }
+
+    @NonNull
+    public synchronized String getStatsInfo() {
+        return String.format(Locale.US, "%s(policy=LRU,hits=%d,misses=%d,hitRate=%.2f%%,size=%s)",
+                NAME, hitCount, missCount, getHitRate() * 100, Formatter.formatFileSize(context, cache.size()));
+    }
+
     @Override
     public synchronized void trimMemory(int level) {
         if (closed) {
@@ -0,0 +1,583 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.format.Formatter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import me.xiaopan.sketch.Configuration;
+import me.xiaopan.sketch.SLog;
+import me.xiaopan.sketch.util.DiskLruCache;
+import me.xiaopan.sketch.util.MappedDiskIndex;
+import me.xiaopan.sketch.util.NoSpaceException;
+import me.xiaopan.sketch.util.SketchMD5Utils;
+import me.xiaopan.sketch.util.SketchUtils;
+import me.xiaopan.sketch.util.UnableCreateDirException;
+import me.xiaopan.sketch.util.UnableCreateFileException;
+
+/**
+ * 使用内存映射的二进制索引（{@link MappedDiskIndex}）代替文本 journal 的磁盘缓存器
+ * <p>
+ * key 是 uri 的 128 位 MD5 摘要，冷启动时只需要映射索引文件，不需要逐行解析 journal，也不会为每个缓存创建对象，
+ * 适合缓存了几万张图片的场景。通过 {@link Configuration#setDiskCache(DiskCache)} 启用：
+ * <pre>
+ * configuration.setDiskCache(new MappedDiskCache(context, configuration, appVersionCode, DiskCache.DISK_CACHE_MAX_SIZE));
+ * </pre>
+ * 缓存目录和 {@link LruDiskCache} 不同，切换后旧的缓存不会被读取
+ * <p>
+ * 数据存在 "key.0" 文件中，元数据存在同名的 "key.1" 文件中，索引里记录的长度是两者之和，淘汰和删除时一起处理
+ */
+public class MappedDiskCache implements DiskCache {
+    public static final String MAPPED_DISK_CACHE_DIR_NAME = "sketch_mapped";
+    private static final String NAME = "MappedDiskCache";
+    private static final String INDEX_FILE_NAME = "index";
+    private static final String CLEAN_FILE_SUFFIX = ".0";
+    private static final String DIRTY_FILE_SUFFIX = ".0.tmp";
+    private static final String METADATA_FILE_SUFFIX = ".1";
+    private static final String DIRTY_METADATA_FILE_SUFFIX = ".1.tmp";
+    // 平均每个缓存按 8KB 估算索引的槽位数
+    private static final int AVERAGE_ENTRY_SIZE = 8 * 1024;
+
+    private int maxSize;
+    private int appVersionCode;
+    private volatile File cacheDir;
+    private Context context;
+    private volatile MappedDiskIndex index;
+    private Configuration configuration;
+    private volatile boolean closed;
+    private boolean disabled;
+    private final EditLockPool editLockPool = new EditLockPool();
+    private final Set<String> editingKeys = new HashSet<>();
+    // 清理孤儿文件用的后台线程，空闲一分钟后自动退出，重装索引时不用每次都新建线程
+    private final ThreadPoolExecutor cleanExecutor = createCleanExecutor();
+
+    public MappedDiskCache(Context context, Configuration configuration, int appVersionCode, int maxSize) {
+        context = context.getApplicationContext();
+        this.context = context;
+        this.maxSize = maxSize;
+        this.appVersionCode = appVersionCode;
+        this.configuration = configuration;
+        this.cacheDir = SketchUtils.getDefaultSketchCacheDir(context, MAPPED_DISK_CACHE_DIR_NAME, true);
+    }
+
+    private static ThreadPoolExecutor createCleanExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static boolean checkIndex(MappedDiskIndex index) {
+        return index != null && !index.isClosed();
+    }
+
+    /**
+     * 确保索引可用，不可用时才加锁重装
+     */
+    private MappedDiskIndex ensureIndex(boolean checkCacheDir) {
+        MappedDiskIndex index = this.index;
+        if (checkIndex(index) && (!checkCacheDir || cacheDir.exists())) {
+            return index;
+        }
+
+        synchronized (this) {
+            if (!checkIndex(this.index) || (checkCacheDir && !cacheDir.exists())) {
+                installIndex();
+            }
+            return checkIndex(this.index) ? this.index : null;
+        }
+    }
+
+    /**
+     * 安装索引
+     */
+    protected synchronized void installIndex() {
+        if (closed) {
+            return;
+        }
+
+        if (index != null) {
+            SketchUtils.close(index);
+            index = null;
+        }
+
+        try {
+            cacheDir = SketchUtils.buildCacheDir(context, MAPPED_DISK_CACHE_DIR_NAME, true, DISK_CACHE_RESERVED_SPACE_SIZE, true, true, 10);
+        } catch (NoSpaceException | UnableCreateDirException | UnableCreateFileException e) {
+            e.printStackTrace();
+            configuration.getErrorTracker().onInstallDiskCacheError(e, cacheDir);
+            return;
+        }
+
+        if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_CACHE)) {
+            SLog.d(NAME, "diskCacheDir: %s", cacheDir.getPath());
+        }
+
+        try {
+            index = MappedDiskIndex.open(new File(cacheDir, INDEX_FILE_NAME), appVersionCode, maxSize / AVERAGE_ENTRY_SIZE * 2);
+        } catch (IOException e) {
+            e.printStackTrace();
+            configuration.getErrorTracker().onInstallDiskCacheError(e, cacheDir);
+            return;
+        }
+
+        // 崩溃时没来得及写入索引的文件就成了孤儿，在后台清理掉
+        final MappedDiskIndex newIndex = index;
+        final File dir = cacheDir;
+        cleanExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteOrphanFiles(dir, newIndex);
+            }
+        });
+    }
+
+    private void deleteOrphanFiles(File dir, MappedDiskIndex index) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            boolean dirty = name.endsWith(DIRTY_FILE_SUFFIX) || name.endsWith(DIRTY_METADATA_FILE_SUFFIX);
+            if (!dirty && !name.endsWith(CLEAN_FILE_SUFFIX) && !name.endsWith(METADATA_FILE_SUFFIX)) {
+                continue;
+            }
+
+            String hexKey = name.substring(0, name.indexOf('.'));
+            synchronized (editingKeys) {
+                if (editingKeys.contains(hexKey)) {
+                    continue;
+                }
+            }
+
+            long[] key = hexToKey(hexKey);
+            if (key == null) {
+                continue;
+            }
+            boolean known = !dirty && index.contains(key[0], key[1]);
+            if (index.isClosed()) {
+                // 关闭了 contains 的结果就不可信了
+                return;
+            }
+            if (!known && !file.delete()) {
+                SLog.w(NAME, "failed to delete orphan file: %s", file.getPath());
+            }
+        }
+    }
+
+    private static long[] hexToKey(String hexKey) {
+        if (hexKey.length() != 32) {
+            return null;
+        }
+        try {
+            // 分成两段解析，避免符号位溢出
+            long high = (Long.parseLong(hexKey.substring(0, 8), 16) << 32) | Long.parseLong(hexKey.substring(8, 16), 16);
+            long low = (Long.parseLong(hexKey.substring(16, 24), 16) << 32) | Long.parseLong(hexKey.substring(24, 32), 16);
+            return new long[]{high, low};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    @Override
+    public boolean exist(@NonNull String uri) {
+        if (closed) {
+            return false;
+        }
+
+        if (disabled) {
+            if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_CACHE)) {
+                SLog.d(NAME, "Disabled. Unable judge exist, uri=%s", uri);
+            }
+            return false;
+        }
+
+        MappedDiskIndex index = ensureIndex(false);
+        if (index == null) {
+            return false;
+        }
+
+        byte[] digest = SketchMD5Utils.md5Bytes(uri);
+        return index.contains(readLong(digest, 0), readLong(digest, 8));
+    }
+
+    @Override
+    public Entry get(@NonNull String uri) {
+        if (closed) {
+            return null;
+        }
+
+        if (disabled) {
+            if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_CACHE)) {
+                SLog.d(NAME, "Disabled. Unable get, uri=%s", uri);
+            }
+            return null;
+        }
+
+        MappedDiskIndex index = ensureIndex(true);
+        if (index == null) {
+            return null;
+        }
+
+        byte[] digest = SketchMD5Utils.md5Bytes(uri);
+        long keyHigh = readLong(digest, 0);
+        long keyLow = readLong(digest, 8);
+        try {
+            if (index.get(keyHigh, keyLow) == -1) {
+                return null;
+            }
+
+            String hexKey = SketchMD5Utils.toHex(digest);
+            File file = new File(cacheDir, hexKey + CLEAN_FILE_SUFFIX);
+            if (!file.exists()) {
+                // 文件被手动删除了
+                index.remove(keyHigh, keyLow);
+                return null;
+            }
+            return new MappedDiskCacheEntry(uri, file, new File(cacheDir, hexKey + METADATA_FILE_SUFFIX), index, keyHigh, keyLow);
+        } catch (DiskLruCache.ClosedException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public Editor edit(@NonNull String uri) {
+        if (closed) {
+            return null;
+        }
+
+        if (disabled) {
+            if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_CACHE)) {
+                SLog.d(NAME, "Disabled. Unable edit, uri=%s", uri);
+            }
+            return null;
+        }
+
+        MappedDiskIndex index = ensureIndex(true);
+        if (index == null) {
+            return null;
+        }
+
+        byte[] digest = SketchMD5Utils.md5Bytes(uri);
+        String hexKey = SketchMD5Utils.toHex(digest);
+        synchronized (editingKeys) {
+            if (!editingKeys.add(hexKey)) {
+                // 正在编辑中
+                return null;
+            }
+        }
+        return new MappedDiskCacheEditor(index, cacheDir, hexKey, readLong(digest, 0), readLong(digest, 8));
+    }
+
+    private void onEditFinished(String hexKey) {
+        synchronized (editingKeys) {
+            editingKeys.remove(hexKey);
+        }
+    }
+
+    /**
+     * 淘汰到容量的 90% 和槽位数的 45%，留出余量避免每次提交都要排序淘汰
+     */
+    private void trimToSize(MappedDiskIndex index, File dir) {
+        long[] evictedKeys = index.trimToSize(maxSize / 10 * 9, index.getCapacity() / 20 * 9);
+        for (int i = 0; i < evictedKeys.length; i += 2) {
+            String hexKey = String.format("%016x%016x", evictedKeys[i], evictedKeys[i + 1]);
+            File file = new File(dir, hexKey + CLEAN_FILE_SUFFIX);
+            if (file.exists() && !file.delete()) {
+                SLog.w(NAME, "failed to delete evicted file: %s", file.getPath());
+            }
+            SketchUtils.deleteFile(new File(dir, hexKey + METADATA_FILE_SUFFIX));
+        }
+    }
+
+    @NonNull
+    @Override
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    @NonNull
+    @Override
+    public String uriToDiskCacheKey(@NonNull String uri) {
+        return SketchMD5Utils.md5(uri);
+    }
+
+    @Override
+    public long getSize() {
+        if (closed) {
+            return 0;
+        }
+
+        MappedDiskIndex index = this.index;
+        return checkIndex(index) ? index.getSize() : 0;
+    }
+
+    @Override
+    public boolean isDisabled() {
+        return disabled;
+    }
+
+    @Override
+    public void setDisabled(boolean disabled) {
+        if (this.disabled != disabled) {
+            this.disabled = disabled;
+            if (disabled) {
+                SLog.w(NAME, "setDisabled. %s", true);
+            } else {
+                SLog.w(NAME, "setDisabled. %s", false);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        if (closed) {
+            return;
+        }
+
+        if (index != null) {
+            SketchUtils.close(index);
+            index = null;
+        }
+        try {
+            DiskLruCache.deleteContents(cacheDir);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        installIndex();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        cleanExecutor.shutdown();
+
+        if (index != null) {
+            SketchUtils.close(index);
+            index = null;
+        }
+    }
+
+    @NonNull
+    @Override
+    public ReentrantLock getEditLock(@NonNull String uri) {
+        return editLockPool.get(uri);
+    }
+
+    @NonNull
+    @Override
+    public String getKey() {
+        return String.format("%s(maxSize=%s,appVersionCode=%d,cacheDir=%s)",
+                NAME, Formatter.formatFileSize(context, maxSize), appVersionCode, cacheDir.getPath());
+    }
+
+    public static class MappedDiskCacheEntry implements MetadataEntry {
+        private String uri;
+        private File file;
+        private File metadataFile;
+        private MappedDiskIndex index;
+        private long keyHigh;
+        private long keyLow;
+
+        public MappedDiskCacheEntry(String uri, File file, File metadataFile, MappedDiskIndex index, long keyHigh, long keyLow) {
+            this.uri = uri;
+            this.file = file;
+            this.metadataFile = metadataFile;
+            this.index = index;
+            this.keyHigh = keyHigh;
+            this.keyLow = keyLow;
+        }
+
+        @NonNull
+        @Override
+        public InputStream newInputStream() throws IOException {
+            return new FileInputStream(file);
+        }
+
+        @Nullable
+        @Override
+        public InputStream newMetadataInputStream() throws IOException {
+            return metadataFile.length() > 0 ? new FileInputStream(metadataFile) : null;
+        }
+
+        @NonNull
+        @Override
+        public File getFile() {
+            return file;
+        }
+
+        @NonNull
+        @Override
+        public String getUri() {
+            return uri;
+        }
+
+        @Override
+        public boolean delete() {
+            try {
+                index.remove(keyHigh, keyLow);
+            } catch (DiskLruCache.ClosedException e) {
+                e.printStackTrace();
+                return false;
+            }
+            SketchUtils.deleteFile(metadataFile);
+            return !file.exists() || file.delete();
+        }
+    }
+
+    public class MappedDiskCacheEditor implements FileEditor, MetadataEditor {
+        private MappedDiskIndex index;
+        private File dir;
+        private String hexKey;
+        private long keyHigh;
+        private long keyLow;
+        private boolean finished;
+
+        private MappedDiskCacheEditor(MappedDiskIndex index, File dir, String hexKey, long keyHigh, long keyLow) {
+            this.index = index;
+            this.dir = dir;
+            this.hexKey = hexKey;
+            this.keyHigh = keyHigh;
+            this.keyLow = keyLow;
+        }
+
+        private File getDirtyFile() {
+            return new File(dir, hexKey + DIRTY_FILE_SUFFIX);
+        }
+
+        private File getDirtyMetadataFile() {
+            return new File(dir, hexKey + DIRTY_METADATA_FILE_SUFFIX);
+        }
+
+        @Override
+        public OutputStream newOutputStream() throws IOException {
+            return new FileOutputStream(getDirtyFile());
+        }
+
+        @Override
+        public OutputStream newMetadataOutputStream() throws IOException {
+            return new FileOutputStream(getDirtyMetadataFile());
+        }
+
+        @NonNull
+        @Override
+        public File getFile() {
+            return getDirtyFile();
+        }
+
+        @Override
+        public void commit() throws IOException, DiskLruCache.EditorChangedException, DiskLruCache.ClosedException, DiskLruCache.FileNotExistException {
+            synchronized (this) {
+                if (finished) {
+                    throw new DiskLruCache.EditorChangedException();
+                }
+                finished = true;
+            }
+
+            File dirtyFile = getDirtyFile();
+            File dirtyMetadataFile = getDirtyMetadataFile();
+            try {
+                File cleanFile = new File(dir, hexKey + CLEAN_FILE_SUFFIX);
+                File metadataFile = new File(dir, hexKey + METADATA_FILE_SUFFIX);
+                // 只写元数据的话数据必须已经存在
+                boolean dataWritten = dirtyFile.exists();
+                if (!dataWritten && !(dirtyMetadataFile.exists() && index.contains(keyHigh, keyLow) && cleanFile.exists())) {
+                    throw new DiskLruCache.FileNotExistException("edit didn't create file " + dirtyFile.getPath());
+                }
+                if (index.isClosed()) {
+                    throw new DiskLruCache.ClosedException("index is closed");
+                }
+
+                if (dataWritten && !dirtyFile.renameTo(cleanFile)) {
+                    throw new IOException("failed to rename " + dirtyFile.getPath());
+                }
+                // 新写了数据的话旧的元数据已经对不上了，没写元数据就删掉旧的
+                if (dirtyMetadataFile.exists() ? !dirtyMetadataFile.renameTo(metadataFile) : !SketchUtils.deleteFile(metadataFile)) {
+                    SLog.w(NAME, "failed to replace metadata file: %s", metadataFile.getPath());
+                    SketchUtils.deleteFile(metadataFile);
+                }
+
+                // 留出空槽位，保证线性探测不会退化
+                if (index.getCount() + 1 > index.getCapacity() / 2) {
+                    trimToSize(index, dir);
+                }
+                index.put(keyHigh, keyLow, cleanFile.length() + metadataFile.length());
+                if (index.getSize() > maxSize) {
+                    trimToSize(index, dir);
+                }
+            } finally {
+                SketchUtils.deleteFile(dirtyFile);
+                SketchUtils.deleteFile(dirtyMetadataFile);
+                onEditFinished(hexKey);
+            }
+        }
+
+        @Override
+        public void abort() {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+            }
+
+            SketchUtils.deleteFile(getDirtyFile());
+            SketchUtils.deleteFile(getDirtyMetadataFile());
+            onEditFinished(hexKey);
+        }
+    }
+}
@@ -44,6 +44,14 @@ public class ByteArrayDataSource implements DataSource {
         this.imageFrom = imageFrom;
     }
 
+    /**
+     * 获取原始数据，解码时可以直接交给 native 层读取，不用再经过输入流拷贝
+     */
+    @NonNull
+    public byte[] getData() {
+        return data;
+    }
+
     @NonNull
     @Override
     public InputStream getInputStream() throws IOException {
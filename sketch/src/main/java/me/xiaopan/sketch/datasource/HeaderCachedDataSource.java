@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.datasource;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import me.xiaopan.sketch.cache.BitmapPool;
+import me.xiaopan.sketch.decode.NotFoundGifLibraryException;
+import me.xiaopan.sketch.drawable.ImageAttrs;
+import me.xiaopan.sketch.drawable.SketchGifDrawable;
+import me.xiaopan.sketch.request.ImageFrom;
+import me.xiaopan.sketch.util.ObjectPool;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 缓存文件头部的数据源，用来把读取尺寸、读取 exif 和正式解码合并成一次打开
+ * <p>
+ * 第一次 {@link #getInputStream()} 时打开原始数据源并读取前 {@link #DEFAULT_HEADER_SIZE} 个字节，读取尺寸和 exif
+ * 通常只用得到这部分数据，直接从内存中读取。第一个读到头部之外的流会接着使用最开始打开的原始流，
+ * 之后的流才需要重新打开原始数据源并跳过头部。用完后必须调用 {@link #release()} 关闭没有被接管的原始流
+ * <p>
+ * 适用于打开代价比较高的数据源，例如 ContentProvider、assets、drawable 资源
+ */
+public class HeaderCachedDataSource implements DataSource {
+    public static final int DEFAULT_HEADER_SIZE = 64 * 1024;
+
+    // 默认大小的头部缓冲区用完后放回池中，同时解码的数量不会超过解码线程数
+    private static final ObjectPool<byte[]> HEADER_POOL = new ObjectPool<byte[]>(new ObjectPool.ObjectFactory<byte[]>() {
+        @Override
+        public byte[] newObject() {
+            return new byte[DEFAULT_HEADER_SIZE];
+        }
+    }, 4);
+
+    @NonNull
+    private DataSource dataSource;
+    private int headerSize;
+
+    private byte[] header;
+    private int headerLength;
+    private boolean reachedEnd;
+    private volatile boolean released;
+    @Nullable
+    private InputStream pendingStream;
+
+    public HeaderCachedDataSource(@NonNull DataSource dataSource, int headerSize) {
+        this.dataSource = dataSource;
+        this.headerSize = headerSize;
+    }
+
+    public HeaderCachedDataSource(@NonNull DataSource dataSource) {
+        this(dataSource, DEFAULT_HEADER_SIZE);
+    }
+
+    /**
+     * 获取被包装的原始数据源
+     */
+    @NonNull
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    @NonNull
+    @Override
+    public InputStream getInputStream() throws IOException {
+        ensureHeader();
+        return new HeaderInputStream();
+    }
+
+    private synchronized void ensureHeader() throws IOException {
+        if (released) {
+            throw new IOException("Data source released");
+        }
+        if (header != null) {
+            return;
+        }
+
+        InputStream inputStream = dataSource.getInputStream();
+        byte[] buffer = headerSize == DEFAULT_HEADER_SIZE ? HEADER_POOL.get() : new byte[headerSize];
+        int length = 0;
+        try {
+            int readLength;
+            while (length < headerSize && (readLength = inputStream.read(buffer, length, headerSize - length)) != -1) {
+                length += readLength;
+            }
+        } catch (IOException e) {
+            SketchUtils.close(inputStream);
+            recycleHeader(buffer);
+            throw e;
+        }
+
+        if (length < headerSize) {
+            // 整个文件都读完了，以后所有的流都只从内存中读取
+            reachedEnd = true;
+            SketchUtils.close(inputStream);
+        } else {
+            pendingStream = inputStream;
+        }
+        header = buffer;
+        headerLength = length;
+    }
+
+    /**
+     * 获取一个定位在头部之后的原始流，优先接管第一次打开的原始流，没有的话就重新打开并跳过头部
+     *
+     * @return null：头部之后没有数据了
+     */
+    @Nullable
+    private synchronized InputStream openRemainder() throws IOException {
+        if (reachedEnd) {
+            return null;
+        }
+
+        if (pendingStream != null) {
+            InputStream inputStream = pendingStream;
+            pendingStream = null;
+            return inputStream;
+        }
+
+        InputStream inputStream = dataSource.getInputStream();
+        try {
+            long remaining = headerLength;
+            while (remaining > 0) {
+                long skipped = inputStream.skip(remaining);
+                if (skipped > 0) {
+                    remaining -= skipped;
+                } else if (inputStream.read() != -1) {
+                    remaining--;
+                } else {
+                    throw new IOException("Data source shorter than cached header. headerLength=" + headerLength);
+                }
+            }
+        } catch (IOException e) {
+            SketchUtils.close(inputStream);
+            throw e;
+        }
+        return inputStream;
+    }
+
+    /**
+     * 关闭还没有被接管的原始流并回收头部缓冲区，解码结束后调用，之后还没关闭的流就不能再读了
+     */
+    public synchronized void release() {
+        if (pendingStream != null) {
+            SketchUtils.close(pendingStream);
+            pendingStream = null;
+        }
+        released = true;
+        if (header != null) {
+            recycleHeader(header);
+            header = null;
+        }
+    }
+
+    private void recycleHeader(byte[] buffer) {
+        if (buffer.length == DEFAULT_HEADER_SIZE) {
+            HEADER_POOL.put(buffer);
+        }
+    }
+
+    @Override
+    public long getLength() throws IOException {
+        return dataSource.getLength();
+    }
+
+    @Nullable
+    @Override
+    public File getFile(@Nullable File outDir, @Nullable String outName) throws IOException {
+        return dataSource.getFile(outDir, outName);
+    }
+
+    @NonNull
+    @Override
+    public ImageFrom getImageFrom() {
+        return dataSource.getImageFrom();
+    }
+
+    @NonNull
+    @Override
+    public SketchGifDrawable makeGifDrawable(@NonNull String key, @NonNull String uri, @NonNull ImageAttrs imageAttrs,
+                                             @NonNull BitmapPool bitmapPool) throws IOException, NotFoundGifLibraryException {
+        return dataSource.makeGifDrawable(key, uri, imageAttrs, bitmapPool);
+    }
+
+    /**
+     * 先从缓存的头部读取，读完了再从原始流中读取
+     */
+    private class HeaderInputStream extends InputStream {
+        private int position;
+        @Nullable
+        private InputStream remainder;
+        private boolean closed;
+
+        @Override
+        public int read() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (released) {
+                throw new IOException("Data source released");
+            }
+
+            // 逐字节读取的解析器很多，直接从头部取，不用每次都创建数组
+            if (position < headerLength) {
+                return header[position++] & 0xff;
+            }
+
+            if (remainder == null) {
+                remainder = openRemainder();
+                if (remainder == null) {
+                    return -1;
+                }
+            }
+            return remainder.read();
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (released) {
+                throw new IOException("Data source released");
+            }
+            if (len == 0) {
+                return 0;
+            }
+
+            if (position < headerLength) {
+                int length = Math.min(len, headerLength - position);
+                System.arraycopy(header, position, b, off, length);
+                position += length;
+                return length;
+            }
+
+            if (remainder == null) {
+                remainder = openRemainder();
+                if (remainder == null) {
+                    return -1;
+                }
+            }
+            return remainder.read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            if (position < headerLength) {
+                int length = (int) Math.min(n, headerLength - position);
+                position += length;
+                return length;
+            }
+            return super.skip(n);
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (position < headerLength) {
+                return headerLength - position;
+            }
+            return remainder != null ? remainder.available() : 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            if (remainder != null) {
+                remainder.close();
+                remainder = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.decode;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import me.xiaopan.sketch.SLog;
+import me.xiaopan.sketch.datasource.DataSource;
+import me.xiaopan.sketch.drawable.ImageAttrs;
+import me.xiaopan.sketch.request.ErrorCause;
+import me.xiaopan.sketch.request.LoadOptions;
+import me.xiaopan.sketch.request.LoadRequest;
+import me.xiaopan.sketch.request.Resize;
+import me.xiaopan.sketch.uri.ContentUriModel;
+import me.xiaopan.sketch.uri.FileUriModel;
+import me.xiaopan.sketch.uri.UriModel;
+import me.xiaopan.sketch.util.ExifThumbnailReader;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 直接使用 JPEG 图片 EXIF 中自带的缩略图，相机拍的照片一般都带有 160x120 到 512x384 的缩略图，
+ * 在列表中显示小图时不用再解码几兆的原图
+ * <p>
+ * 缩略图的宽高比必须和原图一致（有些相机的缩略图带黑边），并且能覆盖 resize 的尺寸，否则交给 {@link NormalDecodeHelper} 解码原图
+ * <p>
+ * 只对本地文件和 content 图片生效，相机照片基本都来自这里，网络图片一般都处理过了，很少还带着缩略图。
+ * 缩略图用 {@link ExifThumbnailReader} 读取，只扫描到 APP1，没有 IFD1 的话几乎没有额外开销
+ */
+public class ExifThumbnailDecodeHelper extends DecodeHelper {
+    private static final String NAME = "ExifThumbnailDecodeHelper";
+
+    /**
+     * resize 的宽和高都不超过这个值才尝试读取缩略图，EXIF 缩略图一般不会比这个更大
+     */
+    private static final int MAX_RESIZE_SIZE = 512;
+
+    /**
+     * 缩略图和原图宽高比允许的误差
+     */
+    private static final float MAX_ASPECT_RATIO_DIFF = 0.02f;
+
+    private NormalDecodeHelper fallbackHelper = new NormalDecodeHelper();
+
+    @Override
+    public boolean match(@NonNull LoadRequest request, @NonNull DataSource dataSource, @NonNull ImageType imageType,
+                         @NonNull BitmapFactory.Options boundOptions) {
+        if (imageType != ImageType.JPEG) {
+            return false;
+        }
+
+        UriModel uriModel = request.getUriModel();
+        if (!(uriModel instanceof FileUriModel) && !(uriModel instanceof ContentUriModel)) {
+            return false;
+        }
+
+        LoadOptions loadOptions = request.getOptions();
+        Resize resize = loadOptions.getResize();
+        return !loadOptions.isThumbnailMode() && resize != null
+                && resize.getWidth() > 0 && resize.getWidth() <= MAX_RESIZE_SIZE
+                && resize.getHeight() > 0 && resize.getHeight() <= MAX_RESIZE_SIZE
+                && resize.getWidth() < boundOptions.outWidth && resize.getHeight() < boundOptions.outHeight;
+    }
+
+    @NonNull
+    @Override
+    public DecodeResult decode(@NonNull LoadRequest request, @NonNull DataSource dataSource, @NonNull ImageType imageType,
+                               @NonNull BitmapFactory.Options boundOptions, @NonNull BitmapFactory.Options decodeOptions,
+                               int exifOrientation) throws DecodeException {
+        Bitmap bitmap = decodeThumbnail(request, dataSource, boundOptions, decodeOptions, exifOrientation);
+        if (bitmap == null) {
+            return fallbackHelper.decode(request, dataSource, imageType, boundOptions, decodeOptions, exifOrientation);
+        }
+
+        ImageOrientationCorrector orientationCorrector = request.getConfiguration().getOrientationCorrector();
+        orientationCorrector.rotateSize(boundOptions, exifOrientation);
+
+        ImageAttrs imageAttrs = new ImageAttrs(boundOptions.outMimeType, boundOptions.outWidth, boundOptions.outHeight, exifOrientation);
+        BitmapDecodeResult result = new BitmapDecodeResult(imageAttrs, bitmap);
+
+        try {
+            correctOrientation(orientationCorrector, result, exifOrientation, request);
+        } catch (CorrectOrientationException e) {
+            throw new DecodeException(e, ErrorCause.DECODE_CORRECT_ORIENTATION_FAIL);
+        }
+
+        ImageDecodeUtils.decodeSuccess(result.getBitmap(), boundOptions.outWidth, boundOptions.outHeight, 1, request, NAME);
+        return result;
+    }
+
+    /**
+     * 读取并解码 EXIF 中的缩略图
+     *
+     * @return null：没有缩略图或者缩略图不合适
+     */
+    @Nullable
+    private Bitmap decodeThumbnail(@NonNull LoadRequest request, @NonNull DataSource dataSource, @NonNull BitmapFactory.Options boundOptions,
+                                   @NonNull BitmapFactory.Options decodeOptions, int exifOrientation) {
+        byte[] thumbnail;
+        InputStream inputStream = null;
+        try {
+            inputStream = dataSource.getInputStream();
+            thumbnail = ExifThumbnailReader.read(inputStream);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            SketchUtils.close(inputStream);
+        }
+        if (thumbnail == null || thumbnail.length == 0) {
+            return null;
+        }
+
+        BitmapFactory.Options thumbnailBoundOptions = new BitmapFactory.Options();
+        thumbnailBoundOptions.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, thumbnailBoundOptions);
+        if (thumbnailBoundOptions.outWidth <= 1 || thumbnailBoundOptions.outHeight <= 1) {
+            return null;
+        }
+
+        // 缩略图和原图方向一致，这里都按未旋转的尺寸比较
+        float imageRatio = (float) boundOptions.outWidth / boundOptions.outHeight;
+        float thumbnailRatio = (float) thumbnailBoundOptions.outWidth / thumbnailBoundOptions.outHeight;
+        if (Math.abs(thumbnailRatio - imageRatio) / imageRatio > MAX_ASPECT_RATIO_DIFF) {
+            if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
+                SLog.d(NAME, "Thumbnail aspect ratio mismatch. image=%dx%d, thumbnail=%dx%d. %s",
+                        boundOptions.outWidth, boundOptions.outHeight,
+                        thumbnailBoundOptions.outWidth, thumbnailBoundOptions.outHeight, request.getKey());
+            }
+            return null;
+        }
+
+        // 缩略图中 resize 对应的区域不能比 resize 小，否则放大后会很模糊
+        int thumbnailWidth = thumbnailBoundOptions.outWidth;
+        int thumbnailHeight = thumbnailBoundOptions.outHeight;
+        if (ImageOrientationCorrector.getExifOrientationDegrees(exifOrientation) % 180 != 0) {
+            thumbnailWidth = thumbnailBoundOptions.outHeight;
+            thumbnailHeight = thumbnailBoundOptions.outWidth;
+        }
+        Resize resize = request.getOptions().getResize();
+        ResizeCalculator resizeCalculator = request.getConfiguration().getResizeCalculator();
+        ResizeCalculator.Mapping mapping = resizeCalculator.calculator(thumbnailWidth, thumbnailHeight,
+                resize.getWidth(), resize.getHeight(), resize.getScaleType(), resize.getMode() == Resize.Mode.EXACTLY_SAME);
+        if (mapping == null || mapping.srcRect.width() < mapping.destRect.width()
+                || mapping.srcRect.height() < mapping.destRect.height()) {
+            if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
+                SLog.d(NAME, "Thumbnail too small. thumbnail=%dx%d, resize=%s. %s",
+                        thumbnailWidth, thumbnailHeight, resize.getKey(), request.getKey());
+            }
+            return null;
+        }
+
+        BitmapFactory.Options thumbnailOptions = new BitmapFactory.Options();
+        thumbnailOptions.inPreferredConfig = decodeOptions.inPreferredConfig;
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, thumbnailOptions);
+        } catch (Throwable tr) {
+            SLog.w(NAME, tr, String.format("Decode thumbnail failed. %s", request.getKey()));
+            return null;
+        }
+        if (bitmap == null || bitmap.isRecycled() || bitmap.getWidth() <= 1 || bitmap.getHeight() <= 1) {
+            if (bitmap != null && !bitmap.isRecycled()) {
+                bitmap.recycle();
+            }
+            return null;
+        }
+        return bitmap;
+    }
+}
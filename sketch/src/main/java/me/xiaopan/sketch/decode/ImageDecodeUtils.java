@@ -24,9 +24,11 @@ import android.graphics.BitmapRegionDecoder;
 import android.graphics.Rect;
 import android.os.Build;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -35,6 +37,7 @@ import me.xiaopan.sketch.SLog;
 import me.xiaopan.sketch.cache.BitmapPool;
 import me.xiaopan.sketch.cache.BitmapPoolUtils;
 import me.xiaopan.sketch.cache.DiskCache;
+import me.xiaopan.sketch.datasource.ByteArrayDataSource;
 import me.xiaopan.sketch.datasource.DataSource;
 import me.xiaopan.sketch.datasource.DiskCacheDataSource;
 import me.xiaopan.sketch.datasource.FileDataSource;
@@ -45,6 +48,23 @@ import me.xiaopan.sketch.util.SketchUtils;
 public class ImageDecodeUtils {
 
     public static Bitmap decodeBitmap(DataSource dataSource, BitmapFactory.Options options) throws IOException {
+        // 字节数组和文件都交给 native 层直接读取，不用经过 decodeStream 在 Java 层一块一块地拷贝
+        if (dataSource instanceof ByteArrayDataSource) {
+            byte[] data = ((ByteArrayDataSource) dataSource).getData();
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+
+        File file = getDirectFile(dataSource);
+        if (file != null) {
+            FileInputStream fileInputStream = null;
+            try {
+                fileInputStream = new FileInputStream(file);
+                return BitmapFactory.decodeFileDescriptor(fileInputStream.getFD(), null, options);
+            } finally {
+                SketchUtils.close(fileInputStream);
+            }
+        }
+
         InputStream inputStream = null;
         Bitmap bitmap = null;
 
@@ -58,33 +78,64 @@ public class ImageDecodeUtils {
         return bitmap;
     }
 
-    @SuppressLint("ObsoleteSdkInt")
-    public static Bitmap decodeRegionBitmap(DataSource dataSource, Rect srcRect, BitmapFactory.Options options) {
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD_MR1) {
-            return null;
+    /**
+     * 创建碎片解码器，字节数组和文件都交给 native 层直接读取
+     */
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+    @NonNull
+    public static BitmapRegionDecoder newRegionDecoder(DataSource dataSource) throws IOException {
+        if (dataSource instanceof ByteArrayDataSource) {
+            byte[] data = ((ByteArrayDataSource) dataSource).getData();
+            return BitmapRegionDecoder.newInstance(data, 0, data.length, false);
         }
 
-        InputStream inputStream;
+        File file = getDirectFile(dataSource);
+        if (file != null) {
+            return BitmapRegionDecoder.newInstance(file.getPath(), false);
+        }
+
+        InputStream inputStream = null;
         try {
             inputStream = dataSource.getInputStream();
+            return BitmapRegionDecoder.newInstance(inputStream, false);
+        } finally {
+            SketchUtils.close(inputStream);
+        }
+    }
+
+    /**
+     * 获取数据源背后可以直接读取的文件，没有的话返回 null，不会为了得到文件而拷贝数据
+     */
+    @Nullable
+    static File getDirectFile(DataSource dataSource) {
+        if (!(dataSource instanceof FileDataSource || dataSource instanceof DiskCacheDataSource)) {
+            return null;
+        }
+
+        try {
+            File file = dataSource.getFile(null, null);
+            return file != null && file.isFile() ? file : null;
         } catch (IOException e) {
-            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @SuppressLint("ObsoleteSdkInt")
+    public static Bitmap decodeRegionBitmap(DataSource dataSource, Rect srcRect, BitmapFactory.Options options) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD_MR1) {
             return null;
         }
 
         BitmapRegionDecoder regionDecoder;
         try {
-            regionDecoder = BitmapRegionDecoder.newInstance(inputStream, false);
+            regionDecoder = newRegionDecoder(dataSource);
         } catch (IOException e) {
             e.printStackTrace();
             return null;
-        } finally {
-            SketchUtils.close(inputStream);
         }
 
         Bitmap bitmap = regionDecoder.decodeRegion(srcRect, options);
         regionDecoder.recycle();
-        SketchUtils.close(inputStream);
         return bitmap;
     }
 
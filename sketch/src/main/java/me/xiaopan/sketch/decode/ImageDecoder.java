@@ -26,8 +26,14 @@ import java.util.List;
 
 import me.xiaopan.sketch.Identifier;
 import me.xiaopan.sketch.SLog;
+import me.xiaopan.sketch.datasource.AssetsDataSource;
+import me.xiaopan.sketch.datasource.ContentDataSource;
 import me.xiaopan.sketch.datasource.DataSource;
+import me.xiaopan.sketch.datasource.DrawableDataSource;
+import me.xiaopan.sketch.datasource.HeaderCachedDataSource;
+import me.xiaopan.sketch.drawable.ImageAttrs;
 import me.xiaopan.sketch.request.ErrorCause;
+import me.xiaopan.sketch.request.ImageFrom;
 import me.xiaopan.sketch.request.LoadRequest;
 import me.xiaopan.sketch.uri.GetDataSourceException;
 import me.xiaopan.sketch.util.ExifInterface;
@@ -49,6 +55,7 @@ public class ImageDecoder implements Identifier {
         decodeHelperList.add(new ProcessedCacheDecodeHelper());
         decodeHelperList.add(new GifDecodeHelper());
         decodeHelperList.add(new ThumbnailModeDecodeHelper());
+        decodeHelperList.add(new ExifThumbnailDecodeHelper());
         decodeHelperList.add(new NormalDecodeHelper());
 
         resultProcessorList.add(new ProcessImageResultProcessor());
@@ -108,14 +115,42 @@ public class ImageDecoder implements Identifier {
             throw new DecodeException("Unable create DataSource", e, ErrorCause.DECODE_UNABLE_CREATE_DATA_SOURCE);
         }
 
+        // 打开代价比较高的数据源缓存一下头部，读取尺寸、读取 exif 和正式解码只打开一次
+        HeaderCachedDataSource headerCachedDataSource = null;
+        if (dataSource instanceof ContentDataSource || dataSource instanceof AssetsDataSource
+                || dataSource instanceof DrawableDataSource) {
+            headerCachedDataSource = new HeaderCachedDataSource(dataSource);
+            dataSource = headerCachedDataSource;
+        }
+
+        try {
+            return doDecode(request, dataSource);
+        } finally {
+            if (headerCachedDataSource != null) {
+                headerCachedDataSource.release();
+            }
+        }
+    }
+
+    @NonNull
+    private DecodeResult doDecode(LoadRequest request, DataSource dataSource) throws DecodeException {
+        // 刚下载的图片在下载过程中已经解析过头部了，就不用再读一遍了
+        ImageAttrs sniffedImageAttrs = dataSource.getImageFrom() == ImageFrom.NETWORK ? request.getSniffedImageAttrs() : null;
+
         // Decode bounds and mime info
         BitmapFactory.Options boundOptions = new BitmapFactory.Options();
         boundOptions.inJustDecodeBounds = true;
-        try {
-            ImageDecodeUtils.decodeBitmap(dataSource, boundOptions);
-        } catch (Throwable e) {
-            ImageDecodeUtils.decodeError(request, dataSource, NAME, "Unable read bound information", e);
-            throw new DecodeException("Unable read bound information", e, ErrorCause.DECODE_UNABLE_READ_BOUND_INFORMATION);
+        if (sniffedImageAttrs != null) {
+            boundOptions.outWidth = sniffedImageAttrs.getWidth();
+            boundOptions.outHeight = sniffedImageAttrs.getHeight();
+            boundOptions.outMimeType = sniffedImageAttrs.getMimeType();
+        } else {
+            try {
+                ImageDecodeUtils.decodeBitmap(dataSource, boundOptions);
+            } catch (Throwable e) {
+                ImageDecodeUtils.decodeError(request, dataSource, NAME, "Unable read bound information", e);
+                throw new DecodeException("Unable read bound information", e, ErrorCause.DECODE_UNABLE_READ_BOUND_INFORMATION);
+            }
         }
 
         // Exclude images with a width of less than or equal to 1
@@ -128,8 +163,12 @@ public class ImageDecoder implements Identifier {
         // Read image orientation
         int exifOrientation = ExifInterface.ORIENTATION_UNDEFINED;
         if (!request.getOptions().isCorrectImageOrientationDisabled()) {
-            ImageOrientationCorrector imageOrientationCorrector = request.getConfiguration().getOrientationCorrector();
-            exifOrientation = imageOrientationCorrector.readExifOrientation(boundOptions.outMimeType, dataSource);
+            if (sniffedImageAttrs != null) {
+                exifOrientation = sniffedImageAttrs.getExifOrientation();
+            } else {
+                ImageOrientationCorrector imageOrientationCorrector = request.getConfiguration().getOrientationCorrector();
+                exifOrientation = imageOrientationCorrector.readExifOrientation(boundOptions.outMimeType, dataSource);
+            }
         }
 
         ImageType imageType = ImageType.valueOfMimeType(boundOptions.outMimeType);
@@ -34,6 +34,7 @@ import me.xiaopan.sketch.cache.BitmapPool;
 import me.xiaopan.sketch.datasource.DataSource;
 import me.xiaopan.sketch.drawable.ImageAttrs;
 import me.xiaopan.sketch.util.ExifInterface;
+import me.xiaopan.sketch.util.ExifOrientationReader;
 import me.xiaopan.sketch.util.SketchUtils;
 
 /**
@@ -157,14 +158,30 @@ public class ImageOrientationCorrector implements Identifier {
     }
 
     /**
-     * 读取图片方向
+     * 读取图片方向，只扫描 JPEG 的 segment 头和 exif 里的方向标签，不再走完整的 {@link ExifInterface} 解析
      *
      * @param inputStream 文件输入流
      * @return exif 保存的原始方向
      */
     public int readExifOrientation(InputStream inputStream) throws IOException {
-        ExifInterface exifInterface = new ExifInterface(inputStream);
-        return exifInterface.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
+        return ExifOrientationReader.read(inputStream);
+    }
+
+    /**
+     * 从内存中的图片数据读取图片方向，不会拷贝数据
+     *
+     * @param mimeType 图片的类型，某些类型不支持读取旋转角度，需要过滤掉，免得浪费精力
+     * @param data     图片数据，可以只是文件头
+     * @param offset   开始位置
+     * @param length   数据长度
+     * @return exif 保存的原始方向
+     */
+    public int readExifOrientation(String mimeType, byte[] data, int offset, int length) {
+        if (!support(mimeType)) {
+            return ExifInterface.ORIENTATION_UNDEFINED;
+        }
+
+        return ExifOrientationReader.read(data, offset, length);
     }
 
     /**
@@ -174,7 +191,6 @@ public class ImageOrientationCorrector implements Identifier {
      * @param inputStream 输入流
      * @return exif 保存的原始方向
      */
-    @SuppressWarnings("unused")
     public int readExifOrientation(String mimeType, InputStream inputStream) throws IOException {
         if (!support(mimeType)) {
             return ExifInterface.ORIENTATION_UNDEFINED;
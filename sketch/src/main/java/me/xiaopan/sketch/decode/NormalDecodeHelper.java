@@ -18,7 +18,9 @@ package me.xiaopan.sketch.decode;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import java.util.Locale;
 
@@ -28,8 +30,10 @@ import me.xiaopan.sketch.cache.BitmapPoolUtils;
 import me.xiaopan.sketch.datasource.DataSource;
 import me.xiaopan.sketch.drawable.ImageAttrs;
 import me.xiaopan.sketch.request.ErrorCause;
+import me.xiaopan.sketch.request.LoadOptions;
 import me.xiaopan.sketch.request.LoadRequest;
 import me.xiaopan.sketch.request.MaxSize;
+import me.xiaopan.sketch.request.Resize;
 import me.xiaopan.sketch.util.SketchUtils;
 
 public class NormalDecodeHelper extends DecodeHelper {
@@ -49,9 +53,12 @@ public class NormalDecodeHelper extends DecodeHelper {
         ImageOrientationCorrector orientationCorrector = request.getConfiguration().getOrientationCorrector();
         orientationCorrector.rotateSize(boundOptions, exifOrientation);
 
+        // 精确尺寸解码时按 resize 计算 inSampleSize 和缩放比例，否则按 max size 计算 inSampleSize
+        int[] exactSize = setupExactSizeDecode(request, boundOptions, decodeOptions);
+
         // Calculate inSampleSize according to max size
         MaxSize maxSize = request.getOptions().getMaxSize();
-        if (maxSize != null) {
+        if (exactSize == null && maxSize != null) {
             boolean hugeImageEnabled = SketchUtils.supportHugeImage(request, imageType);
             ImageSizeCalculator imageSizeCalculator = request.getConfiguration().getSizeCalculator();
             decodeOptions.inSampleSize = imageSizeCalculator.calculateInSampleSize(boundOptions.outWidth, boundOptions.outHeight,
@@ -61,8 +68,14 @@ public class NormalDecodeHelper extends DecodeHelper {
         // Set inBitmap from bitmap pool
         if (BitmapPoolUtils.sdkSupportInBitmap() && !request.getOptions().isBitmapPoolDisabled()) {
             BitmapPool bitmapPool = request.getConfiguration().getBitmapPool();
-            BitmapPoolUtils.setInBitmapFromPool(decodeOptions,
-                    boundOptions.outWidth, boundOptions.outHeight, boundOptions.outMimeType, bitmapPool);
+            if (!decodeOptions.inScaled || decodeOptions.inDensity == 0) {
+                BitmapPoolUtils.setInBitmapFromPool(decodeOptions,
+                        boundOptions.outWidth, boundOptions.outHeight, boundOptions.outMimeType, bitmapPool);
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && exactSize != null) {
+                // 缩放解码时 4.4 以下 inBitmap 的尺寸必须和缩放前一致，所以只有 4.4 以上才复用，这里按缩放后的尺寸取
+                BitmapPoolUtils.setInBitmapFromPool(decodeOptions, exactSize[0] * decodeOptions.inSampleSize,
+                        exactSize[1] * decodeOptions.inSampleSize, boundOptions.outMimeType, bitmapPool);
+            }
         }
 
         Bitmap bitmap;
@@ -104,6 +117,11 @@ public class NormalDecodeHelper extends DecodeHelper {
             throw new DecodeException(cause, ErrorCause.DECODE_RESULT_BITMAP_SIZE_INVALID);
         }
 
+        // 缩放解码会把 inTargetDensity 设为图片的 density，要改回来，不然绘制时会被按 density 再缩放一次
+        if (exactSize != null && decodeOptions.inScaled && decodeOptions.inDensity != 0) {
+            bitmap.setDensity(request.getConfiguration().getContext().getResources().getDisplayMetrics().densityDpi);
+        }
+
         ProcessedImageCache processedImageCache = request.getConfiguration().getProcessedImageCache();
         boolean processed = processedImageCache.canUseCacheProcessedImageInDisk(decodeOptions.inSampleSize);
 
@@ -119,4 +137,58 @@ public class NormalDecodeHelper extends DecodeHelper {
         ImageDecodeUtils.decodeSuccess(bitmap, boundOptions.outWidth, boundOptions.outHeight, decodeOptions.inSampleSize, request, NAME);
         return result;
     }
+
+    /**
+     * 精确尺寸解码，先用 inSampleSize 缩小到不小于目标尺寸的最大程度，剩下的再用 inDensity 和 inTargetDensity 缩放，
+     * 解码出来的图片中 resize 对应的区域正好就是 resize 的尺寸，后面的 ResizeImageProcessor 只需要按 1:1 截取或者什么都不用做
+     *
+     * @return 解码后的宽高（已按图片方向旋转），null：没有开启或者不需要缩小
+     */
+    @Nullable
+    private int[] setupExactSizeDecode(@NonNull LoadRequest request, @NonNull BitmapFactory.Options boundOptions,
+                                       @NonNull BitmapFactory.Options decodeOptions) {
+        LoadOptions loadOptions = request.getOptions();
+        Resize resize = loadOptions.getResize();
+        if (!loadOptions.isExactSizeDecode() || resize == null || resize.getWidth() <= 0 || resize.getHeight() <= 0) {
+            return null;
+        }
+
+        int imageWidth = boundOptions.outWidth;
+        int imageHeight = boundOptions.outHeight;
+        ResizeCalculator resizeCalculator = request.getConfiguration().getResizeCalculator();
+        ResizeCalculator.Mapping mapping = resizeCalculator.calculator(imageWidth, imageHeight,
+                resize.getWidth(), resize.getHeight(), resize.getScaleType(), resize.getMode() == Resize.Mode.EXACTLY_SAME);
+        if (mapping == null || mapping.srcRect.isEmpty()) {
+            return null;
+        }
+
+        // 宽高取较大的比例，保证截取区域缩放后不会比 resize 小
+        float scale = Math.max((float) mapping.destRect.width() / mapping.srcRect.width(),
+                (float) mapping.destRect.height() / mapping.srcRect.height());
+        if (scale >= 1) {
+            // 放大就交给后面的处理器
+            return null;
+        }
+
+        int targetWidth = (int) Math.ceil(imageWidth * scale);
+        int targetHeight = (int) Math.ceil(imageHeight * scale);
+        int inSampleSize = 1;
+        while (SketchUtils.ceil(imageWidth, inSampleSize * 2) >= targetWidth
+                && SketchUtils.ceil(imageHeight, inSampleSize * 2) >= targetHeight) {
+            inSampleSize *= 2;
+        }
+        decodeOptions.inSampleSize = inSampleSize;
+
+        int sampledWidth = SketchUtils.ceil(imageWidth, inSampleSize);
+        int sampledHeight = SketchUtils.ceil(imageHeight, inSampleSize);
+        if (sampledWidth <= targetWidth) {
+            return new int[]{sampledWidth, sampledHeight};
+        }
+
+        // BitmapFactory 按 inTargetDensity / inDensity 缩放，直接用宽度做 density 就能得到正好的宽度
+        decodeOptions.inScaled = true;
+        decodeOptions.inDensity = sampledWidth;
+        decodeOptions.inTargetDensity = targetWidth;
+        return new int[]{targetWidth, Math.round(sampledHeight * (float) targetWidth / sampledWidth)};
+    }
 }
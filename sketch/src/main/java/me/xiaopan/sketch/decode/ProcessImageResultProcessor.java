@@ -21,6 +21,7 @@ import android.graphics.Bitmap;
 import me.xiaopan.sketch.ErrorTracker;
 import me.xiaopan.sketch.cache.BitmapPoolUtils;
 import me.xiaopan.sketch.process.ImageProcessor;
+import me.xiaopan.sketch.process.ProcessorPipeline;
 import me.xiaopan.sketch.request.BaseRequest;
 import me.xiaopan.sketch.request.LoadOptions;
 import me.xiaopan.sketch.request.LoadRequest;
@@ -53,7 +54,14 @@ public class ProcessImageResultProcessor implements ResultProcessor {
 
         Bitmap newBitmap = null;
         try {
-            newBitmap = imageProcessor.process(request.getSketch(), bitmap, loadOptions.getResize(), loadOptions.isLowQualityImage());
+            // 能合并的处理器链一次画完，省掉中间图片
+            ProcessorPipeline pipeline = ProcessorPipeline.compile(imageProcessor);
+            if (pipeline != null) {
+                newBitmap = pipeline.process(request.getSketch(), bitmap, loadOptions.getResize(), loadOptions.isLowQualityImage());
+            }
+            if (newBitmap == null) {
+                newBitmap = imageProcessor.process(request.getSketch(), bitmap, loadOptions.getResize(), loadOptions.isLowQualityImage());
+            }
         } catch (Throwable e) {
             e.printStackTrace();
             ErrorTracker errorTracker = request.getConfiguration().getErrorTracker();
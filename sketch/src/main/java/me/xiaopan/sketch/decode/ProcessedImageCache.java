@@ -74,17 +74,9 @@ public class ProcessedImageCache implements Identifier {
     }
 
     public boolean checkDiskCache(LoadRequest request) {
+        // 只有提交后的缓存才能被查到，所以不用等编辑锁，正在写的话就当作没有，加载时再带着锁读取
         DiskCache diskCache = request.getConfiguration().getDiskCache();
-        String processedImageDiskCacheKey = request.getProcessedDiskCacheKey();
-
-        ReentrantLock editLock = diskCache.getEditLock(processedImageDiskCacheKey);
-        editLock.lock();
-
-        try {
-            return diskCache.exist(processedImageDiskCacheKey);
-        } finally {
-            editLock.unlock();
-        }
+        return diskCache.exist(request.getProcessedDiskCacheKey());
     }
 
     /**
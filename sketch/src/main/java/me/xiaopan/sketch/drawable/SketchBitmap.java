@@ -8,7 +8,7 @@ public abstract class SketchBitmap {
 
     private String key;
     private String uri;
-    protected Bitmap bitmap;
+    protected volatile Bitmap bitmap;
     private ImageAttrs attrs;
 
     protected SketchBitmap(Bitmap bitmap, String key, String uri, ImageAttrs attrs) {
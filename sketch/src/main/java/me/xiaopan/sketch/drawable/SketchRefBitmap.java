@@ -52,9 +52,10 @@ public class SketchRefBitmap extends SketchBitmap {
     }
 
     /**
-     * 已回收？
+     * 已回收？不加锁，主线程检查内存缓存时不会被其它线程的引用变化阻塞
      */
-    public synchronized boolean isRecycled() {
+    public boolean isRecycled() {
+        Bitmap bitmap = this.bitmap;
         return bitmap == null || bitmap.isRecycled();
     }
 
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import me.xiaopan.sketch.cache.DiskCache;
+import me.xiaopan.sketch.util.DiskLruCache;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 磁盘缓存对应的 http 响应信息，包括 ETag、Last-Modified、Cache-Control 的 max-age 和 Content-Type，用来判断缓存是否过期以及发起条件请求重新验证
+ * <p>
+ * 存在图片所在缓存条目的元数据里（{@link DiskCache.MetadataEntry}），和图片一起被淘汰和删除。
+ * 不支持元数据的自定义 {@link DiskCache} 才以 "磁盘缓存 key + {@link #META_SUFFIX}" 单独存放
+ */
+public class CacheMetadata {
+    static final String META_SUFFIX = ".meta";
+
+    /**
+     * 响应中没有 max-age 时缓存多久后需要重新验证，单位毫秒
+     */
+    static final long DEFAULT_FRESH_TIME = 10 * 60 * 1000;
+
+    private long savedTime;
+    private long maxAge;
+    @Nullable
+    private String eTag;
+    @Nullable
+    private String lastModified;
+    @Nullable
+    private String contentType;
+
+    private CacheMetadata(long savedTime, long maxAge, @Nullable String eTag, @Nullable String lastModified, @Nullable String contentType) {
+        this.savedTime = savedTime;
+        this.maxAge = maxAge;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.contentType = contentType;
+    }
+
+    /**
+     * 从响应头中读取，HttpStack 不能读取响应头的话就只记录保存时间
+     */
+    @NonNull
+    public static CacheMetadata from(@NonNull HttpStack.ImageHttpResponse imageHttpResponse) {
+        if (!(imageHttpResponse instanceof RangeCapableHttpStack.HeaderFieldHttpResponse)) {
+            return new CacheMetadata(System.currentTimeMillis(), -1, null, null, null);
+        }
+        RangeCapableHttpStack.HeaderFieldHttpResponse httpResponse = (RangeCapableHttpStack.HeaderFieldHttpResponse) imageHttpResponse;
+        return new CacheMetadata(System.currentTimeMillis(), parseMaxAge(httpResponse.getHeaderField("Cache-Control")),
+                emptyToNull(httpResponse.getHeaderField("ETag")), emptyToNull(httpResponse.getHeaderField("Last-Modified")),
+                emptyToNull(httpResponse.getHeaderField("Content-Type")));
+    }
+
+    /**
+     * 解析 Cache-Control 中的 max-age，单位秒，no-cache 和 no-store 当作 0
+     *
+     * @return -1：没有指定
+     */
+    static long parseMaxAge(@Nullable String cacheControl) {
+        if (TextUtils.isEmpty(cacheControl)) {
+            return -1;
+        }
+
+        long maxAge = -1;
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim().toLowerCase(Locale.US);
+            if (directive.equals("no-cache") || directive.equals("no-store")) {
+                return 0;
+            } else if (directive.startsWith("max-age=")) {
+                try {
+                    maxAge = Long.parseLong(directive.substring("max-age=".length()).replace("\"", "").trim());
+                } catch (NumberFormatException e) {
+                    maxAge = 0;
+                }
+            }
+        }
+        return maxAge;
+    }
+
+    @Nullable
+    private static String emptyToNull(@Nullable String value) {
+        return TextUtils.isEmpty(value) ? null : value.trim();
+    }
+
+    /**
+     * 读取磁盘缓存中的响应信息
+     */
+    @Nullable
+    public static CacheMetadata find(@NonNull DiskCache diskCache, @NonNull String diskCacheKey) {
+        DiskCache.Entry entry = diskCache.get(diskCacheKey);
+        if (entry instanceof DiskCache.MetadataEntry) {
+            try {
+                // 元数据损坏的话当作没有，下次保存时会被覆盖，不能删掉整个条目
+                return read(((DiskCache.MetadataEntry) entry).newMetadataInputStream());
+            } catch (IOException | NumberFormatException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        DiskCache.Entry metaEntry = diskCache.get(diskCacheKey + META_SUFFIX);
+        if (metaEntry == null) {
+            return null;
+        }
+
+        try {
+            return read(metaEntry.newInputStream());
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+            metaEntry.delete();
+            return null;
+        }
+    }
+
+    @Nullable
+    private static CacheMetadata read(@Nullable InputStream inputStream) throws IOException, NumberFormatException {
+        if (inputStream == null) {
+            return null;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+            long savedTime = Long.parseLong(reader.readLine());
+            long maxAge = Long.parseLong(reader.readLine());
+            return new CacheMetadata(savedTime, maxAge, emptyToNull(reader.readLine()),
+                    emptyToNull(reader.readLine()), emptyToNull(reader.readLine()));
+        } finally {
+            SketchUtils.close(reader != null ? reader : inputStream);
+        }
+    }
+
+    private boolean write(@NonNull OutputStream outputStream) {
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(outputStream, "UTF-8");
+            writer.write(savedTime + "\n" + maxAge + "\n" + (eTag != null ? eTag : "") + "\n"
+                    + (lastModified != null ? lastModified : "") + "\n" + (contentType != null ? contentType : "") + "\n");
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            SketchUtils.close(writer != null ? writer : outputStream);
+        }
+    }
+
+    /**
+     * 写到正在编辑的图片缓存条目里，和图片一起提交
+     *
+     * @return false：编辑器不支持元数据，需要在提交后调用 {@link #save(DiskCache, String)}
+     */
+    public boolean writeTo(@NonNull DiskCache.Editor editor) {
+        if (!(editor instanceof DiskCache.MetadataEditor)) {
+            return false;
+        }
+
+        try {
+            write(((DiskCache.MetadataEditor) editor).newMetadataOutputStream());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    /**
+     * 单独保存到磁盘缓存中，支持元数据的话只更新图片缓存条目的元数据，图片保持不变
+     */
+    public void save(@NonNull DiskCache diskCache, @NonNull String diskCacheKey) {
+        DiskCache.Editor editor = diskCache.edit(diskCacheKey);
+        boolean inEntry = editor instanceof DiskCache.MetadataEditor;
+        if (editor != null && !inEntry) {
+            editor.abort();
+            editor = diskCache.edit(diskCacheKey + META_SUFFIX);
+        }
+        if (editor == null) {
+            return;
+        }
+
+        try {
+            OutputStream outputStream = inEntry
+                    ? ((DiskCache.MetadataEditor) editor).newMetadataOutputStream() : editor.newOutputStream();
+            if (!write(outputStream)) {
+                editor.abort();
+                return;
+            }
+        } catch (IOException e) {
+            editor.abort();
+            e.printStackTrace();
+            return;
+        }
+
+        try {
+            editor.commit();
+        } catch (IOException | DiskLruCache.EditorChangedException | DiskLruCache.ClosedException | DiskLruCache.FileNotExistException e) {
+            editor.abort();
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 收到 304 后刷新保存时间，服务器给了新的校验信息或 max-age 就一并更新
+     */
+    public void refresh(@NonNull RangeCapableHttpStack.HeaderFieldHttpResponse notModifiedResponse) {
+        savedTime = System.currentTimeMillis();
+        String cacheControl = notModifiedResponse.getHeaderField("Cache-Control");
+        if (!TextUtils.isEmpty(cacheControl)) {
+            maxAge = parseMaxAge(cacheControl);
+        }
+        String newETag = emptyToNull(notModifiedResponse.getHeaderField("ETag"));
+        if (newETag != null) {
+            eTag = newETag;
+        }
+        String newLastModified = emptyToNull(notModifiedResponse.getHeaderField("Last-Modified"));
+        if (newLastModified != null) {
+            lastModified = newLastModified;
+        }
+    }
+
+    /**
+     * 是否还新鲜，不需要重新验证
+     */
+    public boolean isFresh() {
+        long freshTime = maxAge >= 0 ? maxAge * 1000 : DEFAULT_FRESH_TIME;
+        long age = System.currentTimeMillis() - savedTime;
+        return age >= 0 && age < freshTime;
+    }
+
+    /**
+     * 是否可以发起条件请求
+     */
+    public boolean canRevalidate() {
+        return eTag != null || lastModified != null;
+    }
+
+    /**
+     * 生成条件请求用的请求头
+     */
+    @NonNull
+    public Map<String, String> makeConditionalHeaders() {
+        Map<String, String> headers = new HashMap<>(2);
+        if (eTag != null) {
+            headers.put("If-None-Match", eTag);
+        }
+        if (lastModified != null) {
+            headers.put("If-Modified-Since", lastModified);
+        }
+        return headers;
+    }
+
+    public long getSavedTime() {
+        return savedTime;
+    }
+
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    @Nullable
+    public String getETag() {
+        return eTag;
+    }
+
+    @Nullable
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    @Nullable
+    public String getContentType() {
+        return contentType;
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.http;
+
+import android.content.ComponentCallbacks2;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import me.xiaopan.sketch.Configuration;
+import me.xiaopan.sketch.SLog;
+import me.xiaopan.sketch.cache.DiskCache;
+import me.xiaopan.sketch.util.DiskLruCache;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 磁盘缓存写后台，下载完的数据直接从内存交给解码，写磁盘缓存的事情放到后台低优先级的线程去做
+ * <p>
+ * 还没写完的数据都占着内存，所以总量有预算，超出预算的下载就还是老老实实地同步写磁盘缓存。
+ * 写完之前再来请求同一张图片的话直接用内存中的数据，不用重新下载
+ */
+public class DiskCacheWriteBehind {
+    private static final String NAME = "DiskCacheWriteBehind";
+
+    public static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * 收到内存紧张的通知后这段时间内都同步写磁盘缓存
+     */
+    private static final long LOW_MEMORY_DURATION = 30 * 1000;
+
+    private final ConcurrentHashMap<String, byte[]> pendingWrites = new ConcurrentHashMap<String, byte[]>();
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final AtomicLong writeBehindCount = new AtomicLong();
+    private final AtomicLong fallbackCount = new AtomicLong();
+    private volatile long maxInFlightBytes = DEFAULT_MAX_IN_FLIGHT_BYTES;
+    private volatile long lowMemoryTime = -1;
+
+    /**
+     * 预占内存预算
+     *
+     * @param length 数据长度
+     * @return false：超出预算了，需要同步写磁盘缓存
+     */
+    public boolean tryReserve(long length) {
+        while (true) {
+            long current = inFlightBytes.get();
+            if (length <= 0 || current + length > maxInFlightBytes || isLowMemory()) {
+                fallbackCount.incrementAndGet();
+                if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_CACHE)) {
+                    SLog.d(NAME, "Over budget, write synchronously. length=%d, inFlightBytes=%d, maxInFlightBytes=%d",
+                            length, current, maxInFlightBytes);
+                }
+                return false;
+            }
+            if (inFlightBytes.compareAndSet(current, current + length)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 归还预占的内存预算，下载失败或写完后调用
+     */
+    public void release(long length) {
+        inFlightBytes.addAndGet(-length);
+    }
+
+    /**
+     * 获取还没写到磁盘缓存的数据
+     */
+    @Nullable
+    public byte[] getPending(@NonNull String diskCacheKey) {
+        return pendingWrites.get(diskCacheKey);
+    }
+
+    /**
+     * 提交到后台写磁盘缓存，写完后归还预算
+     *
+     * @param configuration  Configuration
+     * @param diskCacheKey   磁盘缓存 key
+     * @param data           下载的数据
+     * @param reservedLength 之前预占的预算
+     * @param cacheMetadata  需要一起保存的校验信息，null：不保存
+     * @param variantRecord  需要一起保存的变体记录，null：不记录
+     */
+    public void submit(@NonNull Configuration configuration, @NonNull final String diskCacheKey, @NonNull final byte[] data,
+                       final long reservedLength, @Nullable final CacheMetadata cacheMetadata, @Nullable final ImageVariant variantRecord) {
+        final DiskCache diskCache = configuration.getDiskCache();
+        pendingWrites.put(diskCacheKey, data);
+        writeBehindCount.incrementAndGet();
+
+        Runnable writeTask = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(diskCache, diskCacheKey, data, cacheMetadata, variantRecord);
+                } finally {
+                    pendingWrites.remove(diskCacheKey, data);
+                    release(reservedLength);
+                }
+            }
+        };
+
+        // 执行器已经关闭或者拒绝了任务的话只能在当前线程写，pending 的数据和预算在 run() 的 finally 中归还
+        if (!configuration.getExecutor().submitDiskWrite(writeTask)) {
+            writeTask.run();
+        }
+    }
+
+    private void write(@NonNull DiskCache diskCache, @NonNull String diskCacheKey, @NonNull byte[] data,
+                       @Nullable CacheMetadata cacheMetadata, @Nullable ImageVariant variantRecord) {
+        ReentrantLock diskCacheEditLock = diskCache.getEditLock(diskCacheKey);
+        diskCacheEditLock.lock();
+        try {
+            DiskCache.Editor diskCacheEditor = diskCache.edit(diskCacheKey);
+            if (diskCacheEditor == null) {
+                return;
+            }
+
+            OutputStream outputStream = null;
+            try {
+                outputStream = new BufferedOutputStream(diskCacheEditor.newOutputStream(), 8 * 1024);
+                outputStream.write(data);
+                outputStream.flush();
+            } catch (IOException e) {
+                SketchUtils.close(outputStream);
+                diskCacheEditor.abort();
+                SLog.e(NAME, e, String.format("Write disk cache exception. %s", diskCacheKey));
+                return;
+            }
+            SketchUtils.close(outputStream);
+
+            if (variantRecord != null) {
+                variantRecord.save(diskCache, diskCacheKey);
+            } else {
+                ImageVariant.delete(diskCache, diskCacheKey);
+            }
+            boolean metadataWritten = cacheMetadata != null && cacheMetadata.writeTo(diskCacheEditor);
+            try {
+                diskCacheEditor.commit();
+            } catch (IOException | DiskLruCache.EditorChangedException | DiskLruCache.ClosedException | DiskLruCache.FileNotExistException e) {
+                ImageVariant.delete(diskCache, diskCacheKey);
+                SLog.e(NAME, e, String.format("Disk cache commit exception. %s", diskCacheKey));
+                return;
+            }
+
+            if (cacheMetadata != null && !metadataWritten) {
+                cacheMetadata.save(diskCache, diskCacheKey);
+            }
+
+            if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_CACHE)) {
+                SLog.d(NAME, "Write behind success. fileLength: %d. %s", data.length, diskCacheKey);
+            }
+        } finally {
+            diskCacheEditLock.unlock();
+        }
+    }
+
+    private boolean isLowMemory() {
+        return lowMemoryTime >= 0 && SystemClock.uptimeMillis() - lowMemoryTime < LOW_MEMORY_DURATION;
+    }
+
+    /**
+     * 内存紧张时暂停写后台，新的下载都同步写磁盘缓存，已经在排队的不受影响
+     *
+     * @param level 修剪级别，对应 {@link ComponentCallbacks2} 里的常量
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            lowMemoryTime = SystemClock.uptimeMillis();
+            SLog.w(NAME, "trimMemory. level=%s, write synchronously for a while. inFlightBytes=%d",
+                    SketchUtils.getTrimLevelName(level), inFlightBytes.get());
+        }
+    }
+
+    /**
+     * 设置还没写到磁盘缓存的数据最多能占用多少内存，内存紧张时可以调小，0 就是全部同步写
+     */
+    public void setMaxInFlightBytes(long maxInFlightBytes) {
+        this.maxInFlightBytes = Math.max(maxInFlightBytes, 0);
+    }
+
+    public long getMaxInFlightBytes() {
+        return maxInFlightBytes;
+    }
+
+    /**
+     * 获取还没写到磁盘缓存的数据总长度
+     */
+    public long getInFlightBytes() {
+        return inFlightBytes.get();
+    }
+
+    @NonNull
+    public String getStatsInfo() {
+        return String.format(Locale.US, "%s(inFlightBytes=%d,maxInFlightBytes=%d,pending=%d,writeBehind=%d,fallback=%d)",
+                NAME, inFlightBytes.get(), maxInFlightBytes, pendingWrites.size(), writeBehindCount.get(), fallbackCount.get());
+    }
+}
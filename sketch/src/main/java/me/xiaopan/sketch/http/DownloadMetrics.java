@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Locale;
+
+import me.xiaopan.sketch.request.ErrorCause;
+
+/**
+ * 一次网络下载各个阶段的耗时和结果，下载结束后交给 {@link DownloadMetricsListener}，时间单位都是毫秒，没有经历的阶段是 -1
+ */
+public class DownloadMetrics {
+
+    public enum Outcome {
+        SUCCESS,
+        FAILED,
+        CANCELED,
+    }
+
+    @NonNull
+    private String uri;
+    @Nullable
+    private String host;
+    private long dispatchWaitTime = -1;
+    private long connectTime = -1;
+    private long firstByteTime = -1;
+    private long readTime = -1;
+    private long bytes;
+    private long diskCacheCommitTime = -1;
+    private int retryCount;
+    private boolean resumed;
+    @NonNull
+    private Outcome outcome = Outcome.FAILED;
+    @Nullable
+    private ErrorCause errorCause;
+
+    public DownloadMetrics(@NonNull String uri, @Nullable String host) {
+        this.uri = uri;
+        this.host = host;
+    }
+
+    /**
+     * 开始新的一次尝试，重试时上一次的数据作废
+     */
+    void resetAttempt() {
+        connectTime = -1;
+        firstByteTime = -1;
+        readTime = -1;
+        bytes = 0;
+        diskCacheCommitTime = -1;
+        resumed = false;
+    }
+
+    @NonNull
+    public String getUri() {
+        return uri;
+    }
+
+    @Nullable
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * 从提交请求到开始下载等待了多久，包括排队和分发
+     */
+    public long getDispatchWaitTime() {
+        return dispatchWaitTime;
+    }
+
+    void setDispatchWaitTime(long dispatchWaitTime) {
+        this.dispatchWaitTime = dispatchWaitTime;
+    }
+
+    /**
+     * 建立连接并拿到响应码的耗时
+     */
+    public long getConnectTime() {
+        return connectTime;
+    }
+
+    void setConnectTime(long connectTime) {
+        this.connectTime = connectTime;
+    }
+
+    /**
+     * 从开始连接到收到响应体第一个字节的耗时，也就是 TTFB
+     */
+    public long getFirstByteTime() {
+        return firstByteTime;
+    }
+
+    void setFirstByteTime(long firstByteTime) {
+        this.firstByteTime = firstByteTime;
+    }
+
+    /**
+     * 读取响应体的耗时
+     */
+    public long getReadTime() {
+        return readTime;
+    }
+
+    void setReadTime(long readTime) {
+        this.readTime = readTime;
+    }
+
+    /**
+     * 本次从网络读取的字节数，续传时不包括之前已经下载的部分
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * 下载速度，单位字节/秒
+     *
+     * @return -1：没有读取数据
+     */
+    public long getThroughput() {
+        return readTime >= 0 && bytes > 0 ? bytes * 1000 / Math.max(readTime, 1) : -1;
+    }
+
+    /**
+     * 提交磁盘缓存的耗时
+     */
+    public long getDiskCacheCommitTime() {
+        return diskCacheCommitTime;
+    }
+
+    void setDiskCacheCommitTime(long diskCacheCommitTime) {
+        this.diskCacheCommitTime = diskCacheCommitTime;
+    }
+
+    /**
+     * 重试的次数
+     */
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    void setRetryCount(int retryCount) {
+        this.retryCount = retryCount;
+    }
+
+    /**
+     * 是否是续传的
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    void setResumed(boolean resumed) {
+        this.resumed = resumed;
+    }
+
+    @NonNull
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * 失败的原因
+     *
+     * @return null：没有失败
+     */
+    @Nullable
+    public ErrorCause getErrorCause() {
+        return errorCause;
+    }
+
+    void setOutcome(@NonNull Outcome outcome, @Nullable ErrorCause errorCause) {
+        this.outcome = outcome;
+        this.errorCause = errorCause;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "DownloadMetrics(outcome=%s,errorCause=%s,host=%s,dispatchWait=%dms,connect=%dms,ttfb=%dms," +
+                        "read=%dms,bytes=%d,throughput=%dB/s,commit=%dms,retry=%d,resumed=%s)",
+                outcome, errorCause, host, dispatchWaitTime, connectTime, firstByteTime, readTime, bytes, getThroughput(),
+                diskCacheCommitTime, retryCount, resumed);
+    }
+}
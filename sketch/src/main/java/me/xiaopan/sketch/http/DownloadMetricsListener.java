@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.http;
+
+import android.support.annotation.NonNull;
+
+/**
+ * 网络下载指标监听器，通过 {@link me.xiaopan.sketch.Configuration#setDownloadMetricsListener(DownloadMetricsListener)} 设置，
+ * 可以直接用 {@link DownloadMetricsRecorder} 按 host 统计
+ */
+public interface DownloadMetricsListener {
+
+    /**
+     * 一次网络下载结束了，不管成功、失败还是取消，命中磁盘缓存的不会回调。在下载线程中回调，不要做耗时的操作
+     */
+    void onDownloadMetrics(@NonNull DownloadMetrics metrics);
+}
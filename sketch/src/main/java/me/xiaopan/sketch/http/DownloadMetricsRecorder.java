@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.http;
+
+import android.support.annotation.NonNull;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 按 host 统计下载指标，包括结果计数以及连接耗时、TTFB、下载速度、磁盘缓存提交耗时和排队等待时间的直方图，
+ * 可以通过 {@link #exportCounters()} 导出成计数器上报
+ * <p>
+ * 最多统计 {@link #MAX_HOST_COUNT} 个 host，超出的合并到 {@link #OTHER_HOST} 中
+ */
+public class DownloadMetricsRecorder implements DownloadMetricsListener {
+    static final int MAX_HOST_COUNT = 32;
+    static final String OTHER_HOST = "other";
+    static final String ALL_HOST = "all";
+
+    /**
+     * 耗时直方图的桶上界，单位毫秒，最后一个桶没有上界
+     */
+    static final long[] TIME_BUCKETS = {50, 100, 200, 500, 1000, 2000, 5000};
+
+    /**
+     * 下载速度直方图的桶上界，单位 KB/s，最后一个桶没有上界
+     */
+    static final long[] THROUGHPUT_BUCKETS = {16, 64, 256, 1024, 4096};
+
+    private final Map<String, HostMetrics> hostMetricsMap = new LinkedHashMap<String, HostMetrics>();
+    private final HostMetrics allMetrics = new HostMetrics();
+
+    @Override
+    public synchronized void onDownloadMetrics(@NonNull DownloadMetrics metrics) {
+        allMetrics.record(metrics);
+
+        String host = metrics.getHost() != null ? metrics.getHost() : OTHER_HOST;
+        HostMetrics hostMetrics = hostMetricsMap.get(host);
+        if (hostMetrics == null) {
+            if (hostMetricsMap.size() >= MAX_HOST_COUNT) {
+                host = OTHER_HOST;
+                hostMetrics = hostMetricsMap.get(host);
+            }
+            if (hostMetrics == null) {
+                hostMetrics = new HostMetrics();
+                hostMetricsMap.put(host, hostMetrics);
+            }
+        }
+        hostMetrics.record(metrics);
+    }
+
+    /**
+     * 导出成计数器，key 的格式是 "download.{host}.{指标}"，所有 host 的汇总用 {@link #ALL_HOST}，直方图的每个桶是一个计数器，
+     * 例如 "download.all.connect.le_100ms"、"download.all.throughput.gt_4096kbps"
+     */
+    @NonNull
+    public synchronized Map<String, Long> exportCounters() {
+        Map<String, Long> counters = new LinkedHashMap<String, Long>();
+        allMetrics.export(ALL_HOST, counters);
+        for (Map.Entry<String, HostMetrics> entry : hostMetricsMap.entrySet()) {
+            entry.getValue().export(entry.getKey(), counters);
+        }
+        return counters;
+    }
+
+    /**
+     * 清空统计数据，通常在导出上报之后调用
+     */
+    public synchronized void reset() {
+        hostMetricsMap.clear();
+        allMetrics.clear();
+    }
+
+    @NonNull
+    public synchronized String getStatsInfo() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(ALL_HOST).append(": ").append(allMetrics.getSummary());
+        for (Map.Entry<String, HostMetrics> entry : hostMetricsMap.entrySet()) {
+            builder.append("\n").append(entry.getKey()).append(": ").append(entry.getValue().getSummary());
+        }
+        return builder.toString();
+    }
+
+    private static class HostMetrics {
+        private long successCount;
+        private long failedCount;
+        private long canceledCount;
+        private long retryCount;
+        private long resumedCount;
+        private long bytes;
+
+        private Histogram dispatchWaitHistogram = new Histogram(TIME_BUCKETS, "ms");
+        private Histogram connectHistogram = new Histogram(TIME_BUCKETS, "ms");
+        private Histogram firstByteHistogram = new Histogram(TIME_BUCKETS, "ms");
+        private Histogram throughputHistogram = new Histogram(THROUGHPUT_BUCKETS, "kbps");
+        private Histogram commitHistogram = new Histogram(TIME_BUCKETS, "ms");
+
+        void record(@NonNull DownloadMetrics metrics) {
+            switch (metrics.getOutcome()) {
+                case SUCCESS:
+                    successCount++;
+                    break;
+                case CANCELED:
+                    canceledCount++;
+                    break;
+                default:
+                    failedCount++;
+                    break;
+            }
+            retryCount += metrics.getRetryCount();
+            if (metrics.isResumed()) {
+                resumedCount++;
+            }
+            bytes += metrics.getBytes();
+
+            dispatchWaitHistogram.record(metrics.getDispatchWaitTime());
+            connectHistogram.record(metrics.getConnectTime());
+            firstByteHistogram.record(metrics.getFirstByteTime());
+            commitHistogram.record(metrics.getDiskCacheCommitTime());
+
+            // 数据太少的下载测不准速度
+            long throughput = metrics.getThroughput();
+            if (metrics.getOutcome() == DownloadMetrics.Outcome.SUCCESS && metrics.getBytes() >= 16 * 1024 && throughput >= 0) {
+                throughputHistogram.record(throughput / 1024);
+            }
+        }
+
+        void export(@NonNull String host, @NonNull Map<String, Long> counters) {
+            String prefix = "download." + host + ".";
+            counters.put(prefix + "success", successCount);
+            counters.put(prefix + "failed", failedCount);
+            counters.put(prefix + "canceled", canceledCount);
+            counters.put(prefix + "retry", retryCount);
+            counters.put(prefix + "resumed", resumedCount);
+            counters.put(prefix + "bytes", bytes);
+            dispatchWaitHistogram.export(prefix + "dispatchWait", counters);
+            connectHistogram.export(prefix + "connect", counters);
+            firstByteHistogram.export(prefix + "ttfb", counters);
+            throughputHistogram.export(prefix + "throughput", counters);
+            commitHistogram.export(prefix + "commit", counters);
+        }
+
+        void clear() {
+            successCount = 0;
+            failedCount = 0;
+            canceledCount = 0;
+            retryCount = 0;
+            resumedCount = 0;
+            bytes = 0;
+            dispatchWaitHistogram.clear();
+            connectHistogram.clear();
+            firstByteHistogram.clear();
+            throughputHistogram.clear();
+            commitHistogram.clear();
+        }
+
+        @NonNull
+        String getSummary() {
+            return String.format(Locale.US, "success=%d, failed=%d, canceled=%d, retry=%d, resumed=%d, bytes=%d, " +
+                            "dispatchWait(avg)=%dms, connect(avg)=%dms, ttfb(avg)=%dms, throughput(avg)=%dkbps, commit(avg)=%dms",
+                    successCount, failedCount, canceledCount, retryCount, resumedCount, bytes,
+                    dispatchWaitHistogram.getAverage(), connectHistogram.getAverage(), firstByteHistogram.getAverage(),
+                    throughputHistogram.getAverage(), commitHistogram.getAverage());
+        }
+    }
+
+    /**
+     * 固定桶的直方图，同时记录总数和总和用来算平均值
+     */
+    private static class Histogram {
+        private long[] bounds;
+        private long[] counts;
+        private String unit;
+        private long count;
+        private long sum;
+
+        Histogram(@NonNull long[] bounds, @NonNull String unit) {
+            this.bounds = bounds;
+            this.counts = new long[bounds.length + 1];
+            this.unit = unit;
+        }
+
+        void record(long value) {
+            if (value < 0) {
+                return;
+            }
+            int index = 0;
+            while (index < bounds.length && value > bounds[index]) {
+                index++;
+            }
+            counts[index]++;
+            count++;
+            sum += value;
+        }
+
+        long getAverage() {
+            return count > 0 ? sum / count : -1;
+        }
+
+        void export(@NonNull String prefix, @NonNull Map<String, Long> counters) {
+            for (int i = 0; i < counts.length; i++) {
+                counters.put(prefix + "." + getBucketName(i), counts[i]);
+            }
+            counters.put(prefix + ".count", count);
+            counters.put(prefix + ".sum", sum);
+        }
+
+        @NonNull
+        private String getBucketName(int index) {
+            return index < bounds.length ? "le_" + bounds[index] + unit : "gt_" + bounds[bounds.length - 1] + unit;
+        }
+
+        void clear() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = 0;
+            }
+            count = 0;
+            sum = 0;
+        }
+    }
+}
@@ -29,7 +29,7 @@ import java.util.Map;
 
 import me.xiaopan.sketch.util.SketchUtils;
 
-public class HurlStack implements HttpStack {
+public class HurlStack implements RangeCapableHttpStack {
     private static final String KEY = "HurlStack";
 
     private int readTimeout = DEFAULT_READ_TIMEOUT;
@@ -126,6 +126,12 @@ public class HurlStack implements HttpStack {
     @NonNull
     @Override
     public ImageHttpResponse getHttpResponse(String uri) throws IOException {
+        return getHttpResponse(uri, null);
+    }
+
+    @NonNull
+    @Override
+    public HeaderFieldHttpResponse getHttpResponse(String uri, Map<String, String> requestHeaders) throws IOException {
         HttpURLConnection connection = (HttpURLConnection) new URL(uri).openConnection();
 
         connection.setConnectTimeout(connectTimeout);
@@ -151,6 +157,11 @@ public class HurlStack implements HttpStack {
                 connection.setRequestProperty(entry.getKey(), entry.getValue());
             }
         }
+        if (requestHeaders != null && requestHeaders.size() > 0) {
+            for (Map.Entry<String, String> entry : requestHeaders.entrySet()) {
+                connection.setRequestProperty(entry.getKey(), entry.getValue());
+            }
+        }
 
         processRequest(uri, connection);
 
@@ -164,7 +175,7 @@ public class HurlStack implements HttpStack {
 
     }
 
-    private static class HurlResponse implements ImageHttpResponse {
+    private static class HurlResponse implements HeaderFieldHttpResponse {
         private HttpURLConnection connection;
 
         HurlResponse(HttpURLConnection connection) {
@@ -220,6 +231,11 @@ public class HurlStack implements HttpStack {
             return stringBuilder.toString();
         }
 
+        @Override
+        public String getHeaderField(@NonNull String name) {
+            return connection.getHeaderField(name);
+        }
+
         @NonNull
         @Override
         public InputStream getContent() throws IOException {
@@ -16,30 +16,59 @@
 
 package me.xiaopan.sketch.http;
 
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.Uri;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.locks.ReentrantLock;
 
+import me.xiaopan.sketch.Configuration;
 import me.xiaopan.sketch.Identifier;
 import me.xiaopan.sketch.SLog;
 import me.xiaopan.sketch.cache.DiskCache;
 import me.xiaopan.sketch.request.BaseRequest;
 import me.xiaopan.sketch.request.CanceledException;
+import me.xiaopan.sketch.request.DownloadOptions;
 import me.xiaopan.sketch.request.DownloadRequest;
 import me.xiaopan.sketch.request.DownloadResult;
 import me.xiaopan.sketch.request.ErrorCause;
 import me.xiaopan.sketch.request.ImageFrom;
+import me.xiaopan.sketch.request.LoadOptions;
+import me.xiaopan.sketch.request.MaxSize;
+import me.xiaopan.sketch.request.PriorityTaskExecutor;
+import me.xiaopan.sketch.request.RequestPriority;
+import me.xiaopan.sketch.request.Resize;
 import me.xiaopan.sketch.util.DiskLruCache;
 import me.xiaopan.sketch.util.SketchUtils;
 
 public class ImageDownloader implements Identifier {
     private static final String NAME = "ImageDownloader";
 
+    /**
+     * 读取数据少于这个长度的下载不参与测速，小文件的耗时主要是延迟，测不出带宽
+     */
+    private static final long MIN_THROUGHPUT_SAMPLE_LENGTH = 16 * 1024;
+    private static final double THROUGHPUT_EWMA_WEIGHT = 0.3;
+
+    private final Set<String> revalidatingKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final DiskCacheWriteBehind diskCacheWriteBehind = new DiskCacheWriteBehind();
+    private double throughput = -1;
+
     /**
      * Download image
      *
@@ -52,6 +81,7 @@ public class ImageDownloader implements Identifier {
     public DownloadResult download(@NonNull DownloadRequest request) throws CanceledException, DownloadException {
         DiskCache diskCache = request.getConfiguration().getDiskCache();
         String diskCacheKey = request.getDiskCacheKey();
+        ImageVariant variant = selectVariant(request.getConfiguration(), request.getUri(), request.getOptions());
 
         // 使用磁盘缓存就必须要上锁
         ReentrantLock diskCacheEditLock = null;
@@ -73,12 +103,40 @@ public class ImageDownloader implements Identifier {
             if (diskCacheEditLock != null) {
                 request.setStatus(BaseRequest.Status.CHECK_DISK_CACHE);
                 DiskCache.Entry diskCacheEntry = diskCache.get(diskCacheKey);
-                if (diskCacheEntry != null) {
+                if (diskCacheEntry != null && (request.getConfiguration().getImageVariantSelector() == null
+                        || ImageVariant.isSatisfied(ImageVariant.find(diskCache, diskCacheKey), variant))) {
                     return new DownloadResult(diskCacheEntry, ImageFrom.DISK_CACHE);
                 }
+
+                // 上次下载的还在后台写磁盘缓存，直接用内存中的数据
+                byte[] pendingData = diskCacheWriteBehind.getPending(diskCacheKey);
+                if (pendingData != null) {
+                    if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_CACHE)) {
+                        SLog.d(NAME, "Hit pending disk cache write. %s. %s", request.getThreadName(), request.getKey());
+                    }
+                    return new DownloadResult(pendingData, ImageFrom.DISK_CACHE);
+                }
             }
 
-            return loopRetryDownload(request, diskCache, diskCacheKey);
+            DownloadMetrics metrics = new DownloadMetrics(request.getUri(), getHost(request));
+            metrics.setDispatchWaitTime(request.getDispatchWaitTime());
+            try {
+                DownloadResult downloadResult = loopRetryDownload(request, diskCache, diskCacheKey, variant, metrics);
+                metrics.setOutcome(DownloadMetrics.Outcome.SUCCESS, null);
+                return downloadResult;
+            } catch (CanceledException e) {
+                metrics.setOutcome(DownloadMetrics.Outcome.CANCELED, null);
+                throw e;
+            } catch (DownloadException e) {
+                boolean canceled = e.getErrorCause() == ErrorCause.DOWNLOAD_EXCEPTION_AND_CANCELED;
+                metrics.setOutcome(canceled ? DownloadMetrics.Outcome.CANCELED : DownloadMetrics.Outcome.FAILED, e.getErrorCause());
+                throw e;
+            } finally {
+                DownloadMetricsListener metricsListener = request.getConfiguration().getDownloadMetricsListener();
+                if (metricsListener != null) {
+                    metricsListener.onDownloadMetrics(metrics);
+                }
+            }
         } finally {
             if (diskCacheEditLock != null) {
                 diskCacheEditLock.unlock();
@@ -92,21 +150,28 @@ public class ImageDownloader implements Identifier {
      * @param request      DownloadRequest
      * @param diskCache    DiskCache
      * @param diskCacheKey disk cache key
+     * @param variant      the variant to download, null means the original image
+     * @param metrics      collect metrics of each phase
      * @return DownloadResult
      * @throws CanceledException canceled
      * @throws DownloadException download failed
      */
     @NonNull
     private DownloadResult loopRetryDownload(@NonNull DownloadRequest request, @NonNull DiskCache diskCache,
-                                             @NonNull String diskCacheKey) throws CanceledException, DownloadException {
+                                             @NonNull String diskCacheKey, @Nullable ImageVariant variant,
+                                             @NonNull DownloadMetrics metrics) throws CanceledException, DownloadException {
         HttpStack httpStack = request.getConfiguration().getHttpStack();
         int retryCount = 0;
         final int maxRetryCount = httpStack.getMaxRetryCount();
         while (true) {
             try {
-                return doDownload(request, httpStack, diskCache, diskCacheKey);
+                metrics.resetAttempt();
+                return doDownload(request, httpStack, diskCache, diskCacheKey, variant, metrics);
             } catch (Throwable tr) {
                 request.getConfiguration().getErrorTracker().onDownloadError(request, tr);
+                if (!request.isCanceled() && isNetworkFailure(tr)) {
+                    request.getConfiguration().getExecutor().onDownloadFinished(getHost(request), -1, 0, 0, false);
+                }
 
                 if (request.isCanceled()) {
                     String message = String.format("Download exception, but canceled. %s. %s", request.getThreadName(), request.getKey());
@@ -117,6 +182,7 @@ public class ImageDownloader implements Identifier {
                 } else if (httpStack.canRetry(tr) && retryCount < maxRetryCount) {
                     tr.printStackTrace();
                     retryCount++;
+                    metrics.setRetryCount(retryCount);
                     String message = String.format("Download exception but can retry. %s. %s", request.getThreadName(), request.getKey());
                     SLog.w(NAME, tr, message);
                 } else if (tr instanceof CanceledException) {
@@ -132,6 +198,19 @@ public class ImageDownloader implements Identifier {
         }
     }
 
+    /**
+     * 只有连接、读取超时这类网络 IO 异常才说明可能拥塞了，响应码不对、磁盘缓存出错之类的失败和并发数没关系
+     */
+    private static boolean isNetworkFailure(@NonNull Throwable tr) {
+        if (tr instanceof DownloadException) {
+            ErrorCause errorCause = ((DownloadException) tr).getErrorCause();
+            return errorCause == ErrorCause.DOWNLOAD_GET_RESPONSE_CODE_EXCEPTION
+                    || errorCause == ErrorCause.DOWNLOAD_READ_DATA_EXCEPTION
+                    || errorCause == ErrorCause.DOWNLOAD_DATA_NOT_FULLY_READ;
+        }
+        return tr instanceof IOException;
+    }
+
     /**
      * Real execute download
      *
@@ -139,6 +218,8 @@ public class ImageDownloader implements Identifier {
      * @param httpStack    HttpStack
      * @param diskCache    DiskCache
      * @param diskCacheKey disk cache key
+     * @param variant      the variant to download, null means the original image
+     * @param metrics      collect metrics of each phase
      * @return DownloadResult
      * @throws IOException       because io
      * @throws CanceledException canceled
@@ -146,14 +227,25 @@ public class ImageDownloader implements Identifier {
      */
     @NonNull
     private DownloadResult doDownload(@NonNull DownloadRequest request, @NonNull HttpStack httpStack,
-                                      @NonNull DiskCache diskCache, @NonNull String diskCacheKey)
+                                      @NonNull DiskCache diskCache, @NonNull String diskCacheKey, @Nullable ImageVariant variant,
+                                      @NonNull DownloadMetrics metrics)
             throws IOException, CanceledException, DownloadException {
+        boolean cacheInDisk = !request.getOptions().isCacheInDiskDisabled();
+        String url = variant != null ? variant.getUrl() : request.getUri();
+
+        // 上次下载到一半的话就只请求剩下的部分，partial 缓存只记录原图的，变体都比较小就不续传了。HttpStack 不支持范围请求的话就完整下载
+        RangeCapableHttpStack rangeCapableHttpStack = httpStack instanceof RangeCapableHttpStack ? (RangeCapableHttpStack) httpStack : null;
+        PartialDownload partialDownload = cacheInDisk && variant == null && rangeCapableHttpStack != null
+                ? PartialDownload.find(diskCache, diskCacheKey) : null;
+
         // Opening http connection
         request.setStatus(BaseRequest.Status.CONNECTING);
+        long connectStartTime = SystemClock.uptimeMillis();
         HttpStack.ImageHttpResponse httpResponse;
         //noinspection CaughtExceptionImmediatelyRethrown
         try {
-            httpResponse = httpStack.getHttpResponse(request.getUri());
+            httpResponse = partialDownload != null
+                    ? rangeCapableHttpStack.getHttpResponse(url, partialDownload.makeRangeHeaders()) : httpStack.getHttpResponse(url);
         } catch (IOException e) {
             throw e;
         }
@@ -167,7 +259,7 @@ public class ImageDownloader implements Identifier {
             throw new CanceledException();
         }
 
-        // Check response code, must be 200
+        // Check response code, must be 200, or 206 when resuming
         int responseCode;
         try {
             responseCode = httpResponse.getResponseCode();
@@ -178,13 +270,23 @@ public class ImageDownloader implements Identifier {
             SLog.w(NAME, e, message);
             throw new DownloadException(message, e, ErrorCause.DOWNLOAD_GET_RESPONSE_CODE_EXCEPTION);
         }
-        if (responseCode != 200) {
+        boolean resumed = partialDownload != null && responseCode == 206
+                && partialDownload.matchContentRange(getHeaderField(httpResponse, "Content-Range"));
+        if (partialDownload != null && !resumed) {
+            // 服务器上的文件变了或者不支持续传，已下载的部分就没用了
+            PartialDownload.delete(diskCache, diskCacheKey);
+            partialDownload = null;
+        }
+        if (responseCode != 200 && !resumed) {
             httpResponse.releaseConnection();
             String message = String.format("Response code exception. responseHeaders: %s. %s. %s",
                     httpResponse.getResponseHeadersString(), request.getThreadName(), request.getKey());
             SLog.e(NAME, message);
             throw new DownloadException(message, ErrorCause.DOWNLOAD_RESPONSE_CODE_EXCEPTION);
         }
+        long connectTime = SystemClock.uptimeMillis() - connectStartTime;
+        metrics.setConnectTime(connectTime);
+        metrics.setResumed(resumed);
 
         // Check content length, must be greater than 0 or is chunked
         long contentLength = httpResponse.getContentLength();
@@ -196,6 +298,10 @@ public class ImageDownloader implements Identifier {
             throw new DownloadException(message, ErrorCause.DOWNLOAD_CONTENT_LENGTH_EXCEPTION);
         }
 
+        // 续传时 Content-Length 只是剩下部分的长度
+        long startLength = resumed ? partialDownload.getLength() : 0;
+        long totalLength = resumed ? partialDownload.getTotalLength() : contentLength;
+
         // Get content
         InputStream inputStream;
         try {
@@ -214,15 +320,27 @@ public class ImageDownloader implements Identifier {
             throw new CanceledException();
         }
 
-        // Ready OutputStream, the ByteArrayOutputStream is used when the disk cache is disabled
+        // 可以续传的大图也直接写正式的缓存，只有中断了才把已下载的部分转存为 partial 缓存
+        String eTag = resumed ? partialDownload.getETag() : getHeaderField(httpResponse, "ETag");
+        String lastModified = resumed ? partialDownload.getLastModified() : getHeaderField(httpResponse, "Last-Modified");
+        boolean resumable = cacheInDisk && variant == null && (resumed || PartialDownload.isResumable(httpResponse, contentLength));
+
+        // 开启了写后台的话先把数据读到内存中，下载完直接解码，磁盘缓存在后台写。长度未知、可以续传或者超出预算的还是同步写
+        boolean writeBehind = cacheInDisk && !resumable && contentLength > 0
+                && request.getConfiguration().isDiskCacheWriteBehind() && diskCacheWriteBehind.tryReserve(contentLength);
+
+        // Ready OutputStream, the ByteArrayOutputStream is used when the disk cache is disabled or write behind
         DiskCache.Editor diskCacheEditor = null;
-        if (!request.getOptions().isCacheInDiskDisabled()) {
+        if (cacheInDisk && !writeBehind) {
             diskCacheEditor = diskCache.edit(diskCacheKey);
         }
         OutputStream outputStream;
         if (diskCacheEditor != null) {
             try {
                 outputStream = new BufferedOutputStream(diskCacheEditor.newOutputStream(), 8 * 1024);
+                if (resumed) {
+                    partialDownload.copyTo(outputStream);
+                }
             } catch (IOException e) {
                 SketchUtils.close(inputStream);
                 diskCacheEditor.abort();
@@ -231,51 +349,136 @@ public class ImageDownloader implements Identifier {
                 throw new DownloadException(message, e, ErrorCause.DOWNLOAD_OPEN_DISK_CACHE_EXCEPTION);
             }
         } else {
-            outputStream = new ByteArrayOutputStream();
+            outputStream = writeBehind ? new ProgressivePreviewDecoder.PreviewByteArrayOutputStream((int) contentLength)
+                    : new ProgressivePreviewDecoder.PreviewByteArrayOutputStream();
+            if (resumed) {
+                try {
+                    partialDownload.copyTo(outputStream);
+                } catch (IOException e) {
+                    SketchUtils.close(inputStream);
+                    throw e;
+                }
+            }
+        }
+
+        if (resumed && SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
+            SLog.d(NAME, "Resume download. fileLength: %d/%d. %s. %s",
+                    startLength, totalLength, request.getThreadName(), request.getKey());
         }
 
         // Read data
         request.setStatus(BaseRequest.Status.READ_DATA);
         int completedLength = 0;
+        ProgressivePreviewDecoder previewDecoder = ProgressivePreviewDecoder.create(request, (int) startLength, (int) totalLength,
+                outputStream, diskCacheEditor);
+        long readStartTime = SystemClock.uptimeMillis();
+        Throwable readException = null;
         try {
-            completedLength = readData(request, inputStream, outputStream, (int) contentLength);
-        } catch (IOException e) {
-            if (diskCacheEditor != null) {
-                diskCacheEditor.abort();
-                diskCacheEditor = null;
-            }
-            String message = String.format("Read data exception. %s. %s", request.getThreadName(), request.getKey());
-            SLog.e(NAME, e, message);
-            throw new DownloadException(message, e, ErrorCause.DOWNLOAD_READ_DATA_EXCEPTION);
-        } catch (CanceledException e) {
-            if (diskCacheEditor != null) {
-                diskCacheEditor.abort();
-                diskCacheEditor = null;
-            }
-            throw e;
+            completedLength = readData(request, inputStream, outputStream, previewDecoder, (int) startLength, (int) totalLength,
+                    metrics, connectStartTime);
+        } catch (IOException | CanceledException e) {
+            readException = e;
         } finally {
+            if (previewDecoder != null) {
+                previewDecoder.finish();
+            }
             SketchUtils.close(outputStream);
             SketchUtils.close(inputStream);
         }
+        long readTime = SystemClock.uptimeMillis() - readStartTime;
+        metrics.setReadTime(readTime);
+        metrics.setBytes(Math.max(completedLength - startLength, 0));
+
+        if (readException != null) {
+            if (writeBehind) {
+                diskCacheWriteBehind.release(contentLength);
+            }
+            if (diskCacheEditor != null) {
+                if (resumable) {
+                    // 保留已下载的部分，重试或下次请求时接着下载
+                    savePartial(diskCacheEditor, diskCache, diskCacheKey, totalLength, eTag, lastModified);
+                } else {
+                    diskCacheEditor.abort();
+                }
+            }
+
+            if (readException instanceof CanceledException) {
+                throw (CanceledException) readException;
+            }
+            String message = String.format("Read data exception. %s. %s", request.getThreadName(), request.getKey());
+            SLog.e(NAME, readException, message);
+            throw new DownloadException(message, readException, ErrorCause.DOWNLOAD_READ_DATA_EXCEPTION);
+        }
 
         // Check content fully and commit the disk cache
-        boolean readFully = (contentLength <= 0 && !httpResponse.isContentChunked()) || completedLength == contentLength;
+        // 分块传输时长度未知，读到流结束就算读完了
+        boolean readFully = (contentLength <= 0 && httpResponse.isContentChunked()) || completedLength == totalLength;
         if (readFully) {
+            // 网络传输已经完成了，提交磁盘缓存是否成功不影响并发和吞吐量的统计
+            request.getConfiguration().getExecutor().onDownloadFinished(getHost(request), connectTime,
+                    completedLength - startLength, readTime, true);
+            updateThroughput(completedLength - startLength, readTime);
+
             if (diskCacheEditor != null) {
+                long commitStartTime = SystemClock.uptimeMillis();
+                ImageVariant variantRecord = makeVariantRecord(request, variant);
+                CacheMetadata cacheMetadata = request.getOptions().isDiskCacheRevalidateEnabled() ? CacheMetadata.from(httpResponse) : null;
                 try {
+                    if (variantRecord != null) {
+                        variantRecord.save(diskCache, diskCacheKey);
+                    } else {
+                        ImageVariant.delete(diskCache, diskCacheKey);
+                    }
+                    boolean metadataWritten = cacheMetadata != null && cacheMetadata.writeTo(diskCacheEditor);
                     diskCacheEditor.commit();
+                    if (resumed) {
+                        PartialDownload.delete(diskCache, diskCacheKey);
+                    }
+                    if (cacheMetadata != null && !metadataWritten) {
+                        cacheMetadata.save(diskCache, diskCacheKey);
+                    }
                 } catch (IOException | DiskLruCache.EditorChangedException | DiskLruCache.ClosedException | DiskLruCache.FileNotExistException e) {
+                    ImageVariant.delete(diskCache, diskCacheKey);
+                    if (resumed) {
+                        PartialDownload.delete(diskCache, diskCacheKey);
+                    }
                     String message = String.format("Disk cache commit exception. %s. %s", request.getThreadName(), request.getKey());
                     SLog.e(NAME, e, message);
                     throw new DownloadException(message, e, ErrorCause.DOWNLOAD_DISK_CACHE_COMMIT_EXCEPTION);
+                } finally {
+                    metrics.setDiskCacheCommitTime(SystemClock.uptimeMillis() - commitStartTime);
                 }
+            } else if (writeBehind) {
+                // 缓冲区是按 contentLength 分配的，写满了就直接交出去，不用再复制一份
+                ProgressivePreviewDecoder.PreviewByteArrayOutputStream memoryOutputStream =
+                        (ProgressivePreviewDecoder.PreviewByteArrayOutputStream) outputStream;
+                byte[] buffer = memoryOutputStream.getBuffer();
+                byte[] data = memoryOutputStream.size() == buffer.length ? buffer : memoryOutputStream.toByteArray();
+                CacheMetadata cacheMetadata = request.getOptions().isDiskCacheRevalidateEnabled() ? CacheMetadata.from(httpResponse) : null;
+                diskCacheWriteBehind.submit(request.getConfiguration(), diskCacheKey, data, contentLength, cacheMetadata,
+                        makeVariantRecord(request, variant));
+                if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
+                    SLog.d(NAME, "Download success. Data is kept in memory, write disk cache behind. fileLength: %d/%d. %s. %s",
+                            completedLength, totalLength, request.getThreadName(), request.getKey());
+                }
+                return new DownloadResult(data, ImageFrom.NETWORK);
             }
         } else {
+            if (writeBehind) {
+                diskCacheWriteBehind.release(contentLength);
+            }
             if (diskCacheEditor != null) {
-                diskCacheEditor.abort();
+                if (resumable && completedLength < totalLength) {
+                    savePartial(diskCacheEditor, diskCache, diskCacheKey, totalLength, eTag, lastModified);
+                } else {
+                    diskCacheEditor.abort();
+                    if (resumed) {
+                        PartialDownload.delete(diskCache, diskCacheKey);
+                    }
+                }
             }
             String message = String.format("The data is not fully read. contentLength:%d, completedLength:%d. %s. %s",
-                    contentLength, completedLength, request.getThreadName(), request.getKey());
+                    totalLength, completedLength, request.getThreadName(), request.getKey());
             SLog.e(NAME, message);
             throw new DownloadException(message, ErrorCause.DOWNLOAD_DATA_NOT_FULLY_READ);
         }
@@ -284,7 +487,7 @@ public class ImageDownloader implements Identifier {
         if (diskCacheEditor == null) {
             if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
                 SLog.d(NAME, "Download success. Data is saved to disk cache. fileLength: %d/%d. %s. %s",
-                        completedLength, contentLength, request.getThreadName(), request.getKey());
+                        completedLength, totalLength, request.getThreadName(), request.getKey());
             }
             return new DownloadResult(((ByteArrayOutputStream) outputStream).toByteArray(), ImageFrom.NETWORK);
         } else {
@@ -292,7 +495,7 @@ public class ImageDownloader implements Identifier {
             if (diskCacheEntry != null) {
                 if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
                     SLog.d(NAME, "Download success. data is saved to memory. fileLength: %d/%d. %s. %s",
-                            completedLength, contentLength, request.getThreadName(), request.getKey());
+                            completedLength, totalLength, request.getThreadName(), request.getKey());
                 }
                 return new DownloadResult(diskCacheEntry, ImageFrom.NETWORK);
             } else {
@@ -303,23 +506,293 @@ public class ImageDownloader implements Identifier {
         }
     }
 
+    /**
+     * 把中断时已经写入正式缓存编辑器的数据移动为 partial 缓存，再保存校验信息。
+     * 磁盘缓存不支持直接访问正在写的文件的话就放弃已下载的部分，不再复制一遍
+     */
+    private void savePartial(@NonNull DiskCache.Editor diskCacheEditor, @NonNull DiskCache diskCache, @NonNull String diskCacheKey,
+                             long totalLength, @Nullable String eTag, @Nullable String lastModified) {
+        DiskCache.Editor partialEditor = diskCacheEditor instanceof DiskCache.FileEditor
+                ? diskCache.edit(diskCacheKey + PartialDownload.DATA_SUFFIX) : null;
+        if (!(partialEditor instanceof DiskCache.FileEditor)) {
+            if (partialEditor != null) {
+                partialEditor.abort();
+            }
+            diskCacheEditor.abort();
+            PartialDownload.delete(diskCache, diskCacheKey);
+            return;
+        }
+
+        File dataFile = ((DiskCache.FileEditor) diskCacheEditor).getFile();
+        File partialFile = ((DiskCache.FileEditor) partialEditor).getFile();
+        boolean moved = dataFile.length() > 0 && (!partialFile.exists() || partialFile.delete()) && dataFile.renameTo(partialFile);
+        diskCacheEditor.abort();
+        if (!moved) {
+            partialEditor.abort();
+            PartialDownload.delete(diskCache, diskCacheKey);
+            return;
+        }
+
+        try {
+            partialEditor.commit();
+        } catch (IOException | DiskLruCache.EditorChangedException | DiskLruCache.ClosedException | DiskLruCache.FileNotExistException e) {
+            partialEditor.abort();
+            PartialDownload.delete(diskCache, diskCacheKey);
+            e.printStackTrace();
+            return;
+        }
+        PartialDownload.saveMeta(diskCache, diskCacheKey, totalLength, eTag, lastModified);
+    }
+
+    /**
+     * 读取响应头，HttpStack 不支持的话返回 null
+     */
+    @Nullable
+    private static String getHeaderField(@NonNull HttpStack.ImageHttpResponse httpResponse, @NonNull String name) {
+        return httpResponse instanceof RangeCapableHttpStack.HeaderFieldHttpResponse
+                ? ((RangeCapableHttpStack.HeaderFieldHttpResponse) httpResponse).getHeaderField(name) : null;
+    }
+
+    /**
+     * 磁盘缓存过期了的话在后台发起条件请求重新验证，304 只刷新响应信息，200 就替换掉旧的缓存。同一个缓存同时只会验证一次
+     *
+     * @param request 命中了磁盘缓存的请求
+     */
+    public void revalidateIfStale(@NonNull DownloadRequest request) {
+        final DiskCache diskCache = request.getConfiguration().getDiskCache();
+        final String diskCacheKey = request.getDiskCacheKey();
+        if (!revalidatingKeys.add(diskCacheKey)) {
+            return;
+        }
+
+        final HttpStack httpStack = request.getConfiguration().getHttpStack();
+        final String requestUri = request.getUri();
+
+        // 读取校验信息也要访问磁盘，所以都放到后台任务中，分发线程只负责提交
+        try {
+            request.getConfiguration().getExecutor().submitDownload(new PriorityTaskExecutor.PriorityRunnable() {
+                @NonNull
+                @Override
+                public RequestPriority getPriority() {
+                    return RequestPriority.IDLE;
+                }
+
+                @Override
+                public void onDiscard() {
+                    revalidatingKeys.remove(diskCacheKey);
+                }
+
+                @Override
+                public void run() {
+                    try {
+                        CacheMetadata cacheMetadata = CacheMetadata.find(diskCache, diskCacheKey);
+                        if (cacheMetadata != null && cacheMetadata.isFresh()) {
+                            return;
+                        }
+
+                        // 缓存的是变体的话要验证变体的地址
+                        ImageVariant cachedVariant = ImageVariant.find(diskCache, diskCacheKey);
+                        String uri = cachedVariant != null && !TextUtils.isEmpty(cachedVariant.getUrl()) ? cachedVariant.getUrl() : requestUri;
+                        revalidate(httpStack, diskCache, uri, diskCacheKey, cacheMetadata);
+                    } finally {
+                        revalidatingKeys.remove(diskCacheKey);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            revalidatingKeys.remove(diskCacheKey);
+        }
+    }
+
+    private void revalidate(@NonNull HttpStack httpStack, @NonNull DiskCache diskCache, @NonNull String uri,
+                            @NonNull String diskCacheKey, @Nullable CacheMetadata cacheMetadata) {
+        ReentrantLock diskCacheEditLock = diskCache.getEditLock(diskCacheKey);
+        diskCacheEditLock.lock();
+        try {
+            // 没有校验信息的旧缓存或者 HttpStack 不支持附加请求头的话只能完整地重新下载一次
+            boolean conditional = cacheMetadata != null && cacheMetadata.canRevalidate() && httpStack instanceof RangeCapableHttpStack;
+            HttpStack.ImageHttpResponse httpResponse = conditional
+                    ? ((RangeCapableHttpStack) httpStack).getHttpResponse(uri, cacheMetadata.makeConditionalHeaders())
+                    : httpStack.getHttpResponse(uri);
+
+            int responseCode = httpResponse.getResponseCode();
+            if (responseCode == 304 && conditional) {
+                httpResponse.releaseConnection();
+                cacheMetadata.refresh((RangeCapableHttpStack.HeaderFieldHttpResponse) httpResponse);
+                cacheMetadata.save(diskCache, diskCacheKey);
+                if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_CACHE)) {
+                    SLog.d(NAME, "Revalidate. Not modified. %s", uri);
+                }
+                return;
+            }
+            if (responseCode != 200) {
+                httpResponse.releaseConnection();
+                SLog.w(NAME, "Revalidate. Response code exception. responseCode: %d. %s", responseCode, uri);
+                return;
+            }
+
+            DiskCache.Editor diskCacheEditor = diskCache.edit(diskCacheKey);
+            if (diskCacheEditor == null) {
+                httpResponse.releaseConnection();
+                return;
+            }
+
+            long contentLength = httpResponse.getContentLength();
+            long completedLength = 0;
+            InputStream inputStream = null;
+            OutputStream outputStream = null;
+            try {
+                inputStream = httpResponse.getContent();
+                outputStream = new BufferedOutputStream(diskCacheEditor.newOutputStream(), 8 * 1024);
+                byte[] buffer = new byte[8 * 1024];
+                int readLength;
+                while ((readLength = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, readLength);
+                    completedLength += readLength;
+                }
+            } catch (IOException e) {
+                SketchUtils.close(outputStream);
+                diskCacheEditor.abort();
+                throw e;
+            } finally {
+                SketchUtils.close(inputStream);
+            }
+            SketchUtils.close(outputStream);
+
+            if (completedLength <= 0 || (contentLength > 0 && completedLength != contentLength)) {
+                diskCacheEditor.abort();
+                SLog.w(NAME, "Revalidate. The data is not fully read. contentLength:%d, completedLength:%d. %s",
+                        contentLength, completedLength, uri);
+                return;
+            }
+
+            CacheMetadata newCacheMetadata = CacheMetadata.from(httpResponse);
+            boolean metadataWritten = newCacheMetadata.writeTo(diskCacheEditor);
+            diskCacheEditor.commit();
+            if (!metadataWritten) {
+                newCacheMetadata.save(diskCache, diskCacheKey);
+            }
+            if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_CACHE)) {
+                SLog.d(NAME, "Revalidate. Modified, disk cache replaced. fileLength: %d. %s", completedLength, uri);
+            }
+        } catch (Throwable tr) {
+            SLog.w(NAME, tr, String.format("Revalidate failed. %s", uri));
+        } finally {
+            diskCacheEditLock.unlock();
+        }
+    }
+
+    /**
+     * 获取磁盘缓存写后台，可以用来调整内存预算
+     */
+    @NonNull
+    public DiskCacheWriteBehind getDiskCacheWriteBehind() {
+        return diskCacheWriteBehind;
+    }
+
+    /**
+     * 根据请求的目标尺寸和当前的网络状况选择要下载的变体
+     *
+     * @return null：下载原图
+     */
+    @Nullable
+    public ImageVariant selectVariant(@NonNull Configuration configuration, @NonNull String uri, @NonNull DownloadOptions options) {
+        ImageVariantSelector selector = configuration.getImageVariantSelector();
+        if (selector == null) {
+            return null;
+        }
+
+        Resize resize = null;
+        MaxSize maxSize = null;
+        if (options instanceof LoadOptions) {
+            resize = ((LoadOptions) options).getResize();
+            maxSize = ((LoadOptions) options).getMaxSize();
+        }
+        ImageVariant variant = selector.select(uri, resize, maxSize, isMeteredNetwork(configuration.getContext()), getThroughput());
+        if (variant != null && SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
+            SLog.d(NAME, "Select variant. %s. %s", variant, uri);
+        }
+        return variant;
+    }
+
+    /**
+     * 磁盘缓存中的图片能否满足请求，缓存的是原图或者比想要的变体更宽的变体都可以，否则需要重新下载
+     */
+    public boolean isDiskCacheSatisfied(@NonNull Configuration configuration, @NonNull String uri,
+                                        @NonNull String diskCacheKey, @NonNull DownloadOptions options) {
+        if (configuration.getImageVariantSelector() == null) {
+            return true;
+        }
+        return ImageVariant.isSatisfied(ImageVariant.find(configuration.getDiskCache(), diskCacheKey),
+                selectVariant(configuration, uri, options));
+    }
+
+    /**
+     * 配置了变体选择器的话要记录缓存的是哪个变体，原图也要记录
+     *
+     * @return null：不需要记录
+     */
+    @Nullable
+    private ImageVariant makeVariantRecord(@NonNull DownloadRequest request, @Nullable ImageVariant variant) {
+        if (request.getConfiguration().getImageVariantSelector() == null) {
+            return null;
+        }
+        return variant != null ? variant : ImageVariant.original(request.getUri());
+    }
+
+    private boolean isMeteredNetwork(@NonNull Context context) {
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager != null ? connectivityManager.getActiveNetworkInfo() : null;
+        return networkInfo != null && networkInfo.getType() == ConnectivityManager.TYPE_MOBILE;
+    }
+
+    private synchronized void updateThroughput(long bytes, long readTime) {
+        if (bytes < MIN_THROUGHPUT_SAMPLE_LENGTH) {
+            return;
+        }
+        double newThroughput = bytes * 1000d / Math.max(readTime, 1);
+        throughput = throughput < 0 ? newThroughput : throughput * (1 - THROUGHPUT_EWMA_WEIGHT) + newThroughput * THROUGHPUT_EWMA_WEIGHT;
+    }
+
+    /**
+     * 获取最近的下载速度，单位字节/秒
+     *
+     * @return -1：还没有测出来
+     */
+    public synchronized long getThroughput() {
+        return (long) throughput;
+    }
+
+    private String getHost(@NonNull DownloadRequest request) {
+        return Uri.parse(request.getUri()).getHost();
+    }
+
     /**
      * Read data and call update progress
      *
      * @param request       DownloadRequest
      * @param inputStream   InputStream
      * @param outputStream  OutputStream
+     * @param startLength   length already downloaded before, when resuming
      * @param contentLength content length
+     * @param metrics       collect time to first byte
+     * @param connectStartTime time of start connecting
      * @return completed length
      * @throws IOException       because io
      * @throws CanceledException canceled
      */
-    private int readData(@NonNull DownloadRequest request, @NonNull InputStream inputStream,
-                         @NonNull OutputStream outputStream, int contentLength) throws IOException, CanceledException {
+    private int readData(@NonNull DownloadRequest request, @NonNull InputStream inputStream, @NonNull OutputStream outputStream,
+                         @Nullable ProgressivePreviewDecoder previewDecoder,
+                         int startLength, int contentLength, @NonNull DownloadMetrics metrics, long connectStartTime)
+            throws IOException, CanceledException {
         int realReadCount;
-        int completedLength = 0;
+        int completedLength = startLength;
         long lastCallbackTime = 0;
         byte[] buffer = new byte[8 * 1024];
+        ImageHeaderSniffer headerSniffer = null;
+        if (startLength == 0 && request.getSniffedImageAttrs() == null) {
+            headerSniffer = new ImageHeaderSniffer(request.getConfiguration().getOrientationCorrector());
+        }
         while (true) {
             if (request.isCanceled()) {
                 if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
@@ -332,9 +805,24 @@ public class ImageDownloader implements Identifier {
 
             realReadCount = inputStream.read(buffer);
             if (realReadCount != -1) {
+                if (metrics.getFirstByteTime() < 0) {
+                    metrics.setFirstByteTime(SystemClock.uptimeMillis() - connectStartTime);
+                }
                 outputStream.write(buffer, 0, realReadCount);
                 completedLength += realReadCount;
 
+                // 边下载边解析头部，尽早拿到尺寸、类型和方向
+                if (headerSniffer != null && !headerSniffer.isFinished()
+                        && headerSniffer.write(buffer, 0, realReadCount)) {
+                    //noinspection ConstantConditions
+                    request.imageAttrsSniffed(headerSniffer.getImageAttrs());
+                }
+
+                // 边下载边解码预览图
+                if (previewDecoder != null) {
+                    previewDecoder.onDataWritten(completedLength);
+                }
+
                 // Update progress every 100 milliseconds
                 long currentTime = System.currentTimeMillis();
                 if (currentTime - lastCallbackTime >= 100) {
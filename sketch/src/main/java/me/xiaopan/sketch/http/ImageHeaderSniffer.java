@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.http;
+
+import android.graphics.BitmapFactory;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import me.xiaopan.sketch.decode.ImageOrientationCorrector;
+import me.xiaopan.sketch.drawable.ImageAttrs;
+
+/**
+ * 在下载的同时收集响应体的头部数据，一旦能解析出尺寸就顺便读取 exif 方向，这样不用等下载完成就能知道图片的属性，
+ * 解码时也不用再从磁盘缓存中读取一遍头部
+ * <p>
+ * 只缓存前 {@link #MAX_HEADER_SIZE} 个字节，超过了还解析不出来就放弃，交给正式解码处理
+ */
+public class ImageHeaderSniffer {
+    public static final int MAX_HEADER_SIZE = 64 * 1024;
+
+    /**
+     * 每收到这么多新数据才尝试解析一次，免得每读一块都解析
+     */
+    private static final int SNIFF_STEP = 4 * 1024;
+
+    @NonNull
+    private ImageOrientationCorrector orientationCorrector;
+    private byte[] header = new byte[SNIFF_STEP];
+    private int headerLength;
+    private int lastSniffLength;
+    private boolean finished;
+    @Nullable
+    private ImageAttrs imageAttrs;
+
+    public ImageHeaderSniffer(@NonNull ImageOrientationCorrector orientationCorrector) {
+        this.orientationCorrector = orientationCorrector;
+    }
+
+    /**
+     * 写入新收到的数据
+     *
+     * @return true：刚刚解析出了图片属性
+     */
+    public boolean write(@NonNull byte[] buffer, int offset, int length) {
+        if (finished || length <= 0) {
+            return false;
+        }
+
+        int copyLength = Math.min(length, MAX_HEADER_SIZE - headerLength);
+        if (headerLength + copyLength > header.length) {
+            byte[] newHeader = new byte[Math.min(MAX_HEADER_SIZE, Math.max(header.length * 2, headerLength + copyLength))];
+            System.arraycopy(header, 0, newHeader, 0, headerLength);
+            header = newHeader;
+        }
+        System.arraycopy(buffer, offset, header, headerLength, copyLength);
+        headerLength += copyLength;
+
+        if (headerLength - lastSniffLength < SNIFF_STEP && headerLength < MAX_HEADER_SIZE) {
+            return false;
+        }
+        lastSniffLength = headerLength;
+
+        imageAttrs = sniff();
+        if (imageAttrs != null || headerLength >= MAX_HEADER_SIZE) {
+            finished = true;
+            header = null;
+        }
+        return imageAttrs != null;
+    }
+
+    @Nullable
+    private ImageAttrs sniff() {
+        BitmapFactory.Options boundOptions = new BitmapFactory.Options();
+        boundOptions.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(header, 0, headerLength, boundOptions);
+        if (boundOptions.outWidth <= 0 || boundOptions.outHeight <= 0 || boundOptions.outMimeType == null) {
+            return null;
+        }
+
+        // JPEG 的 exif 在 SOF 之前，能解析出尺寸就说明 exif 已经完整的收到了
+        int exifOrientation = orientationCorrector.readExifOrientation(boundOptions.outMimeType, header, 0, headerLength);
+
+        return new ImageAttrs(boundOptions.outMimeType, boundOptions.outWidth, boundOptions.outHeight, exifOrientation);
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * 获取解析出的图片属性
+     *
+     * @return null：还没有解析出来或者已经放弃了
+     */
+    @Nullable
+    public ImageAttrs getImageAttrs() {
+        return imageAttrs;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+import me.xiaopan.sketch.cache.DiskCache;
+import me.xiaopan.sketch.util.DiskLruCache;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 图片的一个尺寸变体，例如图片服务器按宽度和质量参数生成的缩略图
+ * <p>
+ * 变体和原图共用同一个磁盘缓存 key，配置了变体选择器时每次下载都会以 "磁盘缓存 key + {@link #VARIANT_SUFFIX}" 记下缓存的是哪个变体，
+ * 原图也会记录。缓存中的原图或者更宽的变体都可以满足更小的请求，不够大或者没有记录时才重新下载并替换掉
+ */
+public class ImageVariant {
+    static final String VARIANT_SUFFIX = ".variant";
+    private static final int ORIGINAL_WIDTH = -1;
+
+    @NonNull
+    private String url;
+    private int width;
+    private int quality;
+
+    /**
+     * @param url     变体的下载地址
+     * @param width   变体的宽度，用来判断缓存中的变体能不能满足新的请求
+     * @param quality 变体的质量，只是记录一下，不参与判断
+     */
+    public ImageVariant(@NonNull String url, int width, int quality) {
+        this.url = url;
+        this.width = width;
+        this.quality = quality;
+    }
+
+    /**
+     * 原图的记录
+     *
+     * @param uri 原图的下载地址
+     */
+    @NonNull
+    public static ImageVariant original(@NonNull String uri) {
+        return new ImageVariant(uri, ORIGINAL_WIDTH, 0);
+    }
+
+    /**
+     * 缓存中的图片能否满足想要的变体
+     *
+     * @param cachedVariant 缓存中的变体，null 表示没有记录，不知道缓存的是什么，只能当作不满足
+     * @param wantedVariant 想要的变体，null 表示想要原图
+     */
+    public static boolean isSatisfied(@Nullable ImageVariant cachedVariant, @Nullable ImageVariant wantedVariant) {
+        return cachedVariant != null && (cachedVariant.isOriginal()
+                || (wantedVariant != null && cachedVariant.width >= wantedVariant.width));
+    }
+
+    /**
+     * 读取磁盘缓存中记录的变体信息
+     *
+     * @return null：没有记录，例如记录被单独清理掉了或者是配置变体选择器之前缓存的
+     */
+    @Nullable
+    public static ImageVariant find(@NonNull DiskCache diskCache, @NonNull String diskCacheKey) {
+        DiskCache.Entry variantEntry = diskCache.get(diskCacheKey + VARIANT_SUFFIX);
+        if (variantEntry == null) {
+            return null;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(variantEntry.newInputStream(), "UTF-8"));
+            int width = Integer.parseInt(reader.readLine());
+            int quality = Integer.parseInt(reader.readLine());
+            String url = reader.readLine();
+            if (TextUtils.isEmpty(url)) {
+                throw new IOException("variant url is empty");
+            }
+            return new ImageVariant(url, width, quality);
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+            // 记录坏了就当成是很小的变体，下次请求时重新下载
+            variantEntry.delete();
+            return new ImageVariant("", 0, 0);
+        } finally {
+            SketchUtils.close(reader);
+        }
+    }
+
+    /**
+     * 记录缓存的是哪个变体，要在提交图片之前记录，提交失败了再删掉，这样就不会有图片是新的、记录还是旧的情况
+     */
+    public void save(@NonNull DiskCache diskCache, @NonNull String diskCacheKey) {
+        DiskCache.Editor editor = diskCache.edit(diskCacheKey + VARIANT_SUFFIX);
+        if (editor == null) {
+            return;
+        }
+
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(editor.newOutputStream(), "UTF-8");
+            writer.write(width + "\n" + quality + "\n" + url + "\n");
+        } catch (IOException e) {
+            SketchUtils.close(writer);
+            editor.abort();
+            e.printStackTrace();
+            return;
+        }
+        SketchUtils.close(writer);
+
+        try {
+            editor.commit();
+        } catch (IOException | DiskLruCache.EditorChangedException | DiskLruCache.ClosedException | DiskLruCache.FileNotExistException e) {
+            editor.abort();
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 删除变体记录，没有配置变体选择器或者图片提交失败时用
+     */
+    public static void delete(@NonNull DiskCache diskCache, @NonNull String diskCacheKey) {
+        DiskCache.Entry variantEntry = diskCache.get(diskCacheKey + VARIANT_SUFFIX);
+        if (variantEntry != null) {
+            variantEntry.delete();
+        }
+    }
+
+    @NonNull
+    public String getUrl() {
+        return url;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    public boolean isOriginal() {
+        return width == ORIGINAL_WIDTH;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "ImageVariant(width=%d,quality=%d,url=%s)", width, quality, url);
+    }
+}
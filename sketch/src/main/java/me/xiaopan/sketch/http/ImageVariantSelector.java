@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import me.xiaopan.sketch.Identifier;
+import me.xiaopan.sketch.request.MaxSize;
+import me.xiaopan.sketch.request.Resize;
+
+/**
+ * 根据目标尺寸和网络状况选择下载哪个尺寸变体，通过 {@link me.xiaopan.sketch.Configuration#setImageVariantSelector(ImageVariantSelector)} 设置
+ */
+public interface ImageVariantSelector extends Identifier {
+
+    /**
+     * 选择要下载的变体
+     *
+     * @param uri        原图 uri
+     * @param resize     请求的 {@link Resize}，下载请求没有
+     * @param maxSize    请求的 {@link MaxSize}，下载请求没有
+     * @param metered    当前是否是移动网络
+     * @param throughput 最近的下载速度，单位字节/秒，-1 表示还不知道
+     * @return null：下载原图
+     */
+    @Nullable
+    ImageVariant select(@NonNull String uri, @Nullable Resize resize, @Nullable MaxSize maxSize,
+                        boolean metered, long throughput);
+}
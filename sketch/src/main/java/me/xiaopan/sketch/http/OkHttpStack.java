@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.http;
+
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Headers;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * 基于 OkHttp 的 {@link HttpStack}，需要自行依赖 OkHttp 3.x，通过 {@link me.xiaopan.sketch.Configuration#setHttpStack(HttpStack)} 使用
+ * <p>
+ * 1. 同一个 host 的连接放在连接池中保持长连接复用，省掉重复的 TCP 和 TLS 握手<br>
+ * 2. 服务器支持 HTTP/2 时多张图片在同一个连接上多路复用，不会互相阻塞<br>
+ * 3. 限制每个 host 同时进行的请求数，默认 {@link #DEFAULT_MAX_REQUESTS_PER_HOST}，超过的在调用线程中排队等待
+ */
+public class OkHttpStack implements RangeCapableHttpStack {
+    private static final String KEY = "OkHttpStack";
+
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 6;
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    public static final long DEFAULT_KEEP_ALIVE_DURATION = 5 * 60 * 1000;
+
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+    private int maxRetryCount = DEFAULT_MAX_RETRY_COUNT;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+    private String userAgent;
+    private Map<String, String> setExtraHeaders;
+    private Map<String, String> addExtraHeaders;
+
+    @NonNull
+    private OkHttpClient baseClient;
+    @Nullable
+    private volatile OkHttpClient client;
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+    public OkHttpStack() {
+        this(new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(DEFAULT_MAX_IDLE_CONNECTIONS, DEFAULT_KEEP_ALIVE_DURATION, TimeUnit.MILLISECONDS))
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .build());
+    }
+
+    /**
+     * 使用已有的 OkHttpClient，可以和 app 中的其它请求共享连接池
+     */
+    public OkHttpStack(@NonNull OkHttpClient baseClient) {
+        this.baseClient = baseClient;
+    }
+
+    @Override
+    public int getMaxRetryCount() {
+        return maxRetryCount;
+    }
+
+    @NonNull
+    @Override
+    public OkHttpStack setMaxRetryCount(int maxRetryCount) {
+        this.maxRetryCount = maxRetryCount;
+        return this;
+    }
+
+    @Override
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    @NonNull
+    @Override
+    public synchronized OkHttpStack setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.client = null;
+        return this;
+    }
+
+    @Override
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    @NonNull
+    @Override
+    public synchronized OkHttpStack setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+        this.client = null;
+        return this;
+    }
+
+    @Override
+    public String getUserAgent() {
+        return userAgent;
+    }
+
+    @NonNull
+    @Override
+    public OkHttpStack setUserAgent(String userAgent) {
+        this.userAgent = userAgent;
+        return this;
+    }
+
+    @Override
+    public Map<String, String> getExtraHeaders() {
+        return setExtraHeaders;
+    }
+
+    @NonNull
+    @Override
+    public OkHttpStack setExtraHeaders(Map<String, String> extraHeaders) {
+        this.setExtraHeaders = extraHeaders;
+        return this;
+    }
+
+    @Override
+    public Map<String, String> getAddExtraHeaders() {
+        return addExtraHeaders;
+    }
+
+    @NonNull
+    @Override
+    public OkHttpStack addExtraHeaders(Map<String, String> extraHeaders) {
+        this.addExtraHeaders = extraHeaders;
+        return this;
+    }
+
+    /**
+     * 获取每个 host 同时进行的最大请求数
+     */
+    @SuppressWarnings("unused")
+    public int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    /**
+     * 设置每个 host 同时进行的最大请求数（默认 {@link #DEFAULT_MAX_REQUESTS_PER_HOST}），只对之后第一次访问的 host 生效
+     */
+    @NonNull
+    @SuppressWarnings("unused")
+    public OkHttpStack setMaxRequestsPerHost(int maxRequestsPerHost) {
+        this.maxRequestsPerHost = Math.max(1, maxRequestsPerHost);
+        return this;
+    }
+
+    @Override
+    public boolean canRetry(Throwable throwable) {
+        return throwable instanceof SocketTimeoutException;
+    }
+
+    @NonNull
+    @Override
+    public String getKey() {
+        return String.format("%s(maxRetryCount=%d,connectTimeout=%d,readTimeout=%d,maxRequestsPerHost=%d,userAgent=%s)",
+                KEY, maxRetryCount, connectTimeout, readTimeout, maxRequestsPerHost, userAgent);
+    }
+
+    @NonNull
+    private OkHttpClient getClient() {
+        OkHttpClient client = this.client;
+        if (client == null) {
+            synchronized (this) {
+                client = this.client;
+                if (client == null) {
+                    // newBuilder() 出来的 client 和 baseClient 共享连接池和线程池
+                    client = baseClient.newBuilder()
+                            .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+                            .readTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                            .build();
+                    this.client = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    @NonNull
+    private Semaphore getHostPermits(@NonNull String host) {
+        Semaphore permits = hostPermits.get(host);
+        if (permits == null) {
+            synchronized (hostPermits) {
+                permits = hostPermits.get(host);
+                if (permits == null) {
+                    permits = new Semaphore(maxRequestsPerHost, true);
+                    hostPermits.put(host, permits);
+                }
+            }
+        }
+        return permits;
+    }
+
+    @NonNull
+    @Override
+    public ImageHttpResponse getHttpResponse(String uri) throws IOException {
+        return getHttpResponse(uri, null);
+    }
+
+    @NonNull
+    @Override
+    public HeaderFieldHttpResponse getHttpResponse(String uri, Map<String, String> requestHeaders) throws IOException {
+        Request.Builder builder = new Request.Builder().url(uri);
+
+        if (userAgent != null) {
+            builder.header("User-Agent", userAgent);
+        }
+
+        if (addExtraHeaders != null && addExtraHeaders.size() > 0) {
+            for (Map.Entry<String, String> entry : addExtraHeaders.entrySet()) {
+                builder.addHeader(entry.getKey(), entry.getValue());
+            }
+        }
+        if (setExtraHeaders != null && setExtraHeaders.size() > 0) {
+            for (Map.Entry<String, String> entry : setExtraHeaders.entrySet()) {
+                builder.header(entry.getKey(), entry.getValue());
+            }
+        }
+        if (requestHeaders != null && requestHeaders.size() > 0) {
+            for (Map.Entry<String, String> entry : requestHeaders.entrySet()) {
+                builder.header(entry.getKey(), entry.getValue());
+            }
+        }
+
+        processRequest(uri, builder);
+
+        String host = Uri.parse(uri).getHost();
+        Semaphore permits = getHostPermits(host != null ? host : "");
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            InterruptedIOException exception = new InterruptedIOException("Interrupted while waiting for host permit. " + host);
+            exception.initCause(e);
+            throw exception;
+        }
+
+        Response response;
+        try {
+            response = getClient().newCall(builder.build()).execute();
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+
+        return new OkHttpResponse(response, permits);
+    }
+
+    protected void processRequest(@SuppressWarnings("UnusedParameters") String uri,
+                                  @SuppressWarnings("UnusedParameters") Request.Builder builder) {
+
+    }
+
+    private static class OkHttpResponse implements HeaderFieldHttpResponse {
+        private Response response;
+        private Semaphore permits;
+        private AtomicBoolean released = new AtomicBoolean();
+
+        OkHttpResponse(Response response, Semaphore permits) {
+            this.response = response;
+            this.permits = permits;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return response.code();
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException {
+            return response.message();
+        }
+
+        @Override
+        public long getContentLength() {
+            ResponseBody body = response.body();
+            return body != null ? body.contentLength() : -1;
+        }
+
+        @Override
+        public boolean isContentChunked() {
+            // HTTP/2 没有 Transfer-Encoding，长度未知时也是流式的
+            String transferEncodingValue = response.header("Transfer-Encoding");
+            if (transferEncodingValue != null && "chunked".equalsIgnoreCase(transferEncodingValue.trim())) {
+                return true;
+            }
+            return response.protocol() == Protocol.HTTP_2 && getContentLength() < 0;
+        }
+
+        @Override
+        public String getResponseHeadersString() {
+            Headers headers = response.headers();
+            if (headers == null || headers.size() == 0) {
+                return null;
+            }
+            StringBuilder stringBuilder = new StringBuilder();
+            stringBuilder.append("[");
+            for (int i = 0, size = headers.size(); i < size; i++) {
+                if (stringBuilder.length() != 1) {
+                    stringBuilder.append(", ");
+                }
+                stringBuilder.append("{").append(headers.name(i)).append(":").append(headers.value(i)).append("}");
+            }
+            stringBuilder.append("]");
+            return stringBuilder.toString();
+        }
+
+        @Override
+        public String getHeaderField(@NonNull String name) {
+            return response.header(name);
+        }
+
+        @NonNull
+        @Override
+        public InputStream getContent() throws IOException {
+            ResponseBody body = response.body();
+            if (body == null) {
+                releaseConnection();
+                throw new IOException("Response body is null");
+            }
+
+            // 读完关闭流时才把 host 的名额还回去
+            return new FilterInputStream(body.byteStream()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        releaseConnection();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void releaseConnection() {
+            if (released.compareAndSet(false, true)) {
+                response.close();
+                permits.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import me.xiaopan.sketch.SLog;
+import me.xiaopan.sketch.cache.DiskCache;
+import me.xiaopan.sketch.util.DiskLruCache;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 下载到一半的数据，用来断点续传
+ * <p>
+ * 数据和校验信息分别以 "磁盘缓存 key + {@link #DATA_SUFFIX}" 和 "磁盘缓存 key + {@link #META_SUFFIX}" 存在磁盘缓存中，
+ * 和普通缓存一样参与 LRU 淘汰。校验信息包括 ETag、Last-Modified 和总长度，续传时通过 Range + If-Range 请求剩下的部分，
+ * 服务器上的文件变了的话会返回完整的 200 响应，这时就丢掉已下载的部分从头开始
+ */
+public class PartialDownload {
+    private static final String NAME = "PartialDownload";
+
+    static final String DATA_SUFFIX = ".partial";
+    static final String META_SUFFIX = ".partial.meta";
+
+    /**
+     * 小于这个长度的图片重新下载的代价不大，不值得保存下载到一半的数据
+     */
+    static final int MIN_RESUMABLE_LENGTH = 512 * 1024;
+
+    @NonNull
+    private DiskCache.Entry dataEntry;
+    private long length;
+    private long totalLength;
+    @Nullable
+    private String eTag;
+    @Nullable
+    private String lastModified;
+
+    private PartialDownload(@NonNull DiskCache.Entry dataEntry, long totalLength, @Nullable String eTag, @Nullable String lastModified) {
+        this.dataEntry = dataEntry;
+        this.length = dataEntry.getFile().length();
+        this.totalLength = totalLength;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * 查找下载到一半的数据，数据或校验信息不完整的话会顺便删掉
+     */
+    @Nullable
+    public static PartialDownload find(@NonNull DiskCache diskCache, @NonNull String diskCacheKey) {
+        DiskCache.Entry metaEntry = diskCache.get(diskCacheKey + META_SUFFIX);
+        DiskCache.Entry dataEntry = diskCache.get(diskCacheKey + DATA_SUFFIX);
+        if (metaEntry == null || dataEntry == null) {
+            if (metaEntry != null || dataEntry != null) {
+                delete(diskCache, diskCacheKey);
+            }
+            return null;
+        }
+
+        long totalLength = -1;
+        String eTag = null;
+        String lastModified = null;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(metaEntry.newInputStream(), "UTF-8"));
+            totalLength = Long.parseLong(reader.readLine());
+            eTag = reader.readLine();
+            lastModified = reader.readLine();
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+        } finally {
+            SketchUtils.close(reader);
+        }
+
+        PartialDownload partialDownload = new PartialDownload(dataEntry, totalLength, emptyToNull(eTag), emptyToNull(lastModified));
+        if (totalLength <= 0 || partialDownload.length <= 0 || partialDownload.length >= totalLength
+                || partialDownload.getIfRange() == null) {
+            delete(diskCache, diskCacheKey);
+            return null;
+        }
+        return partialDownload;
+    }
+
+    /**
+     * 保存校验信息，数据部分要先提交
+     */
+    public static void saveMeta(@NonNull DiskCache diskCache, @NonNull String diskCacheKey, long totalLength,
+                                @Nullable String eTag, @Nullable String lastModified) {
+        DiskCache.Editor editor = diskCache.edit(diskCacheKey + META_SUFFIX);
+        if (editor == null) {
+            return;
+        }
+
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(editor.newOutputStream(), "UTF-8");
+            writer.write(String.valueOf(totalLength));
+            writer.write('\n');
+            writer.write(eTag != null ? eTag : "");
+            writer.write('\n');
+            writer.write(lastModified != null ? lastModified : "");
+            writer.write('\n');
+        } catch (IOException e) {
+            SketchUtils.close(writer);
+            editor.abort();
+            e.printStackTrace();
+            return;
+        }
+        SketchUtils.close(writer);
+
+        try {
+            editor.commit();
+        } catch (IOException | DiskLruCache.EditorChangedException | DiskLruCache.ClosedException | DiskLruCache.FileNotExistException e) {
+            editor.abort();
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 删除下载到一半的数据和校验信息
+     */
+    public static void delete(@NonNull DiskCache diskCache, @NonNull String diskCacheKey) {
+        DiskCache.Entry metaEntry = diskCache.get(diskCacheKey + META_SUFFIX);
+        if (metaEntry != null) {
+            metaEntry.delete();
+        }
+        DiskCache.Entry dataEntry = diskCache.get(diskCacheKey + DATA_SUFFIX);
+        if (dataEntry != null) {
+            dataEntry.delete();
+        }
+    }
+
+    /**
+     * 响应是否支持断点续传，要求 HttpStack 能读取响应头、长度足够大、支持 bytes 范围请求并且有可用的校验信息
+     */
+    public static boolean isResumable(@NonNull HttpStack.ImageHttpResponse httpResponse, long contentLength) {
+        if (contentLength < MIN_RESUMABLE_LENGTH || !(httpResponse instanceof RangeCapableHttpStack.HeaderFieldHttpResponse)) {
+            return false;
+        }
+        RangeCapableHttpStack.HeaderFieldHttpResponse headerFieldResponse = (RangeCapableHttpStack.HeaderFieldHttpResponse) httpResponse;
+        if (!"bytes".equalsIgnoreCase(trim(headerFieldResponse.getHeaderField("Accept-Ranges")))) {
+            return false;
+        }
+        return makeIfRange(headerFieldResponse.getHeaderField("ETag"), headerFieldResponse.getHeaderField("Last-Modified")) != null;
+    }
+
+    /**
+     * If-Range 只能用强校验的 ETag，弱校验的 ETag 就用 Last-Modified
+     */
+    @Nullable
+    private static String makeIfRange(@Nullable String eTag, @Nullable String lastModified) {
+        eTag = emptyToNull(trim(eTag));
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        return emptyToNull(trim(lastModified));
+    }
+
+    @Nullable
+    private static String trim(@Nullable String value) {
+        return value != null ? value.trim() : null;
+    }
+
+    @Nullable
+    private static String emptyToNull(@Nullable String value) {
+        return TextUtils.isEmpty(value) ? null : value;
+    }
+
+    /**
+     * 生成续传用的请求头
+     */
+    @NonNull
+    public Map<String, String> makeRangeHeaders() {
+        Map<String, String> headers = new HashMap<>(3);
+        headers.put("Range", "bytes=" + length + "-");
+        //noinspection ConstantConditions
+        headers.put("If-Range", getIfRange());
+        // 压缩后的字节范围和原始数据对不上，续传时必须拿原始数据
+        headers.put("Accept-Encoding", "identity");
+        return headers;
+    }
+
+    @Nullable
+    String getIfRange() {
+        return makeIfRange(eTag, lastModified);
+    }
+
+    /**
+     * 检查 206 响应的 Content-Range 是否正好接在已下载的数据后面，格式为 "bytes start-end/total"
+     */
+    public boolean matchContentRange(@Nullable String contentRange) {
+        contentRange = trim(contentRange);
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return false;
+        }
+
+        int dashIndex = contentRange.indexOf('-');
+        int slashIndex = contentRange.indexOf('/');
+        if (dashIndex < 0 || slashIndex < dashIndex) {
+            return false;
+        }
+
+        try {
+            long start = Long.parseLong(contentRange.substring("bytes ".length(), dashIndex).trim());
+            long end = Long.parseLong(contentRange.substring(dashIndex + 1, slashIndex).trim());
+            String total = contentRange.substring(slashIndex + 1).trim();
+            return start == length && end == totalLength - 1 && ("*".equals(total) || Long.parseLong(total) == totalLength);
+        } catch (NumberFormatException e) {
+            SLog.w(NAME, "Illegal Content-Range. %s", contentRange);
+            return false;
+        }
+    }
+
+    /**
+     * 把已下载的数据写到新的输出流中
+     */
+    public void copyTo(@NonNull OutputStream outputStream) throws IOException {
+        InputStream inputStream = dataEntry.newInputStream();
+        try {
+            byte[] buffer = new byte[8 * 1024];
+            int readLength;
+            while ((readLength = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, readLength);
+            }
+        } finally {
+            SketchUtils.close(inputStream);
+        }
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    @Nullable
+    public String getETag() {
+        return eTag;
+    }
+
+    @Nullable
+    public String getLastModified() {
+        return lastModified;
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.http;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import me.xiaopan.sketch.Configuration;
+import me.xiaopan.sketch.SLog;
+import me.xiaopan.sketch.cache.BitmapPoolUtils;
+import me.xiaopan.sketch.cache.DiskCache;
+import me.xiaopan.sketch.decode.ImageOrientationCorrector;
+import me.xiaopan.sketch.decode.ImageType;
+import me.xiaopan.sketch.drawable.ImageAttrs;
+import me.xiaopan.sketch.request.DownloadRequest;
+import me.xiaopan.sketch.request.LoadOptions;
+import me.xiaopan.sketch.request.MaxSize;
+import me.xiaopan.sketch.request.Resize;
+
+/**
+ * 在下载的同时隔一段时间就用已经收到的数据解码一张预览图交给 {@link DownloadRequest#progressivePreviewDecoded(Bitmap)}
+ * <p>
+ * 数据不完整时解码器会把缺少的部分当作结束，渐进式 JPEG 得到的是一张模糊的完整图片，普通的 JPEG 得到的是上面一部分。
+ * 预览图按目标尺寸再缩小一半解码，并且只对 {@link #MIN_CONTENT_LENGTH} 到 {@link #MAX_CONTENT_LENGTH} 之间的 JPEG 图片生效，
+ * 太小的图片很快就能下载完，太大的图片解码一次预览也很慢
+ * <p>
+ * 预览直接读取下载正在写的磁盘缓存文件或者内存中的数据，不再另存一份。解码在单独的低优先级线程中执行，
+ * 每个下载同时最多只有一次解码，不会拖慢读取数据
+ */
+public class ProgressivePreviewDecoder {
+    private static final String NAME = "ProgressivePreviewDecoder";
+
+    static final int MIN_CONTENT_LENGTH = 100 * 1024;
+    static final int MAX_CONTENT_LENGTH = 8 * 1024 * 1024;
+
+    /**
+     * 两次预览之间至少间隔这么久，单位毫秒
+     */
+    private static final long PREVIEW_INTERVAL = 300;
+
+    /**
+     * 两次预览之间至少要收到总长度的这么多分之一的新数据
+     */
+    private static final int PREVIEW_STEP_DIVISOR = 8;
+
+    @NonNull
+    private DownloadRequest request;
+    @NonNull
+    private OutputStream outputStream;
+    @Nullable
+    private File dataFile;
+    @Nullable
+    private PreviewByteArrayOutputStream dataStream;
+    private int contentLength;
+    private int lastPreviewLength;
+    private long lastPreviewTime;
+    private volatile int previewCount;
+    private volatile boolean finished;
+    private final AtomicBoolean decoding = new AtomicBoolean();
+
+    private ProgressivePreviewDecoder(@NonNull DownloadRequest request, @NonNull OutputStream outputStream,
+                                      @Nullable File dataFile, @Nullable PreviewByteArrayOutputStream dataStream, int contentLength) {
+        this.request = request;
+        this.outputStream = outputStream;
+        this.dataFile = dataFile;
+        this.dataStream = dataStream;
+        this.contentLength = contentLength;
+        this.lastPreviewTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * 请求需要预览、长度合适并且能直接读取已下载的数据时创建
+     *
+     * @param startLength     续传时已经下载的长度，续传的不预览
+     * @param contentLength   总长度
+     * @param outputStream    下载数据写入的输出流，写的是内存的话必须是 {@link PreviewByteArrayOutputStream}
+     * @param diskCacheEditor 写的是磁盘缓存的话要能拿到正在写的文件，也就是 {@link DiskCache.FileEditor}
+     * @return null：不需要预览
+     */
+    @Nullable
+    public static ProgressivePreviewDecoder create(@NonNull DownloadRequest request, int startLength, int contentLength,
+                                                   @NonNull OutputStream outputStream, @Nullable DiskCache.Editor diskCacheEditor) {
+        if (!request.isProgressivePreviewEnabled() || startLength != 0
+                || contentLength < MIN_CONTENT_LENGTH || contentLength > MAX_CONTENT_LENGTH) {
+            return null;
+        }
+        if (outputStream instanceof PreviewByteArrayOutputStream) {
+            return new ProgressivePreviewDecoder(request, outputStream, null, (PreviewByteArrayOutputStream) outputStream, contentLength);
+        }
+        if (diskCacheEditor instanceof DiskCache.FileEditor) {
+            File dataFile = ((DiskCache.FileEditor) diskCacheEditor).getFile();
+            return new ProgressivePreviewDecoder(request, outputStream, dataFile, null, contentLength);
+        }
+        return null;
+    }
+
+    /**
+     * 新收到的数据已经写入输出流了，时机合适并且上一次解码已经结束的话就提交一次解码
+     *
+     * @param dataLength 已经写入的总长度
+     */
+    public void onDataWritten(int dataLength) {
+        // 下载完了就没必要预览了，马上就会正式解码
+        if (finished || dataLength >= contentLength || dataLength - lastPreviewLength < contentLength / PREVIEW_STEP_DIVISOR) {
+            return;
+        }
+        long currentTime = SystemClock.uptimeMillis();
+        if (currentTime - lastPreviewTime < PREVIEW_INTERVAL || decoding.get()) {
+            return;
+        }
+
+        // 得等解析出了头部才知道是不是 JPEG 以及尺寸和方向
+        final ImageAttrs imageAttrs = request.getSniffedImageAttrs();
+        if (imageAttrs == null || ImageType.valueOfMimeType(imageAttrs.getMimeType()) != ImageType.JPEG) {
+            return;
+        }
+
+        // 读文件的话要先把缓冲区中的数据写进去
+        if (dataFile != null) {
+            try {
+                outputStream.flush();
+            } catch (IOException e) {
+                return;
+            }
+        }
+
+        lastPreviewLength = dataLength;
+        lastPreviewTime = currentTime;
+
+        // 只会往后追加，所以现在拿到的数组的前 dataLength 个字节在解码期间不会变
+        final byte[] data = dataStream != null ? dataStream.getBuffer() : null;
+        final int length = dataLength;
+        decoding.set(true);
+        boolean submitted = request.getConfiguration().getExecutor().submitPreviewDecode(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    decodeAndDeliver(imageAttrs, data, length);
+                } finally {
+                    decoding.set(false);
+                }
+            }
+        });
+        if (!submitted) {
+            decoding.set(false);
+        }
+    }
+
+    /**
+     * 下载结束了，还没执行的解码就不用了
+     */
+    public void finish() {
+        finished = true;
+    }
+
+    private void decodeAndDeliver(@NonNull ImageAttrs imageAttrs, @Nullable byte[] data, int length) {
+        if (finished || request.isCanceled()) {
+            return;
+        }
+
+        long startTime = SystemClock.uptimeMillis();
+        Bitmap bitmap = decode(imageAttrs, data, length);
+        if (bitmap == null) {
+            return;
+        }
+        if (finished || request.isCanceled()) {
+            BitmapPoolUtils.freeBitmapToPool(bitmap, request.getConfiguration().getBitmapPool());
+            return;
+        }
+
+        previewCount++;
+        if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
+            SLog.d(NAME, "Preview decoded. count=%d, dataLength=%d/%d, bitmap=%dx%d, useTime=%dms. %s",
+                    previewCount, length, contentLength, bitmap.getWidth(), bitmap.getHeight(),
+                    SystemClock.uptimeMillis() - startTime, request.getKey());
+        }
+        request.progressivePreviewDecoded(bitmap);
+    }
+
+    @Nullable
+    private Bitmap decode(@NonNull ImageAttrs imageAttrs, @Nullable byte[] data, int length) {
+        Configuration configuration = request.getConfiguration();
+
+        int targetWidth = 0;
+        int targetHeight = 0;
+        if (request.getOptions() instanceof LoadOptions) {
+            LoadOptions loadOptions = (LoadOptions) request.getOptions();
+            Resize resize = loadOptions.getResize();
+            MaxSize maxSize = loadOptions.getMaxSize();
+            if (resize != null) {
+                targetWidth = resize.getWidth();
+                targetHeight = resize.getHeight();
+            } else if (maxSize != null) {
+                targetWidth = maxSize.getWidth();
+                targetHeight = maxSize.getHeight();
+            }
+        }
+        if (targetWidth <= 0 && targetHeight <= 0) {
+            MaxSize defaultMaxSize = configuration.getSizeCalculator().getDefaultImageMaxSize(configuration.getContext());
+            targetWidth = defaultMaxSize.getWidth();
+            targetHeight = defaultMaxSize.getHeight();
+        }
+
+        // 目标尺寸是按显示方向的，图片尺寸是原始方向的，比较之前要换一下
+        int exifOrientation = imageAttrs.getExifOrientation();
+        ImageOrientationCorrector orientationCorrector = configuration.getOrientationCorrector();
+        int degrees = ImageOrientationCorrector.getExifOrientationDegrees(exifOrientation);
+        if (degrees == 90 || degrees == 270) {
+            int temp = targetWidth;
+            targetWidth = targetHeight;
+            targetHeight = temp;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = configuration.getSizeCalculator().calculateInSampleSize(imageAttrs.getWidth(),
+                imageAttrs.getHeight(), targetWidth, targetHeight, false) * 2;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+
+        Bitmap bitmap;
+        try {
+            if (data != null) {
+                bitmap = BitmapFactory.decodeByteArray(data, 0, length, options);
+            } else {
+                //noinspection ConstantConditions
+                bitmap = BitmapFactory.decodeFile(dataFile.getPath(), options);
+            }
+        } catch (Throwable e) {
+            // 数据不完整，解码失败很正常，等下一次
+            SLog.w(NAME, "Decode preview failed. dataLength=%d/%d. %s. %s", length, contentLength, e, request.getKey());
+            return null;
+        }
+        if (bitmap == null) {
+            return null;
+        }
+
+        Bitmap rotatedBitmap = orientationCorrector.rotate(bitmap, exifOrientation, configuration.getBitmapPool());
+        if (rotatedBitmap != null && rotatedBitmap != bitmap) {
+            BitmapPoolUtils.freeBitmapToPool(bitmap, configuration.getBitmapPool());
+            bitmap = rotatedBitmap;
+        }
+        return bitmap;
+    }
+
+    /**
+     * 可以直接拿到内部数组的 ByteArrayOutputStream，预览解码时就不用再复制一份了
+     */
+    public static class PreviewByteArrayOutputStream extends ByteArrayOutputStream {
+        public PreviewByteArrayOutputStream() {
+            super();
+        }
+
+        public PreviewByteArrayOutputStream(int size) {
+            super(size);
+        }
+
+        /**
+         * 扩容时会换成新数组，但旧数组中已经写入的部分不会再变
+         */
+        synchronized byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * 可以在单次请求中附加请求头并读取响应头的 {@link HttpStack}，是可选的。
+ * 实现了才会断点续传和用条件请求重新验证磁盘缓存，没实现的话都走完整下载
+ */
+public interface RangeCapableHttpStack extends HttpStack {
+
+    /**
+     * 获取响应
+     *
+     * @param requestHeaders 本次请求额外的请求头，例如断点续传用的 Range 和 If-Range
+     */
+    @NonNull
+    HeaderFieldHttpResponse getHttpResponse(String uri, @Nullable Map<String, String> requestHeaders) throws IOException;
+
+    interface HeaderFieldHttpResponse extends ImageHttpResponse {
+        /**
+         * 获取指定的响应头
+         */
+        @Nullable
+        String getHeaderField(@NonNull String name);
+    }
+}
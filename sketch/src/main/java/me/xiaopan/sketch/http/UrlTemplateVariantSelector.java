@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import me.xiaopan.sketch.request.MaxSize;
+import me.xiaopan.sketch.request.Resize;
+
+/**
+ * 按 url 模板生成变体，适用于支持通过 url 参数指定宽度和质量的图片服务器，例如：
+ * <pre>
+ * new UrlTemplateVariantSelector("{url}?imageView2/2/w/{width}/q/{quality}")
+ * </pre>
+ * 宽度按目标尺寸向上取到 {@link #WIDTH_STEPS} 中的档位，这样相近尺寸的请求可以共用缓存；
+ * 移动网络下降低质量，网速很慢时再降一档，没有目标尺寸或者比最大档位还大时下载原图
+ */
+public class UrlTemplateVariantSelector implements ImageVariantSelector {
+    private static final String NAME = "UrlTemplateVariantSelector";
+
+    public static final String PLACEHOLDER_URL = "{url}";
+    public static final String PLACEHOLDER_WIDTH = "{width}";
+    public static final String PLACEHOLDER_QUALITY = "{quality}";
+
+    static final int[] WIDTH_STEPS = {240, 360, 480, 720, 1080, 1440, 2160};
+
+    /**
+     * 低于这个速度就算慢网，单位字节/秒
+     */
+    static final long SLOW_THROUGHPUT = 100 * 1024;
+
+    private String template;
+    private int quality = 90;
+    private int meteredQuality = 75;
+    private int slowQuality = 50;
+
+    public UrlTemplateVariantSelector(@NonNull String template) {
+        if (!template.contains(PLACEHOLDER_URL) || !template.contains(PLACEHOLDER_WIDTH)) {
+            throw new IllegalArgumentException("template must contain " + PLACEHOLDER_URL + " and " + PLACEHOLDER_WIDTH);
+        }
+        this.template = template;
+    }
+
+    @Nullable
+    @Override
+    public ImageVariant select(@NonNull String uri, @Nullable Resize resize, @Nullable MaxSize maxSize,
+                               boolean metered, long throughput) {
+        int targetWidth = resize != null ? resize.getWidth() : (maxSize != null ? maxSize.getWidth() : 0);
+        if (targetWidth <= 0) {
+            return null;
+        }
+
+        int width = 0;
+        for (int step : WIDTH_STEPS) {
+            if (step >= targetWidth) {
+                width = step;
+                break;
+            }
+        }
+        if (width == 0) {
+            return null;
+        }
+
+        int variantQuality;
+        if (throughput >= 0 && throughput < SLOW_THROUGHPUT) {
+            variantQuality = slowQuality;
+        } else if (metered) {
+            variantQuality = meteredQuality;
+        } else {
+            variantQuality = quality;
+        }
+
+        String url = template.replace(PLACEHOLDER_URL, uri)
+                .replace(PLACEHOLDER_WIDTH, String.valueOf(width))
+                .replace(PLACEHOLDER_QUALITY, String.valueOf(variantQuality));
+        return new ImageVariant(url, width, variantQuality);
+    }
+
+    /**
+     * 设置各种网络状况下的图片质量，默认分别是 90、75、50
+     *
+     * @param quality        非移动网络
+     * @param meteredQuality 移动网络
+     * @param slowQuality    网速很慢
+     */
+    @NonNull
+    @SuppressWarnings("unused")
+    public UrlTemplateVariantSelector setQualities(int quality, int meteredQuality, int slowQuality) {
+        this.quality = quality;
+        this.meteredQuality = meteredQuality;
+        this.slowQuality = slowQuality;
+        return this;
+    }
+
+    @NonNull
+    @Override
+    public String getKey() {
+        return String.format("%s(%s)", NAME, template);
+    }
+}
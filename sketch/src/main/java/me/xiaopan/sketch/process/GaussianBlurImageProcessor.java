@@ -2,10 +2,14 @@ package me.xiaopan.sketch.process;
 
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.BitmapPool;
+import me.xiaopan.sketch.cache.BitmapPoolUtils;
 import me.xiaopan.sketch.request.Resize;
 
 /**
@@ -19,6 +23,7 @@ public class GaussianBlurImageProcessor extends WrappedImageProcessor {
 
     private int radius; // 模糊半径，取值为0到100
     private int layerColor; // 图层颜色，在模糊后的图片上加一层颜色
+    private int downSample = 1; // 缩小倍数，先缩小再模糊最后放大回来，模糊本来就看不出细节，大图可以省很多时间
 
     private GaussianBlurImageProcessor(int radius, int layerColor, WrappedImageProcessor wrappedImageProcessor) {
         super(wrappedImageProcessor);
@@ -26,6 +31,35 @@ public class GaussianBlurImageProcessor extends WrappedImageProcessor {
         this.layerColor = layerColor;
     }
 
+    /**
+     * 创建一个指定半径、图层颜色和缩小倍数的高斯模糊图片处理器
+     *
+     * @param radius                模糊半径，取值为0到100
+     * @param layerColor            图层颜色，在模糊后的图片上加一层颜色
+     * @param downSample            缩小倍数，先缩小到 1/downSample 再用 radius/downSample 的半径模糊，最后放大回原尺寸，1 就是不缩小
+     * @param wrappedImageProcessor 嵌套一个图片处理器
+     * @return GaussianBlurImageProcessor
+     */
+    @SuppressWarnings("unused")
+    public static GaussianBlurImageProcessor make(int radius, int layerColor, int downSample, WrappedImageProcessor wrappedImageProcessor) {
+        GaussianBlurImageProcessor processor = new GaussianBlurImageProcessor(radius, layerColor, wrappedImageProcessor);
+        processor.downSample = Math.max(downSample, 1);
+        return processor;
+    }
+
+    /**
+     * 创建一个指定半径、图层颜色和缩小倍数的高斯模糊图片处理器
+     *
+     * @param radius     模糊半径，取值为0到100
+     * @param layerColor 图层颜色，在模糊后的图片上加一层颜色
+     * @param downSample 缩小倍数，先缩小到 1/downSample 再用 radius/downSample 的半径模糊，最后放大回原尺寸，1 就是不缩小
+     * @return GaussianBlurImageProcessor
+     */
+    @SuppressWarnings("unused")
+    public static GaussianBlurImageProcessor make(int radius, int layerColor, int downSample) {
+        return make(radius, layerColor, downSample, null);
+    }
+
     /**
      * 创建一个指定半径和图层颜色的高斯模糊图片处理器
      *
@@ -118,7 +152,7 @@ public class GaussianBlurImageProcessor extends WrappedImageProcessor {
     }
 
     /**
-     * 快速高斯模糊
+     * 快速高斯模糊，由 {@link StackBlur} 多线程执行，像素数组从缓冲池中取
      */
     public static Bitmap fastGaussianBlur(Bitmap sentBitmap, int radius, boolean canReuseInBitmap) {
         Bitmap bitmap;
@@ -128,6 +162,7 @@ public class GaussianBlurImageProcessor extends WrappedImageProcessor {
             bitmap = sentBitmap.copy(sentBitmap.getConfig() != null ? sentBitmap.getConfig() : Bitmap.Config.ARGB_8888, true);
         }
 
+        int[] pix = null;
         try {
             if (radius < 1) {
                 return (null);
@@ -136,191 +171,10 @@ public class GaussianBlurImageProcessor extends WrappedImageProcessor {
             int w = bitmap.getWidth();
             int h = bitmap.getHeight();
 
-            int[] pix = new int[w * h];
+            pix = StackBlur.obtainBuffer(w * h);
             bitmap.getPixels(pix, 0, w, 0, 0, w, h);
 
-            int wm = w - 1;
-            int hm = h - 1;
-            int wh = w * h;
-            int div = radius + radius + 1;
-
-            int r[] = new int[wh];
-            int g[] = new int[wh];
-            int b[] = new int[wh];
-            int rsum, gsum, bsum, x, y, i, p, yp, yi, yw;
-            int vmin[] = new int[Math.max(w, h)];
-
-            int divsum = (div + 1) >> 1;
-            divsum *= divsum;
-            int dv[] = new int[256 * divsum];
-            for (i = 0; i < 256 * divsum; i++) {
-                dv[i] = (i / divsum);
-            }
-
-            yw = yi = 0;
-
-            int[][] stack = new int[div][3];
-            int stackpointer;
-            int stackstart;
-            int[] sir;
-            int rbs;
-            int r1 = radius + 1;
-            int routsum, goutsum, boutsum;
-            int rinsum, ginsum, binsum;
-
-            for (y = 0; y < h; y++) {
-                rinsum = ginsum = binsum = routsum = goutsum = boutsum = rsum = gsum = bsum = 0;
-                for (i = -radius; i <= radius; i++) {
-                    p = pix[yi + Math.min(wm, Math.max(i, 0))];
-                    sir = stack[i + radius];
-                    sir[0] = (p & 0xff0000) >> 16;
-                    sir[1] = (p & 0x00ff00) >> 8;
-                    sir[2] = (p & 0x0000ff);
-                    rbs = r1 - Math.abs(i);
-                    rsum += sir[0] * rbs;
-                    gsum += sir[1] * rbs;
-                    bsum += sir[2] * rbs;
-                    if (i > 0) {
-                        rinsum += sir[0];
-                        ginsum += sir[1];
-                        binsum += sir[2];
-                    } else {
-                        routsum += sir[0];
-                        goutsum += sir[1];
-                        boutsum += sir[2];
-                    }
-                }
-                stackpointer = radius;
-
-                for (x = 0; x < w; x++) {
-
-                    r[yi] = dv[rsum];
-                    g[yi] = dv[gsum];
-                    b[yi] = dv[bsum];
-
-                    rsum -= routsum;
-                    gsum -= goutsum;
-                    bsum -= boutsum;
-
-                    stackstart = stackpointer - radius + div;
-                    sir = stack[stackstart % div];
-
-                    routsum -= sir[0];
-                    goutsum -= sir[1];
-                    boutsum -= sir[2];
-
-                    if (y == 0) {
-                        vmin[x] = Math.min(x + radius + 1, wm);
-                    }
-                    p = pix[yw + vmin[x]];
-
-                    sir[0] = (p & 0xff0000) >> 16;
-                    sir[1] = (p & 0x00ff00) >> 8;
-                    sir[2] = (p & 0x0000ff);
-
-                    rinsum += sir[0];
-                    ginsum += sir[1];
-                    binsum += sir[2];
-
-                    rsum += rinsum;
-                    gsum += ginsum;
-                    bsum += binsum;
-
-                    stackpointer = (stackpointer + 1) % div;
-                    sir = stack[(stackpointer) % div];
-
-                    routsum += sir[0];
-                    goutsum += sir[1];
-                    boutsum += sir[2];
-
-                    rinsum -= sir[0];
-                    ginsum -= sir[1];
-                    binsum -= sir[2];
-
-                    yi++;
-                }
-                yw += w;
-            }
-            for (x = 0; x < w; x++) {
-                rinsum = ginsum = binsum = routsum = goutsum = boutsum = rsum = gsum = bsum = 0;
-                yp = -radius * w;
-                for (i = -radius; i <= radius; i++) {
-                    yi = Math.max(0, yp) + x;
-
-                    sir = stack[i + radius];
-
-                    sir[0] = r[yi];
-                    sir[1] = g[yi];
-                    sir[2] = b[yi];
-
-                    rbs = r1 - Math.abs(i);
-
-                    rsum += r[yi] * rbs;
-                    gsum += g[yi] * rbs;
-                    bsum += b[yi] * rbs;
-
-                    if (i > 0) {
-                        rinsum += sir[0];
-                        ginsum += sir[1];
-                        binsum += sir[2];
-                    } else {
-                        routsum += sir[0];
-                        goutsum += sir[1];
-                        boutsum += sir[2];
-                    }
-
-                    if (i < hm) {
-                        yp += w;
-                    }
-                }
-                yi = x;
-                stackpointer = radius;
-                for (y = 0; y < h; y++) {
-                    // Preserve alpha channel: ( 0xff000000 & pix[yi] )
-                    pix[yi] = (0xff000000 & pix[yi]) | (dv[rsum] << 16) | (dv[gsum] << 8) | dv[bsum];
-
-                    rsum -= routsum;
-                    gsum -= goutsum;
-                    bsum -= boutsum;
-
-                    stackstart = stackpointer - radius + div;
-                    sir = stack[stackstart % div];
-
-                    routsum -= sir[0];
-                    goutsum -= sir[1];
-                    boutsum -= sir[2];
-
-                    if (x == 0) {
-                        vmin[y] = Math.min(y + r1, hm) * w;
-                    }
-                    p = x + vmin[y];
-
-                    sir[0] = r[p];
-                    sir[1] = g[p];
-                    sir[2] = b[p];
-
-                    rinsum += sir[0];
-                    ginsum += sir[1];
-                    binsum += sir[2];
-
-                    rsum += rinsum;
-                    gsum += ginsum;
-                    bsum += binsum;
-
-                    stackpointer = (stackpointer + 1) % div;
-                    sir = stack[stackpointer];
-
-                    routsum += sir[0];
-                    goutsum += sir[1];
-                    boutsum += sir[2];
-
-                    rinsum -= sir[0];
-                    ginsum -= sir[1];
-                    binsum -= sir[2];
-
-                    yi += w;
-                }
-            }
+            StackBlur.blur(pix, w, h, radius);
 
             bitmap.setPixels(pix, 0, w, 0, 0, w, h);
 
@@ -331,7 +185,36 @@ public class GaussianBlurImageProcessor extends WrappedImageProcessor {
                 bitmap.recycle();
             }
             return null;
+        } finally {
+            if (pix != null) {
+                StackBlur.recycleBuffer(pix);
+            }
+        }
+    }
+
+    /**
+     * 缩小后模糊再放大回原尺寸，像素数少了 downSample 的平方倍
+     */
+    @Nullable
+    private Bitmap downSampleBlur(@NonNull Sketch sketch, @NonNull Bitmap bitmap) {
+        BitmapPool bitmapPool = sketch.getConfiguration().getBitmapPool();
+        Bitmap.Config config = bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+        int smallWidth = bitmap.getWidth() / downSample;
+        int smallHeight = bitmap.getHeight() / downSample;
+        Bitmap smallBitmap = bitmapPool.getOrMake(smallWidth, smallHeight, config);
+        new Canvas(smallBitmap).drawBitmap(bitmap, null, new Rect(0, 0, smallWidth, smallHeight), paint);
+
+        if (fastGaussianBlur(smallBitmap, Math.max(radius / downSample, 1), true) == null) {
+            BitmapPoolUtils.freeBitmapToPool(smallBitmap, bitmapPool);
+            return null;
         }
+
+        Bitmap blurBitmap = bitmapPool.getOrMake(bitmap.getWidth(), bitmap.getHeight(), config);
+        new Canvas(blurBitmap).drawBitmap(smallBitmap, null, new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight()), paint);
+        BitmapPoolUtils.freeBitmapToPool(smallBitmap, bitmapPool);
+        return blurBitmap;
     }
 
     /**
@@ -350,8 +233,19 @@ public class GaussianBlurImageProcessor extends WrappedImageProcessor {
         return layerColor;
     }
 
+    /**
+     * 获取缩小倍数
+     */
+    @SuppressWarnings("unused")
+    public int getDownSample() {
+        return downSample;
+    }
+
     @Override
     public String onGetKey() {
+        if (downSample > 1) {
+            return String.format("%s(radius=%d,maskColor=%d,downSample=%d)", KEY, radius, layerColor, downSample);
+        }
         return String.format("%s(radius=%d,maskColor=%d)", KEY, radius, layerColor);
     }
 
@@ -363,7 +257,12 @@ public class GaussianBlurImageProcessor extends WrappedImageProcessor {
         }
 
         // blur handle
-        Bitmap blurBitmap = fastGaussianBlur(bitmap, radius, bitmap.getConfig() != null && bitmap.isMutable());
+        Bitmap blurBitmap;
+        if (downSample > 1 && bitmap.getWidth() >= downSample * 2 && bitmap.getHeight() >= downSample * 2) {
+            blurBitmap = downSampleBlur(sketch, bitmap);
+        } else {
+            blurBitmap = fastGaussianBlur(bitmap, radius, bitmap.getConfig() != null && bitmap.isMutable());
+        }
 
         if (blurBitmap == null) {
             return bitmap;
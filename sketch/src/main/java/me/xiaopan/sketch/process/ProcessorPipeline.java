@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.process;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.RectF;
+import android.graphics.Shader;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.widget.ImageView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.BitmapPool;
+import me.xiaopan.sketch.decode.ResizeCalculator;
+import me.xiaopan.sketch.request.Resize;
+
+/**
+ * 把嵌套的图片处理器合并成一次绘制
+ * <p>
+ * 嵌套的 {@link WrappedImageProcessor} 每一层都会产生一张中间图片，这里先把处理器链编译成步骤，
+ * 几何变换（{@link ResizeImageProcessor}、90 度整数倍的 {@link RotateImageProcessor}）合并成一个 Matrix，
+ * 裁剪形状（{@link CircleImageProcessor}、{@link RoundRectImageProcessor}）用 BitmapShader 直接画出来，
+ * 遮罩（{@link MaskImageProcessor}）画在同一张图片上，最后只从 BitmapPool 取一张图片，画一次。
+ * <p>
+ * 只支持 几何变换 → 裁剪形状 → 遮罩 这样的顺序，其它处理器或顺序不对的话 {@link #compile(ImageProcessor)} 返回 null，照旧一层一层处理
+ */
+public class ProcessorPipeline {
+    private static final int STEP_RESIZE = 1;
+    private static final int STEP_ROTATE = 2;
+    private static final int STEP_CIRCLE = 3;
+    private static final int STEP_ROUND_RECT = 4;
+    private static final int STEP_MASK = 5;
+
+    @NonNull
+    private List<Step> steps;
+
+    private ProcessorPipeline(@NonNull List<Step> steps) {
+        this.steps = steps;
+    }
+
+    /**
+     * 编译处理器链
+     *
+     * @return null：不能合并，或者合并了也省不了什么
+     */
+    @Nullable
+    public static ProcessorPipeline compile(@NonNull ImageProcessor imageProcessor) {
+        if (!(imageProcessor instanceof WrappedImageProcessor)) {
+            return null;
+        }
+
+        // 按 WrappedImageProcessor.process() 的执行顺序展开：由外到内依次先 resize，然后由内到外执行 onProcess
+        List<WrappedImageProcessor> chain = new ArrayList<WrappedImageProcessor>();
+        WrappedImageProcessor processor = (WrappedImageProcessor) imageProcessor;
+        while (processor != null) {
+            chain.add(processor);
+            processor = processor.getWrappedProcessor();
+        }
+
+        List<Step> steps = new ArrayList<Step>(chain.size() * 2);
+        for (WrappedImageProcessor item : chain) {
+            if (!item.isInterceptResize()) {
+                steps.add(new Step(STEP_RESIZE));
+            }
+        }
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            Step step = toStep(chain.get(i));
+            if (step == null) {
+                return null;
+            }
+            if (step.type != 0) {
+                steps.add(step);
+            }
+        }
+
+        // 检查顺序，形状之后不能再有几何变换，遮罩之后只能是遮罩
+        int stage = 0;
+        for (Step step : steps) {
+            int stepStage = step.type == STEP_RESIZE || step.type == STEP_ROTATE ? 0
+                    : (step.type == STEP_CIRCLE || step.type == STEP_ROUND_RECT ? 1 : 2);
+            if (stepStage < stage || (stepStage == 1 && stage == 1)) {
+                return null;
+            }
+            stage = stepStage;
+        }
+
+        return steps.size() >= 2 ? new ProcessorPipeline(steps) : null;
+    }
+
+    /**
+     * 只认这几个类本身，子类可能改写了 onProcess()
+     */
+    @Nullable
+    private static Step toStep(@NonNull WrappedImageProcessor processor) {
+        Class<?> processorClass = processor.getClass();
+        if (processorClass == RotateImageProcessor.class) {
+            int degrees = ((RotateImageProcessor) processor).getDegrees();
+            if (degrees % 360 == 0) {
+                return new Step(0);
+            }
+            if (degrees % 90 != 0) {
+                // 斜着的边缘需要抗锯齿，裁剪区域做不到
+                return null;
+            }
+            Step step = new Step(STEP_ROTATE);
+            step.degrees = degrees;
+            return step;
+        } else if (processorClass == CircleImageProcessor.class) {
+            return new Step(STEP_CIRCLE);
+        } else if (processorClass == RoundRectImageProcessor.class) {
+            Step step = new Step(STEP_ROUND_RECT);
+            step.cornerRadius = ((RoundRectImageProcessor) processor).getCornerRadius();
+            return step;
+        } else if (processorClass == MaskImageProcessor.class) {
+            Step step = new Step(STEP_MASK);
+            step.color = ((MaskImageProcessor) processor).getMaskColor();
+            return step;
+        }
+        return null;
+    }
+
+    /**
+     * 一次画完
+     *
+     * @return null：实际需要绘制的步骤不到两步，交给原来的处理器处理
+     */
+    @Nullable
+    public Bitmap process(@NonNull Sketch sketch, @NonNull Bitmap bitmap, @Nullable Resize resize, boolean lowQualityImage) {
+        if (bitmap.isRecycled()) {
+            return null;
+        }
+
+        ResizeCalculator resizeCalculator = sketch.getConfiguration().getResizeCalculator();
+        Bitmap.Config defaultConfig = lowQualityImage ? Bitmap.Config.ARGB_4444 : Bitmap.Config.ARGB_8888;
+        boolean exactlySame = resize != null && resize.getMode() == Resize.Mode.EXACTLY_SAME;
+
+        Matrix matrix = new Matrix();   // 原图到当前图片的变换
+        RectF clipRect = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());    // 当前图片中有内容的区域
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        Bitmap.Config config = bitmap.getConfig();
+        Step shape = null;
+        RectF shapeRect = null;
+        List<Integer> maskColors = null;
+        int drawCount = 0;
+
+        for (Step step : steps) {
+            ResizeCalculator.Mapping mapping = null;
+            if (step.type == STEP_RESIZE) {
+                if (resize == null || resize.getWidth() == 0 || resize.getHeight() == 0 ||
+                        (width == resize.getWidth() && height == resize.getHeight())) {
+                    continue;
+                }
+                mapping = resizeCalculator.calculator(width, height, resize.getWidth(), resize.getHeight(),
+                        resize.getScaleType(), exactlySame);
+                if (mapping == null) {
+                    continue;
+                }
+                config = config != null ? config : defaultConfig;
+            } else if (step.type == STEP_ROTATE) {
+                Matrix rotateMatrix = new Matrix();
+                rotateMatrix.setRotate(step.degrees);
+                RectF newRect = new RectF(0, 0, width, height);
+                rotateMatrix.mapRect(newRect);
+                rotateMatrix.postTranslate(-newRect.left, -newRect.top);
+                matrix.postConcat(rotateMatrix);
+                rotateMatrix.mapRect(clipRect);
+                width = (int) newRect.width();
+                height = (int) newRect.height();
+                config = config != null ? config : Bitmap.Config.ARGB_8888;
+                drawCount++;
+                continue;
+            } else if (step.type == STEP_CIRCLE) {
+                int targetWidth = resize != null ? resize.getWidth() : width;
+                int targetHeight = resize != null ? resize.getHeight() : height;
+                int newBitmapSize = targetWidth < targetHeight ? targetWidth : targetHeight;
+                ImageView.ScaleType scaleType = resize != null ? resize.getScaleType() : ImageView.ScaleType.FIT_CENTER;
+                mapping = resizeCalculator.calculator(width, height, newBitmapSize, newBitmapSize, scaleType, exactlySame);
+                if (mapping == null) {
+                    continue;
+                }
+                config = defaultConfig;
+                shape = step;
+            } else if (step.type == STEP_ROUND_RECT) {
+                mapping = resizeCalculator.calculator(width, height,
+                        resize != null ? resize.getWidth() : width,
+                        resize != null ? resize.getHeight() : height,
+                        resize != null ? resize.getScaleType() : null, exactlySame);
+                if (mapping == null) {
+                    continue;
+                }
+                config = defaultConfig;
+                shape = step;
+            } else if (step.type == STEP_MASK) {
+                if (maskColors == null) {
+                    maskColors = new ArrayList<Integer>(2);
+                }
+                maskColors.add(step.color);
+                config = config != null ? config : defaultConfig;
+                drawCount++;
+                continue;
+            }
+
+            // 把 srcRect 画到 destRect 上
+            if (mapping != null) {
+                Matrix mappingMatrix = new Matrix();
+                mappingMatrix.setRectToRect(new RectF(mapping.srcRect), new RectF(mapping.destRect), Matrix.ScaleToFit.FILL);
+                matrix.postConcat(mappingMatrix);
+                mappingMatrix.mapRect(clipRect);
+                if (!clipRect.intersect(new RectF(mapping.destRect))) {
+                    clipRect.setEmpty();
+                }
+                width = mapping.imageWidth;
+                height = mapping.imageHeight;
+                if (step == shape) {
+                    shapeRect = new RectF(0, 0, width, height);
+                }
+                drawCount++;
+            }
+        }
+
+        if (drawCount < 2) {
+            return null;
+        }
+
+        BitmapPool bitmapPool = sketch.getConfiguration().getBitmapPool();
+        Bitmap newBitmap = bitmapPool.getOrMake(width, height, config != null ? config : defaultConfig);
+        Canvas canvas = new Canvas(newBitmap);
+
+        drawImage(canvas, bitmap, matrix, clipRect, shape, shapeRect);
+
+        // 和 MaskImageProcessor 一样，在图层中画出图片再用 SRC_IN 盖上颜色，图层合成时还会用到颜色的透明度
+        if (maskColors != null) {
+            int saveFlags = Canvas.MATRIX_SAVE_FLAG | Canvas.CLIP_SAVE_FLAG | Canvas.HAS_ALPHA_LAYER_SAVE_FLAG |
+                    Canvas.FULL_COLOR_LAYER_SAVE_FLAG | Canvas.CLIP_TO_LAYER_SAVE_FLAG;
+            for (int maskColor : maskColors) {
+                Paint maskPaint = new Paint();
+                maskPaint.setColor(maskColor);
+                int layer = canvas.saveLayer(0, 0, width, height, maskPaint, saveFlags);
+                drawImage(canvas, bitmap, matrix, clipRect, shape, shapeRect);
+                maskPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_IN));
+                canvas.drawRect(0, 0, width, height, maskPaint);
+                canvas.restoreToCount(layer);
+            }
+        }
+
+        return newBitmap;
+    }
+
+    private void drawImage(@NonNull Canvas canvas, @NonNull Bitmap bitmap, @NonNull Matrix matrix, @NonNull RectF clipRect,
+                           @Nullable Step shape, @Nullable RectF shapeRect) {
+        int saveCount = canvas.save();
+        canvas.clipRect(clipRect);
+
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+        if (shape == null || shapeRect == null) {
+            canvas.drawBitmap(bitmap, matrix, paint);
+        } else {
+            BitmapShader shader = new BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+            shader.setLocalMatrix(matrix);
+            paint.setShader(shader);
+            paint.setAntiAlias(true);
+
+            int imageWidth = (int) shapeRect.width();
+            int imageHeight = (int) shapeRect.height();
+            if (shape.type == STEP_CIRCLE) {
+                canvas.drawCircle(imageWidth / 2, imageHeight / 2,
+                        (imageWidth < imageHeight ? imageWidth : imageHeight) / 2, paint);
+            } else {
+                Path path = new Path();
+                path.addRoundRect(shapeRect, shape.cornerRadius, Path.Direction.CW);
+                canvas.drawPath(path, paint);
+            }
+        }
+
+        canvas.restoreToCount(saveCount);
+    }
+
+    private static class Step {
+        private int type;
+        private int degrees;
+        private int color;
+        private float[] cornerRadius;
+
+        Step(int type) {
+            this.type = type;
+        }
+    }
+}
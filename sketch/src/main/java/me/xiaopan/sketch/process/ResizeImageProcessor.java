@@ -48,6 +48,12 @@ public class ResizeImageProcessor implements ImageProcessor {
             return bitmap;
         }
 
+        // 不用截取也不用缩放的话就没必要再画一遍，精确尺寸解码出来的图片经常是这样
+        if (mapping.imageWidth == bitmap.getWidth() && mapping.imageHeight == bitmap.getHeight()
+                && mapping.srcRect.equals(mapping.destRect)) {
+            return bitmap;
+        }
+
         Bitmap.Config config = bitmap.getConfig();
         if (config == null) {
             config = lowQualityImage ? Bitmap.Config.ARGB_4444 : Bitmap.Config.ARGB_8888;
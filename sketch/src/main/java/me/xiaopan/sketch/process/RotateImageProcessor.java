@@ -72,6 +72,13 @@ public class RotateImageProcessor extends WrappedImageProcessor {
         return result;
     }
 
+    /**
+     * 获取旋转角度
+     */
+    public int getDegrees() {
+        return degrees;
+    }
+
     @NonNull
     @Override
     public Bitmap onProcess(@NonNull Sketch sketch, @NonNull Bitmap bitmap, Resize resize, boolean lowQualityImage) {
@@ -0,0 +1,481 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.process;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 只操作 int[] 像素的 Stack Blur 模糊引擎，结果和 {@link GaussianBlurImageProcessor} 原来的单线程实现完全一样
+ * <p>
+ * 1. 先按行带做水平模糊，再按列带做垂直模糊，每个带交给一个线程，调用线程自己也处理一个带<br>
+ * 2. 中间结果只用一个和图片一样大的 int[]，并且从缓冲池中取，不再每次都分配四个 int[w*h] 和一个很大的除法查找表<br>
+ * 3. 不依赖 Android，可以直接在 JVM 上测试和对比性能
+ */
+public class StackBlur {
+    /**
+     * 像素数少于这个值的图片不值得拆分，直接在调用线程中模糊
+     */
+    private static final int MIN_PARALLEL_PIXELS = 128 * 128;
+
+    /**
+     * 用乘法和移位代替除法，移 48 位时在半径不超过 1000 的情况下和整数除法的结果完全一样
+     */
+    private static final int DIVIDE_SHIFT = 48;
+
+    private static final int MAX_PARALLELISM = 4;
+    private static final IntArrayPool BUFFER_POOL = new IntArrayPool(16 * 1024 * 1024);
+
+    private static volatile ExecutorService executor;
+
+    private StackBlur() {
+    }
+
+    /**
+     * 模糊像素，直接修改传入的数组，alpha 通道保持不变，并发度取 CPU 核数，最多 {@link #MAX_PARALLELISM}
+     *
+     * @param pixels 像素，ARGB 格式，一行接着一行
+     * @param width  宽
+     * @param height 高
+     * @param radius 模糊半径，小于 1 时什么都不做
+     */
+    public static void blur(@NonNull int[] pixels, int width, int height, int radius) {
+        blur(pixels, width, height, radius, getDefaultParallelism());
+    }
+
+    /**
+     * 模糊像素，直接修改传入的数组，alpha 通道保持不变
+     *
+     * @param pixels      像素，ARGB 格式，一行接着一行
+     * @param width       宽
+     * @param height      高
+     * @param radius      模糊半径，小于 1 时什么都不做
+     * @param parallelism 并发度，1 就是只在调用线程中执行
+     */
+    public static void blur(@NonNull final int[] pixels, final int width, final int height, int radius, int parallelism) {
+        if (radius < 1 || width <= 0 || height <= 0) {
+            return;
+        }
+        if (pixels.length < width * height) {
+            throw new IllegalArgumentException("pixels.length < width * height");
+        }
+
+        final int finalRadius = Math.min(radius, 1000);
+        final int[] scratch = obtainBuffer(width * height);
+        try {
+            if (parallelism <= 1 || width * height < MIN_PARALLEL_PIXELS) {
+                blurHorizontal(pixels, scratch, width, finalRadius, 0, height);
+                blurVertical(scratch, pixels, width, height, finalRadius, 0, width);
+                return;
+            }
+
+            // 水平模糊按行拆分
+            final int rowBands = Math.min(parallelism, height);
+            runBands(rowBands, new Band() {
+                @Override
+                public void run(int index) {
+                    int start = height * index / rowBands;
+                    int end = height * (index + 1) / rowBands;
+                    blurHorizontal(pixels, scratch, width, finalRadius, start, end);
+                }
+            });
+
+            // 垂直模糊按列拆分，必须等水平模糊全部完成
+            final int columnBands = Math.min(parallelism, width);
+            runBands(columnBands, new Band() {
+                @Override
+                public void run(int index) {
+                    int start = width * index / columnBands;
+                    int end = width * (index + 1) / columnBands;
+                    blurVertical(scratch, pixels, width, height, finalRadius, start, end);
+                }
+            });
+        } finally {
+            recycleBuffer(scratch);
+        }
+    }
+
+    /**
+     * 从缓冲池中取一个长度正好是 size 的 int[]，内容是脏的
+     */
+    @NonNull
+    public static int[] obtainBuffer(int size) {
+        int[] buffer = BUFFER_POOL.obtain(size);
+        return buffer != null ? buffer : new int[size];
+    }
+
+    /**
+     * 用完的 int[] 还给缓冲池，之后不能再使用它
+     */
+    public static void recycleBuffer(@NonNull int[] buffer) {
+        BUFFER_POOL.recycle(buffer);
+    }
+
+    /**
+     * 清空缓冲池，内存紧张时调用
+     */
+    public static void clearBufferPool() {
+        BUFFER_POOL.clear();
+    }
+
+    public static int getDefaultParallelism() {
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_PARALLELISM));
+    }
+
+    /**
+     * 拆分执行，最后一个带在调用线程中执行，等所有的带都完成后才返回
+     */
+    private static void runBands(int count, @NonNull final Band band) {
+        final CountDownLatch latch = new CountDownLatch(count - 1);
+        final Throwable[] error = new Throwable[1];
+        ExecutorService executor = getExecutor();
+        for (int i = 0; i < count - 1; i++) {
+            final int index = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        band.run(index);
+                    } catch (Throwable tr) {
+                        error[0] = tr;
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        // 调用线程自己出错了也要等其它带结束，否则缓冲区被回收后还在被写
+        try {
+            band.run(count - 1);
+        } finally {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    latch.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (error[0] != null) {
+            throw new RuntimeException("Blur band failed", error[0]);
+        }
+    }
+
+    @NonNull
+    private static ExecutorService getExecutor() {
+        if (executor == null) {
+            synchronized (StackBlur.class) {
+                if (executor == null) {
+                    int poolSize = MAX_PARALLELISM - 1;
+                    ThreadPoolExecutor newExecutor = new ThreadPoolExecutor(poolSize, poolSize, 30, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(), new BlurThreadFactory());
+                    newExecutor.allowCoreThreadTimeOut(true);
+                    executor = newExecutor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    private static long divideMultiplier(int divisor) {
+        return ((1L << DIVIDE_SHIFT) + divisor - 1) / divisor;
+    }
+
+    /**
+     * 水平模糊 [startRow, endRow) 行，结果写到 out 中，alpha 通道原样复制
+     */
+    static void blurHorizontal(@NonNull int[] in, @NonNull int[] out, int width, int radius, int startRow, int endRow) {
+        int wm = width - 1;
+        int div = radius + radius + 1;
+        int r1 = radius + 1;
+        int divsum = r1 * r1;
+        long mul = divideMultiplier(divsum);
+        int[] stack = new int[div * 3];
+
+        for (int y = startRow; y < endRow; y++) {
+            int yw = y * width;
+            int rinsum = 0, ginsum = 0, binsum = 0;
+            int routsum = 0, goutsum = 0, boutsum = 0;
+            int rsum = 0, gsum = 0, bsum = 0;
+            for (int i = -radius; i <= radius; i++) {
+                int p = in[yw + Math.min(wm, Math.max(i, 0))];
+                int si = (i + radius) * 3;
+                int sr = (p & 0xff0000) >> 16;
+                int sg = (p & 0x00ff00) >> 8;
+                int sb = (p & 0x0000ff);
+                stack[si] = sr;
+                stack[si + 1] = sg;
+                stack[si + 2] = sb;
+                int rbs = r1 - Math.abs(i);
+                rsum += sr * rbs;
+                gsum += sg * rbs;
+                bsum += sb * rbs;
+                if (i > 0) {
+                    rinsum += sr;
+                    ginsum += sg;
+                    binsum += sb;
+                } else {
+                    routsum += sr;
+                    goutsum += sg;
+                    boutsum += sb;
+                }
+            }
+            int stackpointer = radius;
+
+            for (int x = 0; x < width; x++) {
+                int yi = yw + x;
+                out[yi] = (in[yi] & 0xff000000)
+                        | ((int) ((rsum * mul) >>> DIVIDE_SHIFT) << 16)
+                        | ((int) ((gsum * mul) >>> DIVIDE_SHIFT) << 8)
+                        | (int) ((bsum * mul) >>> DIVIDE_SHIFT);
+
+                rsum -= routsum;
+                gsum -= goutsum;
+                bsum -= boutsum;
+
+                int si = ((stackpointer - radius + div) % div) * 3;
+                routsum -= stack[si];
+                goutsum -= stack[si + 1];
+                boutsum -= stack[si + 2];
+
+                int p = in[yw + Math.min(x + r1, wm)];
+                int sr = (p & 0xff0000) >> 16;
+                int sg = (p & 0x00ff00) >> 8;
+                int sb = (p & 0x0000ff);
+                stack[si] = sr;
+                stack[si + 1] = sg;
+                stack[si + 2] = sb;
+
+                rinsum += sr;
+                ginsum += sg;
+                binsum += sb;
+
+                rsum += rinsum;
+                gsum += ginsum;
+                bsum += binsum;
+
+                stackpointer = (stackpointer + 1) % div;
+                si = stackpointer * 3;
+
+                routsum += stack[si];
+                goutsum += stack[si + 1];
+                boutsum += stack[si + 2];
+
+                rinsum -= stack[si];
+                ginsum -= stack[si + 1];
+                binsum -= stack[si + 2];
+            }
+        }
+    }
+
+    /**
+     * 垂直模糊 [startColumn, endColumn) 列，结果写到 out 中，alpha 通道取 in 的
+     */
+    static void blurVertical(@NonNull int[] in, @NonNull int[] out, int width, int height, int radius,
+                             int startColumn, int endColumn) {
+        int hm = height - 1;
+        int div = radius + radius + 1;
+        int r1 = radius + 1;
+        int divsum = r1 * r1;
+        long mul = divideMultiplier(divsum);
+        int[] stack = new int[div * 3];
+
+        for (int x = startColumn; x < endColumn; x++) {
+            int rinsum = 0, ginsum = 0, binsum = 0;
+            int routsum = 0, goutsum = 0, boutsum = 0;
+            int rsum = 0, gsum = 0, bsum = 0;
+            for (int i = -radius; i <= radius; i++) {
+                int p = in[Math.min(hm, Math.max(i, 0)) * width + x];
+                int si = (i + radius) * 3;
+                int sr = (p & 0xff0000) >> 16;
+                int sg = (p & 0x00ff00) >> 8;
+                int sb = (p & 0x0000ff);
+                stack[si] = sr;
+                stack[si + 1] = sg;
+                stack[si + 2] = sb;
+                int rbs = r1 - Math.abs(i);
+                rsum += sr * rbs;
+                gsum += sg * rbs;
+                bsum += sb * rbs;
+                if (i > 0) {
+                    rinsum += sr;
+                    ginsum += sg;
+                    binsum += sb;
+                } else {
+                    routsum += sr;
+                    goutsum += sg;
+                    boutsum += sb;
+                }
+            }
+            int stackpointer = radius;
+
+            int yi = x;
+            for (int y = 0; y < height; y++) {
+                out[yi] = (in[yi] & 0xff000000)
+                        | ((int) ((rsum * mul) >>> DIVIDE_SHIFT) << 16)
+                        | ((int) ((gsum * mul) >>> DIVIDE_SHIFT) << 8)
+                        | (int) ((bsum * mul) >>> DIVIDE_SHIFT);
+
+                rsum -= routsum;
+                gsum -= goutsum;
+                bsum -= boutsum;
+
+                int si = ((stackpointer - radius + div) % div) * 3;
+                routsum -= stack[si];
+                goutsum -= stack[si + 1];
+                boutsum -= stack[si + 2];
+
+                int p = in[Math.min(y + r1, hm) * width + x];
+                int sr = (p & 0xff0000) >> 16;
+                int sg = (p & 0x00ff00) >> 8;
+                int sb = (p & 0x0000ff);
+                stack[si] = sr;
+                stack[si + 1] = sg;
+                stack[si + 2] = sb;
+
+                rinsum += sr;
+                ginsum += sg;
+                binsum += sb;
+
+                rsum += rinsum;
+                gsum += ginsum;
+                bsum += binsum;
+
+                stackpointer = (stackpointer + 1) % div;
+                si = stackpointer * 3;
+
+                routsum += stack[si];
+                goutsum += stack[si + 1];
+                boutsum += stack[si + 2];
+
+                rinsum -= stack[si];
+                ginsum -= stack[si + 1];
+                binsum -= stack[si + 2];
+
+                yi += width;
+            }
+        }
+    }
+
+    private interface Band {
+        void run(int index);
+    }
+
+    private static class BlurThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "StackBlurThread-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * 按长度缓存 int[]，总大小超出上限时丢掉最早放进来的
+     */
+    private static class IntArrayPool {
+        private final Map<Integer, LinkedList<int[]>> buffers = new HashMap<Integer, LinkedList<int[]>>();
+        private final List<int[]> order = new ArrayList<int[]>();
+        private final long maxBytes;
+        private long bytes;
+
+        IntArrayPool(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized int[] obtain(int size) {
+            LinkedList<int[]> list = buffers.get(size);
+            if (list == null || list.isEmpty()) {
+                return null;
+            }
+            int[] buffer = list.removeLast();
+            removeFromOrder(buffer);
+            bytes -= buffer.length * 4L;
+            return buffer;
+        }
+
+        synchronized void recycle(@NonNull int[] buffer) {
+            long length = buffer.length * 4L;
+            if (length == 0 || length > maxBytes) {
+                return;
+            }
+            while (bytes + length > maxBytes && !order.isEmpty()) {
+                int[] eldest = order.remove(0);
+                LinkedList<int[]> list = buffers.get(eldest.length);
+                if (list != null) {
+                    removeIdentity(list, eldest);
+                }
+                bytes -= eldest.length * 4L;
+            }
+
+            LinkedList<int[]> list = buffers.get(buffer.length);
+            if (list == null) {
+                list = new LinkedList<int[]>();
+                buffers.put(buffer.length, list);
+            }
+            list.addLast(buffer);
+            order.add(buffer);
+            bytes += length;
+        }
+
+        synchronized void clear() {
+            buffers.clear();
+            order.clear();
+            bytes = 0;
+        }
+
+        private void removeFromOrder(int[] buffer) {
+            for (int i = 0; i < order.size(); i++) {
+                if (order.get(i) == buffer) {
+                    order.remove(i);
+                    return;
+                }
+            }
+        }
+
+        private static void removeIdentity(LinkedList<int[]> list, int[] buffer) {
+            for (Iterator<int[]> iterator = list.iterator(); iterator.hasNext(); ) {
+                if (iterator.next() == buffer) {
+                    iterator.remove();
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package me.xiaopan.sketch.request;
 
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
 import me.xiaopan.sketch.Sketch;
 import me.xiaopan.sketch.uri.UriModel;
 
@@ -7,6 +10,9 @@ abstract class AsyncRequest extends BaseRequest implements Runnable {
 
     private RunStatus runStatus;
     private boolean sync;
+    private RequestPriority priority;
+    private long submitTime;
+    private long dispatchWaitTime = -1;
 
     AsyncRequest(Sketch sketch, String uri, UriModel uriModel, String key) {
         super(sketch, uri, uriModel, key);
@@ -46,6 +52,20 @@ abstract class AsyncRequest extends BaseRequest implements Runnable {
         this.sync = sync;
     }
 
+    /**
+     * 获取在执行器队列中的优先级
+     */
+    public RequestPriority getPriority() {
+        return priority != null ? priority : RequestPriority.NORMAL;
+    }
+
+    /**
+     * 设置在执行器队列中的优先级，不设置的话就是 {@link RequestPriority#NORMAL}，必须在提交之前设置
+     */
+    public void setPriority(@Nullable RequestPriority priority) {
+        this.priority = priority;
+    }
+
     /**
      * 提交到分发线程执行分发
      */
@@ -76,6 +96,7 @@ abstract class AsyncRequest extends BaseRequest implements Runnable {
     }
 
     private void executeDownload() {
+        dispatchWaitTime = SystemClock.uptimeMillis() - submitTime;
         setStatus(Status.START_DOWNLOAD);
         runDownload();
     }
@@ -101,9 +122,19 @@ abstract class AsyncRequest extends BaseRequest implements Runnable {
      * 提交请求
      */
     final void submit() {
+        submitTime = SystemClock.uptimeMillis();
         submitRunDispatch();
     }
 
+    /**
+     * 获取从提交到开始下载之间等待的时间，包括在分发线程和网络线程排队以及分发的耗时，单位毫秒
+     *
+     * @return -1：还没有开始下载
+     */
+    public long getDispatchWaitTime() {
+        return dispatchWaitTime;
+    }
+
     /**
      * 推到主线程处理完成
      */
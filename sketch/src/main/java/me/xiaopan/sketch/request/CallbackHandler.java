@@ -32,6 +32,7 @@ public class CallbackHandler {
     private static final int WHAT_RUN_FAILED = 33002;
     private static final int WHAT_RUN_CANCELED = 33003;
     private static final int WHAT_RUN_UPDATE_PROGRESS = 33004;
+    private static final int WHAT_RUN_UPDATE_PREVIEW = 33005;
 
     private static final int WHAT_CALLBACK_STARTED = 44001;
     private static final int WHAT_CALLBACK_FAILED = 44002;
@@ -54,6 +55,9 @@ public class CallbackHandler {
                     case WHAT_RUN_UPDATE_PROGRESS:
                         ((AsyncRequest) msg.obj).runUpdateProgressInMainThread(msg.arg1, msg.arg2);
                         break;
+                    case WHAT_RUN_UPDATE_PREVIEW:
+                        ((DisplayRequest) msg.obj).runUpdatePreviewInMainThread();
+                        break;
                     case WHAT_RUN_FAILED:
                         ((AsyncRequest) msg.obj).runErrorInMainThread();
                         break;
@@ -121,6 +125,17 @@ public class CallbackHandler {
         }
     }
 
+    /**
+     * 推到主线程显示预览图
+     */
+    static void postRunUpdatePreview(@NonNull DisplayRequest request) {
+        if (request.isSync()) {
+            request.runUpdatePreviewInMainThread();
+        } else {
+            handler.obtainMessage(WHAT_RUN_UPDATE_PREVIEW, request).sendToTarget();
+        }
+    }
+
     static void postCallbackStarted(@Nullable Listener listener, boolean sync) {
         if (listener != null) {
             if (sync || SketchUtils.isMainThread()) {
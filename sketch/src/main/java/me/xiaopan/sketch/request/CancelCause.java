@@ -74,4 +74,14 @@ public enum CancelCause {
      * 检测到绑定关系断开
      */
     BIND_DISCONNECT,
+
+    /**
+     * 执行器队列已满，优先级最低的请求被取消
+     */
+    QUEUE_OVERFLOW,
+
+    /**
+     * 预取的图片已经滑出了预取窗口
+     */
+    OUT_OF_PREFETCH_WINDOW,
 }
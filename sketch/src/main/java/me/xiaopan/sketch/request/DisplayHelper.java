@@ -117,6 +117,16 @@ public class DisplayHelper {
         return this;
     }
 
+    /**
+     * 磁盘缓存过期后先直接使用，同时在后台重新验证
+     */
+    @NonNull
+    @SuppressWarnings("unused")
+    public DisplayHelper revalidateDiskCache() {
+        displayOptions.setDiskCacheRevalidateEnabled(true);
+        return this;
+    }
+
     /**
      * 禁用 BitmapPool
      */
@@ -246,6 +256,16 @@ public class DisplayHelper {
         return this;
     }
 
+    /**
+     * 开启精确尺寸解码，解码时就直接缩放到 resize 对应的尺寸
+     */
+    @NonNull
+    @SuppressWarnings("unused")
+    public DisplayHelper exactSizeDecode() {
+        displayOptions.setExactSizeDecode(true);
+        return this;
+    }
+
     /**
      * 为了加快速度，将经过 ImageProcessor、resize 或 thumbnailMode 处理过的图片保存到磁盘缓存中，下次就直接读取
      */
@@ -276,6 +296,16 @@ public class DisplayHelper {
         return this;
     }
 
+    /**
+     * 在下载过程中显示预览图
+     */
+    @NonNull
+    @SuppressWarnings("unused")
+    public DisplayHelper progressivePreview() {
+        displayOptions.setProgressivePreviewEnabled(true);
+        return this;
+    }
+
     /**
      * 设置图片显示器，在加载完成后会调用此显示器来显示图片
      */
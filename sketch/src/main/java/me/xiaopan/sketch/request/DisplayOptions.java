@@ -68,6 +68,11 @@ public class DisplayOptions extends LoadOptions {
      */
     private ShapeSize shapeSize;
 
+    /**
+     * 下载过程中用已收到的数据解码预览图并显示
+     */
+    private boolean progressivePreviewEnabled;
+
     public DisplayOptions() {
         reset();
     }
@@ -82,6 +87,12 @@ public class DisplayOptions extends LoadOptions {
         return (DisplayOptions) super.setCacheInDiskDisabled(cacheInDiskDisabled);
     }
 
+    @NonNull
+    @Override
+    public DisplayOptions setDiskCacheRevalidateEnabled(boolean diskCacheRevalidateEnabled) {
+        return (DisplayOptions) super.setDiskCacheRevalidateEnabled(diskCacheRevalidateEnabled);
+    }
+
     @NonNull
     @Override
     public DisplayOptions setRequestLevel(@Nullable RequestLevel requestLevel) {
@@ -160,6 +171,12 @@ public class DisplayOptions extends LoadOptions {
         return (DisplayOptions) super.setThumbnailMode(thumbnailMode);
     }
 
+    @NonNull
+    @Override
+    public DisplayOptions setExactSizeDecode(boolean exactSizeDecode) {
+        return (DisplayOptions) super.setExactSizeDecode(exactSizeDecode);
+    }
+
     @NonNull
     @Override
     public DisplayOptions setCacheProcessedImageInDisk(boolean cacheProcessedImageInDisk) {
@@ -197,6 +214,26 @@ public class DisplayOptions extends LoadOptions {
         return this;
     }
 
+    /**
+     * 是否在下载过程中显示预览图
+     */
+    public boolean isProgressivePreviewEnabled() {
+        return progressivePreviewEnabled;
+    }
+
+    /**
+     * 设置是否在下载过程中显示预览图，只对比较大的 JPEG 图片有效，渐进式 JPEG 会越来越清晰，普通的 JPEG 会从上往下显示，
+     * 下载完成后再用完整的图片替换预览图
+     *
+     * @param progressivePreviewEnabled 在下载过程中显示预览图
+     * @return DisplayOptions
+     */
+    @NonNull
+    public DisplayOptions setProgressivePreviewEnabled(boolean progressivePreviewEnabled) {
+        this.progressivePreviewEnabled = progressivePreviewEnabled;
+        return this;
+    }
+
     /**
      * 获取图片显示器
      *
@@ -400,6 +437,7 @@ public class DisplayOptions extends LoadOptions {
         pauseDownloadImage = null;
         imageShaper = null;
         shapeSize = null;
+        progressivePreviewEnabled = false;
     }
 
     /**
@@ -422,5 +460,6 @@ public class DisplayOptions extends LoadOptions {
         pauseDownloadImage = options.pauseDownloadImage;
         imageShaper = options.imageShaper;
         shapeSize = options.shapeSize;
+        progressivePreviewEnabled = options.progressivePreviewEnabled;
     }
 }
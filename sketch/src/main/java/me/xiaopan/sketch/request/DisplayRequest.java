@@ -21,15 +21,19 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.support.annotation.NonNull;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 import me.xiaopan.sketch.ErrorTracker;
 import me.xiaopan.sketch.SLog;
 import me.xiaopan.sketch.Sketch;
 import me.xiaopan.sketch.SketchView;
 import me.xiaopan.sketch.cache.BitmapPool;
+import me.xiaopan.sketch.cache.BitmapPoolUtils;
 import me.xiaopan.sketch.cache.MemoryCache;
 import me.xiaopan.sketch.drawable.SketchBitmapDrawable;
 import me.xiaopan.sketch.drawable.SketchDrawable;
 import me.xiaopan.sketch.drawable.SketchGifDrawable;
+import me.xiaopan.sketch.drawable.SketchLoadingDrawable;
 import me.xiaopan.sketch.drawable.SketchRefBitmap;
 import me.xiaopan.sketch.drawable.SketchRefDrawable;
 import me.xiaopan.sketch.drawable.SketchShapeBitmapDrawable;
@@ -44,6 +48,7 @@ public class DisplayRequest extends LoadRequest {
     private DisplayListener displayListener;
     private ViewInfo viewInfo;
     private RequestAndViewBinder requestAndViewBinder;
+    private final AtomicReference<Bitmap> pendingPreviewBitmap = new AtomicReference<>();
 
     public DisplayRequest(Sketch sketch, String uri, UriModel uriModel, String key, DisplayOptions displayOptions,
                           ViewInfo viewInfo, RequestAndViewBinder requestAndViewBinder, DisplayListener displayListener,
@@ -81,6 +86,14 @@ public class DisplayRequest extends LoadRequest {
         return displayOptions;
     }
 
+    /**
+     * 还绑定着 View 的显示请求优先级最高，绑定关系已经断了的说明 View 已经被复用或移除，排到最后
+     */
+    @Override
+    public RequestPriority getPriority() {
+        return requestAndViewBinder.isBroken() ? RequestPriority.LOW : RequestPriority.HIGH;
+    }
+
     @Override
     public boolean isCanceled() {
         if (super.isCanceled()) {
@@ -130,6 +143,56 @@ public class DisplayRequest extends LoadRequest {
         super.postRunCompleted();
     }
 
+    @Override
+    public boolean isProgressivePreviewEnabled() {
+        return displayOptions.isProgressivePreviewEnabled() && !isCanceled();
+    }
+
+    @Override
+    public void progressivePreviewDecoded(@NonNull Bitmap bitmap) {
+        // 主线程还没来得及显示的旧预览图直接换成新的，已经发出的消息会显示新的
+        Bitmap oldBitmap = pendingPreviewBitmap.getAndSet(bitmap);
+        if (oldBitmap != null) {
+            BitmapPoolUtils.freeBitmapToPool(oldBitmap, getConfiguration().getBitmapPool());
+        } else {
+            CallbackHandler.postRunUpdatePreview(this);
+        }
+    }
+
+    /**
+     * 在主线程显示预览图，预览图包在 {@link SketchLoadingDrawable} 中，这样 View 和请求的绑定关系不会断，
+     * 下载完成后由 {@link me.xiaopan.sketch.display.ImageDisplayer} 过渡到完整的图片
+     */
+    void runUpdatePreviewInMainThread() {
+        Bitmap bitmap = pendingPreviewBitmap.getAndSet(null);
+        if (bitmap == null) {
+            return;
+        }
+
+        BitmapPool bitmapPool = getConfiguration().getBitmapPool();
+        SketchView sketchView = requestAndViewBinder.getView();
+        if (isCanceled() || isFinished() || sketchView == null || getSniffedImageAttrs() == null) {
+            BitmapPoolUtils.freeBitmapToPool(bitmap, bitmapPool);
+            return;
+        }
+
+        SketchRefBitmap refBitmap = new SketchRefBitmap(bitmap, getKey(), getUri(), getSniffedImageAttrs(), bitmapPool);
+        refBitmap.setIsWaitingUse(String.format("%s:waitingUse:preview", getLogName()), true);
+
+        Drawable drawable = new SketchBitmapDrawable(refBitmap, ImageFrom.NETWORK);
+        if (displayOptions.getShapeSize() != null || displayOptions.getImageShaper() != null) {
+            drawable = new SketchShapeBitmapDrawable(getConfiguration().getContext(), (BitmapDrawable) drawable,
+                    displayOptions.getShapeSize(), displayOptions.getImageShaper());
+        }
+        sketchView.setImageDrawable(new SketchLoadingDrawable(drawable, this));
+
+        refBitmap.setIsWaitingUse(String.format("%s:waitingUse:previewFinish", getLogName()), false);
+
+        if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
+            SLog.d(getLogName(), "Display preview. %s. %s", refBitmap.getInfo(), getKey());
+        }
+    }
+
     @Override
     protected void runLoad() {
         if (isCanceled()) {
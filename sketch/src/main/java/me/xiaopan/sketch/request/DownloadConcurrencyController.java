@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.request;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 网络任务的并发数控制器，类似 TCP 拥塞控制的 AIMD（加性增、乘性减）
+ * <p>
+ * 按 host 分别统计连接耗时和下载速度，每个 host 维护一个并发窗口：下载成功并且速度和连接耗时都正常时窗口加 1/窗口，
+ * 下载失败，或者多个下载同时进行时速度掉到平均值的一半以下、连接耗时涨到平均值的两倍以上，说明下载之间在互相抢带宽，窗口减半。
+ * 线程池的大小取最近活跃的 host 中最大的窗口
+ * <p>
+ * 缩略图这样的小文件几毫秒就读完了，算出来的速度全是噪声，所以数据量不到 {@link #MIN_SAMPLE_BYTES}
+ * 或者读取耗时不到 {@link #MIN_SAMPLE_READ_TIME} 的下载不参与速度的统计和比较
+ */
+public class DownloadConcurrencyController {
+    private static final int MIN_SIZE = 1;
+    private static final int MAX_SIZE = 6;
+    private static final int MAX_HOST_COUNT = 16;
+    private static final double EWMA_WEIGHT = 0.2;
+
+    /**
+     * 参与速度统计的下载至少要有这么多数据
+     */
+    static final long MIN_SAMPLE_BYTES = 32 * 1024;
+
+    /**
+     * 参与速度统计的下载读取数据至少要用这么久，单位毫秒
+     */
+    static final long MIN_SAMPLE_READ_TIME = 50;
+
+    private float initialWindow;
+    private int size;
+    private Map<String, HostStats> hostStatsMap;
+
+    public DownloadConcurrencyController(int initialSize) {
+        this.initialWindow = Math.max(MIN_SIZE, Math.min(initialSize, MAX_SIZE));
+        this.size = (int) initialWindow;
+        this.hostStatsMap = new LinkedHashMap<String, HostStats>(MAX_HOST_COUNT, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HostStats> eldest) {
+                return size() > MAX_HOST_COUNT;
+            }
+        };
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * 下载结束了
+     *
+     * @param host        图片所在的 host
+     * @param connectTime 建立连接并拿到响应码的耗时，单位毫秒，拿不到时传 -1
+     * @param bytes       读取到的字节数
+     * @param readTime    读取数据的耗时，单位毫秒
+     * @param success     是否成功
+     * @param activeCount 当前正在下载的任务数量
+     * @return 新的并发数
+     */
+    public synchronized int onDownloadCompleted(String host, long connectTime, long bytes, long readTime,
+                                                boolean success, int activeCount) {
+        HostStats stats = hostStatsMap.get(host);
+        if (stats == null) {
+            stats = new HostStats(initialWindow);
+            hostStatsMap.put(host, stats);
+        }
+
+        if (!success) {
+            stats.decrease();
+        } else {
+            // -1：样本太小，测不准速度
+            double throughput = bytes >= MIN_SAMPLE_BYTES && readTime >= MIN_SAMPLE_READ_TIME ? bytes * 1000d / readTime : -1;
+            boolean congested = false;
+            if (activeCount > 1) {
+                congested = (throughput > 0 && stats.throughput > 0 && throughput < stats.throughput / 2)
+                        || (connectTime > 0 && stats.connectTime > 0 && connectTime > stats.connectTime * 2);
+            }
+
+            if (congested) {
+                stats.decrease();
+            } else {
+                stats.increase();
+            }
+            stats.update(connectTime, throughput);
+        }
+
+        float maxWindow = MIN_SIZE;
+        Iterator<HostStats> iterator = hostStatsMap.values().iterator();
+        while (iterator.hasNext()) {
+            maxWindow = Math.max(maxWindow, iterator.next().window);
+        }
+        size = Math.max(MIN_SIZE, Math.min((int) maxWindow, MAX_SIZE));
+        return size;
+    }
+
+    private static class HostStats {
+        private float window;
+        private double throughput = -1;
+        private double connectTime = -1;
+
+        HostStats(float window) {
+            this.window = window;
+        }
+
+        void increase() {
+            window = Math.min(window + 1 / window, MAX_SIZE);
+        }
+
+        void decrease() {
+            window = Math.max(window / 2, MIN_SIZE);
+        }
+
+        void update(long newConnectTime, double newThroughput) {
+            if (newThroughput > 0) {
+                throughput = throughput < 0 ? newThroughput : throughput * (1 - EWMA_WEIGHT) + newThroughput * EWMA_WEIGHT;
+            }
+            if (newConnectTime >= 0) {
+                connectTime = connectTime < 0 ? newConnectTime : connectTime * (1 - EWMA_WEIGHT) + newConnectTime * EWMA_WEIGHT;
+            }
+        }
+    }
+}
@@ -20,6 +20,7 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
+import me.xiaopan.sketch.Configuration;
 import me.xiaopan.sketch.SLog;
 import me.xiaopan.sketch.Sketch;
 import me.xiaopan.sketch.cache.DiskCache;
@@ -34,6 +35,7 @@ public class DownloadHelper {
 
     private Sketch sketch;
     private boolean sync;
+    private RequestPriority priority;
 
     private String uri;
     private UriModel uriModel;
@@ -59,6 +61,16 @@ public class DownloadHelper {
         return this;
     }
 
+    /**
+     * 磁盘缓存过期后先直接使用，同时在后台重新验证
+     */
+    @NonNull
+    @SuppressWarnings("unused")
+    public DownloadHelper revalidateDiskCache() {
+        downloadOptions.setDiskCacheRevalidateEnabled(true);
+        return this;
+    }
+
     /**
      * 设置请求 Level
      */
@@ -91,6 +103,15 @@ public class DownloadHelper {
         return this;
     }
 
+    /**
+     * 设置请求在执行器队列中的优先级，例如预取时用 {@link RequestPriority#IDLE} 避免和正在显示的图片抢线程
+     */
+    @NonNull
+    public DownloadHelper priority(@Nullable RequestPriority priority) {
+        this.priority = priority;
+        return this;
+    }
+
     /**
      * 同步处理
      */
@@ -157,9 +178,11 @@ public class DownloadHelper {
 
     private boolean checkDiskCache() {
         if (!downloadOptions.isCacheInDiskDisabled()) {
-            DiskCache diskCache = sketch.getConfiguration().getDiskCache();
-            DiskCache.Entry diskCacheEntry = diskCache.get(uriModel.getDiskCacheKey(uri));
-            if (diskCacheEntry != null) {
+            Configuration configuration = sketch.getConfiguration();
+            String diskCacheKey = uriModel.getDiskCacheKey(uri);
+            DiskCache.Entry diskCacheEntry = configuration.getDiskCache().get(diskCacheKey);
+            if (diskCacheEntry != null && (downloadOptions.getRequestLevel() == RequestLevel.LOCAL
+                    || configuration.getDownloader().isDiskCacheSatisfied(configuration, uri, diskCacheKey, downloadOptions))) {
                 if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
                     SLog.d(NAME, "Download image completed. %s", key);
                 }
@@ -181,6 +204,7 @@ public class DownloadHelper {
         DownloadRequest request = requestFactory.newDownloadRequest(sketch, uri, uriModel, key,
                 downloadOptions, downloadListener, downloadProgressListener);
         request.setSync(sync);
+        request.setPriority(priority);
 
         if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
             SLog.d(NAME, "Run dispatch submitted. %s", key);
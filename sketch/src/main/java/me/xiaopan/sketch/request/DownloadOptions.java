@@ -31,6 +31,11 @@ public class DownloadOptions {
      */
     private boolean cacheInDiskDisabled;
 
+    /**
+     * 磁盘缓存过期后先直接使用，同时在后台发起条件请求重新验证
+     */
+    private boolean diskCacheRevalidateEnabled;
+
     /**
      * 请求 Level
      */
@@ -74,6 +79,26 @@ public class DownloadOptions {
         return this;
     }
 
+    /**
+     * 磁盘缓存过期后先直接使用，同时在后台重新验证？
+     */
+    public boolean isDiskCacheRevalidateEnabled() {
+        return diskCacheRevalidateEnabled;
+    }
+
+    /**
+     * 设置磁盘缓存过期后先直接使用，同时在后台通过 If-None-Match、If-Modified-Since 重新验证，
+     * 适用于地址不变但内容偶尔会变的图片，例如头像。过期时间以响应头中的 Cache-Control max-age 为准
+     *
+     * @param diskCacheRevalidateEnabled 磁盘缓存过期后在后台重新验证
+     * @return this
+     */
+    @NonNull
+    public DownloadOptions setDiskCacheRevalidateEnabled(boolean diskCacheRevalidateEnabled) {
+        this.diskCacheRevalidateEnabled = diskCacheRevalidateEnabled;
+        return this;
+    }
+
     /**
      * 获取请求Level
      *
@@ -125,6 +150,7 @@ public class DownloadOptions {
      */
     public void reset() {
         cacheInDiskDisabled = false;
+        diskCacheRevalidateEnabled = false;
         requestLevel = null;
         requestLevelFrom = null;
     }
@@ -138,6 +164,7 @@ public class DownloadOptions {
         }
 
         cacheInDiskDisabled = options.cacheInDiskDisabled;
+        diskCacheRevalidateEnabled = options.diskCacheRevalidateEnabled;
         requestLevel = options.requestLevel;
         requestLevelFrom = options.requestLevelFrom;
     }
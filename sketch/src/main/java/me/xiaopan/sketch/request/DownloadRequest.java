@@ -16,11 +16,15 @@
 
 package me.xiaopan.sketch.request;
 
+import android.graphics.Bitmap;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import me.xiaopan.sketch.SLog;
 import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.BitmapPoolUtils;
 import me.xiaopan.sketch.cache.DiskCache;
+import me.xiaopan.sketch.drawable.ImageAttrs;
 import me.xiaopan.sketch.http.DownloadException;
 import me.xiaopan.sketch.uri.UriModel;
 
@@ -33,6 +37,7 @@ public class DownloadRequest extends AsyncRequest {
     private DownloadOptions options;
     private DownloadListener downloadListener;
     private DownloadProgressListener downloadProgressListener;
+    private volatile ImageAttrs sniffedImageAttrs;
 
     public DownloadRequest(Sketch sketch, String uri, UriModel uriModel, String key, DownloadOptions options,
                            DownloadListener downloadListener, DownloadProgressListener downloadProgressListener) {
@@ -111,10 +116,15 @@ public class DownloadRequest extends AsyncRequest {
 
             DiskCache diskCache = getConfiguration().getDiskCache();
             DiskCache.Entry diskCacheEntry = diskCache.get(getDiskCacheKey());
-            if (diskCacheEntry != null) {
+            // 只从本地加载时有什么用什么，否则缓存的变体比需要的小就重新下载
+            if (diskCacheEntry != null && (options.getRequestLevel() == RequestLevel.LOCAL
+                    || getConfiguration().getDownloader().isDiskCacheSatisfied(getConfiguration(), getUri(), getDiskCacheKey(), options))) {
                 if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
                     SLog.d(getLogName(), "Dispatch. Disk cache. %s. %s", getThreadName(), getKey());
                 }
+                if (options.isDiskCacheRevalidateEnabled() && options.getRequestLevel() != RequestLevel.LOCAL) {
+                    getConfiguration().getDownloader().revalidateIfStale(this);
+                }
                 downloadResult = new DownloadResult(diskCacheEntry, ImageFrom.DISK_CACHE);
                 downloadCompleted();
                 return;
@@ -175,6 +185,43 @@ public class DownloadRequest extends AsyncRequest {
         }
     }
 
+    /**
+     * 下载过程中从已经收到的头部数据里解析出了图片的尺寸、类型和方向，在下载线程中回调，子类可以借此提前做准备
+     */
+    public void imageAttrsSniffed(@NonNull ImageAttrs imageAttrs) {
+        this.sniffedImageAttrs = imageAttrs;
+
+        if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
+            SLog.d(getLogName(), "Image attrs sniffed while downloading. imageSize=%dx%d, mimeType=%s, exifOrientation=%d. %s. %s",
+                    imageAttrs.getWidth(), imageAttrs.getHeight(), imageAttrs.getMimeType(), imageAttrs.getExifOrientation(),
+                    getThreadName(), getKey());
+        }
+    }
+
+    /**
+     * 获取下载过程中解析出的图片属性
+     *
+     * @return null：还没有解析出来或者不是从网络下载的
+     */
+    @Nullable
+    public ImageAttrs getSniffedImageAttrs() {
+        return sniffedImageAttrs;
+    }
+
+    /**
+     * 是否需要在下载过程中解码预览图，默认不需要
+     */
+    public boolean isProgressivePreviewEnabled() {
+        return false;
+    }
+
+    /**
+     * 下载过程中用已经收到的数据解码出了预览图，在下载线程中回调，默认直接回收
+     */
+    public void progressivePreviewDecoded(@NonNull Bitmap bitmap) {
+        BitmapPoolUtils.freeBitmapToPool(bitmap, getConfiguration().getBitmapPool());
+    }
+
     /**
      * 下载完成后续处理
      */
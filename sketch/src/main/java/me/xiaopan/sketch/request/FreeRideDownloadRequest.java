@@ -16,10 +16,11 @@
 
 package me.xiaopan.sketch.request;
 
-import java.util.HashSet;
+import android.support.annotation.NonNull;
+
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
-import me.xiaopan.sketch.SLog;
 import me.xiaopan.sketch.Sketch;
 import me.xiaopan.sketch.cache.DiskCache;
 import me.xiaopan.sketch.uri.UriModel;
@@ -29,7 +30,8 @@ import me.xiaopan.sketch.util.SketchUtils;
  * 支持顺风车功能的下载请求
  */
 public class FreeRideDownloadRequest extends DownloadRequest implements FreeRideManager.DownloadFreeRide {
-    private Set<FreeRideManager.DownloadFreeRide> downloadFreeRideSet;
+    private volatile Set<FreeRideManager.DownloadFreeRide> downloadFreeRideSet;
+    private boolean downloadFreeRideClosed;
 
     public FreeRideDownloadRequest(Sketch sketch, String uri, UriModel uriModel, String key, DownloadOptions options,
                                    DownloadListener downloadListener, DownloadProgressListener downloadProgressListener) {
@@ -38,7 +40,7 @@ public class FreeRideDownloadRequest extends DownloadRequest implements FreeRide
 
     @Override
     public String getDownloadFreeRideKey() {
-        return getUri();
+        return getDiskCacheKey();
     }
 
     @Override
@@ -57,13 +59,9 @@ public class FreeRideDownloadRequest extends DownloadRequest implements FreeRide
     @Override
     protected void submitRunDownload() {
         // 可以坐顺风车的话，就先尝试坐别人的，坐不上就自己成为顺风车主让别人坐
-        if (canByDownloadFreeRide()) {
-            FreeRideManager freeRideManager = getConfiguration().getFreeRideManager();
-            if (freeRideManager.byDownloadFreeRide(this)) {
-                return;
-            } else {
-                freeRideManager.registerDownloadFreeRideProvider(this);
-            }
+        FreeRideManager freeRideManager = getConfiguration().getFreeRideManager();
+        if (freeRideManager.byOrRegisterDownloadFreeRide(this)) {
+            return;
         }
 
         super.submitRunDownload();
@@ -71,26 +69,40 @@ public class FreeRideDownloadRequest extends DownloadRequest implements FreeRide
 
     @Override
     protected void runDownload() {
-        super.runDownload();
+        try {
+            super.runDownload();
+        } finally {
+            // 由于在submitRunDownload中会将自己注册成为顺风车主，因此一定要保证在这里取消注册，下载抛了异常也一样
+            finishDownloadFreeRide();
+        }
+    }
 
-        // 由于在submitRunDownload中会将自己注册成为顺风车主，因此一定要保证在这里取消注册
-        if (canByDownloadFreeRide()) {
-            FreeRideManager freeRideManager = getConfiguration().getFreeRideManager();
-            freeRideManager.unregisterDownloadFreeRideProvider(this);
+    @Override
+    protected void doCancel(@NonNull CancelCause cancelCause) {
+        super.doCancel(cancelCause);
+
+        // 排队时被取消的话 runDownload 可能永远不会执行了，要把顺风车交出去，免得它们一直等着
+        finishDownloadFreeRide();
+    }
+
+    private void finishDownloadFreeRide() {
+        synchronized (this) {
+            downloadFreeRideClosed = true;
         }
+        getConfiguration().getFreeRideManager().unregisterDownloadFreeRideProvider(this);
     }
 
     @Override
-    public synchronized void byDownloadFreeRide(FreeRideManager.DownloadFreeRide request) {
-        if (downloadFreeRideSet == null) {
-            synchronized (this) {
-                if (downloadFreeRideSet == null) {
-                    downloadFreeRideSet = new HashSet<>();
-                }
-            }
+    public synchronized boolean byDownloadFreeRide(FreeRideManager.DownloadFreeRide request) {
+        if (downloadFreeRideClosed) {
+            return false;
         }
 
+        if (downloadFreeRideSet == null) {
+            downloadFreeRideSet = new CopyOnWriteArraySet<>();
+        }
         downloadFreeRideSet.add(request);
+        return true;
     }
 
     @Override
@@ -99,21 +111,15 @@ public class FreeRideDownloadRequest extends DownloadRequest implements FreeRide
     }
 
     @Override
-    public synchronized boolean processDownloadFreeRide() {
-        DiskCache diskCache = getConfiguration().getDiskCache();
-        DiskCache.Entry diskCacheEntry = diskCache.get(getDiskCacheKey());
-
-        if (diskCacheEntry != null) {
-            if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
-                SLog.d(getLogName(), "from diskCache. processDownloadFreeRide. %s. %s", getThreadName(), getKey());
-            }
-            downloadResult = new DownloadResult(diskCacheEntry, ImageFrom.DISK_CACHE);
-            downloadCompleted();
-            return true;
-        } else {
-            submitRunDownload();
+    public boolean processDownloadFreeRide() {
+        if (isCanceled()) {
             return false;
         }
+
+        // 车主可能是在主线程中被取消的，读磁盘缓存、检查变体都不能在这里做，交给分发线程重新分发一次，
+        // 分发时会检查磁盘缓存，没有或者满足不了的话再去下载
+        submitRunDispatch();
+        return true;
     }
 
     @Override
@@ -21,6 +21,7 @@ import android.support.annotation.NonNull;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import me.xiaopan.sketch.Identifier;
 import me.xiaopan.sketch.SLog;
@@ -30,14 +31,15 @@ import me.xiaopan.sketch.SLog;
  * <p>
  * 对于相同的请求（不同类型条件不一样），只要第一个请求执行完毕了，后续请求可以直接使用第一个请求的结果，那么我们可以将所有后续的请求都绑定在第一个请求上，
  * 等第一个请求执行完毕后直接将结果交给后续请求处理即可，对于这样的情况我们称之为顺风车
+ * <p>
+ * 下载顺风车以磁盘缓存 KEY 区分，不管选项是否一样，下载、加载、显示请求只要数据相同就共享同一次下载，各自再按自己的选项解码
  */
 public class FreeRideManager implements Identifier {
     private static final String NAME = "FreeRideManager";
 
     private final Object displayFreeRideProviderMapLock = new Object();
-    private final Object downloadFreeRideProviderMapLock = new Object();
     private Map<String, DisplayFreeRide> displayFreeRideProviderMap;
-    private Map<String, DownloadFreeRide> downloadFreeRideProviderMap;
+    private final ConcurrentHashMap<String, DownloadFreeRide> downloadFreeRideProviderMap = new ConcurrentHashMap<>();
 
     /**
      * 成为显示顺风车主
@@ -138,101 +140,67 @@ public class FreeRideManager implements Identifier {
     }
 
     /**
-     * 成为下载顺风车主
+     * 坐个下载顺风车，坐不上就自己成为顺风车主，两步是原子的，同时到达的相同请求只会有一个成为车主
+     *
+     * @param request {@link DownloadFreeRide}
+     * @return true：坐上了；false：自己成了顺风车主或者不能坐顺风车
      */
-    public void registerDownloadFreeRideProvider(DownloadFreeRide provider) {
-        if (!provider.canByDownloadFreeRide()) {
-            return;
+    public boolean byOrRegisterDownloadFreeRide(DownloadFreeRide request) {
+        if (!request.canByDownloadFreeRide()) {
+            return false;
         }
 
-        synchronized (downloadFreeRideProviderMapLock) {
-            if (downloadFreeRideProviderMap == null) {
-                synchronized (this) {
-                    if (downloadFreeRideProviderMap == null) {
-                        downloadFreeRideProviderMap = new WeakHashMap<>();
-                    }
+        String key = request.getDownloadFreeRideKey();
+        while (true) {
+            DownloadFreeRide freeRideProvider = downloadFreeRideProviderMap.putIfAbsent(key, request);
+            if (freeRideProvider == null || freeRideProvider == request) {
+                if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
+                    SLog.d(NAME, "download. register free ride provider. %s", request.getDownloadFreeRideLog());
                 }
+                return false;
             }
 
-            downloadFreeRideProviderMap.put(provider.getDownloadFreeRideKey(), provider);
-
-            if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
-                SLog.d(NAME, "download. register free ride provider. %s",
-                        provider.getDownloadFreeRideLog());
+            if (freeRideProvider.byDownloadFreeRide(request)) {
+                if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
+                    SLog.d(NAME, "download. by free ride. %s -> %s",
+                            request.getDownloadFreeRideLog(), freeRideProvider.getDownloadFreeRideLog());
+                }
+                return true;
             }
+
+            // 车主已经结束了，不再接收顺风车，把它清理掉再试一次
+            downloadFreeRideProviderMap.remove(key, freeRideProvider);
         }
     }
 
     /**
-     * 取消下载顺风车主身份并回调那些下载顺风车
+     * 取消下载顺风车主身份并回调那些下载顺风车，车主调用之前必须已经不再接收新的顺风车了，重复调用只会回调一次
      */
     public void unregisterDownloadFreeRideProvider(DownloadFreeRide provider) {
-        if (!provider.canByDownloadFreeRide()) {
+        if (!downloadFreeRideProviderMap.remove(provider.getDownloadFreeRideKey(), provider)) {
             return;
         }
 
-        // 取消顺风车主身份
-        DownloadFreeRide freeRideProvider = null;
-        synchronized (downloadFreeRideProviderMapLock) {
-            if (downloadFreeRideProviderMap != null) {
-                freeRideProvider = downloadFreeRideProviderMap.remove(provider.getDownloadFreeRideKey());
-                if (freeRideProvider != null) {
-                    if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
-                        SLog.d(NAME, "download. unregister free ride provider. %s",
-                                freeRideProvider.getDownloadFreeRideLog());
-                    }
-                }
-            }
+        if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
+            SLog.d(NAME, "download. unregister free ride provider. %s", provider.getDownloadFreeRideLog());
         }
 
         // 回调那些顺风车
-        if (freeRideProvider != null) {
-            Set<DownloadFreeRide> freeRideSet = freeRideProvider.getDownloadFreeRideSet();
-            if (freeRideSet == null || freeRideSet.size() == 0) {
-                return;
-            }
-
-            String providerId = freeRideProvider.getDownloadFreeRideLog();
-            for (DownloadFreeRide childFreeRide : freeRideSet) {
-                boolean success = childFreeRide.processDownloadFreeRide();
-
-                if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
-                    SLog.d(NAME, "download. callback free ride. %s. %s  <------  %s",
-                            success ? "success" : "failed", childFreeRide.getDownloadFreeRideLog(), providerId);
-                }
-            }
-            freeRideSet.clear();
-        }
-    }
-
-    /**
-     * 坐个下载顺风车
-     *
-     * @param childFreeRide {@link DownloadFreeRide}
-     * @return 坐上了
-     */
-    public boolean byDownloadFreeRide(DownloadFreeRide childFreeRide) {
-        if (!childFreeRide.canByDownloadFreeRide()) {
-            return false;
+        Set<DownloadFreeRide> freeRideSet = provider.getDownloadFreeRideSet();
+        if (freeRideSet == null || freeRideSet.size() == 0) {
+            return;
         }
 
-        synchronized (downloadFreeRideProviderMapLock) {
-            DownloadFreeRide freeRideProvider = null;
-            if (downloadFreeRideProviderMap != null) {
-                freeRideProvider = downloadFreeRideProviderMap.get(childFreeRide.getDownloadFreeRideKey());
-            }
-            if (freeRideProvider == null) {
-                return false;
-            }
-
-            freeRideProvider.byDownloadFreeRide(childFreeRide);
+        String providerId = provider.getDownloadFreeRideLog();
+        for (DownloadFreeRide childFreeRide : freeRideSet) {
+            boolean success = childFreeRide.processDownloadFreeRide();
 
             if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
-                SLog.d(NAME, "download. by free ride. %s -> %s",
-                        childFreeRide.getDownloadFreeRideLog(), freeRideProvider.getDownloadFreeRideLog());
+                SLog.d(NAME, "download. callback free ride. %s. %s  <------  %s",
+                        success ? "success" : "failed", childFreeRide.getDownloadFreeRideLog(), providerId);
             }
-            return true;
         }
+        freeRideSet.clear();
     }
 
     @NonNull
@@ -283,7 +251,7 @@ public class FreeRideManager implements Identifier {
      */
     public interface DownloadFreeRide {
         /**
-         * 获取下载顺风车KEY
+         * 获取下载顺风车KEY，相同 KEY 的请求下载的是同一份数据，所以用磁盘缓存 KEY
          */
         String getDownloadFreeRideKey();
 
@@ -299,8 +267,10 @@ public class FreeRideManager implements Identifier {
 
         /**
          * 让别人搭乘下载顺风车
+         *
+         * @return false：已经结束了，不再接收顺风车
          */
-        void byDownloadFreeRide(DownloadFreeRide request);
+        boolean byDownloadFreeRide(DownloadFreeRide request);
 
         /**
          * 获取下载顺风车集合
@@ -308,9 +278,9 @@ public class FreeRideManager implements Identifier {
         Set<DownloadFreeRide> getDownloadFreeRideSet();
 
         /**
-         * 执行结束，处理那些坐下载顺风车的请求
+         * 执行结束，处理那些坐下载顺风车的请求，可能在主线程中调用，不能在这里读磁盘缓存
          *
-         * @return 成功找到可以用的资源
+         * @return 已经交给分发线程继续处理了
          */
         boolean processDownloadFreeRide();
     }
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.request;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import me.xiaopan.sketch.Configuration;
+import me.xiaopan.sketch.SLog;
+import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.BitmapPoolUtils;
+import me.xiaopan.sketch.cache.MemoryCache;
+import me.xiaopan.sketch.drawable.SketchGifDrawable;
+import me.xiaopan.sketch.drawable.SketchRefBitmap;
+import me.xiaopan.sketch.uri.UriModel;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 根据即将滑入屏幕的图片预取，一般在 RecyclerView 的滚动监听里把前方若干个 item 的 uri 传进来
+ * <p>
+ * 1. 预取请求都以 {@link RequestPriority#IDLE} 提交，不会和正在显示的图片抢线程<br>
+ * 2. 默认只下载到磁盘缓存，开启 {@link #setWarmMemoryCache(boolean)} 后会按指定的 {@link Resize}、{@link MaxSize} 解码并放入内存缓存，
+ * 显示时用同样的 {@link Resize}、{@link MaxSize} 才能命中<br>
+ * 3. 同时执行的请求数和每个窗口从网络下载的字节数都有上限<br>
+ * 4. 每次调用 {@link #prefetch(List, Resize, MaxSize)} 都会替换预取窗口，已经滑出窗口的请求会被取消
+ * <p>
+ * 只能在主线程使用
+ */
+public class ImagePrefetcher {
+    private static final String NAME = "ImagePrefetcher";
+
+    public static final int DEFAULT_MAX_CONCURRENT = 2;
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    private Sketch sketch;
+    private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private boolean warmMemoryCache;
+
+    private Map<String, Task> window = new LinkedHashMap<String, Task>();
+    private Resize resize;
+    private MaxSize maxSize;
+    private int runningCount;
+    private long windowBytes;
+
+    private long submittedCount;
+    private long canceledCount;
+
+    public ImagePrefetcher(@NonNull Context context) {
+        this.sketch = Sketch.with(context);
+    }
+
+    /**
+     * 替换预取窗口，不在新窗口里的请求会被取消，新加入的 uri 按列表顺序排队预取
+     *
+     * @param uris    即将显示的图片的 uri，越靠前的越先预取
+     * @param resize  解码时用的 {@link Resize}，只在开启了预热内存缓存时有用
+     * @param maxSize 解码时用的 {@link MaxSize}，只在开启了预热内存缓存时有用
+     */
+    public void prefetch(@NonNull List<String> uris, @Nullable Resize resize, @Nullable MaxSize maxSize) {
+        if (!SketchUtils.isMainThread()) {
+            throw new IllegalStateException("Prefetch must be called in the UI thread");
+        }
+
+        Set<String> newUris = new HashSet<String>(uris);
+        Iterator<Map.Entry<String, Task>> iterator = window.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Task task = iterator.next().getValue();
+            if (!newUris.contains(task.uri)) {
+                iterator.remove();
+                task.cancel();
+            }
+        }
+
+        Map<String, Task> newWindow = new LinkedHashMap<String, Task>();
+        for (String uri : uris) {
+            if (TextUtils.isEmpty(uri) || newWindow.containsKey(uri)) {
+                continue;
+            }
+            Task task = window.get(uri);
+            newWindow.put(uri, task != null ? task : new Task(uri));
+        }
+
+        this.window = newWindow;
+        this.resize = resize;
+        this.maxSize = maxSize;
+        this.windowBytes = 0;
+
+        schedule();
+    }
+
+    /**
+     * 取消所有预取请求并清空预取窗口
+     */
+    public void cancel() {
+        for (Task task : window.values()) {
+            task.cancel();
+        }
+        window.clear();
+    }
+
+    private void schedule() {
+        for (Task task : window.values()) {
+            if (runningCount >= maxConcurrent) {
+                return;
+            }
+            if (getUsedBytes() >= maxBytes) {
+                if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
+                    SLog.d(NAME, "Byte budget exhausted. usedBytes=%d, maxBytes=%d", getUsedBytes(), maxBytes);
+                }
+                return;
+            }
+            if (task.state == Task.STATE_WAITING) {
+                task.start();
+            }
+        }
+    }
+
+    /**
+     * 当前窗口已经下载的字节数加上正在下载的字节数
+     */
+    private long getUsedBytes() {
+        long usedBytes = windowBytes;
+        for (Task task : window.values()) {
+            if (task.state == Task.STATE_RUNNING) {
+                usedBytes += task.downloadedBytes;
+            }
+        }
+        return usedBytes;
+    }
+
+    private void onTaskFinished(@NonNull Task task) {
+        runningCount--;
+        windowBytes += task.downloadedBytes;
+        schedule();
+    }
+
+    /**
+     * 获取同时执行的预取请求数量上限
+     */
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * 设置同时执行的预取请求数量上限，默认 {@link #DEFAULT_MAX_CONCURRENT}
+     */
+    public void setMaxConcurrent(int maxConcurrent) {
+        if (maxConcurrent <= 0) {
+            throw new IllegalArgumentException("maxConcurrent must be > 0");
+        }
+        this.maxConcurrent = maxConcurrent;
+        schedule();
+    }
+
+    /**
+     * 获取每个预取窗口最多从网络下载的字节数
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * 设置每个预取窗口最多从网络下载的字节数，默认 {@link #DEFAULT_MAX_BYTES}，已经在磁盘缓存中的不算
+     */
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be > 0");
+        }
+        this.maxBytes = maxBytes;
+        schedule();
+    }
+
+    /**
+     * 是否预热内存缓存
+     */
+    public boolean isWarmMemoryCache() {
+        return warmMemoryCache;
+    }
+
+    /**
+     * 设置是否预热内存缓存，开启后会解码图片并放入内存缓存，否则只下载网络图片到磁盘缓存
+     */
+    public void setWarmMemoryCache(boolean warmMemoryCache) {
+        this.warmMemoryCache = warmMemoryCache;
+    }
+
+    @NonNull
+    public String getStatsInfo() {
+        return String.format(Locale.US, "%s(window=%d,running=%d,usedBytes=%d,maxBytes=%d,submitted=%d,canceled=%d)",
+                NAME, window.size(), runningCount, getUsedBytes(), maxBytes, submittedCount, canceledCount);
+    }
+
+    private class Task implements DownloadListener, LoadListener, DownloadProgressListener {
+        static final int STATE_WAITING = 0;
+        static final int STATE_RUNNING = 1;
+        static final int STATE_FINISHED = 2;
+
+        private String uri;
+        private int state = STATE_WAITING;
+        private AsyncRequest request;
+        private long downloadedBytes;
+
+        Task(@NonNull String uri) {
+            this.uri = uri;
+        }
+
+        void start() {
+            UriModel uriModel = UriModel.match(sketch, uri);
+            if (uriModel == null || (!warmMemoryCache && !uriModel.isFromNet())) {
+                // 不支持的 uri 或者只预热磁盘缓存时的本地图片都没什么可做的
+                state = STATE_FINISHED;
+                return;
+            }
+
+            state = STATE_RUNNING;
+            runningCount++;
+            submittedCount++;
+
+            if (warmMemoryCache) {
+                request = sketch.load(uri, this)
+                        .resize(resize)
+                        .maxSize(maxSize)
+                        .downloadProgressListener(this)
+                        .priority(RequestPriority.IDLE)
+                        .commit();
+            } else {
+                request = sketch.download(uri, this)
+                        .downloadProgressListener(this)
+                        .priority(RequestPriority.IDLE)
+                        .commit();
+            }
+
+            if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
+                SLog.d(NAME, "Prefetch submitted. warmMemoryCache=%s. %s", warmMemoryCache, uri);
+            }
+        }
+
+        void cancel() {
+            if (state != STATE_RUNNING) {
+                return;
+            }
+
+            state = STATE_FINISHED;
+            canceledCount++;
+            if (request != null) {
+                request.cancel(CancelCause.OUT_OF_PREFETCH_WINDOW);
+            }
+            if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
+                SLog.d(NAME, "Prefetch canceled. Out of window. %s", uri);
+            }
+
+            // 已经不在窗口里了，下载的字节也不用算到窗口里，这里不调度新请求，由调用方统一调度
+            runningCount--;
+        }
+
+        private void finish() {
+            // 取消后还会收到回调，磁盘缓存命中时 commit() 还没返回就会回调
+            if (state != STATE_RUNNING) {
+                return;
+            }
+            state = STATE_FINISHED;
+            onTaskFinished(this);
+        }
+
+        @Override
+        public void onStartLoad() {
+
+        }
+
+        @Override
+        public void onCompleted(@NonNull DownloadResult result) {
+            finish();
+        }
+
+        @Override
+        public void onCompleted(@NonNull LoadResult result) {
+            Configuration configuration = sketch.getConfiguration();
+            Bitmap bitmap = result.getBitmap();
+            SketchGifDrawable gifDrawable = result.getGifDrawable();
+            if (bitmap != null) {
+                MemoryCache memoryCache = configuration.getMemoryCache();
+                String key = request != null ? request.getKey() : null;
+                if (state == STATE_RUNNING && key != null && memoryCache.get(key) == null) {
+                    memoryCache.put(key, new SketchRefBitmap(bitmap, key, uri, result.getImageAttrs(), configuration.getBitmapPool()));
+                } else {
+                    BitmapPoolUtils.freeBitmapToPool(bitmap, configuration.getBitmapPool());
+                }
+            } else if (gifDrawable != null) {
+                // GifDrawable 不能放入内存缓存
+                gifDrawable.recycle();
+            }
+            finish();
+        }
+
+        @Override
+        public void onError(@NonNull ErrorCause errorCause) {
+            finish();
+        }
+
+        @Override
+        public void onCanceled(@NonNull CancelCause cancelCause) {
+            finish();
+        }
+
+        @Override
+        public void onUpdateDownloadProgress(int totalLength, int completedLength) {
+            downloadedBytes = completedLength;
+        }
+    }
+}
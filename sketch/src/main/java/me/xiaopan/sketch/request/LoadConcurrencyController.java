@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.request;
+
+/**
+ * 本地任务（主要是解码）的并发数控制器
+ * <p>
+ * 根据 CPU 核数确定并发数的上下限，然后每解码 {@link #WINDOW_SIZE} 张图片统计一次平均解码耗时，
+ * 用 并发数 / 平均耗时 估算吞吐量做爬山调整：有任务在排队并且吞吐量没有下降就加一个线程，加了线程后吞吐量反而下降了就退回去。
+ * 退回去之后要等几个窗口再试，连续失败的话等待的窗口数翻倍，避免在两个值之间来回摆动；
+ * 排队的任务都处理完了就每个窗口收回一个线程，直到初始的并发数
+ */
+public class LoadConcurrencyController {
+    static final int WINDOW_SIZE = 16;
+    private static final int MIN_SIZE = 2;
+    private static final int MAX_SIZE = 6;
+
+    /**
+     * 试探失败后最多等这么多个窗口再试
+     */
+    private static final int MAX_PROBE_BACKOFF = 32;
+
+    private int initialSize;
+    private int maxSize;
+    private int size;
+
+    private int windowCount;
+    private long windowUseTime;
+    private int lastSize;
+    private double lastThroughput = -1;
+    private int failedProbeCount;
+    private int probeBackoff;
+
+    public LoadConcurrencyController(int cpuCount) {
+        this.maxSize = Math.max(MIN_SIZE, Math.min(cpuCount, MAX_SIZE));
+        this.initialSize = Math.max(MIN_SIZE, Math.min(cpuCount / 2 + 1, maxSize));
+        this.size = initialSize;
+        this.lastSize = size;
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * 解码完成了
+     *
+     * @param useTime    本次解码耗时，单位毫秒
+     * @param queueDepth 当前还在排队的任务数量
+     * @return 新的并发数
+     */
+    public synchronized int onDecodeCompleted(long useTime, int queueDepth) {
+        windowCount++;
+        windowUseTime += Math.max(useTime, 1);
+        if (windowCount < WINDOW_SIZE) {
+            return size;
+        }
+
+        double averageUseTime = (double) windowUseTime / windowCount;
+        double throughput = size / averageUseTime;
+        windowCount = 0;
+        windowUseTime = 0;
+
+        if (probeBackoff > 0) {
+            probeBackoff--;
+        }
+
+        if (lastThroughput > 0 && size > lastSize && throughput < lastThroughput) {
+            // 加了线程后吞吐量反而下降了，说明 CPU 或 IO 已经饱和，退回去并且过一段时间再试
+            size = lastSize;
+            failedProbeCount = Math.min(failedProbeCount + 1, 5);
+            probeBackoff = Math.min(1 << failedProbeCount, MAX_PROBE_BACKOFF);
+        } else {
+            if (size > lastSize) {
+                failedProbeCount = 0;
+            }
+            lastSize = size;
+            lastThroughput = throughput;
+            if (queueDepth > 0) {
+                if (probeBackoff == 0 && size < maxSize) {
+                    size++;
+                }
+            } else if (size > initialSize) {
+                // 没有任务在排队了，多出来的线程闲着，收回一个，收回不算试探
+                size--;
+                lastSize = size;
+            }
+        }
+        return size;
+    }
+}
@@ -37,6 +37,7 @@ public class LoadHelper {
 
     private Sketch sketch;
     private boolean sync;
+    private RequestPriority priority;
 
     private String uri;
     private UriModel uriModel;
@@ -62,6 +63,16 @@ public class LoadHelper {
         return this;
     }
 
+    /**
+     * 磁盘缓存过期后先直接使用，同时在后台重新验证
+     */
+    @NonNull
+    @SuppressWarnings("unused")
+    public LoadHelper revalidateDiskCache() {
+        loadOptions.setDiskCacheRevalidateEnabled(true);
+        return this;
+    }
+
     /**
      * 禁用 BitmapPool
      */
@@ -191,6 +202,16 @@ public class LoadHelper {
         return this;
     }
 
+    /**
+     * 开启精确尺寸解码，解码时就直接缩放到 resize 对应的尺寸
+     */
+    @NonNull
+    @SuppressWarnings("unused")
+    public LoadHelper exactSizeDecode() {
+        loadOptions.setExactSizeDecode(true);
+        return this;
+    }
+
     /**
      * 为了加快速度，将经过 ImageProcessor、resize 或 thumbnailMode 处理过的图片保存到磁盘缓存中，下次就直接读取
      */
@@ -230,6 +251,15 @@ public class LoadHelper {
         return this;
     }
 
+    /**
+     * 设置请求在执行器队列中的优先级，例如预取时用 {@link RequestPriority#IDLE} 避免和正在显示的图片抢线程
+     */
+    @NonNull
+    public LoadHelper priority(@Nullable RequestPriority priority) {
+        this.priority = priority;
+        return this;
+    }
+
     /**
      * 同步处理
      */
@@ -363,6 +393,7 @@ public class LoadHelper {
         RequestFactory requestFactory = sketch.getConfiguration().getRequestFactory();
         LoadRequest request = requestFactory.newLoadRequest(sketch, uri, uriModel, key, loadOptions, loadListener, downloadProgressListener);
         request.setSync(sync);
+        request.setPriority(priority);
 
         if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
             SLog.d(NAME, "Run dispatch submitted. %s", key);
@@ -64,6 +64,11 @@ public class LoadOptions extends DownloadOptions {
      */
     private boolean thumbnailMode;
 
+    /**
+     * 开启精确尺寸解码，有 resize 时解码时就用 inSampleSize 加上 inDensity 和 inTargetDensity 直接缩放到 resize 对应的尺寸，不用先解码出一张较大的图片再缩小
+     */
+    private boolean exactSizeDecode;
+
     /**
      * 图片处理器
      */
@@ -107,6 +112,12 @@ public class LoadOptions extends DownloadOptions {
         return (LoadOptions) super.setCacheInDiskDisabled(cacheInDiskDisabled);
     }
 
+    @NonNull
+    @Override
+    public LoadOptions setDiskCacheRevalidateEnabled(boolean diskCacheRevalidateEnabled) {
+        return (LoadOptions) super.setDiskCacheRevalidateEnabled(diskCacheRevalidateEnabled);
+    }
+
     @NonNull
     @Override
     public LoadOptions setRequestLevel(@Nullable RequestLevel requestLevel) {
@@ -331,6 +342,25 @@ public class LoadOptions extends DownloadOptions {
         return this;
     }
 
+    /**
+     * 使用精确尺寸解码，解码时就直接缩放到 resize 对应的尺寸
+     */
+    public boolean isExactSizeDecode() {
+        return exactSizeDecode;
+    }
+
+    /**
+     * 设置使用精确尺寸解码，解码时就直接缩放到 resize 对应的尺寸，省掉一张中间图片，只有设置了 resize 时才有效
+     *
+     * @param exactSizeDecode 精确尺寸解码
+     * @return LoadOptions
+     */
+    @NonNull
+    public LoadOptions setExactSizeDecode(boolean exactSizeDecode) {
+        this.exactSizeDecode = exactSizeDecode;
+        return this;
+    }
+
     /**
      * 将经过 ImageProcessor、resize 或 thumbnailMode 处理过的图片保存到磁盘缓存中，下次就直接读取，加快显示速度
      */
@@ -400,6 +430,7 @@ public class LoadOptions extends DownloadOptions {
         bitmapConfig = null;
         inPreferQualityOverSpeed = false;
         thumbnailMode = false;
+        exactSizeDecode = false;
         cacheProcessedImageInDisk = false;
         bitmapPoolDisabled = false;
         correctImageOrientationDisabled = false;
@@ -426,6 +457,7 @@ public class LoadOptions extends DownloadOptions {
         bitmapConfig = options.bitmapConfig;
         inPreferQualityOverSpeed = options.inPreferQualityOverSpeed;
         thumbnailMode = options.thumbnailMode;
+        exactSizeDecode = options.exactSizeDecode;
         cacheProcessedImageInDisk = options.cacheProcessedImageInDisk;
         bitmapPoolDisabled = options.bitmapPoolDisabled;
         correctImageOrientationDisabled = options.correctImageOrientationDisabled;
@@ -444,6 +476,9 @@ public class LoadOptions extends DownloadOptions {
             if (thumbnailMode) {
                 builder.append("_").append("thumbnailMode");
             }
+            if (exactSizeDecode) {
+                builder.append("_").append("exactSizeDecode");
+            }
         }
         if (correctImageOrientationDisabled) {
             builder.append("_").append("correctImageOrientationDisabled");
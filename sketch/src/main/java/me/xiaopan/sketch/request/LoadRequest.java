@@ -17,6 +17,7 @@
 package me.xiaopan.sketch.request;
 
 import android.graphics.Bitmap;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 
 import me.xiaopan.sketch.SLog;
@@ -171,8 +172,10 @@ public class LoadRequest extends FreeRideDownloadRequest {
 
         setStatus(Status.DECODING);
         DecodeResult decodeResult;
+        long decodeStartTime = SystemClock.uptimeMillis();
         try {
             decodeResult = getConfiguration().getDecoder().decode(this);
+            getConfiguration().getExecutor().onLoadCompleted(SystemClock.uptimeMillis() - decodeStartTime);
         } catch (DecodeException e) {
             e.printStackTrace();
             doError(e.getErrorCause());
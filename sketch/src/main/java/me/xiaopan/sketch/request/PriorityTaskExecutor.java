@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.request;
+
+import android.support.annotation.NonNull;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.xiaopan.sketch.SLog;
+
+/**
+ * 支持优先级的任务执行器，用来替代固定 LinkedBlockingQueue + DiscardOldestPolicy 的线程池
+ * <p>
+ * 1. 按 {@link RequestPriority} 排队，{@link RequestPriority#HIGH} 内后进先出，其它优先级内先进先出<br>
+ * 2. 队列过长时先清理掉已经取消的请求，还是超出容量的话就取消优先级最低、排队最久的那个请求，而不是悄悄丢掉最早的请求<br>
+ * 3. 统计队列深度和排队等待时间
+ */
+public class PriorityTaskExecutor extends ThreadPoolExecutor {
+    private static final String NAME = "PriorityTaskExecutor";
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 200;
+
+    /**
+     * 队列长度超过这个值后每次提交都会先清理一遍已取消的请求
+     */
+    private static final int PURGE_THRESHOLD = 16;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong executedCount = new AtomicLong();
+    private final AtomicLong waitTimeCount = new AtomicLong();
+    private final AtomicLong purgedCount = new AtomicLong();
+    private final AtomicLong discardedCount = new AtomicLong();
+    private volatile long maxWaitTime;
+    private volatile int maxQueueDepth;
+
+    private String name;
+    private int queueCapacity;
+
+    public PriorityTaskExecutor(@NonNull String name, int poolSize, int queueCapacity, @NonNull ThreadFactory threadFactory) {
+        super(poolSize, poolSize, 60, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), threadFactory);
+        this.name = name;
+        this.queueCapacity = queueCapacity;
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+        PriorityTask task = command instanceof PriorityTask ? (PriorityTask) command
+                : new PriorityTask(command, sequence.getAndIncrement());
+
+        int queueDepth = getQueue().size();
+        if (queueDepth >= PURGE_THRESHOLD) {
+            purgeCanceled();
+            queueDepth = getQueue().size();
+        }
+        if (queueDepth >= queueCapacity && !discardLowerThan(task)) {
+            // 新任务自己就是优先级最低的，那就丢弃新任务，不能为了它取消排在前面的任务
+            discard(task);
+            return;
+        }
+
+        super.execute(task);
+
+        queueDepth = getQueue().size();
+        if (queueDepth > maxQueueDepth) {
+            maxQueueDepth = queueDepth;
+        }
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+
+        if (r instanceof PriorityTask) {
+            long waitTime = System.currentTimeMillis() - ((PriorityTask) r).submitTime;
+            executedCount.incrementAndGet();
+            waitTimeCount.addAndGet(waitTime);
+            if (waitTime > maxWaitTime) {
+                maxWaitTime = waitTime;
+            }
+        }
+    }
+
+    /**
+     * 从队列中删除已经取消的请求，它们即使被执行也只是立即返回，白白占着队列的位置
+     *
+     * @return 删除的数量
+     */
+    public int purgeCanceled() {
+        int count = 0;
+        Iterator<Runnable> iterator = getQueue().iterator();
+        while (iterator.hasNext()) {
+            Runnable runnable = iterator.next();
+            if (runnable instanceof PriorityTask && ((PriorityTask) runnable).isCanceled()) {
+                // PriorityBlockingQueue 的迭代器是快照，所以这里要直接从队列中删除
+                if (getQueue().remove(runnable)) {
+                    count++;
+                }
+            }
+        }
+
+        if (count > 0) {
+            purgedCount.addAndGet(count);
+            if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
+                SLog.d(NAME, "%s. purge canceled task. count=%d, queueDepth=%d", name, count, getQueue().size());
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 队列满了，找出排在最后面的任务，只有它比新任务排得更靠后时才取消它给新任务腾位置
+     *
+     * @return false：新任务才是排在最后面的，应该丢弃新任务
+     */
+    private boolean discardLowerThan(PriorityTask newTask) {
+        PriorityTask lowestTask = null;
+        for (Runnable runnable : getQueue()) {
+            if (runnable instanceof PriorityTask
+                    && (lowestTask == null || ((PriorityTask) runnable).compareTo(lowestTask) > 0)) {
+                lowestTask = (PriorityTask) runnable;
+            }
+        }
+
+        if (lowestTask == null) {
+            return true;
+        }
+        if (lowestTask.compareTo(newTask) <= 0) {
+            return false;
+        }
+
+        // 删除失败说明已经被线程取走了，队列也就有空位了
+        if (getQueue().remove(lowestTask)) {
+            discard(lowestTask);
+        }
+        return true;
+    }
+
+    private void discard(PriorityTask task) {
+        discardedCount.incrementAndGet();
+        task.discard();
+        SLog.w(NAME, "%s. queue full, discard task. priority=%s. %s", name, task.priority, task.getLog());
+    }
+
+    /**
+     * 调整线程数，扩大时先调最大值再调核心数，缩小时反过来，保证任何时候核心数都不大于最大值
+     *
+     * @return true：线程数有变化
+     */
+    public synchronized boolean setPoolSize(int poolSize) {
+        if (poolSize <= 0 || poolSize == getCorePoolSize() || isShutdown()) {
+            return false;
+        }
+
+        if (poolSize > getMaximumPoolSize()) {
+            setMaximumPoolSize(poolSize);
+            setCorePoolSize(poolSize);
+        } else {
+            setCorePoolSize(poolSize);
+            setMaximumPoolSize(poolSize);
+        }
+        return true;
+    }
+
+    /**
+     * 获取当前排队中的任务数量
+     */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    /**
+     * 获取最大的排队任务数量
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * 获取平均排队等待时间，单位毫秒
+     */
+    public long getAverageWaitTime() {
+        long count = executedCount.get();
+        return count > 0 ? waitTimeCount.get() / count : 0;
+    }
+
+    /**
+     * 获取最长排队等待时间，单位毫秒
+     */
+    public long getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    /**
+     * 获取被清理掉的已取消任务数量
+     */
+    public long getPurgedCount() {
+        return purgedCount.get();
+    }
+
+    /**
+     * 获取因为队列已满而被取消的任务数量
+     */
+    public long getDiscardedCount() {
+        return discardedCount.get();
+    }
+
+    @NonNull
+    public String getStatsInfo() {
+        return String.format(Locale.US, "%s(poolSize=%d,queueDepth=%d,maxQueueDepth=%d,averageWaitTime=%dms,maxWaitTime=%dms,purged=%d,discarded=%d)",
+                name, getCorePoolSize(), getQueueDepth(), maxQueueDepth, getAverageWaitTime(), maxWaitTime,
+                purgedCount.get(), discardedCount.get());
+    }
+
+    /**
+     * 不是请求的后台任务可以实现这个接口来指定优先级，否则按 {@link RequestPriority#NORMAL} 处理
+     */
+    public interface PriorityRunnable extends Runnable {
+        @NonNull
+        RequestPriority getPriority();
+
+        /**
+         * 队列满了被丢弃时回调，之后不会再执行 {@link #run()}，run() 中才会释放的东西要在这里释放
+         */
+        void onDiscard();
+    }
+
+    /**
+     * 包装提交的任务，记录优先级、提交顺序和提交时间
+     */
+    private static class PriorityTask implements Runnable, Comparable<PriorityTask> {
+        private Runnable runnable;
+        private RequestPriority priority;
+        private long sequence;
+        private long submitTime;
+
+        PriorityTask(Runnable runnable, long sequence) {
+            this.runnable = runnable;
+            this.sequence = sequence;
+            this.submitTime = System.currentTimeMillis();
+            if (runnable instanceof AsyncRequest) {
+                this.priority = ((AsyncRequest) runnable).getPriority();
+            } else if (runnable instanceof PriorityRunnable) {
+                this.priority = ((PriorityRunnable) runnable).getPriority();
+            } else {
+                this.priority = RequestPriority.NORMAL;
+            }
+        }
+
+        @Override
+        public void run() {
+            runnable.run();
+        }
+
+        boolean isCanceled() {
+            return runnable instanceof BaseRequest && ((BaseRequest) runnable).isCanceled();
+        }
+
+        void discard() {
+            if (runnable instanceof BaseRequest) {
+                ((BaseRequest) runnable).cancel(CancelCause.QUEUE_OVERFLOW);
+            } else if (runnable instanceof PriorityRunnable) {
+                ((PriorityRunnable) runnable).onDiscard();
+            }
+        }
+
+        String getLog() {
+            return runnable instanceof BaseRequest ? ((BaseRequest) runnable).getKey() : runnable.toString();
+        }
+
+        /**
+         * 排在前面的先执行
+         */
+        @Override
+        public int compareTo(@NonNull PriorityTask another) {
+            if (priority != another.priority) {
+                return another.priority.getValue() - priority.getValue();
+            }
+
+            // 可见的图片后进先出，快速滑动时最新出现的图片不用排在已经滑出屏幕的图片后面
+            int result = sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+            return priority == RequestPriority.HIGH ? -result : result;
+        }
+    }
+}
@@ -16,37 +16,51 @@
 
 package me.xiaopan.sketch.request;
 
-import android.os.Build;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Message;
+import android.os.Process;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import me.xiaopan.sketch.Identifier;
+import me.xiaopan.sketch.SLog;
 
 /**
- * 请求执行器
+ * 请求执行器，本地任务和网络任务默认使用 {@link PriorityTaskExecutor} 按优先级执行，也可以通过
+ * {@link #setLocalTaskExecutor(ExecutorService)} 和 {@link #setNetTaskExecutor(ExecutorService)} 替换成自定义的执行器
+ * <p>
+ * 使用无参构造函数时线程数是自适应的，本地任务由 {@link LoadConcurrencyController} 根据解码耗时调整，
+ * 网络任务由 {@link DownloadConcurrencyController} 根据连接耗时和下载速度调整；指定了线程数时则固定不变
+ * <p>
+ * 分发任务只是查一下磁盘缓存的索引，用 {@link #DEFAULT_DISPATCH_THREAD_POOL_SIZE} 个低优先级的线程并行执行，
+ * 一个慢的磁盘操作不会卡住所有请求的分发，分发队列和以前一样不限长度，任务不会被丢弃
  */
 public class RequestExecutor implements Identifier {
     public static final int DEFAULT_LOCAL_THREAD_POOL_SIZE = 3;
     public static final int DEFAULT_NET_THREAD_POOL_SIZE = 3;
+    public static final int DEFAULT_DISPATCH_THREAD_POOL_SIZE = 2;
 
     private static final String KEY = "RequestExecutor";
+    private static final String NAME = "RequestExecutor";
 
     private ExecutorService netTaskExecutor;    //网络任务执行器
     private ExecutorService localTaskExecutor;    //本地任务执行器
-    private Handler dispatchHandler;
-    private DispatchThread dispatchThread;
+    private ExecutorService dispatchTaskExecutor;    //分发任务执行器
+    private ExecutorService diskWriteExecutor;    //后台写磁盘缓存的执行器
+    private ExecutorService previewDecodeExecutor;    //解码渐进式预览图的执行器
     private boolean shutdown;
     private int localThreadPoolSize;
     private int netThreadPoolSize;
+    @Nullable
+    private LoadConcurrencyController loadConcurrencyController;
+    @Nullable
+    private DownloadConcurrencyController downloadConcurrencyController;
 
     public RequestExecutor(int localThreadPoolSize, int netThreadPoolSize) {
         this.localThreadPoolSize = localThreadPoolSize;
@@ -54,7 +68,10 @@ public class RequestExecutor implements Identifier {
     }
 
     public RequestExecutor() {
-        this(DEFAULT_LOCAL_THREAD_POOL_SIZE, DEFAULT_NET_THREAD_POOL_SIZE);
+        this.loadConcurrencyController = new LoadConcurrencyController(Runtime.getRuntime().availableProcessors());
+        this.downloadConcurrencyController = new DownloadConcurrencyController(DEFAULT_NET_THREAD_POOL_SIZE);
+        this.localThreadPoolSize = loadConcurrencyController.getSize();
+        this.netThreadPoolSize = downloadConcurrencyController.getSize();
     }
 
     public void submitDispatch(Runnable runnable) {
@@ -63,16 +80,18 @@ public class RequestExecutor implements Identifier {
         }
 
         // 之所有这里采用了懒加载的方式是为了兼容多进程，避免资源浪费
-        if (dispatchHandler == null || dispatchThread == null) {
+        if (dispatchTaskExecutor == null) {
             synchronized (RequestExecutor.this) {
-                if (dispatchHandler == null) {
-                    dispatchThread = new DispatchThread("DispatchThread");
-                    dispatchThread.start();
-                    dispatchHandler = new Handler(dispatchThread.getLooper(), new DispatchCallback());
+                if (dispatchTaskExecutor == null) {
+                    // 调低线程优先级这对于流畅度很重要。分发任务很快就能执行完，队列不限长度，
+                    // 否则快速滑动时还绑定在 View 上的显示请求会被丢弃，图片就一直显示不出来
+                    dispatchTaskExecutor = new PriorityTaskExecutor("DispatchThread", DEFAULT_DISPATCH_THREAD_POOL_SIZE,
+                            Integer.MAX_VALUE,
+                            new DefaultThreadFactory("DispatchThread", Process.THREAD_PRIORITY_BACKGROUND));
                 }
             }
         }
-        dispatchHandler.obtainMessage(0, runnable).sendToTarget();
+        dispatchTaskExecutor.execute(runnable);
     }
 
     public void submitLoad(Runnable runnable) {
@@ -84,13 +103,8 @@ public class RequestExecutor implements Identifier {
         if (localTaskExecutor == null) {
             synchronized (RequestExecutor.this) {
                 if (localTaskExecutor == null) {
-                    localTaskExecutor = new ThreadPoolExecutor(
-                            localThreadPoolSize,
-                            localThreadPoolSize,
-                            60, TimeUnit.SECONDS,
-                            new LinkedBlockingQueue<Runnable>(200),
-                            new DefaultThreadFactory("LoadThread"),
-                            new ThreadPoolExecutor.DiscardOldestPolicy());
+                    localTaskExecutor = new PriorityTaskExecutor("LoadThread", localThreadPoolSize,
+                            PriorityTaskExecutor.DEFAULT_QUEUE_CAPACITY, new DefaultThreadFactory("LoadThread"));
                 }
             }
         }
@@ -106,19 +120,65 @@ public class RequestExecutor implements Identifier {
         if (netTaskExecutor == null) {
             synchronized (RequestExecutor.this) {
                 if (netTaskExecutor == null) {
-                    netTaskExecutor = new ThreadPoolExecutor(
-                            netThreadPoolSize,
-                            netThreadPoolSize,
-                            60, TimeUnit.SECONDS,
-                            new LinkedBlockingQueue<Runnable>(200),
-                            new DefaultThreadFactory("DownloadThread"),
-                            new ThreadPoolExecutor.DiscardOldestPolicy());
+                    netTaskExecutor = new PriorityTaskExecutor("DownloadThread", netThreadPoolSize,
+                            PriorityTaskExecutor.DEFAULT_QUEUE_CAPACITY, new DefaultThreadFactory("DownloadThread"));
                 }
             }
         }
         netTaskExecutor.execute(runnable);
     }
 
+    /**
+     * 提交到后台写磁盘缓存，只有一个低优先级的线程，按提交顺序执行，任务不会被丢弃
+     *
+     * @return false：已经关闭了，任务不会执行，需要调用方自己处理
+     */
+    public boolean submitDiskWrite(Runnable runnable) {
+        // 和 shutdown() 用同一把锁，检查和提交之间不会被关闭，返回 true 的任务一定会执行
+        synchronized (RequestExecutor.this) {
+            if (shutdown) {
+                return false;
+            }
+
+            // 之所有这里采用了懒加载的方式是为了兼容多进程，避免资源浪费
+            if (diskWriteExecutor == null) {
+                diskWriteExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                        new DefaultThreadFactory("DiskWriteThread", Process.THREAD_PRIORITY_BACKGROUND));
+            }
+            try {
+                diskWriteExecutor.execute(runnable);
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 提交解码预览图的任务，只有一个低优先级的线程，预览图晚一点显示没关系，不能和正式的解码抢 CPU
+     *
+     * @return false：已经关闭了，任务不会执行
+     */
+    public boolean submitPreviewDecode(Runnable runnable) {
+        synchronized (RequestExecutor.this) {
+            if (shutdown) {
+                return false;
+            }
+
+            // 之所有这里采用了懒加载的方式是为了兼容多进程，避免资源浪费
+            if (previewDecodeExecutor == null) {
+                previewDecodeExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                        new DefaultThreadFactory("PreviewDecodeThread", Process.THREAD_PRIORITY_BACKGROUND));
+            }
+            try {
+                previewDecodeExecutor.execute(runnable);
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+            return true;
+        }
+    }
+
     @SuppressWarnings("unused")
     public void setLocalTaskExecutor(ExecutorService localTaskExecutor) {
         if (shutdown) {
@@ -137,24 +197,95 @@ public class RequestExecutor implements Identifier {
         this.netTaskExecutor = netTaskExecutor;
     }
 
+    /**
+     * 一个本地任务解码完成了，用于自适应调整本地任务的线程数
+     *
+     * @param decodeUseTime 解码耗时，单位毫秒
+     */
+    public void onLoadCompleted(long decodeUseTime) {
+        LoadConcurrencyController controller = loadConcurrencyController;
+        ExecutorService executor = localTaskExecutor;
+        if (controller == null || !(executor instanceof PriorityTaskExecutor)) {
+            return;
+        }
+
+        PriorityTaskExecutor priorityTaskExecutor = (PriorityTaskExecutor) executor;
+        int newSize = controller.onDecodeCompleted(decodeUseTime, priorityTaskExecutor.getQueueDepth());
+        if (priorityTaskExecutor.setPoolSize(newSize)) {
+            localThreadPoolSize = newSize;
+            if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
+                SLog.d(NAME, "local thread pool size changed to %d", newSize);
+            }
+        }
+    }
+
+    /**
+     * 一个网络任务下载结束了，用于自适应调整网络任务的线程数
+     *
+     * @param host        图片所在的 host
+     * @param connectTime 建立连接并拿到响应码的耗时，单位毫秒，拿不到时传 -1
+     * @param bytes       读取到的字节数
+     * @param readTime    读取数据的耗时，单位毫秒
+     * @param success     是否成功
+     */
+    public void onDownloadFinished(@Nullable String host, long connectTime, long bytes, long readTime, boolean success) {
+        DownloadConcurrencyController controller = downloadConcurrencyController;
+        ExecutorService executor = netTaskExecutor;
+        if (controller == null || !(executor instanceof PriorityTaskExecutor)) {
+            return;
+        }
+
+        PriorityTaskExecutor priorityTaskExecutor = (PriorityTaskExecutor) executor;
+        int newSize = controller.onDownloadCompleted(host != null ? host : "", connectTime, bytes, readTime,
+                success, priorityTaskExecutor.getActiveCount());
+        if (priorityTaskExecutor.setPoolSize(newSize)) {
+            netThreadPoolSize = newSize;
+            if (SLog.isLoggable(SLog.LEVEL_DEBUG | SLog.TYPE_FLOW)) {
+                SLog.d(NAME, "net thread pool size changed to %d. host=%s", newSize, host);
+            }
+        }
+    }
+
+    /**
+     * 获取分发任务执行器的排队统计信息，包括分发排队的平均和最长等待时间
+     */
+    @Nullable
+    @SuppressWarnings("unused")
+    public String getDispatchTaskStatsInfo() {
+        ExecutorService executor = dispatchTaskExecutor;
+        return executor instanceof PriorityTaskExecutor ? ((PriorityTaskExecutor) executor).getStatsInfo() : null;
+    }
+
+    /**
+     * 获取本地任务执行器的排队统计信息，自定义的执行器不支持统计时返回 null
+     */
+    @Nullable
+    @SuppressWarnings("unused")
+    public String getLocalTaskStatsInfo() {
+        ExecutorService executor = localTaskExecutor;
+        return executor instanceof PriorityTaskExecutor ? ((PriorityTaskExecutor) executor).getStatsInfo() : null;
+    }
+
+    /**
+     * 获取网络任务执行器的排队统计信息，自定义的执行器不支持统计时返回 null
+     */
+    @Nullable
+    @SuppressWarnings("unused")
+    public String getNetTaskStatsInfo() {
+        ExecutorService executor = netTaskExecutor;
+        return executor instanceof PriorityTaskExecutor ? ((PriorityTaskExecutor) executor).getStatsInfo() : null;
+    }
+
     @NonNull
     @Override
     public String getKey() {
         return String.format("%s(%s", KEY, shutdown ? "shutdown" : "running)");
     }
 
-    public void shutdown() {
-        if (dispatchHandler != null) {
-            dispatchHandler = null;
-        }
-
-        if (dispatchThread != null) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
-                dispatchThread.quitSafely();
-            } else {
-                dispatchThread.quit();
-            }
-            dispatchThread = null;
+    public synchronized void shutdown() {
+        if (dispatchTaskExecutor != null) {
+            dispatchTaskExecutor.shutdown();
+            dispatchTaskExecutor = null;
         }
 
         if (netTaskExecutor != null) {
@@ -167,6 +298,17 @@ public class RequestExecutor implements Identifier {
             localTaskExecutor = null;
         }
 
+        if (previewDecodeExecutor != null) {
+            previewDecodeExecutor.shutdownNow();
+            previewDecodeExecutor = null;
+        }
+
+        // 已经提交的磁盘缓存还是要写完
+        if (diskWriteExecutor != null) {
+            diskWriteExecutor.shutdown();
+            diskWriteExecutor = null;
+        }
+
         shutdown = true;
     }
 
@@ -174,36 +316,36 @@ public class RequestExecutor implements Identifier {
         return shutdown;
     }
 
-    private static final class DispatchThread extends HandlerThread {
-
-        public DispatchThread(String name) {
-            // 调低线程优先级这对于流畅度很重要
-            super(name, android.os.Process.THREAD_PRIORITY_BACKGROUND);
-        }
-    }
-
-    private static final class DispatchCallback implements Handler.Callback {
-        @Override
-        public boolean handleMessage(Message msg) {
-            ((Runnable) msg.obj).run();
-            return true;
-        }
-    }
-
     private static class DefaultThreadFactory implements ThreadFactory {
         private final ThreadGroup group;
         private final AtomicInteger threadNumber = new AtomicInteger(1);
         private final String namePrefix;
+        private final int threadPriority;
 
         private DefaultThreadFactory(String namePrefix) {
+            this(namePrefix, Process.THREAD_PRIORITY_DEFAULT);
+        }
+
+        private DefaultThreadFactory(String namePrefix, int threadPriority) {
             SecurityManager s = System.getSecurityManager();
             group = (s != null) ? s.getThreadGroup() :
                     Thread.currentThread().getThreadGroup();
             this.namePrefix = namePrefix;
+            this.threadPriority = threadPriority;
         }
 
-        public Thread newThread(Runnable r) {
-            Thread t = new Thread(group, r,
+        public Thread newThread(final Runnable r) {
+            Runnable runnable = r;
+            if (threadPriority != Process.THREAD_PRIORITY_DEFAULT) {
+                runnable = new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(threadPriority);
+                        r.run();
+                    }
+                };
+            }
+            Thread t = new Thread(group, runnable,
                     namePrefix + threadNumber.getAndIncrement(),
                     0);
             if (t.isDaemon())
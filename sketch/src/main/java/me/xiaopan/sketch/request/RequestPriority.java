@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.request;
+
+/**
+ * 请求优先级，决定请求在执行器队列中的排队顺序，数值越大越先执行
+ */
+public enum RequestPriority {
+    /**
+     * 正在显示在屏幕上的图片，同一优先级内后提交的先执行，这样快速滑动时最新出现的图片能最先显示出来
+     */
+    HIGH(3),
+
+    /**
+     * 普通的加载和下载请求，同一优先级内先提交的先执行
+     */
+    NORMAL(2),
+
+    /**
+     * 已经不可见的图片
+     */
+    LOW(1),
+
+    /**
+     * 空闲时才执行，适用于预加载这种可有可无的请求
+     */
+    IDLE(0);
+
+    private int value;
+
+    RequestPriority(int value) {
+        this.value = value;
+    }
+
+    public int getValue() {
+        return value;
+    }
+}
@@ -24,13 +24,13 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
@@ -40,12 +40,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import me.xiaopan.sketch.SLog;
 
@@ -92,6 +94,19 @@ import me.xiaopan.sketch.SLog;
  * an error occurs while writing a cache value, the edit will fail silently.
  * Callers should handle other problems by catching {@code IOException} and
  * responding appropriately.
+ * <p>Reads ({@link #get}, {@link #getSimpleSnapshot}, {@link #exist}) look up a
+ * concurrent index without taking the cache lock. The LRU promotion and the
+ * READ journal line of a read are queued and applied in batches on the
+ * background thread, so reads never wait for edits, commits or journal writes.
+ * <p>Journal lines are group committed: they are buffered and written plus
+ * fsync'ed once {@link #JOURNAL_FLUSH_OPS} lines are pending or
+ * {@link #JOURNAL_FLUSH_DELAY_MS} after the first pending line, instead of
+ * flushing on every edit. A crash can lose the last window of lines; on open
+ * the cache rewrites a journal with a torn last line and deletes value files
+ * the journal does not know about, so nothing leaks.
+ * <p>Compaction snapshots the entries under the cache lock, writes the new
+ * journal without holding it, then appends the lines written meanwhile and
+ * swaps the files under the lock again.
  */
 public final class DiskLruCache implements Closeable {
     public static final String JOURNAL_FILE = "journal";
@@ -105,7 +120,10 @@ public final class DiskLruCache implements Closeable {
     private static final String READ = "READ";
 
     private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
+    static final int JOURNAL_FLUSH_OPS = 64;
+    static final long JOURNAL_FLUSH_DELAY_MS = 1000;
 
     /*
      * This cache uses a journal file named "journal". A typical journal file
@@ -153,10 +171,26 @@ public final class DiskLruCache implements Closeable {
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
-    private long size = 0;
-    private Writer journalWriter;
+    private volatile long size = 0;
+    private volatile Writer journalWriter;
+    private FileOutputStream journalStream;
+    private int unflushedOpCount;
+    private boolean journalFlushScheduled;
+    /**
+     * Lines appended while a compaction is writing the new journal, null when not compacting.
+     */
+    private List<String> compactionTail;
     private final LinkedHashMap<String, Entry> lruEntries
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    /**
+     * Mirrors {@link #lruEntries} for lock-free reads. Only modified while holding the cache lock.
+     */
+    private final ConcurrentHashMap<String, Entry> entryIndex = new ConcurrentHashMap<String, Entry>();
+    /**
+     * Keys read since the last drain, waiting to be promoted in {@link #lruEntries} and journaled.
+     */
+    private final ConcurrentLinkedQueue<String> pendingReads = new ConcurrentLinkedQueue<String>();
+    private final AtomicBoolean pendingReadsScheduled = new AtomicBoolean();
     private int redundantOpCount;
 
     /**
@@ -262,26 +296,73 @@ public final class DiskLruCache implements Closeable {
     }
 
     /**
-     * This cache uses a single background thread to evict entries.
+     * This cache uses a single background thread to evict entries, apply reads,
+     * flush the journal and compact it.
      */
-    private final ExecutorService executorService = new ThreadPoolExecutor(0, 1,
-            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private final ScheduledThreadPoolExecutor executorService = createExecutor();
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override
         public Void call() throws Exception {
+            boolean compact;
             synchronized (DiskLruCache.this) {
                 if (journalWriter == null) {
                     return null; // closed
                 }
+                drainPendingReads();
                 trimToSize();
-                if (journalRebuildRequired()) {
-                    rebuildJournal();
-                    redundantOpCount = 0;
+                compact = journalRebuildRequired();
+            }
+            if (compact) {
+                compactJournal();
+            }
+            return null;
+        }
+    };
+    private final Callable<Void> drainReadsCallable = new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+            pendingReadsScheduled.set(false);
+            boolean compact;
+            synchronized (DiskLruCache.this) {
+                if (journalWriter == null) {
+                    return null; // closed
                 }
+                drainPendingReads();
+                compact = journalRebuildRequired();
+            }
+            if (compact) {
+                compactJournal();
             }
             return null;
         }
     };
+    private final Callable<Void> flushJournalCallable = new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+            synchronized (DiskLruCache.this) {
+                journalFlushScheduled = false;
+                if (journalWriter == null) {
+                    return null; // closed
+                }
+                flushJournal(false);
+            }
+            return null;
+        }
+    };
+    private final Callable<Void> deleteOrphanFilesCallable = new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+            deleteOrphanFiles();
+            return null;
+        }
+    };
+
+    private static ScheduledThreadPoolExecutor createExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
     private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
         this.directory = directory;
@@ -317,8 +398,15 @@ public final class DiskLruCache implements Closeable {
             try {
                 cache.readJournal();
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                cache.entryIndex.putAll(cache.lruEntries);
+                if (cache.journalEndsWithNewLine()) {
+                    cache.openJournalWriter();
+                } else {
+                    // the last line was torn by a crash, appending after it would corrupt the journal
+                    cache.rebuildJournal();
+                }
+                // value files written after the last journal flush are unknown to the journal
+                cache.executorService.submit(cache.deleteOrphanFilesCallable);
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
@@ -417,16 +505,27 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
-    /**
-     * Creates a new journal that omits redundant information. This replaces the
-     * current journal if it exists.
-     */
-    private synchronized void rebuildJournal() throws IOException {
-        if (journalWriter != null) {
-            journalWriter.close();
+    private boolean journalEndsWithNewLine() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(journalFile, "r");
+        try {
+            long length = file.length();
+            if (length == 0) {
+                return false;
+            }
+            file.seek(length - 1);
+            return file.read() == '\n';
+        } finally {
+            closeQuietly(file);
         }
+    }
+
+    private void openJournalWriter() throws IOException {
+        journalStream = new FileOutputStream(journalFile, true);
+        journalWriter = new BufferedWriter(new OutputStreamWriter(journalStream, US_ASCII), IO_BUFFER_SIZE);
+        unflushedOpCount = 0;
+    }
 
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
+    private void writeJournalHeader(Writer writer) throws IOException {
         writer.write(MAGIC);
         writer.write("\n");
         writer.write(VERSION_1);
@@ -436,18 +535,185 @@ public final class DiskLruCache implements Closeable {
         writer.write(Integer.toString(valueCount));
         writer.write("\n");
         writer.write("\n");
+    }
 
+    private List<String> snapshotJournalLines() throws IOException {
+        List<String> lines = new ArrayList<String>(lruEntries.size());
         for (Entry entry : lruEntries.values()) {
             if (entry.currentEditor != null) {
-                writer.write(DIRTY + ' ' + entry.key + '\n');
+                lines.add(DIRTY + ' ' + entry.key + '\n');
             } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+                lines.add(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
             }
         }
+        return lines;
+    }
+
+    /**
+     * Creates a new journal that omits redundant information. This replaces the
+     * current journal if it exists. Only used while opening, see
+     * {@link #compactJournal()} for compaction of an open cache.
+     */
+    private synchronized void rebuildJournal() throws IOException {
+        if (journalWriter != null) {
+            journalWriter.close();
+        }
 
+        FileOutputStream out = new FileOutputStream(journalFileTmp);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, US_ASCII), IO_BUFFER_SIZE);
+        writeJournalHeader(writer);
+        for (String line : snapshotJournalLines()) {
+            writer.write(line);
+        }
+        writer.flush();
+        out.getFD().sync();
         writer.close();
+
         journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+        openJournalWriter();
+    }
+
+    /**
+     * Compacts the journal of an open cache. The entries are copied under the
+     * cache lock, but the new journal is written without it, so edits and
+     * commits are only blocked while the copy is taken and the files are swapped.
+     */
+    private void compactJournal() throws IOException {
+        List<String> lines;
+        synchronized (this) {
+            if (journalWriter == null || compactionTail != null) {
+                return;
+            }
+            drainPendingReads();
+            lines = snapshotJournalLines();
+            compactionTail = new ArrayList<String>();
+            redundantOpCount = 0;
+        }
+
+        FileOutputStream out = null;
+        Writer writer = null;
+        boolean swapped = false;
+        try {
+            out = new FileOutputStream(journalFileTmp);
+            writer = new BufferedWriter(new OutputStreamWriter(out, US_ASCII), IO_BUFFER_SIZE);
+            writeJournalHeader(writer);
+            for (String line : lines) {
+                writer.write(line);
+            }
+
+            synchronized (this) {
+                if (journalWriter == null) {
+                    return; // closed
+                }
+                for (String line : compactionTail) {
+                    writer.write(line);
+                }
+                writer.flush();
+                out.getFD().sync();
+                writer.close();
+                writer = null;
+
+                journalWriter.close();
+                if (!journalFileTmp.renameTo(journalFile)) {
+                    openJournalWriter();
+                    throw new IOException("failed to rename " + journalFileTmp);
+                }
+                openJournalWriter();
+                swapped = true;
+            }
+        } finally {
+            closeQuietly(writer);
+            synchronized (this) {
+                compactionTail = null;
+            }
+            if (!swapped) {
+                journalFileTmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Appends a line to the journal. The line is flushed with a group of others,
+     * see {@link #JOURNAL_FLUSH_OPS} and {@link #JOURNAL_FLUSH_DELAY_MS}.
+     * Must be called while holding the cache lock.
+     */
+    private void appendJournal(String line) throws IOException {
+        journalWriter.write(line);
+        if (compactionTail != null) {
+            compactionTail.add(line);
+        }
+
+        unflushedOpCount++;
+        if (unflushedOpCount >= JOURNAL_FLUSH_OPS) {
+            flushJournal(false);
+        } else if (!journalFlushScheduled) {
+            journalFlushScheduled = true;
+            executorService.schedule(flushJournalCallable, JOURNAL_FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the buffered journal lines and forces them to the disk. Must be
+     * called while holding the cache lock.
+     *
+     * @param force sync even if no line is pending, used by {@link #flush()}
+     */
+    private void flushJournal(boolean force) throws IOException {
+        if (!force && unflushedOpCount == 0) {
+            return;
+        }
+        journalWriter.flush();
+        journalStream.getFD().sync();
+        unflushedOpCount = 0;
+    }
+
+    /**
+     * Deletes value files that have no entry in the journal, they are left by
+     * edits whose journal lines were lost in a crash.
+     */
+    private void deleteOrphanFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            int dotIndex = name.indexOf('.');
+            if (dotIndex <= 0 || name.startsWith(JOURNAL_FILE)) {
+                continue;
+            }
+
+            String key = name.substring(0, dotIndex);
+            String suffix = name.substring(dotIndex + 1);
+            if (suffix.endsWith(".tmp")) {
+                suffix = suffix.substring(0, suffix.length() - 4);
+            }
+            if (!isDigits(suffix)) {
+                continue;
+            }
+
+            synchronized (this) {
+                if (journalWriter == null) {
+                    return; // closed
+                }
+                if (!lruEntries.containsKey(key) && file.exists() && !file.delete()) {
+                    SLog.w("DiskLruCache", "failed to delete orphan file: %s", file.getPath());
+                }
+            }
+        }
+    }
+
+    private static boolean isDigits(String text) {
+        if (text.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isDigit(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -468,10 +734,10 @@ public final class DiskLruCache implements Closeable {
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
      */
-    public synchronized Snapshot get(String key) throws IOException, ClosedException {
+    public Snapshot get(String key) throws IOException, ClosedException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
+        Entry entry = entryIndex.get(key);
         if (entry == null) {
             return null;
         }
@@ -492,15 +758,13 @@ public final class DiskLruCache implements Closeable {
             }
         } catch (FileNotFoundException e) {
             // a file must have been deleted manually!
+            for (InputStream in : ins) {
+                closeQuietly(in);
+            }
             return null;
         }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
-        }
-
+        recordRead(key);
         return new Snapshot(key, entry.sequenceNumber, ins);
     }
 
@@ -509,10 +773,10 @@ public final class DiskLruCache implements Closeable {
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
      */
-    public synchronized SimpleSnapshot getSimpleSnapshot(String key) throws IOException, ClosedException {
+    public SimpleSnapshot getSimpleSnapshot(String key) throws IOException, ClosedException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
+        Entry entry = entryIndex.get(key);
         if (entry == null) {
             return null;
         }
@@ -531,30 +795,48 @@ public final class DiskLruCache implements Closeable {
             cleanFiles[i] = entry.getCleanFile(i);
         }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
-        }
-
+        recordRead(key);
         return new SimpleSnapshot(key, entry.sequenceNumber, cleanFiles, this);
     }
 
     /**
      * Returns exisr of the entry named {@code key}
      */
-    public synchronized boolean exist(String key) throws ClosedException, IOException {
+    public boolean exist(String key) throws ClosedException, IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
+        Entry entry = entryIndex.get(key);
+        if (entry == null || !entry.readable) {
+            return false;
+        }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+        recordRead(key);
+        return true;
+    }
+
+    /**
+     * Queues the LRU promotion and the READ journal line of a read, they are
+     * applied on the background thread.
+     */
+    private void recordRead(String key) {
+        pendingReads.offer(key);
+        if (pendingReadsScheduled.compareAndSet(false, true)) {
+            executorService.submit(drainReadsCallable);
         }
+    }
 
-        return entry != null && entry.readable;
+    /**
+     * Applies the queued reads. Must be called while holding the cache lock.
+     */
+    private void drainPendingReads() throws IOException {
+        String key;
+        while ((key = pendingReads.poll()) != null) {
+            // lruEntries.get() moves the entry to the head of the LRU queue
+            if (lruEntries.get(key) != null) {
+                redundantOpCount++;
+                appendJournal(READ + ' ' + key + '\n');
+            }
+        }
     }
 
     /**
@@ -576,6 +858,7 @@ public final class DiskLruCache implements Closeable {
         if (entry == null) {
             entry = new Entry(key);
             lruEntries.put(key, entry);
+            entryIndex.put(key, entry);
         } else if (entry.currentEditor != null) {
             return null; // another edit is in progress
         }
@@ -583,9 +866,9 @@ public final class DiskLruCache implements Closeable {
         Editor editor = new Editor(entry);
         entry.currentEditor = editor;
 
-        // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
+        // the journal is not flushed here, files leaked by a crash before the
+        // next group flush are deleted by deleteOrphanFiles() on open
+        appendJournal(DIRTY + ' ' + key + '\n');
         return editor;
     }
 
@@ -609,7 +892,7 @@ public final class DiskLruCache implements Closeable {
      * this cache. This may be greater than the max size if a background
      * deletion is pending.
      */
-    public synchronized long size() {
+    public long size() {
         return size;
     }
 
@@ -649,15 +932,14 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = null;
         if (entry.readable | success) {
             entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            journalWriter.flush();
+            appendJournal(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
             if (success) {
                 entry.sequenceNumber = nextSequenceNumber++;
             }
         } else {
             lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
-            journalWriter.flush();
+            entryIndex.remove(entry.key);
+            appendJournal(REMOVE + ' ' + entry.key + '\n');
         }
 
         if (size > maxSize || journalRebuildRequired()) {
@@ -699,8 +981,9 @@ public final class DiskLruCache implements Closeable {
         }
 
         redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
+        appendJournal(REMOVE + ' ' + key + '\n');
         lruEntries.remove(key);
+        entryIndex.remove(key);
 
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
@@ -727,8 +1010,9 @@ public final class DiskLruCache implements Closeable {
      */
     public synchronized void flush() throws IOException, ClosedException {
         checkNotClosed();
+        drainPendingReads();
         trimToSize();
-        journalWriter.flush();
+        flushJournal(true);
     }
 
     /**
@@ -750,12 +1034,16 @@ public final class DiskLruCache implements Closeable {
             }
         }
         try {
+            drainPendingReads();
             trimToSize();
         } catch (ClosedException e) {
             e.printStackTrace();
         }
+        flushJournal(false);
         journalWriter.close();
         journalWriter = null;
+        journalStream = null;
+        entryIndex.clear();
     }
 
     private void trimToSize() throws IOException, ClosedException {
@@ -939,6 +1227,20 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        /**
+         * Returns the file that {@link #newOutputStream} writes for the value at
+         * {@code index}. It is renamed to the clean file on {@link #commit}, so a
+         * file moved here before committing becomes the new value.
+         */
+        public File getFile(int index) {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                return entry.getDirtyFile(index);
+            }
+        }
+
         /**
          * Sets the value at {@code index} to {@code value}.
          */
@@ -1027,7 +1329,7 @@ public final class DiskLruCache implements Closeable {
         /**
          * True if this entry has ever been published
          */
-        private boolean readable;
+        private volatile boolean readable;
 
         /**
          * The ongoing edit or null if this entry is not being edited.
@@ -1037,7 +1339,7 @@ public final class DiskLruCache implements Closeable {
         /**
          * The sequence number of the most recently committed edit to this entry.
          */
-        private long sequenceNumber;
+        private volatile long sequenceNumber;
 
         private Entry(String key) {
             this.key = key;
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.util;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 轻量的 JPEG exif 方向读取器，用来替代热路径上完整的 {@link ExifInterface} 解析
+ * <p>
+ * 只扫描 SOI 之后的 segment 头找到 APP1 "Exif\0\0"，然后只读 TIFF 头和 IFD0 里的 Orientation 标签，
+ * IFD0 没有的话再看一下 IFD1（和 {@link ExifInterface#getAttributeInt(String, int)} 的查找顺序一致），
+ * 遇到 SOS 或 EOI 就停止，不会把整个文件读完，也不会为每个标签创建对象
+ * <p>
+ * 读不到或数据有问题的时候一律返回 {@link ExifInterface#ORIENTATION_UNDEFINED}，不抛异常，只有流本身的 IOException 才会抛出去
+ */
+public class ExifOrientationReader {
+    /**
+     * 和 {@link ExifInterface#ORIENTATION_UNDEFINED} 一样，这里单独定义是为了不依赖 ExifInterface，方便在 JVM 上测试
+     */
+    public static final int ORIENTATION_UNDEFINED = 0;
+
+    private static final int MARKER = 0xFF;
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_EOI = 0xD9;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    static final int START_CODE = 0x002A;
+
+    static final int FORMAT_USHORT = 3;
+    static final int FORMAT_ULONG = 4;
+    private static final int FORMAT_SSHORT = 8;
+    private static final int FORMAT_SLONG = 9;
+    private static final int[] BYTES_PER_FORMAT = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8, 1};
+
+    private static final int SEGMENT_HEADER_SIZE = 4;
+    static final int NOT_FOUND = Integer.MIN_VALUE;
+
+    private static final byte[] IDENTIFIER_EXIF = {'E', 'x', 'i', 'f', 0, 0};
+
+    /**
+     * 缓冲区中 TIFF 数据的开始位置，前面是 "Exif\0\0"
+     */
+    static final int TIFF_OFFSET = IDENTIFIER_EXIF.length;
+
+    /**
+     * 每个线程复用一块缓冲区存放 APP1 数据，segment 长度最大只有 64KB
+     */
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>();
+
+    private ExifOrientationReader() {
+    }
+
+    /**
+     * 从输入流中读取 exif 方向，读完 APP1 就返回，流的位置停在 APP1 之后
+     *
+     * @param inputStream 输入流，不会关闭
+     * @return exif 保存的原始方向，没有的话返回 {@link #ORIENTATION_UNDEFINED}
+     */
+    public static int read(@NonNull InputStream inputStream) throws IOException {
+        int tiffLength = readExifSegment(inputStream);
+        if (tiffLength < 0) {
+            return ORIENTATION_UNDEFINED;
+        }
+        return readTiffOrientation(BUFFER.get(), TIFF_OFFSET, tiffLength);
+    }
+
+    /**
+     * 扫描到 APP1 "Exif\0\0" 并把这一段读进当前线程的缓冲区，TIFF 数据从 {@link #TIFF_OFFSET} 开始，
+     * 用 {@link #getBuffer()} 获取，流的位置停在 APP1 之后
+     *
+     * @param inputStream 输入流，不会关闭
+     * @return TIFF 数据的长度，没有 exif 或者数据有问题返回 -1
+     */
+    static int readExifSegment(@NonNull InputStream inputStream) throws IOException {
+        byte[] buffer = obtainBuffer(SEGMENT_HEADER_SIZE);
+        if (!readFully(inputStream, buffer, 0, 2)
+                || (buffer[0] & 0xFF) != MARKER || (buffer[1] & 0xFF) != MARKER_SOI) {
+            return -1;
+        }
+
+        while (true) {
+            // 标记和长度一次读出来，FileInputStream 这样的流每个 segment 只需要一次 read
+            if (!readFully(inputStream, buffer, 0, SEGMENT_HEADER_SIZE) || (buffer[0] & 0xFF) != MARKER) {
+                return -1;
+            }
+            // 标记前面可以有任意多个填充用的 0xFF
+            while ((buffer[1] & 0xFF) == MARKER) {
+                int next = inputStream.read();
+                if (next < 0) {
+                    return -1;
+                }
+                buffer[1] = buffer[2];
+                buffer[2] = buffer[3];
+                buffer[3] = (byte) next;
+            }
+            int marker = buffer[1] & 0xFF;
+            if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                return -1;
+            }
+
+            int length = (((buffer[2] & 0xFF) << 8) | (buffer[3] & 0xFF)) - 2;
+            if (length < 0) {
+                return -1;
+            }
+
+            if (marker == MARKER_APP1 && length > IDENTIFIER_EXIF.length) {
+                buffer = obtainBuffer(length);
+
+                // 先只读标识，XMP 之类的 APP1 直接跳过，不用整段读进来
+                if (!readFully(inputStream, buffer, 0, IDENTIFIER_EXIF.length)) {
+                    return -1;
+                }
+                if (isExifIdentifier(buffer, 0)) {
+                    int tiffLength = length - IDENTIFIER_EXIF.length;
+                    return readFully(inputStream, buffer, TIFF_OFFSET, tiffLength) ? tiffLength : -1;
+                }
+                length -= IDENTIFIER_EXIF.length;
+            }
+
+            if (!skipFully(inputStream, length)) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * 获取 {@link #readExifSegment(InputStream)} 读出来的数据所在的缓冲区
+     */
+    static byte[] getBuffer() {
+        return BUFFER.get();
+    }
+
+    /**
+     * 从内存中的 JPEG 数据（可以只是文件头）读取 exif 方向，不会拷贝数据
+     *
+     * @param data   数据
+     * @param offset 开始位置
+     * @param length 数据长度
+     * @return exif 保存的原始方向，没有的话返回 {@link #ORIENTATION_UNDEFINED}
+     */
+    public static int read(@NonNull byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException("offset=" + offset + ", length=" + length + ", data.length=" + data.length);
+        }
+
+        int end = offset + length;
+        int position = offset;
+        if (length < 2 || (data[position] & 0xFF) != MARKER || (data[position + 1] & 0xFF) != MARKER_SOI) {
+            return ORIENTATION_UNDEFINED;
+        }
+        position += 2;
+
+        while (position < end) {
+            if ((data[position++] & 0xFF) != MARKER) {
+                return ORIENTATION_UNDEFINED;
+            }
+            // 标记前面可以有任意多个填充用的 0xFF
+            while (position < end && (data[position] & 0xFF) == MARKER) {
+                position++;
+            }
+            if (position >= end) {
+                return ORIENTATION_UNDEFINED;
+            }
+            int marker = data[position++] & 0xFF;
+            if (marker == MARKER_SOS || marker == MARKER_EOI || position + 2 > end) {
+                return ORIENTATION_UNDEFINED;
+            }
+
+            int segmentLength = (((data[position] & 0xFF) << 8) | (data[position + 1] & 0xFF)) - 2;
+            position += 2;
+            if (segmentLength < 0 || position + segmentLength > end) {
+                return ORIENTATION_UNDEFINED;
+            }
+
+            if (marker == MARKER_APP1 && segmentLength > IDENTIFIER_EXIF.length && isExifIdentifier(data, position)) {
+                return readTiffOrientation(data, position + IDENTIFIER_EXIF.length, segmentLength - IDENTIFIER_EXIF.length);
+            }
+            position += segmentLength;
+        }
+        return ORIENTATION_UNDEFINED;
+    }
+
+    /**
+     * 解析 TIFF 头，先在 IFD0 里找方向，没有的话再找 IFD1
+     */
+    static int readTiffOrientation(byte[] data, int start, int length) {
+        if (length < 8) {
+            return ORIENTATION_UNDEFINED;
+        }
+
+        boolean littleEndian;
+        if (data[start] == 'I' && data[start + 1] == 'I') {
+            littleEndian = true;
+        } else if (data[start] == 'M' && data[start + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return ORIENTATION_UNDEFINED;
+        }
+
+        if (readUnsignedShort(data, start + 2, littleEndian) != START_CODE) {
+            return ORIENTATION_UNDEFINED;
+        }
+
+        int firstIfdOffset = readInt(data, start + 4, littleEndian);
+        if (firstIfdOffset < 8 || firstIfdOffset >= length) {
+            return ORIENTATION_UNDEFINED;
+        }
+
+        // IFD0 的数据不完整的话 ExifInterface 也不会继续读 IFD1
+        int entryCount = readEntryCount(data, start, firstIfdOffset, length, littleEndian);
+        if (entryCount == NOT_FOUND || firstIfdOffset + 2 + 12 * entryCount > length) {
+            return ORIENTATION_UNDEFINED;
+        }
+        int orientation = findOrientation(data, start, length, firstIfdOffset + 2, entryCount, littleEndian);
+        if (orientation != NOT_FOUND) {
+            return orientation;
+        }
+
+        int nextIfdOffsetPosition = firstIfdOffset + 2 + 12 * Math.max(entryCount, 0);
+        if (nextIfdOffsetPosition + 4 > length) {
+            return ORIENTATION_UNDEFINED;
+        }
+        int secondIfdOffset = readInt(data, start + nextIfdOffsetPosition, littleEndian);
+        if (secondIfdOffset <= 8 || secondIfdOffset >= length) {
+            return ORIENTATION_UNDEFINED;
+        }
+        entryCount = readEntryCount(data, start, secondIfdOffset, length, littleEndian);
+        if (entryCount == NOT_FOUND || secondIfdOffset + 2 + 12 * entryCount > length) {
+            return ORIENTATION_UNDEFINED;
+        }
+        orientation = findOrientation(data, start, length, secondIfdOffset + 2, entryCount, littleEndian);
+        return orientation != NOT_FOUND ? orientation : ORIENTATION_UNDEFINED;
+    }
+
+    /**
+     * 遍历一个 IFD 的所有条目找方向标签，有效的值只有一个分量，肯定存在条目自己的 4 个字节里
+     *
+     * @return 没有方向标签的话返回 {@link #NOT_FOUND}，有但是值的格式不对返回 {@link #ORIENTATION_UNDEFINED}
+     */
+    private static int findOrientation(byte[] data, int start, int length, int entriesOffset, int entryCount, boolean littleEndian) {
+        int result = NOT_FOUND;
+        for (int i = 0; i < entryCount; i++) {
+            int entry = start + entriesOffset + 12 * i;
+            if (readUnsignedShort(data, entry, littleEndian) != TAG_ORIENTATION) {
+                continue;
+            }
+
+            int format = readUnsignedShort(data, entry + 2, littleEndian);
+            if (format <= 0 || format >= BYTES_PER_FORMAT.length) {
+                // ExifInterface 会跳过格式无效的条目
+                continue;
+            }
+
+            int components = readInt(data, entry + 4, littleEndian);
+            long byteCount = (long) components * BYTES_PER_FORMAT[format];
+            if (byteCount < 0 || byteCount > Integer.MAX_VALUE) {
+                continue;
+            }
+            if (byteCount > 4) {
+                int valueOffset = readInt(data, entry + 8, littleEndian);
+                if (valueOffset < 0 || valueOffset + byteCount > length) {
+                    continue;
+                }
+            }
+
+            // 同一个 IFD 里有多个方向标签的话以最后一个为准，和 ExifInterface 一样；
+            // 分量不是一个或者格式不是整数的话 ExifInterface 取值会失败，返回默认值
+            if (components != 1) {
+                result = ORIENTATION_UNDEFINED;
+            } else if (format == FORMAT_USHORT) {
+                result = readUnsignedShort(data, entry + 8, littleEndian);
+            } else if (format == FORMAT_SSHORT) {
+                result = (short) readUnsignedShort(data, entry + 8, littleEndian);
+            } else if (format == FORMAT_ULONG || format == FORMAT_SLONG) {
+                result = readInt(data, entry + 8, littleEndian);
+            } else {
+                result = ORIENTATION_UNDEFINED;
+            }
+        }
+        return result;
+    }
+
+    private static boolean isExifIdentifier(byte[] data, int offset) {
+        for (int i = 0; i < IDENTIFIER_EXIF.length; i++) {
+            if (data[offset + i] != IDENTIFIER_EXIF[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 读取 IFD 的条目数量，和 ExifInterface 一样按有符号的 short 处理，越界返回 {@link #NOT_FOUND}
+     */
+    static int readEntryCount(byte[] data, int start, int ifdOffset, int length, boolean littleEndian) {
+        if (ifdOffset + 2 > length) {
+            return NOT_FOUND;
+        }
+        return (short) readUnsignedShort(data, start + ifdOffset, littleEndian);
+    }
+
+    static int readUnsignedShort(byte[] data, int position, boolean littleEndian) {
+        int b0 = data[position] & 0xFF;
+        int b1 = data[position + 1] & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    static int readInt(byte[] data, int position, boolean littleEndian) {
+        int b0 = data[position] & 0xFF;
+        int b1 = data[position + 1] & 0xFF;
+        int b2 = data[position + 2] & 0xFF;
+        int b3 = data[position + 3] & 0xFF;
+        return littleEndian ? (b3 << 24) | (b2 << 16) | (b1 << 8) | b0 : (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+    }
+
+    private static byte[] obtainBuffer(int length) {
+        byte[] buffer = BUFFER.get();
+        if (buffer == null || buffer.length < length) {
+            // 按 4KB 对齐，避免 APP1 长度稍微变化就重新分配
+            buffer = new byte[(length + 4095) & ~4095];
+            BUFFER.set(buffer);
+        }
+        return buffer;
+    }
+
+    private static boolean readFully(InputStream inputStream, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count = inputStream.read(buffer, offset, length);
+            if (count < 0) {
+                return false;
+            }
+            offset += count;
+            length -= count;
+        }
+        return true;
+    }
+
+    private static boolean skipFully(InputStream inputStream, long length) throws IOException {
+        while (length > 0) {
+            long skipped = inputStream.skip(length);
+            if (skipped <= 0) {
+                // 有些流 skip 返回 0 并不代表结束了，读一个字节确认一下
+                if (inputStream.read() < 0) {
+                    return false;
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * 轻量的 JPEG exif 缩略图读取器，用来替代完整的 {@link ExifInterface} 解析
+ * <p>
+ * 和 {@link ExifOrientationReader} 一样只扫描到 APP1，缩略图本身就存在 APP1 里，所以不会多读。
+ * 只看 IFD1 里的 JPEGInterchangeFormat 和 JPEGInterchangeFormatLength 两个标签，没有 IFD1 的话马上返回
+ */
+public class ExifThumbnailReader {
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+
+    private ExifThumbnailReader() {
+    }
+
+    /**
+     * 从输入流中读取 exif 中的 JPEG 缩略图
+     *
+     * @param inputStream 输入流，不会关闭
+     * @return null：没有 exif、没有 IFD1 或者缩略图不是 JPEG
+     */
+    @Nullable
+    public static byte[] read(@NonNull InputStream inputStream) throws IOException {
+        int tiffLength = ExifOrientationReader.readExifSegment(inputStream);
+        if (tiffLength < 0) {
+            return null;
+        }
+        return readTiffThumbnail(ExifOrientationReader.getBuffer(), ExifOrientationReader.TIFF_OFFSET, tiffLength);
+    }
+
+    /**
+     * 解析 TIFF 头，跳过 IFD0 找到 IFD1，再从 IFD1 中找缩略图的位置和长度
+     */
+    @Nullable
+    static byte[] readTiffThumbnail(byte[] data, int start, int length) {
+        if (length < 8) {
+            return null;
+        }
+
+        boolean littleEndian;
+        if (data[start] == 'I' && data[start + 1] == 'I') {
+            littleEndian = true;
+        } else if (data[start] == 'M' && data[start + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return null;
+        }
+
+        if (ExifOrientationReader.readUnsignedShort(data, start + 2, littleEndian) != ExifOrientationReader.START_CODE) {
+            return null;
+        }
+
+        int firstIfdOffset = ExifOrientationReader.readInt(data, start + 4, littleEndian);
+        if (firstIfdOffset < 8 || firstIfdOffset >= length) {
+            return null;
+        }
+        int entryCount = ExifOrientationReader.readEntryCount(data, start, firstIfdOffset, length, littleEndian);
+        if (entryCount == ExifOrientationReader.NOT_FOUND || entryCount < 0) {
+            return null;
+        }
+
+        int nextIfdOffsetPosition = firstIfdOffset + 2 + 12 * entryCount;
+        if (nextIfdOffsetPosition + 4 > length) {
+            return null;
+        }
+        int secondIfdOffset = ExifOrientationReader.readInt(data, start + nextIfdOffsetPosition, littleEndian);
+        if (secondIfdOffset <= 8 || secondIfdOffset >= length) {
+            return null;
+        }
+        entryCount = ExifOrientationReader.readEntryCount(data, start, secondIfdOffset, length, littleEndian);
+        if (entryCount == ExifOrientationReader.NOT_FOUND || entryCount <= 0 || secondIfdOffset + 2 + 12 * entryCount > length) {
+            return null;
+        }
+
+        int thumbnailOffset = -1;
+        int thumbnailLength = -1;
+        for (int i = 0; i < entryCount; i++) {
+            int entry = start + secondIfdOffset + 2 + 12 * i;
+            int tag = ExifOrientationReader.readUnsignedShort(data, entry, littleEndian);
+            if (tag != TAG_JPEG_INTERCHANGE_FORMAT && tag != TAG_JPEG_INTERCHANGE_FORMAT_LENGTH) {
+                continue;
+            }
+            if (ExifOrientationReader.readInt(data, entry + 4, littleEndian) != 1) {
+                continue;
+            }
+            int value = readUnsignedValue(data, entry, littleEndian);
+            if (tag == TAG_JPEG_INTERCHANGE_FORMAT) {
+                thumbnailOffset = value;
+            } else {
+                thumbnailLength = value;
+            }
+        }
+
+        // 缩略图必须完整地在 APP1 里，并且以 SOI 开头
+        if (thumbnailOffset <= 8 || thumbnailLength <= 2 || thumbnailOffset > length - thumbnailLength) {
+            return null;
+        }
+        int thumbnailStart = start + thumbnailOffset;
+        if ((data[thumbnailStart] & 0xFF) != 0xFF || (data[thumbnailStart + 1] & 0xFF) != 0xD8) {
+            return null;
+        }
+        return Arrays.copyOfRange(data, thumbnailStart, thumbnailStart + thumbnailLength);
+    }
+
+    /**
+     * 读取只有一个分量的 SHORT 或 LONG 值，其它格式返回 -1
+     */
+    private static int readUnsignedValue(byte[] data, int entry, boolean littleEndian) {
+        int format = ExifOrientationReader.readUnsignedShort(data, entry + 2, littleEndian);
+        if (format == ExifOrientationReader.FORMAT_USHORT) {
+            return ExifOrientationReader.readUnsignedShort(data, entry + 8, littleEndian);
+        } else if (format == ExifOrientationReader.FORMAT_ULONG) {
+            return ExifOrientationReader.readInt(data, entry + 8, littleEndian);
+        }
+        return -1;
+    }
+}
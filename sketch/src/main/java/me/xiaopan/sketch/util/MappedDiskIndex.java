@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * 内存映射的二进制磁盘缓存索引
+ * <p>
+ * 索引文件由固定长度的文件头和固定长度的记录组成，记录按开放寻址（线性探测）的哈希表排列，
+ * key 是 128 位的摘要（两个 long），另外记录了文件长度和访问时间，LRU 顺序靠访问时间确定。
+ * 打开时只需要映射文件并顺序扫描一遍记录统计总大小，不需要解析文本，也不会为每个缓存创建对象
+ * <p>
+ * 文件头：magic(4) version(4) appVersion(4) capacity(4) 保留(16)<br>
+ * 记录：keyHigh(8) keyLow(8) length(8) accessTime(8) state(4) 保留(4)
+ * <p>
+ * 所有方法都是同步的，由调用方负责删除被移除或淘汰的缓存文件
+ */
+public class MappedDiskIndex implements Closeable {
+    private static final int MAGIC = 0x534B4458;    // SKDX
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 40;
+    private static final int MAX_CAPACITY = 1 << 22;
+
+    private static final int OFFSET_KEY_HIGH = 0;
+    private static final int OFFSET_KEY_LOW = 8;
+    private static final int OFFSET_LENGTH = 16;
+    private static final int OFFSET_ACCESS_TIME = 24;
+    private static final int OFFSET_STATE = 32;
+
+    private static final int STATE_EMPTY = 0;
+    private static final int STATE_CLEAN = 1;
+    private static final int STATE_REMOVED = 2;
+
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int count;
+    private int removedCount;
+    private long size;
+    private long clock;
+
+    private MappedDiskIndex(RandomAccessFile file, MappedByteBuffer buffer, int capacity) {
+        this.file = file;
+        this.buffer = buffer;
+        this.capacity = capacity;
+    }
+
+    /**
+     * 打开索引文件，文件不存在、版本不对或者已损坏时会重新创建一个空的
+     *
+     * @param indexFile  索引文件
+     * @param appVersion app 版本，不一致时清空索引
+     * @param capacity   索引的槽位数，会向上取整为 2 的幂，最多 2^22 个，实际能存放的缓存数量要留出一些空槽位
+     */
+    public static MappedDiskIndex open(File indexFile, int appVersion, int capacity) throws IOException {
+        int realCapacity = Integer.highestOneBit(Math.min(Math.max(capacity, 16), MAX_CAPACITY) - 1) << 1;
+        long fileLength = HEADER_SIZE + (long) realCapacity * RECORD_SIZE;
+
+        RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+        try {
+            boolean valid = file.length() == fileLength;
+            if (!valid) {
+                file.setLength(0);
+                file.setLength(fileLength);
+            }
+
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileLength);
+            if (valid) {
+                valid = buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION
+                        && buffer.getInt(8) == appVersion && buffer.getInt(12) == realCapacity;
+            }
+            if (!valid) {
+                for (long i = 0; i < fileLength; i += 8) {
+                    buffer.putLong((int) i, 0);
+                }
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, appVersion);
+                buffer.putInt(12, realCapacity);
+                buffer.force();
+            }
+
+            MappedDiskIndex index = new MappedDiskIndex(file, buffer, realCapacity);
+            index.scan();
+            return index;
+        } catch (IOException | RuntimeException e) {
+            DiskLruCache.closeQuietly(file);
+            throw e;
+        }
+    }
+
+    /**
+     * 统计数量、总大小和当前的访问时间
+     */
+    private void scan() {
+        for (int slot = 0; slot < capacity; slot++) {
+            int state = getState(slot);
+            if (state == STATE_CLEAN) {
+                count++;
+                size += buffer.getLong(offset(slot) + OFFSET_LENGTH);
+                clock = Math.max(clock, buffer.getLong(offset(slot) + OFFSET_ACCESS_TIME));
+            } else if (state == STATE_REMOVED) {
+                removedCount++;
+            }
+        }
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    private int getState(int slot) {
+        return buffer.getInt(offset(slot) + OFFSET_STATE);
+    }
+
+    private int hash(long keyLow) {
+        // 摘要本身已经足够均匀，直接取低位
+        return (int) keyLow & (capacity - 1);
+    }
+
+    private int find(long keyHigh, long keyLow) {
+        int slot = hash(keyLow);
+        for (int i = 0; i < capacity; i++) {
+            int state = getState(slot);
+            if (state == STATE_EMPTY) {
+                return -1;
+            }
+            int offset = offset(slot);
+            if (state == STATE_CLEAN && buffer.getLong(offset + OFFSET_KEY_HIGH) == keyHigh
+                    && buffer.getLong(offset + OFFSET_KEY_LOW) == keyLow) {
+                return slot;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+        return -1;
+    }
+
+    private void checkNotClosed() throws DiskLruCache.ClosedException {
+        if (buffer == null) {
+            throw new DiskLruCache.ClosedException("index is closed");
+        }
+    }
+
+    /**
+     * 查询缓存，存在时更新访问时间
+     *
+     * @return 缓存文件长度，不存在时返回 -1
+     */
+    public synchronized long get(long keyHigh, long keyLow) throws DiskLruCache.ClosedException {
+        checkNotClosed();
+        int slot = find(keyHigh, keyLow);
+        if (slot == -1) {
+            return -1;
+        }
+        buffer.putLong(offset(slot) + OFFSET_ACCESS_TIME, ++clock);
+        return buffer.getLong(offset(slot) + OFFSET_LENGTH);
+    }
+
+    /**
+     * 是否存在，不更新访问时间
+     */
+    public synchronized boolean contains(long keyHigh, long keyLow) {
+        return buffer != null && find(keyHigh, keyLow) != -1;
+    }
+
+    /**
+     * 添加或更新缓存
+     */
+    public synchronized void put(long keyHigh, long keyLow, long length) throws DiskLruCache.ClosedException {
+        checkNotClosed();
+        int slot = find(keyHigh, keyLow);
+        if (slot != -1) {
+            int offset = offset(slot);
+            size += length - buffer.getLong(offset + OFFSET_LENGTH);
+            buffer.putLong(offset + OFFSET_LENGTH, length);
+            buffer.putLong(offset + OFFSET_ACCESS_TIME, ++clock);
+            return;
+        }
+
+        // 加上已删除的记录超过容量的 3/4 后探测会变慢，先整理一下
+        if ((count + removedCount + 1) * 4L > capacity * 3L) {
+            rehash();
+        }
+
+        slot = hash(keyLow);
+        while (getState(slot) == STATE_CLEAN) {
+            slot = (slot + 1) & (capacity - 1);
+        }
+        if (getState(slot) == STATE_REMOVED) {
+            removedCount--;
+        }
+        writeRecord(slot, keyHigh, keyLow, length, ++clock);
+        count++;
+        size += length;
+    }
+
+    private void writeRecord(int slot, long keyHigh, long keyLow, long length, long accessTime) {
+        int offset = offset(slot);
+        buffer.putLong(offset + OFFSET_KEY_HIGH, keyHigh);
+        buffer.putLong(offset + OFFSET_KEY_LOW, keyLow);
+        buffer.putLong(offset + OFFSET_LENGTH, length);
+        buffer.putLong(offset + OFFSET_ACCESS_TIME, accessTime);
+        buffer.putInt(offset + OFFSET_STATE, STATE_CLEAN);
+    }
+
+    /**
+     * 删除缓存
+     *
+     * @return 被删除的缓存的文件长度，不存在时返回 -1
+     */
+    public synchronized long remove(long keyHigh, long keyLow) throws DiskLruCache.ClosedException {
+        checkNotClosed();
+        int slot = find(keyHigh, keyLow);
+        if (slot == -1) {
+            return -1;
+        }
+        return removeSlot(slot);
+    }
+
+    private long removeSlot(int slot) {
+        int offset = offset(slot);
+        long length = buffer.getLong(offset + OFFSET_LENGTH);
+        buffer.putInt(offset + OFFSET_STATE, STATE_REMOVED);
+        count--;
+        removedCount++;
+        size -= length;
+        return length;
+    }
+
+    /**
+     * 丢掉已删除的记录，重新排列所有记录
+     */
+    private void rehash() {
+        long[] records = new long[count * 4];
+        int recordCount = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int offset = offset(slot);
+            if (getState(slot) == STATE_CLEAN) {
+                records[recordCount * 4] = buffer.getLong(offset + OFFSET_KEY_HIGH);
+                records[recordCount * 4 + 1] = buffer.getLong(offset + OFFSET_KEY_LOW);
+                records[recordCount * 4 + 2] = buffer.getLong(offset + OFFSET_LENGTH);
+                records[recordCount * 4 + 3] = buffer.getLong(offset + OFFSET_ACCESS_TIME);
+                recordCount++;
+            }
+            buffer.putInt(offset + OFFSET_STATE, STATE_EMPTY);
+        }
+
+        for (int i = 0; i < recordCount; i++) {
+            long keyLow = records[i * 4 + 1];
+            int slot = hash(keyLow);
+            while (getState(slot) != STATE_EMPTY) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            writeRecord(slot, records[i * 4], keyLow, records[i * 4 + 2], records[i * 4 + 3]);
+        }
+        removedCount = 0;
+    }
+
+    /**
+     * 按访问时间从旧到新淘汰缓存，直到总大小不超过 maxSize 并且数量不超过 maxCount
+     *
+     * @return 被淘汰的 key，每两个 long 为一个 key
+     */
+    public synchronized long[] trimToSize(long maxSize, int maxCount) {
+        if (buffer == null || (size <= maxSize && count <= maxCount)) {
+            return new long[0];
+        }
+
+        // 访问时间和槽位拼在一起排序，访问时间是自增的，不会超过高 40 位
+        long[] accessTimes = new long[count];
+        int index = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            if (getState(slot) == STATE_CLEAN) {
+                accessTimes[index++] = (buffer.getLong(offset(slot) + OFFSET_ACCESS_TIME) << 24) | slot;
+            }
+        }
+        Arrays.sort(accessTimes, 0, index);
+
+        long[] evictedKeys = new long[index * 2];
+        int evictedCount = 0;
+        for (int i = 0; i < index && (size > maxSize || count > maxCount); i++) {
+            int slot = (int) (accessTimes[i] & 0xFFFFFF);
+            int offset = offset(slot);
+            evictedKeys[evictedCount * 2] = buffer.getLong(offset + OFFSET_KEY_HIGH);
+            evictedKeys[evictedCount * 2 + 1] = buffer.getLong(offset + OFFSET_KEY_LOW);
+            evictedCount++;
+            removeSlot(slot);
+        }
+        return Arrays.copyOf(evictedKeys, evictedCount * 2);
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized boolean isClosed() {
+        return buffer == null;
+    }
+
+    /**
+     * 把修改写到磁盘
+     */
+    public synchronized void flush() {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        buffer.force();
+        buffer = null;
+        file.close();
+        file = null;
+    }
+}
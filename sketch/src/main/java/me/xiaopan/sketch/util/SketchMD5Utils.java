@@ -83,6 +83,27 @@ public class SketchMD5Utils {
         return result;
     }
 
+    /**
+     * 计算 MD5 并返回原始的 16 个字节
+     */
+    public static byte[] md5Bytes(String txt) {
+        MessageDigest digest = digestObjectPool.get();
+        try {
+            digest.update(txt.getBytes());
+            return digest.digest();
+        } finally {
+            digest.reset();
+            digestObjectPool.put(digest);
+        }
+    }
+
+    /**
+     * 将字节转换成 16 进制字符串
+     */
+    public static String toHex(byte bytes[]) {
+        return bufferToHex(bytes, 0, bytes.length);
+    }
+
     private static String bufferToHex(byte bytes[], int m, int n) {
         StringBuffer stringbuffer = new StringBuffer(2 * n);
         int k = m + n;
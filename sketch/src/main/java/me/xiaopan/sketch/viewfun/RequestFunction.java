@@ -57,6 +57,20 @@ public class RequestFunction extends ViewFunction {
      * @return true：drawable或其子Drawable是SketchDrawable
      */
     private static boolean notifyDrawable(String callingStation, Drawable drawable, final boolean isDisplayed) {
+        return notifyDrawable(callingStation, drawable, isDisplayed, null);
+    }
+
+    /**
+     * 修改Drawable显示状态
+     *
+     * @param callingStation 调用位置
+     * @param drawable       Drawable
+     * @param isDisplayed    是否已显示
+     * @param keptRequest    新的Drawable还绑定着这个请求，例如预览图替换了占位图，这个请求不能取消
+     * @return true：drawable或其子Drawable是SketchDrawable
+     */
+    private static boolean notifyDrawable(String callingStation, Drawable drawable, final boolean isDisplayed,
+                                          @Nullable DisplayRequest keptRequest) {
         if (drawable == null) {
             return false;
         }
@@ -66,13 +80,13 @@ public class RequestFunction extends ViewFunction {
         if (drawable instanceof LayerDrawable) {
             LayerDrawable layerDrawable = (LayerDrawable) drawable;
             for (int i = 0, z = layerDrawable.getNumberOfLayers(); i < z; i++) {
-                isSketchDrawable |= notifyDrawable(callingStation, layerDrawable.getDrawable(i), isDisplayed);
+                isSketchDrawable |= notifyDrawable(callingStation, layerDrawable.getDrawable(i), isDisplayed, keptRequest);
             }
         } else {
             if (!isDisplayed && drawable instanceof SketchLoadingDrawable) {
                 SketchLoadingDrawable loadingDrawable = (SketchLoadingDrawable) drawable;
                 DisplayRequest displayRequest = loadingDrawable.getRequest();
-                if (displayRequest != null && !displayRequest.isFinished()) {
+                if (displayRequest != null && displayRequest != keptRequest && !displayRequest.isFinished()) {
                     displayRequest.cancel(CancelCause.BE_REPLACED_ON_SET_DRAWABLE);
                 }
             }
@@ -108,7 +122,8 @@ public class RequestFunction extends ViewFunction {
     public boolean onDrawableChanged(@NonNull String callPosition, @Nullable Drawable oldDrawable, @Nullable Drawable newDrawable) {
         // 当Drawable改变的时候新Drawable的显示引用计数加1，旧Drawable的显示引用计数减1，一定要先处理newDrawable
         newDrawableFromSketch = notifyDrawable(callPosition + ":newDrawable", newDrawable, true);
-        oldDrawableFromSketch = notifyDrawable(callPosition + ":oldDrawable", oldDrawable, false);
+        DisplayRequest keptRequest = newDrawable instanceof SketchLoadingDrawable ? ((SketchLoadingDrawable) newDrawable).getRequest() : null;
+        oldDrawableFromSketch = notifyDrawable(callPosition + ":oldDrawable", oldDrawable, false, keptRequest);
 
         // 如果新Drawable不是来自Sketch，那么就要清空显示参数，防止被RecyclerCompatFunction在onAttachedToWindow的时候错误的恢复成上一张图片
         if (!newDrawableFromSketch) {
@@ -26,7 +26,6 @@ import android.graphics.Rect;
 import android.os.Build;
 
 import java.io.IOException;
-import java.io.InputStream;
 
 import me.xiaopan.sketch.Configuration;
 import me.xiaopan.sketch.Sketch;
@@ -37,7 +36,6 @@ import me.xiaopan.sketch.decode.ImageType;
 import me.xiaopan.sketch.uri.GetDataSourceException;
 import me.xiaopan.sketch.uri.UriModel;
 import me.xiaopan.sketch.util.ExifInterface;
-import me.xiaopan.sketch.util.SketchUtils;
 
 /**
  * 图片碎片解码器，支持纠正图片方向
@@ -88,14 +86,7 @@ public class ImageRegionDecoder {
         }
         orientationCorrector.rotateSize(imageSize, exifOrientation);
 
-        InputStream inputStream = null;
-        BitmapRegionDecoder regionDecoder;
-        try {
-            inputStream = dataSource.getInputStream();
-            regionDecoder = BitmapRegionDecoder.newInstance(inputStream, false);
-        } finally {
-            SketchUtils.close(inputStream);
-        }
+        BitmapRegionDecoder regionDecoder = ImageDecodeUtils.newRegionDecoder(dataSource);
 
         ImageType imageType = ImageType.valueOfMimeType(boundOptions.outMimeType);
 
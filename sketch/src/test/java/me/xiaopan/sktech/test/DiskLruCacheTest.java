@@ -0,0 +1,225 @@
+package me.xiaopan.sktech.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import me.xiaopan.sketch.util.DiskLruCache;
+
+public class DiskLruCacheTest {
+    private static final int KEY_COUNT = 40;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("DiskLruCacheTest", "");
+        Assert.assertTrue(directory.delete());
+        Assert.assertTrue(directory.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        DiskLruCache.deleteContents(directory);
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    /**
+     * 多个线程同时编辑、读取、删除，读到的值要完整，重新打开后所有条目都要能读而且总大小要对得上
+     */
+    @Test
+    public void testConcurrentEditReadRemove() throws Exception {
+        final DiskLruCache cache = DiskLruCache.open(directory, 1, 1, 10 * 1024 * 1024);
+        final int threadCount = 8;
+        final int opCount = 500;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(threadCount);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        startLatch.await();
+                        for (int i = 0; i < opCount; i++) {
+                            String key = "key" + random.nextInt(KEY_COUNT);
+                            int op = random.nextInt(10);
+                            if (op < 4) {
+                                DiskLruCache.Editor editor = cache.edit(key);
+                                if (editor != null) {
+                                    editor.set(0, makeValue(key, random));
+                                    editor.commit();
+                                }
+                            } else if (op < 9) {
+                                DiskLruCache.Snapshot snapshot = cache.get(key);
+                                if (snapshot != null) {
+                                    String value;
+                                    try {
+                                        value = snapshot.getString(0);
+                                    } finally {
+                                        snapshot.close();
+                                    }
+                                    assertValue(key, value);
+                                }
+                            } else {
+                                cache.remove(key);
+                            }
+                        }
+                    } catch (Throwable tr) {
+                        error.compareAndSet(null, tr);
+                    } finally {
+                        doneLatch.countDown();
+                    }
+                }
+            }).start();
+        }
+        startLatch.countDown();
+        doneLatch.await();
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+
+        long size = cache.size();
+        cache.close();
+
+        DiskLruCache reopened = DiskLruCache.open(directory, 1, 1, 10 * 1024 * 1024);
+        try {
+            Assert.assertEquals(size, reopened.size());
+            long fileSize = 0;
+            for (int i = 0; i < KEY_COUNT; i++) {
+                String key = "key" + i;
+                DiskLruCache.Snapshot snapshot = reopened.get(key);
+                if (snapshot != null) {
+                    try {
+                        String value = snapshot.getString(0);
+                        assertValue(key, value);
+                        fileSize += value.length();
+                    } finally {
+                        snapshot.close();
+                    }
+                }
+            }
+            Assert.assertEquals(reopened.size(), fileSize);
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * 崩溃时最后一行只写了一半，重新打开后已有的条目还在，继续写入的 journal 也不能坏掉
+     */
+    @Test
+    public void testTornJournalTail() throws Exception {
+        DiskLruCache cache = DiskLruCache.open(directory, 1, 1, 1024 * 1024);
+        Random random = new Random(1);
+        for (int i = 0; i < 5; i++) {
+            put(cache, "key" + i, makeValue("key" + i, random));
+        }
+        cache.close();
+
+        FileOutputStream outputStream = new FileOutputStream(new File(directory, DiskLruCache.JOURNAL_FILE), true);
+        try {
+            outputStream.write("CLEAN key9 1".getBytes("US-ASCII"));
+        } finally {
+            outputStream.close();
+        }
+
+        cache = DiskLruCache.open(directory, 1, 1, 1024 * 1024);
+        for (int i = 0; i < 5; i++) {
+            assertValue("key" + i, getString(cache, "key" + i));
+        }
+        Assert.assertNull(getString(cache, "key9"));
+        put(cache, "key5", makeValue("key5", random));
+        cache.close();
+
+        cache = DiskLruCache.open(directory, 1, 1, 1024 * 1024);
+        try {
+            for (int i = 0; i < 6; i++) {
+                assertValue("key" + i, getString(cache, "key" + i));
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * journal 不认识的值文件和临时文件会在打开后被后台线程删掉，已有条目的文件保留
+     */
+    @Test
+    public void testDeleteOrphanFiles() throws Exception {
+        DiskLruCache cache = DiskLruCache.open(directory, 1, 1, 1024 * 1024);
+        put(cache, "key0", makeValue("key0", new Random(2)));
+        cache.close();
+
+        List<File> orphanFiles = new ArrayList<File>();
+        orphanFiles.add(new File(directory, "orphan.0"));
+        orphanFiles.add(new File(directory, "orphan2.0.tmp"));
+        for (File file : orphanFiles) {
+            Assert.assertTrue(file.createNewFile());
+        }
+        File otherFile = new File(directory, "other.txt");
+        Assert.assertTrue(otherFile.createNewFile());
+
+        cache = DiskLruCache.open(directory, 1, 1, 1024 * 1024);
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (System.currentTimeMillis() < deadline && (orphanFiles.get(0).exists() || orphanFiles.get(1).exists())) {
+                Thread.sleep(20);
+            }
+            for (File file : orphanFiles) {
+                Assert.assertFalse(file.getName(), file.exists());
+            }
+            Assert.assertTrue(otherFile.exists());
+            assertValue("key0", getString(cache, "key0"));
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static void put(DiskLruCache cache, String key, String value) throws Exception {
+        DiskLruCache.Editor editor = cache.edit(key);
+        Assert.assertNotNull(editor);
+        editor.set(0, value);
+        editor.commit();
+    }
+
+    private static String getString(DiskLruCache cache, String key) throws Exception {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            return snapshot.getString(0);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static String makeValue(String key, Random random) {
+        StringBuilder builder = new StringBuilder(key).append('|');
+        int length = 1 + random.nextInt(2048);
+        for (int i = 0; i < length; i++) {
+            builder.append((char) ('a' + random.nextInt(26)));
+        }
+        return builder.append("|end").toString();
+    }
+
+    private static void assertValue(String key, String value) {
+        Assert.assertNotNull(key, value);
+        Assert.assertTrue(key + ": " + value, value.startsWith(key + "|") && value.endsWith("|end"));
+    }
+}
@@ -0,0 +1,104 @@
+package me.xiaopan.sktech.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import me.xiaopan.sketch.cache.EditLockPool;
+
+public class EditLockPoolTest {
+    @Test
+    public void testSameLockWhileInUse() {
+        EditLockPool pool = new EditLockPool();
+        ReentrantLock lock1 = pool.get("a");
+        ReentrantLock lock2 = pool.get("a");
+        Assert.assertTrue(lock1 == lock2);
+        Assert.assertFalse(lock1 == pool.get("b"));
+        Assert.assertEquals(2, pool.size());
+    }
+
+    /**
+     * 同一个线程嵌套获取同一个 key，例如下载时持有锁，写后台被拒绝后在当前线程写磁盘缓存又获取了一次
+     */
+    @Test
+    public void testNestedAcquire() {
+        EditLockPool pool = new EditLockPool();
+        ReentrantLock outer = pool.get("key");
+        outer.lock();
+        try {
+            ReentrantLock inner = pool.get("key");
+            Assert.assertTrue(outer == inner);
+            inner.lock();
+            try {
+                Assert.assertEquals(2, inner.getHoldCount());
+            } finally {
+                inner.unlock();
+            }
+            Assert.assertEquals(1, pool.size());
+        } finally {
+            outer.unlock();
+        }
+        Assert.assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testConcurrentAcquireRelease() throws InterruptedException {
+        final EditLockPool pool = new EditLockPool();
+        final int threadCount = 8;
+        final int rounds = 2000;
+        final String[] keys = {"a", "b", "c", "d"};
+        final AtomicInteger[] holders = new AtomicInteger[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            holders[i] = new AtomicInteger();
+        }
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch endLatch = new CountDownLatch(threadCount);
+
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        for (int i = 0; i < rounds; i++) {
+                            int index = (seed + i) % keys.length;
+                            ReentrantLock lock = pool.get(keys[index]);
+                            lock.lock();
+                            try {
+                                // 同一个 key 同时只能有一个线程进来
+                                if (holders[index].incrementAndGet() != 1) {
+                                    throw new IllegalStateException("two holders of " + keys[index]);
+                                }
+                                if (i % 5 == 0) {
+                                    ReentrantLock nested = pool.get(keys[index]);
+                                    nested.lock();
+                                    nested.unlock();
+                                }
+                                holders[index].decrementAndGet();
+                            } finally {
+                                lock.unlock();
+                            }
+                        }
+                    } catch (Throwable tr) {
+                        error.compareAndSet(null, tr);
+                    } finally {
+                        endLatch.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        startLatch.countDown();
+        endLatch.await();
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        Assert.assertEquals(0, pool.size());
+    }
+}
@@ -0,0 +1,408 @@
+package me.xiaopan.sktech.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import me.xiaopan.sketch.util.ExifOrientationReader;
+
+public class ExifOrientationReaderTest {
+    @Test
+    public void testAllOrientations() throws IOException {
+        for (int orientation = 1; orientation <= 8; orientation++) {
+            for (boolean littleEndian : new boolean[]{true, false}) {
+                byte[] jpeg = new JpegBuilder(littleEndian).orientationInIfd0(orientation).build();
+                String message = String.format(Locale.US, "orientation=%d, littleEndian=%s", orientation, littleEndian);
+                Assert.assertEquals(message, orientation, readFromStream(jpeg));
+                Assert.assertEquals(message, orientation, ExifOrientationReader.read(jpeg, 0, jpeg.length));
+                Assert.assertEquals(message, orientation, referenceRead(jpeg));
+            }
+        }
+    }
+
+    @Test
+    public void testNoOrientation() throws IOException {
+        byte[] noExif = new JpegBuilder(false).exif(false).build();
+        Assert.assertEquals(ExifOrientationReader.ORIENTATION_UNDEFINED, readFromStream(noExif));
+        Assert.assertEquals(ExifOrientationReader.ORIENTATION_UNDEFINED, ExifOrientationReader.read(noExif, 0, noExif.length));
+
+        byte[] noTag = new JpegBuilder(true).build();
+        Assert.assertEquals(ExifOrientationReader.ORIENTATION_UNDEFINED, readFromStream(noTag));
+        Assert.assertEquals(ExifOrientationReader.ORIENTATION_UNDEFINED, ExifOrientationReader.read(noTag, 0, noTag.length));
+
+        byte[] png = {(byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A};
+        Assert.assertEquals(ExifOrientationReader.ORIENTATION_UNDEFINED, readFromStream(png));
+        Assert.assertEquals(ExifOrientationReader.ORIENTATION_UNDEFINED, ExifOrientationReader.read(png, 0, png.length));
+        Assert.assertEquals(ExifOrientationReader.ORIENTATION_UNDEFINED, readFromStream(new byte[0]));
+    }
+
+    @Test
+    public void testOrientationInIfd1() throws IOException {
+        byte[] jpeg = new JpegBuilder(false).orientationInIfd1(6).build();
+        Assert.assertEquals(6, readFromStream(jpeg));
+        Assert.assertEquals(6, ExifOrientationReader.read(jpeg, 0, jpeg.length));
+
+        // IFD0 里的优先
+        jpeg = new JpegBuilder(true).orientationInIfd0(3).orientationInIfd1(6).build();
+        Assert.assertEquals(3, readFromStream(jpeg));
+        Assert.assertEquals(3, ExifOrientationReader.read(jpeg, 0, jpeg.length));
+    }
+
+    @Test
+    public void testSkipOtherSegments() throws IOException {
+        byte[] jpeg = new JpegBuilder(true).xmp(true).fillBytes(true).orientationInIfd0(8).build();
+        Assert.assertEquals(8, readFromStream(jpeg));
+        Assert.assertEquals(8, ExifOrientationReader.read(jpeg, 0, jpeg.length));
+
+        // 一次只给一个字节、skip 总是返回 0 的流
+        Assert.assertEquals(8, ExifOrientationReader.read(new SlowInputStream(jpeg)));
+    }
+
+    @Test
+    public void testArrayOffset() {
+        byte[] jpeg = new JpegBuilder(false).orientationInIfd0(5).build();
+        byte[] data = new byte[jpeg.length + 20];
+        System.arraycopy(jpeg, 0, data, 10, jpeg.length);
+        Assert.assertEquals(5, ExifOrientationReader.read(data, 10, jpeg.length));
+    }
+
+    /**
+     * 截断在任何位置都不能抛异常，APP1 完整之后就能读出方向
+     */
+    @Test
+    public void testTruncated() throws IOException {
+        JpegBuilder builder = new JpegBuilder(true).xmp(true).orientationInIfd0(6);
+        byte[] jpeg = builder.build();
+        for (int length = 0; length <= jpeg.length; length++) {
+            byte[] prefix = Arrays.copyOf(jpeg, length);
+            int expected = length >= builder.exifEnd ? 6 : ExifOrientationReader.ORIENTATION_UNDEFINED;
+            Assert.assertEquals("length=" + length, expected, readFromStream(prefix));
+            Assert.assertEquals("length=" + length, expected, ExifOrientationReader.read(jpeg, 0, length));
+        }
+    }
+
+    /**
+     * 随机改坏数据，不能抛异常，流和数组两种方式的结果要和参照实现一致
+     */
+    @Test
+    public void testFuzz() throws IOException {
+        Random random = new Random(20171018);
+        for (int i = 0; i < 20000; i++) {
+            JpegBuilder builder = new JpegBuilder(random.nextBoolean())
+                    .xmp(random.nextBoolean())
+                    .fillBytes(random.nextBoolean());
+            if (random.nextBoolean()) {
+                builder.orientationInIfd0(random.nextInt(10));
+            }
+            if (random.nextInt(4) == 0) {
+                builder.orientationInIfd1(random.nextInt(10));
+            }
+            byte[] jpeg = builder.build();
+
+            int mutations = 1 + random.nextInt(4);
+            for (int m = 0; m < mutations; m++) {
+                int position = builder.exifStart + random.nextInt(jpeg.length - builder.exifStart);
+                if (random.nextInt(4) == 0) {
+                    position = random.nextInt(jpeg.length);
+                }
+                jpeg[position] = (byte) random.nextInt(256);
+            }
+            if (random.nextInt(8) == 0) {
+                jpeg = Arrays.copyOf(jpeg, random.nextInt(jpeg.length + 1));
+            }
+
+            int expected = referenceRead(jpeg);
+            String message = "round=" + i;
+            Assert.assertEquals(message, expected, readFromStream(jpeg));
+            Assert.assertEquals(message, expected, ExifOrientationReader.read(jpeg, 0, jpeg.length));
+            Assert.assertEquals(message, expected, ExifOrientationReader.read(new SlowInputStream(jpeg)));
+        }
+    }
+
+    private static int readFromStream(byte[] data) throws IOException {
+        return ExifOrientationReader.read(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * 参照实现，按 ExifInterface 的规则把第一个 exif APP1 整段复制出来再用 ByteBuffer 解析，
+     * ExifInterface 本身依赖 Android 的类，没法在 JVM 上跑
+     */
+    private static int referenceRead(byte[] data) {
+        try {
+            ByteBuffer jpeg = ByteBuffer.wrap(data);
+            if ((jpeg.get() & 0xFF) != 0xFF || (jpeg.get() & 0xFF) != 0xD8) {
+                return 0;
+            }
+            while (true) {
+                if ((jpeg.get() & 0xFF) != 0xFF) {
+                    return 0;
+                }
+                int marker = jpeg.get() & 0xFF;
+                while (marker == 0xFF) {
+                    marker = jpeg.get() & 0xFF;
+                }
+                if (marker == 0xDA || marker == 0xD9) {
+                    return 0;
+                }
+                int length = (jpeg.getShort() & 0xFFFF) - 2;
+                if (length < 0) {
+                    return 0;
+                }
+                byte[] segment = new byte[length];
+                jpeg.get(segment);
+                if (marker == 0xE1 && length > 6 && new String(segment, 0, 6, "ISO-8859-1").equals("Exif\0\0")) {
+                    return referenceReadTiff(ByteBuffer.wrap(Arrays.copyOfRange(segment, 6, length)));
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            return 0;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int referenceReadTiff(ByteBuffer tiff) {
+        int length = tiff.limit();
+        if (length < 8) {
+            return 0;
+        }
+        short byteOrder = tiff.getShort();
+        if (byteOrder == 0x4949) {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (byteOrder == 0x4D4D) {
+            tiff.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            return 0;
+        }
+        if ((tiff.getShort() & 0xFFFF) != 0x2A) {
+            return 0;
+        }
+        int firstIfdOffset = tiff.getInt();
+        if (firstIfdOffset < 8 || firstIfdOffset >= length) {
+            return 0;
+        }
+
+        Integer[] result = new Integer[2];
+        tiff.position(firstIfdOffset);
+        referenceReadIfd(tiff, result, 0);
+        Integer orientation = result[0] != null ? result[0] : result[1];
+        return orientation != null ? orientation : 0;
+    }
+
+    private static void referenceReadIfd(ByteBuffer tiff, Integer[] result, int ifd) {
+        int[] bytesPerFormat = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8, 1};
+        if (tiff.remaining() < 2) {
+            return;
+        }
+        short count = tiff.getShort();
+        if (tiff.position() + 12 * count > tiff.limit()) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            int entry = tiff.position();
+            int tag = tiff.getShort() & 0xFFFF;
+            int format = tiff.getShort() & 0xFFFF;
+            int components = tiff.getInt();
+            if (tag == 0x0112 && format > 0 && format < bytesPerFormat.length) {
+                long byteCount = (long) components * bytesPerFormat[format];
+                boolean valid = byteCount >= 0 && byteCount <= Integer.MAX_VALUE;
+                if (valid && byteCount > 4) {
+                    int offset = tiff.getInt(entry + 8);
+                    valid = offset >= 0 && offset + byteCount <= tiff.limit();
+                }
+                if (valid) {
+                    int value = 0;
+                    if (components == 1) {
+                        if (format == 3) {
+                            value = tiff.getShort(entry + 8) & 0xFFFF;
+                        } else if (format == 8) {
+                            value = tiff.getShort(entry + 8);
+                        } else if (format == 4 || format == 9) {
+                            value = tiff.getInt(entry + 8);
+                        }
+                    }
+                    result[ifd] = value;
+                }
+            }
+            tiff.position(entry + 12);
+        }
+
+        if (ifd == 0 && tiff.remaining() >= 4) {
+            int nextIfdOffset = tiff.getInt();
+            if (nextIfdOffset > 8 && nextIfdOffset < tiff.limit()) {
+                tiff.position(nextIfdOffset);
+                referenceReadIfd(tiff, result, 1);
+            }
+        }
+    }
+
+    /**
+     * 按指定字节序生成带 exif 的最小 JPEG 文件头
+     */
+    private static class JpegBuilder {
+        private boolean littleEndian;
+        private boolean exif = true;
+        private boolean xmp;
+        private boolean fillBytes;
+        private int ifd0Orientation = -1;
+        private int ifd1Orientation = -1;
+
+        int exifStart;
+        int exifEnd;
+
+        JpegBuilder(boolean littleEndian) {
+            this.littleEndian = littleEndian;
+        }
+
+        JpegBuilder exif(boolean exif) {
+            this.exif = exif;
+            return this;
+        }
+
+        JpegBuilder xmp(boolean xmp) {
+            this.xmp = xmp;
+            return this;
+        }
+
+        JpegBuilder fillBytes(boolean fillBytes) {
+            this.fillBytes = fillBytes;
+            return this;
+        }
+
+        JpegBuilder orientationInIfd0(int orientation) {
+            this.ifd0Orientation = orientation;
+            return this;
+        }
+
+        JpegBuilder orientationInIfd1(int orientation) {
+            this.ifd1Orientation = orientation;
+            return this;
+        }
+
+        byte[] build() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(0xFF);
+            out.write(0xD8);
+
+            byte[] jfif = {'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0};
+            writeSegment(out, 0xE0, jfif);
+
+            if (xmp) {
+                byte[] xmpData = new byte[300];
+                byte[] namespace = "http://ns.adobe.com/xap/1.0/\0".getBytes();
+                System.arraycopy(namespace, 0, xmpData, 0, namespace.length);
+                writeSegment(out, 0xE1, xmpData);
+            }
+
+            if (exif) {
+                exifStart = out.size();
+                byte[] tiff = buildTiff();
+                byte[] app1 = new byte[6 + tiff.length];
+                System.arraycopy("Exif\0\0".getBytes(), 0, app1, 0, 6);
+                System.arraycopy(tiff, 0, app1, 6, tiff.length);
+                writeSegment(out, 0xE1, app1);
+                exifEnd = out.size();
+            }
+
+            writeSegment(out, 0xC0, new byte[]{8, 0, 16, 0, 16, 1, 1, 0x11, 0});
+            writeSegment(out, 0xDA, new byte[]{1, 1, 0, 0, 0x3F, 0});
+            for (int i = 0; i < 64; i++) {
+                out.write(i);
+            }
+            out.write(0xFF);
+            out.write(0xD9);
+            return out.toByteArray();
+        }
+
+        private byte[] buildTiff() {
+            ByteBuffer buffer = ByteBuffer.allocate(256).order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            buffer.put(littleEndian ? (byte) 'I' : (byte) 'M').put(littleEndian ? (byte) 'I' : (byte) 'M');
+            buffer.putShort((short) 0x2A);
+            buffer.putInt(8);
+
+            // IFD0：Make、Orientation、XResolution 的偏移指向 IFD 之后的数据区
+            int ifd0Count = ifd0Orientation >= 0 ? 3 : 2;
+            int ifd1Offset = 8 + 2 + 12 * ifd0Count + 4;
+            buffer.putShort((short) ifd0Count);
+            putEntry(buffer, 0x010F, 2, 4, 0x4B4F4E00);
+            if (ifd0Orientation >= 0) {
+                buffer.putShort((short) 0x0112).putShort((short) 3).putInt(1)
+                        .putShort((short) ifd0Orientation).putShort((short) 0);
+            }
+            putEntry(buffer, 0x011A, 5, 1, ifd1Offset + 2 + 12 * 2 + 4);
+            buffer.putInt(ifd1Orientation >= 0 ? ifd1Offset : 0);
+
+            // IFD1：缩略图
+            buffer.putShort((short) 2);
+            putEntry(buffer, 0x0103, 3, 1, littleEndian ? 6 : 6 << 16);
+            if (ifd1Orientation >= 0) {
+                buffer.putShort((short) 0x0112).putShort((short) 3).putInt(1)
+                        .putShort((short) ifd1Orientation).putShort((short) 0);
+            } else {
+                putEntry(buffer, 0x0128, 3, 1, littleEndian ? 2 : 2 << 16);
+            }
+            buffer.putInt(0);
+
+            // XResolution 的值
+            buffer.putInt(72).putInt(1);
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        }
+
+        private void putEntry(ByteBuffer buffer, int tag, int format, int components, int value) {
+            buffer.putShort((short) tag).putShort((short) format).putInt(components).putInt(value);
+        }
+
+        private void writeSegment(ByteArrayOutputStream out, int marker, byte[] data) {
+            out.write(0xFF);
+            if (fillBytes) {
+                out.write(0xFF);
+            }
+            out.write(marker);
+            out.write((data.length + 2) >> 8);
+            out.write((data.length + 2) & 0xFF);
+            out.write(data, 0, data.length);
+        }
+    }
+
+    private static class SlowInputStream extends InputStream {
+        private byte[] data;
+        private int position;
+
+        SlowInputStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            return position < data.length ? data[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(@SuppressWarnings("NullableProblems") byte[] buffer, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            int value = read();
+            if (value < 0) {
+                return -1;
+            }
+            buffer[offset] = (byte) value;
+            return 1;
+        }
+
+        @Override
+        public long skip(long n) {
+            return 0;
+        }
+    }
+}
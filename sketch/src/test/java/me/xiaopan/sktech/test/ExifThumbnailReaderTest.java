@@ -0,0 +1,98 @@
+package me.xiaopan.sktech.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import me.xiaopan.sketch.util.ExifThumbnailReader;
+
+public class ExifThumbnailReaderTest {
+    private static final byte[] THUMBNAIL = {(byte) 0xFF, (byte) 0xD8, 1, 2, 3, 4, 5, 6, 7, 8, (byte) 0xFF, (byte) 0xD9};
+
+    @Test
+    public void testReadThumbnail() throws IOException {
+        for (boolean littleEndian : new boolean[]{true, false}) {
+            byte[] jpeg = buildJpeg(littleEndian, true, 0);
+            Assert.assertArrayEquals(THUMBNAIL, read(jpeg));
+        }
+    }
+
+    @Test
+    public void testNoThumbnail() throws IOException {
+        // 没有 IFD1
+        Assert.assertNull(read(buildJpeg(true, false, 0)));
+
+        // 缩略图超出了 APP1
+        Assert.assertNull(read(buildJpeg(false, true, 1000)));
+
+        byte[] noExif = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xDA, 0, 2};
+        Assert.assertNull(read(noExif));
+        Assert.assertNull(read(new byte[0]));
+    }
+
+    /**
+     * 截断在任何位置都不能抛异常，APP1 不完整的话就读不到
+     */
+    @Test
+    public void testTruncated() throws IOException {
+        byte[] jpeg = buildJpeg(true, true, 0);
+        int app1End = jpeg.length - 4;
+        for (int length = 0; length <= jpeg.length; length++) {
+            byte[] thumbnail = read(Arrays.copyOf(jpeg, length));
+            if (length >= app1End) {
+                Assert.assertArrayEquals("length=" + length, THUMBNAIL, thumbnail);
+            } else {
+                Assert.assertNull("length=" + length, thumbnail);
+            }
+        }
+    }
+
+    private static byte[] read(byte[] data) throws IOException {
+        return ExifThumbnailReader.read(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * @param withIfd1    是否带有记录缩略图位置的 IFD1
+     * @param offsetExtra 缩略图偏移量额外加上的值，用来构造越界的偏移量
+     */
+    private static byte[] buildJpeg(boolean littleEndian, boolean withIfd1, int offsetExtra) {
+        // TIFF 头 8 字节，IFD0 一个条目 2+12+4，IFD1 两个条目 2+24+4，后面跟着缩略图
+        int ifd0Offset = 8;
+        int ifd1Offset = ifd0Offset + 2 + 12 + 4;
+        int thumbnailOffset = ifd1Offset + 2 + 24 + 4;
+        ByteBuffer tiff = ByteBuffer.allocate(thumbnailOffset + THUMBNAIL.length);
+        tiff.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        tiff.put((byte) (littleEndian ? 'I' : 'M')).put((byte) (littleEndian ? 'I' : 'M'));
+        tiff.putShort((short) 0x2A).putInt(ifd0Offset);
+
+        // IFD0 只放一个 ImageWidth
+        tiff.putShort((short) 1);
+        tiff.putShort((short) 0x0100).putShort((short) 3).putInt(1).putShort((short) 4000).putShort((short) 0);
+        tiff.putInt(withIfd1 ? ifd1Offset : 0);
+
+        tiff.putShort((short) 2);
+        tiff.putShort((short) 0x0201).putShort((short) 4).putInt(1).putInt(thumbnailOffset + offsetExtra);
+        tiff.putShort((short) 0x0202).putShort((short) 4).putInt(1).putInt(THUMBNAIL.length);
+        tiff.putInt(0);
+        tiff.put(THUMBNAIL);
+
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        jpeg.write(0xFF);
+        jpeg.write(0xD8);
+        int segmentLength = 2 + 6 + tiff.capacity();
+        jpeg.write(0xFF);
+        jpeg.write(0xE1);
+        jpeg.write(segmentLength >> 8);
+        jpeg.write(segmentLength & 0xFF);
+        jpeg.write(new byte[]{'E', 'x', 'i', 'f', 0, 0}, 0, 6);
+        jpeg.write(tiff.array(), 0, tiff.capacity());
+        jpeg.write(new byte[]{(byte) 0xFF, (byte) 0xDA, 0, 2}, 0, 4);
+        return jpeg.toByteArray();
+    }
+}
@@ -0,0 +1,193 @@
+package me.xiaopan.sktech.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import me.xiaopan.sketch.util.MappedDiskIndex;
+
+public class MappedDiskIndexTest {
+    private File indexFile;
+
+    @Before
+    public void setUp() throws IOException {
+        indexFile = File.createTempFile("MappedDiskIndexTest", ".index");
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        indexFile.delete();
+    }
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        MappedDiskIndex index = MappedDiskIndex.open(indexFile, 1, 64);
+        try {
+            Assert.assertEquals(64, index.getCapacity());
+            Assert.assertEquals(-1, index.get(1, 2));
+
+            index.put(1, 2, 100);
+            index.put(3, 4, 200);
+            Assert.assertEquals(100, index.get(1, 2));
+            Assert.assertEquals(200, index.get(3, 4));
+            Assert.assertTrue(index.contains(3, 4));
+            Assert.assertEquals(2, index.getCount());
+            Assert.assertEquals(300, index.getSize());
+
+            // 更新长度
+            index.put(1, 2, 150);
+            Assert.assertEquals(150, index.get(1, 2));
+            Assert.assertEquals(2, index.getCount());
+            Assert.assertEquals(350, index.getSize());
+
+            Assert.assertEquals(150, index.remove(1, 2));
+            Assert.assertEquals(-1, index.remove(1, 2));
+            Assert.assertEquals(-1, index.get(1, 2));
+            Assert.assertFalse(index.contains(1, 2));
+            Assert.assertEquals(1, index.getCount());
+            Assert.assertEquals(200, index.getSize());
+        } finally {
+            index.close();
+        }
+        Assert.assertTrue(index.isClosed());
+        Assert.assertFalse(index.contains(3, 4));
+    }
+
+    /**
+     * 低位相同的 key 落在同一个槽位上，要靠线性探测区分开，删掉中间的一个后后面的还要能找到
+     */
+    @Test
+    public void testCollision() throws Exception {
+        MappedDiskIndex index = MappedDiskIndex.open(indexFile, 1, 64);
+        try {
+            for (int i = 0; i < 10; i++) {
+                index.put(i, 5 + 64L * i, i + 1);
+            }
+            index.put(100, 5, 1000);
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(i + 1, index.get(i, 5 + 64L * i));
+            }
+            Assert.assertEquals(1000, index.get(100, 5));
+
+            Assert.assertEquals(4, index.remove(3, 5 + 64L * 3));
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(i == 3 ? -1 : i + 1, index.get(i, 5 + 64L * i));
+            }
+            Assert.assertEquals(1000, index.get(100, 5));
+
+            // 删除的槽位可以复用
+            index.put(200, 5, 7);
+            Assert.assertEquals(7, index.get(200, 5));
+            Assert.assertEquals(11, index.getCount());
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * 反复添加删除，已删除的记录多了以后会整理，不能死循环也不能丢数据
+     */
+    @Test
+    public void testChurn() throws Exception {
+        MappedDiskIndex index = MappedDiskIndex.open(indexFile, 1, 64);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                index.put(i, i * 31L, i);
+                if (i >= 20) {
+                    Assert.assertEquals(i - 20, index.remove(i - 20, (i - 20) * 31L));
+                }
+            }
+            Assert.assertEquals(20, index.getCount());
+            for (int i = 980; i < 1000; i++) {
+                Assert.assertEquals(i, index.get(i, i * 31L));
+            }
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * 和 MappedDiskCache 一样淘汰到槽位数的 45%，按访问时间从旧到新淘汰
+     */
+    @Test
+    public void testTrimToCount() throws Exception {
+        MappedDiskIndex index = MappedDiskIndex.open(indexFile, 1, 64);
+        try {
+            int maxCount = index.getCapacity() / 20 * 9;
+            for (int i = 0; i < index.getCapacity() / 2; i++) {
+                index.put(i, i, 10);
+            }
+            // 访问一下最早的 key，它就不应该被淘汰了
+            Assert.assertEquals(10, index.get(0, 0));
+
+            long[] evictedKeys = index.trimToSize(Long.MAX_VALUE, maxCount);
+            int evictedCount = index.getCapacity() / 2 - maxCount;
+            Assert.assertEquals(evictedCount * 2, evictedKeys.length);
+            Assert.assertEquals(maxCount, index.getCount());
+            Assert.assertEquals(maxCount * 10L, index.getSize());
+            for (int i = 0; i < evictedCount; i++) {
+                Assert.assertEquals(i + 1, evictedKeys[i * 2]);
+                Assert.assertFalse(index.contains(i + 1, i + 1));
+            }
+            Assert.assertTrue(index.contains(0, 0));
+
+            // 按大小淘汰
+            evictedKeys = index.trimToSize(50, Integer.MAX_VALUE);
+            Assert.assertEquals((maxCount - 5) * 2, evictedKeys.length);
+            Assert.assertEquals(50, index.getSize());
+
+            Assert.assertEquals(0, index.trimToSize(50, Integer.MAX_VALUE).length);
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        MappedDiskIndex index = MappedDiskIndex.open(indexFile, 1, 64);
+        for (int i = 0; i < 20; i++) {
+            index.put(i, i * 7L, i + 1);
+        }
+        index.remove(5, 35);
+        index.get(0, 0);
+        index.close();
+
+        index = MappedDiskIndex.open(indexFile, 1, 64);
+        try {
+            Assert.assertEquals(19, index.getCount());
+            Assert.assertEquals(210 - 6, index.getSize());
+            Assert.assertEquals(-1, index.get(5, 35));
+            Assert.assertEquals(20, index.get(19, 19 * 7L));
+
+            // 访问时间也保存下来了，刚访问过的 19 最后才会被淘汰
+            long[] evictedKeys = index.trimToSize(Long.MAX_VALUE, 1);
+            Assert.assertEquals(36, evictedKeys.length);
+            Assert.assertTrue(index.contains(19, 19 * 7L));
+        } finally {
+            index.close();
+        }
+
+        // app 版本变了就清空
+        index = MappedDiskIndex.open(indexFile, 2, 64);
+        try {
+            Assert.assertEquals(0, index.getCount());
+            Assert.assertEquals(0, index.getSize());
+        } finally {
+            index.close();
+        }
+
+        // 槽位数变了也清空
+        index = MappedDiskIndex.open(indexFile, 2, 128);
+        try {
+            Assert.assertEquals(128, index.getCapacity());
+            Assert.assertEquals(0, index.getCount());
+        } finally {
+            index.close();
+        }
+    }
+}
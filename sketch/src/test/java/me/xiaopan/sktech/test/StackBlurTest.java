@@ -0,0 +1,284 @@
+package me.xiaopan.sktech.test;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import me.xiaopan.sketch.process.StackBlur;
+
+public class StackBlurTest {
+    @Test
+    public void testSameAsLegacy() {
+        Random random = new Random(20171018);
+        int[][] sizes = {{1, 1}, {1, 37}, {37, 1}, {3, 5}, {64, 48}, {300, 200}, {257, 513}};
+        int[] radii = {1, 2, 5, 15, 25, 100};
+        for (int[] size : sizes) {
+            for (int radius : radii) {
+                int[] source = randomPixels(random, size[0] * size[1]);
+
+                int[] expected = Arrays.copyOf(source, source.length);
+                legacyBlur(expected, size[0], size[1], radius);
+
+                for (int parallelism = 1; parallelism <= 4; parallelism++) {
+                    int[] actual = Arrays.copyOf(source, source.length);
+                    StackBlur.blur(actual, size[0], size[1], radius, parallelism);
+                    Assert.assertArrayEquals(String.format(Locale.US, "size=%dx%d, radius=%d, parallelism=%d",
+                            size[0], size[1], radius, parallelism), expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRadiusLessThanOne() {
+        int[] pixels = randomPixels(new Random(1), 16 * 16);
+        int[] copy = Arrays.copyOf(pixels, pixels.length);
+        StackBlur.blur(pixels, 16, 16, 0);
+        Assert.assertArrayEquals(copy, pixels);
+    }
+
+    /**
+     * 1080p 图片半径 15 的模糊，和原来的单线程实现对比耗时，只打印结果不做断言。耗时长、结果受机器影响，需要时手动运行
+     */
+    @Ignore("benchmark, run manually")
+    @Test
+    public void benchmark() {
+        int width = 1920;
+        int height = 1080;
+        int radius = 15;
+        int rounds = 10;
+        int[] source = randomPixels(new Random(2), width * height);
+        int[] pixels = new int[source.length];
+
+        // 预热
+        for (int i = 0; i < 3; i++) {
+            System.arraycopy(source, 0, pixels, 0, source.length);
+            legacyBlur(pixels, width, height, radius);
+            System.arraycopy(source, 0, pixels, 0, source.length);
+            StackBlur.blur(pixels, width, height, radius);
+        }
+
+        long legacyTime = 0;
+        long singleTime = 0;
+        long parallelTime = 0;
+        for (int i = 0; i < rounds; i++) {
+            System.arraycopy(source, 0, pixels, 0, source.length);
+            long startTime = System.nanoTime();
+            legacyBlur(pixels, width, height, radius);
+            legacyTime += System.nanoTime() - startTime;
+
+            System.arraycopy(source, 0, pixels, 0, source.length);
+            startTime = System.nanoTime();
+            StackBlur.blur(pixels, width, height, radius, 1);
+            singleTime += System.nanoTime() - startTime;
+
+            System.arraycopy(source, 0, pixels, 0, source.length);
+            startTime = System.nanoTime();
+            StackBlur.blur(pixels, width, height, radius);
+            parallelTime += System.nanoTime() - startTime;
+        }
+
+        System.out.println(String.format(Locale.US, "StackBlur benchmark %dx%d radius=%d. legacy=%.1fms, single=%.1fms, parallel(%d)=%.1fms",
+                width, height, radius, legacyTime / rounds / 1e6, singleTime / rounds / 1e6,
+                StackBlur.getDefaultParallelism(), parallelTime / rounds / 1e6));
+    }
+
+    private static int[] randomPixels(Random random, int count) {
+        int[] pixels = new int[count];
+        for (int i = 0; i < count; i++) {
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+
+    /**
+     * GaussianBlurImageProcessor 原来的实现，去掉了 Bitmap 的部分，作为对比的基准
+     */
+    @SuppressWarnings("ConstantConditions")
+    private static void legacyBlur(int[] pix, int w, int h, int radius) {
+        int wm = w - 1;
+        int hm = h - 1;
+        int wh = w * h;
+        int div = radius + radius + 1;
+
+        int r[] = new int[wh];
+        int g[] = new int[wh];
+        int b[] = new int[wh];
+        int rsum, gsum, bsum, x, y, i, p, yp, yi, yw;
+        int vmin[] = new int[Math.max(w, h)];
+
+        int divsum = (div + 1) >> 1;
+        divsum *= divsum;
+        int dv[] = new int[256 * divsum];
+        for (i = 0; i < 256 * divsum; i++) {
+            dv[i] = (i / divsum);
+        }
+
+        yw = yi = 0;
+
+        int[][] stack = new int[div][3];
+        int stackpointer;
+        int stackstart;
+        int[] sir;
+        int rbs;
+        int r1 = radius + 1;
+        int routsum, goutsum, boutsum;
+        int rinsum, ginsum, binsum;
+
+        for (y = 0; y < h; y++) {
+            rinsum = ginsum = binsum = routsum = goutsum = boutsum = rsum = gsum = bsum = 0;
+            for (i = -radius; i <= radius; i++) {
+                p = pix[yi + Math.min(wm, Math.max(i, 0))];
+                sir = stack[i + radius];
+                sir[0] = (p & 0xff0000) >> 16;
+                sir[1] = (p & 0x00ff00) >> 8;
+                sir[2] = (p & 0x0000ff);
+                rbs = r1 - Math.abs(i);
+                rsum += sir[0] * rbs;
+                gsum += sir[1] * rbs;
+                bsum += sir[2] * rbs;
+                if (i > 0) {
+                    rinsum += sir[0];
+                    ginsum += sir[1];
+                    binsum += sir[2];
+                } else {
+                    routsum += sir[0];
+                    goutsum += sir[1];
+                    boutsum += sir[2];
+                }
+            }
+            stackpointer = radius;
+
+            for (x = 0; x < w; x++) {
+                r[yi] = dv[rsum];
+                g[yi] = dv[gsum];
+                b[yi] = dv[bsum];
+
+                rsum -= routsum;
+                gsum -= goutsum;
+                bsum -= boutsum;
+
+                stackstart = stackpointer - radius + div;
+                sir = stack[stackstart % div];
+
+                routsum -= sir[0];
+                goutsum -= sir[1];
+                boutsum -= sir[2];
+
+                if (y == 0) {
+                    vmin[x] = Math.min(x + radius + 1, wm);
+                }
+                p = pix[yw + vmin[x]];
+
+                sir[0] = (p & 0xff0000) >> 16;
+                sir[1] = (p & 0x00ff00) >> 8;
+                sir[2] = (p & 0x0000ff);
+
+                rinsum += sir[0];
+                ginsum += sir[1];
+                binsum += sir[2];
+
+                rsum += rinsum;
+                gsum += ginsum;
+                bsum += binsum;
+
+                stackpointer = (stackpointer + 1) % div;
+                sir = stack[(stackpointer) % div];
+
+                routsum += sir[0];
+                goutsum += sir[1];
+                boutsum += sir[2];
+
+                rinsum -= sir[0];
+                ginsum -= sir[1];
+                binsum -= sir[2];
+
+                yi++;
+            }
+            yw += w;
+        }
+        for (x = 0; x < w; x++) {
+            rinsum = ginsum = binsum = routsum = goutsum = boutsum = rsum = gsum = bsum = 0;
+            yp = -radius * w;
+            for (i = -radius; i <= radius; i++) {
+                yi = Math.max(0, yp) + x;
+
+                sir = stack[i + radius];
+
+                sir[0] = r[yi];
+                sir[1] = g[yi];
+                sir[2] = b[yi];
+
+                rbs = r1 - Math.abs(i);
+
+                rsum += r[yi] * rbs;
+                gsum += g[yi] * rbs;
+                bsum += b[yi] * rbs;
+
+                if (i > 0) {
+                    rinsum += sir[0];
+                    ginsum += sir[1];
+                    binsum += sir[2];
+                } else {
+                    routsum += sir[0];
+                    goutsum += sir[1];
+                    boutsum += sir[2];
+                }
+
+                if (i < hm) {
+                    yp += w;
+                }
+            }
+            yi = x;
+            stackpointer = radius;
+            for (y = 0; y < h; y++) {
+                pix[yi] = (0xff000000 & pix[yi]) | (dv[rsum] << 16) | (dv[gsum] << 8) | dv[bsum];
+
+                rsum -= routsum;
+                gsum -= goutsum;
+                bsum -= boutsum;
+
+                stackstart = stackpointer - radius + div;
+                sir = stack[stackstart % div];
+
+                routsum -= sir[0];
+                goutsum -= sir[1];
+                boutsum -= sir[2];
+
+                if (x == 0) {
+                    vmin[y] = Math.min(y + r1, hm) * w;
+                }
+                p = x + vmin[y];
+
+                sir[0] = r[p];
+                sir[1] = g[p];
+                sir[2] = b[p];
+
+                rinsum += sir[0];
+                ginsum += sir[1];
+                binsum += sir[2];
+
+                rsum += rinsum;
+                gsum += ginsum;
+                bsum += binsum;
+
+                stackpointer = (stackpointer + 1) % div;
+                sir = stack[stackpointer];
+
+                routsum += sir[0];
+                goutsum += sir[1];
+                boutsum += sir[2];
+
+                rinsum -= sir[0];
+                ginsum -= sir[1];
+                binsum -= sir[2];
+
+                yi += w;
+            }
+        }
+    }
+}